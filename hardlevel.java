@@ -1,35 +1,78 @@
 // Account.java
 package com.example.banking;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.annotations.Type;
+
 import javax.persistence.*;
 import java.math.BigDecimal;
 
+// The (column, id) indexes back keyset pagination of account listings; see AccountSortKey
 @Entity
-@Table(name = "accounts")
+@Table(name = "accounts", indexes = {
+        @Index(name = "idx_accounts_owner_name_id", columnList = "owner_name, id"),
+        @Index(name = "idx_accounts_balance_id", columnList = "balance, id")
+})
 public class Account {
     
+    // Ids are handed out from memory in blocks of increment_size (pooled-lo), so inserts
+    // can be batched instead of waiting for an auto-increment key per row
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "account_id_generator")
+    @GenericGenerator(
+            name = "account_id_generator",
+            strategy = "com.example.banking.config.ReservedPoolSequenceGenerator",
+            parameters = {
+                    @Parameter(name = "sequence_name", value = "account_id_seq"),
+                    @Parameter(name = "force_table_use", value = "true"),
+                    @Parameter(name = "increment_size", value = "50"),
+                    @Parameter(name = "optimizer", value = "pooled-lo")
+            })
     private Long id;
     
+    @NaturalId
     @Column(name = "account_number", unique = true)
     private String accountNumber;
     
     @Column(name = "owner_name")
     private String ownerName;
     
+    @Type(type = "com.example.banking.MoneyType")
     @Column(name = "balance", precision = 19, scale = 2)
-    private BigDecimal balance;
+    private Money balance;
+    
+    // Number of AccountBalanceSlot rows the balance is spread over; 0 for regular accounts
+    @Column(name = "balance_slots", nullable = false)
+    private int balanceSlots;
+    
+    // Balance the account was opened with; reconciliation checks that the balance still equals
+    // this plus credits minus debits. Null for accounts created before the column existed.
+    @Type(type = "com.example.banking.MoneyType")
+    @Column(name = "opening_balance", precision = 19, scale = 2)
+    private Money openingBalance;
+    
+    // Bumped by every update; in OPTIMISTIC locking mode a transfer whose accounts changed
+    // after it read them fails its version check at commit and is retried
+    @Version
+    @Column(name = "version", nullable = false)
+    private long version;
     
     // Default constructor
     public Account() {
     }
     
     // Constructor with parameters
-    public Account(String accountNumber, String ownerName, BigDecimal balance) {
+    public Account(String accountNumber, String ownerName, Money balance) {
         this.accountNumber = accountNumber;
         this.ownerName = ownerName;
         this.balance = balance;
+        this.openingBalance = balance;
+    }
+    
+    public Account(String accountNumber, String ownerName, BigDecimal balance) {
+        this(accountNumber, ownerName, balance == null ? null : Money.of(balance));
     }
     
     // Getters and Setters
@@ -57,14 +100,45 @@ public class Account {
         this.ownerName = ownerName;
     }
     
-    public BigDecimal getBalance() {
+    public Money getBalance() {
         return balance;
     }
     
-    public void setBalance(BigDecimal balance) {
+    public void setBalance(Money balance) {
         this.balance = balance;
     }
     
+    public Money getOpeningBalance() {
+        return openingBalance;
+    }
+    
+    public void setOpeningBalance(Money openingBalance) {
+        this.openingBalance = openingBalance;
+    }
+    
+    public long getVersion() {
+        return version;
+    }
+    
+    public void setVersion(long version) {
+        this.version = version;
+    }
+    
+    public int getBalanceSlots() {
+        return balanceSlots;
+    }
+    
+    public void setBalanceSlots(int balanceSlots) {
+        this.balanceSlots = balanceSlots;
+    }
+    
+    // For sharded accounts getBalance() of a managed entity only holds the unsharded
+    // remainder; HotAccountService.getBalance adds the slots on top, and the BankService
+    // account read APIs return detached copies that already carry the full balance
+    public boolean isSharded() {
+        return balanceSlots > 0;
+    }
+    
     @Override
     public String toString() {
         return "Account{" +
@@ -79,16 +153,36 @@ public class Account {
 // Transaction.java
 package com.example.banking;
 
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.annotations.Type;
+
 import javax.persistence.*;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
+// The composite indexes back keyset pagination on (transaction_date, id), both for the
+// whole table and per source/target account
 @Entity
-@Table(name = "transactions")
+@Table(name = "transactions", indexes = {
+        @Index(name = "idx_transactions_date_id", columnList = "transaction_date, id"),
+        @Index(name = "idx_transactions_source_date_id", columnList = "source_account_id, transaction_date, id"),
+        @Index(name = "idx_transactions_target_date_id", columnList = "target_account_id, transaction_date, id"),
+        @Index(name = "uk_transactions_idempotency_key", columnList = "idempotency_key", unique = true)
+})
 public class Transaction {
     
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "transaction_id_generator")
+    @GenericGenerator(
+            name = "transaction_id_generator",
+            strategy = "com.example.banking.config.ReservedPoolSequenceGenerator",
+            parameters = {
+                    @Parameter(name = "sequence_name", value = "transaction_id_seq"),
+                    @Parameter(name = "force_table_use", value = "true"),
+                    @Parameter(name = "increment_size", value = "100"),
+                    @Parameter(name = "optimizer", value = "pooled-lo")
+            })
     private Long id;
     
     @Column(name = "source_account_id")
@@ -97,8 +191,9 @@ public class Transaction {
     @Column(name = "target_account_id")
     private Long targetAccountId;
     
+    @Type(type = "com.example.banking.MoneyType")
     @Column(name = "amount", precision = 19, scale = 2)
-    private BigDecimal amount;
+    private Money amount;
     
     @Column(name = "transaction_date")
     private LocalDateTime transactionDate;
@@ -106,13 +201,17 @@ public class Transaction {
     @Column(name = "status")
     private String status; // SUCCESS, FAILED
     
+    // Client-supplied key that makes retries of the same transfer return this row
+    @Column(name = "idempotency_key", length = 64)
+    private String idempotencyKey;
+    
     // Default constructor
     public Transaction() {
         this.transactionDate = LocalDateTime.now();
     }
     
     // Constructor with parameters
-    public Transaction(Long sourceAccountId, Long targetAccountId, BigDecimal amount) {
+    public Transaction(Long sourceAccountId, Long targetAccountId, Money amount) {
         this.sourceAccountId = sourceAccountId;
         this.targetAccountId = targetAccountId;
         this.amount = amount;
@@ -120,6 +219,10 @@ public class Transaction {
         this.status = "PENDING";
     }
     
+    public Transaction(Long sourceAccountId, Long targetAccountId, BigDecimal amount) {
+        this(sourceAccountId, targetAccountId, amount == null ? null : Money.of(amount));
+    }
+    
     // Getters and Setters
     public Long getId() {
         return id;
@@ -145,11 +248,11 @@ public class Transaction {
         this.targetAccountId = targetAccountId;
     }
     
-    public BigDecimal getAmount() {
+    public Money getAmount() {
         return amount;
     }
     
-    public void setAmount(BigDecimal amount) {
+    public void setAmount(Money amount) {
         this.amount = amount;
     }
     
@@ -169,6 +272,14 @@ public class Transaction {
         this.status = status;
     }
     
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+    
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+    
     @Override
     public String toString() {
         return "Transaction{" +
@@ -182,227 +293,11572 @@ public class Transaction {
     }
 }
 
-// AccountRepository.java
-package com.example.banking.repository;
+// AccountBalanceSlot.java
+package com.example.banking;
 
-import com.example.banking.Account;
-import org.hibernate.Session;
-import org.hibernate.SessionFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Repository;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.annotations.Type;
 
-import javax.persistence.TypedQuery;
-import java.util.List;
+import javax.persistence.*;
 
-@Repository
-public class AccountRepository {
+// One shard of a hot account's balance. Transfers touch a single slot row instead of the
+// account row, so concurrent transfers against the same account rarely wait on each other.
+@Entity
+@Table(name = "account_balance_slots", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_account_balance_slots_account_slot", columnNames = {"account_id", "slot"})
+})
+public class AccountBalanceSlot {
     
-    private final SessionFactory sessionFactory;
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "account_balance_slot_id_generator")
+    @GenericGenerator(
+            name = "account_balance_slot_id_generator",
+            strategy = "com.example.banking.config.ReservedPoolSequenceGenerator",
+            parameters = {
+                    @Parameter(name = "sequence_name", value = "account_balance_slot_id_seq"),
+                    @Parameter(name = "force_table_use", value = "true"),
+                    @Parameter(name = "increment_size", value = "50"),
+                    @Parameter(name = "optimizer", value = "pooled-lo")
+            })
+    private Long id;
     
-    @Autowired
-    public AccountRepository(SessionFactory sessionFactory) {
-        this.sessionFactory = sessionFactory;
+    @Column(name = "account_id", nullable = false)
+    private Long accountId;
+    
+    @Column(name = "slot", nullable = false)
+    private int slot;
+    
+    @Type(type = "com.example.banking.MoneyType")
+    @Column(name = "balance", precision = 19, scale = 2, nullable = false)
+    private Money balance;
+    
+    // Default constructor
+    public AccountBalanceSlot() {
     }
     
-    public Account findById(Long id) {
-        Session session = sessionFactory.getCurrentSession();
-        return session.get(Account.class, id);
+    // Constructor with parameters
+    public AccountBalanceSlot(Long accountId, int slot, Money balance) {
+        this.accountId = accountId;
+        this.slot = slot;
+        this.balance = balance;
     }
     
-    public Account findByAccountNumber(String accountNumber) {
-        Session session = sessionFactory.getCurrentSession();
-        TypedQuery<Account> query = session.createQuery(
-                "FROM Account WHERE accountNumber = :accountNumber", Account.class);
-        query.setParameter("accountNumber", accountNumber);
-        List<Account> results = query.getResultList();
-        return results.isEmpty() ? null : results.get(0);
+    // Getters and Setters
+    public Long getId() {
+        return id;
     }
     
-    public void save(Account account) {
-        Session session = sessionFactory.getCurrentSession();
-        session.saveOrUpdate(account);
+    public void setId(Long id) {
+        this.id = id;
     }
     
-    public List<Account> findAll() {
-        Session session = sessionFactory.getCurrentSession();
-        return session.createQuery("FROM Account", Account.class).getResultList();
+    public Long getAccountId() {
+        return accountId;
+    }
+    
+    public void setAccountId(Long accountId) {
+        this.accountId = accountId;
+    }
+    
+    public int getSlot() {
+        return slot;
+    }
+    
+    public void setSlot(int slot) {
+        this.slot = slot;
+    }
+    
+    public Money getBalance() {
+        return balance;
+    }
+    
+    public void setBalance(Money balance) {
+        this.balance = balance;
+    }
+    
+    @Override
+    public String toString() {
+        return "AccountBalanceSlot{" +
+                "accountId=" + accountId +
+                ", slot=" + slot +
+                ", balance=" + balance +
+                '}';
     }
 }
 
-// TransactionRepository.java
-package com.example.banking.repository;
-
-import com.example.banking.Transaction;
-import org.hibernate.Session;
-import org.hibernate.SessionFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Repository;
+// LedgerSnapshot.java
+package com.example.banking;
 
-import java.util.List;
+import javax.persistence.*;
+import java.time.LocalDateTime;
 
-@Repository
-public class TransactionRepository {
+// Single-row marker of how far the ledger journal has been projected into the
+// accounts and transactions tables
+@Entity
+@Table(name = "ledger_snapshots")
+public class LedgerSnapshot {
     
-    private final SessionFactory sessionFactory;
+    public static final int SINGLETON_ID = 1;
     
-    @Autowired
-    public TransactionRepository(SessionFactory sessionFactory) {
-        this.sessionFactory = sessionFactory;
+    @Id
+    private Integer id;
+    
+    @Column(name = "last_sequence", nullable = false)
+    private long lastSequence;
+    
+    @Column(name = "taken_at")
+    private LocalDateTime takenAt;
+    
+    // Default constructor
+    public LedgerSnapshot() {
     }
     
-    public void save(Transaction transaction) {
-        Session session = sessionFactory.getCurrentSession();
-        session.saveOrUpdate(transaction);
+    // Constructor with parameters
+    public LedgerSnapshot(long lastSequence) {
+        this.id = SINGLETON_ID;
+        this.lastSequence = lastSequence;
+        this.takenAt = LocalDateTime.now();
     }
     
-    public Transaction findById(Long id) {
-        Session session = sessionFactory.getCurrentSession();
-        return session.get(Transaction.class, id);
+    // Getters and Setters
+    public Integer getId() {
+        return id;
     }
     
-    public List<Transaction> findBySourceAccountId(Long accountId) {
-        Session session = sessionFactory.getCurrentSession();
-        return session.createQuery(
-                "FROM Transaction WHERE sourceAccountId = :accountId", 
-                Transaction.class)
-                .setParameter("accountId", accountId)
-                .getResultList();
+    public void setId(Integer id) {
+        this.id = id;
     }
     
-    public List<Transaction> findByTargetAccountId(Long accountId) {
-        Session session = sessionFactory.getCurrentSession();
-        return session.createQuery(
-                "FROM Transaction WHERE targetAccountId = :accountId", 
-                Transaction.class)
-                .setParameter("accountId", accountId)
-                .getResultList();
+    public long getLastSequence() {
+        return lastSequence;
     }
     
-    public List<Transaction> findAll() {
-        Session session = sessionFactory.getCurrentSession();
-        return session.createQuery("FROM Transaction", Transaction.class).getResultList();
+    public void setLastSequence(long lastSequence) {
+        this.lastSequence = lastSequence;
+    }
+    
+    public LocalDateTime getTakenAt() {
+        return takenAt;
+    }
+    
+    public void setTakenAt(LocalDateTime takenAt) {
+        this.takenAt = takenAt;
     }
 }
 
-// BankService.java
-package com.example.banking.service;
+// ReplicaHeartbeat.java
+package com.example.banking;
 
-import com.example.banking.Account;
-import com.example.banking.Transaction;
-import com.example.banking.repository.AccountRepository;
-import com.example.banking.repository.TransactionRepository;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import javax.persistence.*;
 
-import java.math.BigDecimal;
-import java.util.List;
+// Single row the primary rewrites on every replica lag check. A replica's copy of the row
+// shows how far behind it is; see ReadWriteRoutingDataSource.
+@Entity
+@Table(name = "replica_heartbeats")
+public class ReplicaHeartbeat {
+    
+    public static final int SINGLETON_ID = 1;
+    
+    @Id
+    private Integer id;
+    
+    // Epoch milliseconds of the last heartbeat
+    @Column(name = "beat_at", nullable = false)
+    private long beatAt;
+    
+    // Default constructor
+    public ReplicaHeartbeat() {
+    }
+    
+    // Getters and Setters
+    public Integer getId() {
+        return id;
+    }
+    
+    public void setId(Integer id) {
+        this.id = id;
+    }
+    
+    public long getBeatAt() {
+        return beatAt;
+    }
+    
+    public void setBeatAt(long beatAt) {
+        this.beatAt = beatAt;
+    }
+}
 
-@Service
-public class BankService {
+// BulkImportCheckpoint.java
+package com.example.banking;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+// Progress of one bulk import job, written in the same transaction as each chunk of rows
+// so a restarted job resumes exactly after the last committed chunk
+@Entity
+@Table(name = "bulk_import_checkpoints")
+public class BulkImportCheckpoint {
     
-    private final AccountRepository accountRepository;
-    private final TransactionRepository transactionRepository;
+    @Id
+    @Column(name = "job_id", length = 128)
+    private String jobId;
     
-    @Autowired
-    public BankService(AccountRepository accountRepository, TransactionRepository transactionRepository) {
-        this.accountRepository = accountRepository;
-        this.transactionRepository = transactionRepository;
+    // Byte offset in the import file just past the last committed record
+    @Column(name = "file_position", nullable = false)
+    private long filePosition;
+    
+    @Column(name = "imported_rows", nullable = false)
+    private long importedRows;
+    
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+    
+    // Default constructor
+    public BulkImportCheckpoint() {
     }
     
-    @Transactional
-    public Account createAccount(Account account) {
-        accountRepository.save(account);
-        return account;
+    // Constructor with parameters
+    public BulkImportCheckpoint(String jobId) {
+        this.jobId = jobId;
     }
     
-    @Transactional(readOnly = true)
-    public Account getAccountById(Long id) {
-        return accountRepository.findById(id);
+    // Getters and Setters
+    public String getJobId() {
+        return jobId;
     }
     
-    @Transactional(readOnly = true)
-    public Account getAccountByNumber(String accountNumber) {
-        return accountRepository.findByAccountNumber(accountNumber);
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
     }
     
-    @Transactional(readOnly = true)
-    public List<Account> getAllAccounts() {
-        return accountRepository.findAll();
+    public long getFilePosition() {
+        return filePosition;
     }
     
-    @Transactional
-    public Transaction transferMoney(String sourceAccountNumber, String targetAccountNumber, BigDecimal amount) {
-        Account sourceAccount = accountRepository.findByAccountNumber(sourceAccountNumber);
-        Account targetAccount = accountRepository.findByAccountNumber(targetAccountNumber);
-        
-        // Validate accounts and amount
-        if (sourceAccount == null || targetAccount == null) {
-            throw new IllegalArgumentException("Source or target account not found");
-        }
-        
-        if (amount.compareTo(BigDecimal.ZERO) <= 0) {
-            throw new IllegalArgumentException("Transfer amount must be positive");
-        }
-        
-        if (sourceAccount.getBalance().compareTo(amount) < 0) {
-            throw new IllegalArgumentException("Insufficient funds in source account");
-        }
-        
-        // Create transaction record
-        Transaction transaction = new Transaction(sourceAccount.getId(), targetAccount.getId(), amount);
-        
-        try {
-            // Update balances
-            sourceAccount.setBalance(sourceAccount.getBalance().subtract(amount));
-            targetAccount.setBalance(targetAccount.getBalance().add(amount));
-            
-            // Save updated accounts
-            accountRepository.save(sourceAccount);
-            accountRepository.save(targetAccount);
-            
-            // Mark transaction as successful
-            transaction.setStatus("SUCCESS");
-            
-        } catch (Exception e) {
-            // Mark transaction as failed
-            transaction.setStatus("FAILED");
-            // Rethrow to trigger rollback
-            throw e;
-        } finally {
-            // Save transaction record regardless of outcome
-            transactionRepository.save(transaction);
-        }
-        
-        return transaction;
+    public void setFilePosition(long filePosition) {
+        this.filePosition = filePosition;
     }
     
-    @Transactional(readOnly = true)
-    public List<Transaction> getAllTransactions() {
-        return transactionRepository.findAll();
+    public long getImportedRows() {
+        return importedRows;
+    }
+    
+    public void setImportedRows(long importedRows) {
+        this.importedRows = importedRows;
+    }
+    
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+    
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
+
+// ArchivedSegment.java
+package com.example.banking;
+
+import javax.persistence.*;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+// Catalog entry of one transaction archive segment file. It is inserted in the same database
+// transaction that deletes the segment's rows from the transactions table, so a query that
+// reads the catalog and the table in one transaction sees every transaction exactly once.
+@Entity
+@Table(name = "transaction_archive_segments", indexes = {
+        @Index(name = "idx_transaction_archive_segments_date", columnList = "segment_date")
+})
+public class ArchivedSegment {
+    
+    @Id
+    @Column(name = "file_name", length = 128)
+    private String fileName;
+    
+    // Every transaction in the segment has a transactionDate on this day
+    @Column(name = "segment_date", nullable = false)
+    private LocalDate segmentDate;
+    
+    @Column(name = "record_count", nullable = false)
+    private long recordCount;
+    
+    @Column(name = "min_id", nullable = false)
+    private long minId;
+    
+    @Column(name = "max_id", nullable = false)
+    private long maxId;
+    
+    @Column(name = "archived_at")
+    private LocalDateTime archivedAt;
+    
+    // Default constructor
+    public ArchivedSegment() {
+    }
+    
+    // Constructor with parameters
+    public ArchivedSegment(String fileName, LocalDate segmentDate, long recordCount, long minId, long maxId) {
+        this.fileName = fileName;
+        this.segmentDate = segmentDate;
+        this.recordCount = recordCount;
+        this.minId = minId;
+        this.maxId = maxId;
+        this.archivedAt = LocalDateTime.now();
+    }
+    
+    // Getters and Setters
+    public String getFileName() {
+        return fileName;
+    }
+    
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+    
+    public LocalDate getSegmentDate() {
+        return segmentDate;
+    }
+    
+    public void setSegmentDate(LocalDate segmentDate) {
+        this.segmentDate = segmentDate;
+    }
+    
+    public long getRecordCount() {
+        return recordCount;
+    }
+    
+    public void setRecordCount(long recordCount) {
+        this.recordCount = recordCount;
+    }
+    
+    public long getMinId() {
+        return minId;
+    }
+    
+    public void setMinId(long minId) {
+        this.minId = minId;
+    }
+    
+    public long getMaxId() {
+        return maxId;
+    }
+    
+    public void setMaxId(long maxId) {
+        this.maxId = maxId;
+    }
+    
+    public LocalDateTime getArchivedAt() {
+        return archivedAt;
+    }
+    
+    public void setArchivedAt(LocalDateTime archivedAt) {
+        this.archivedAt = archivedAt;
+    }
+}
+
+// ArchivedAccountTotal.java
+package com.example.banking;
+
+import org.hibernate.annotations.Type;
+
+import javax.persistence.*;
+
+// Net effect of all archived successful transactions on one account: credits minus debits.
+// Kept with the catalog so balances still reconcile once history has left the table.
+@Entity
+@Table(name = "transaction_archive_totals")
+public class ArchivedAccountTotal {
+    
+    @Id
+    @Column(name = "account_id")
+    private Long accountId;
+    
+    @Type(type = "com.example.banking.MoneyType")
+    @Column(name = "archived_net", precision = 19, scale = 2, nullable = false)
+    private Money archivedNet;
+    
+    // Default constructor
+    public ArchivedAccountTotal() {
+    }
+    
+    // Constructor with parameters
+    public ArchivedAccountTotal(Long accountId, Money archivedNet) {
+        this.accountId = accountId;
+        this.archivedNet = archivedNet;
+    }
+    
+    // Getters and Setters
+    public Long getAccountId() {
+        return accountId;
+    }
+    
+    public void setAccountId(Long accountId) {
+        this.accountId = accountId;
+    }
+    
+    public Money getArchivedNet() {
+        return archivedNet;
+    }
+    
+    public void setArchivedNet(Money archivedNet) {
+        this.archivedNet = archivedNet;
+    }
+}
+
+// ArchivedSegmentAccount.java
+package com.example.banking;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.Objects;
+
+// Marks an account as appearing in an archive segment, as source or target of at least one
+// transaction. Written with the segment's catalog entry, so per-account history queries can
+// pick their segments in the database instead of opening every segment file to find out.
+// The key leads with account_id, which is the only way the table is searched.
+@Entity
+@Table(name = "transaction_archive_segment_accounts")
+@IdClass(ArchivedSegmentAccount.Key.class)
+public class ArchivedSegmentAccount {
+    
+    @Id
+    @Column(name = "account_id")
+    private Long accountId;
+    
+    @Id
+    @Column(name = "file_name", length = 128)
+    private String fileName;
+    
+    // Default constructor
+    public ArchivedSegmentAccount() {
+    }
+    
+    // Constructor with parameters
+    public ArchivedSegmentAccount(Long accountId, String fileName) {
+        this.accountId = accountId;
+        this.fileName = fileName;
+    }
+    
+    // Getters and Setters
+    public Long getAccountId() {
+        return accountId;
+    }
+    
+    public void setAccountId(Long accountId) {
+        this.accountId = accountId;
+    }
+    
+    public String getFileName() {
+        return fileName;
+    }
+    
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+    
+    public static class Key implements Serializable {
+        
+        private Long accountId;
+        private String fileName;
+        
+        public Key() {
+        }
+        
+        public Key(Long accountId, String fileName) {
+            this.accountId = accountId;
+            this.fileName = fileName;
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return Objects.equals(accountId, other.accountId) && Objects.equals(fileName, other.fileName);
+        }
+        
+        @Override
+        public int hashCode() {
+            return Objects.hash(accountId, fileName);
+        }
+    }
+}
+
+// OutboxEvent.java
+package com.example.banking;
+
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+import org.hibernate.annotations.Type;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+// One successful transfer waiting in the transactional outbox. TransactionOutbox inserts it
+// in the transfer's own database transaction and OutboxRelay later gives it its place in the
+// feed, in id order among the events it finds.
+@Entity
+@Table(name = "outbox_events", indexes = {
+        @Index(name = "idx_outbox_events_sequence_id", columnList = "relay_sequence, id")
+})
+public class OutboxEvent {
+    
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "outbox_event_id_generator")
+    @GenericGenerator(
+            name = "outbox_event_id_generator",
+            strategy = "com.example.banking.config.ReservedPoolSequenceGenerator",
+            parameters = {
+                    @Parameter(name = "sequence_name", value = "outbox_event_id_seq"),
+                    @Parameter(name = "force_table_use", value = "true"),
+                    @Parameter(name = "increment_size", value = "100"),
+                    @Parameter(name = "optimizer", value = "pooled-lo")
+            })
+    private Long id;
+    
+    @Column(name = "transaction_id", nullable = false)
+    private Long transactionId;
+    
+    @Column(name = "source_account_id", nullable = false)
+    private Long sourceAccountId;
+    
+    @Column(name = "target_account_id", nullable = false)
+    private Long targetAccountId;
+    
+    @Type(type = "com.example.banking.MoneyType")
+    @Column(name = "amount", precision = 19, scale = 2, nullable = false)
+    private Money amount;
+    
+    @Column(name = "occurred_at", nullable = false)
+    private LocalDateTime occurredAt;
+    
+    // Position in the feed; null until the relay has picked the event up
+    @Column(name = "relay_sequence")
+    private Long relaySequence;
+    
+    // Default constructor
+    public OutboxEvent() {
+    }
+    
+    // Constructor with parameters
+    public OutboxEvent(Transaction transaction) {
+        this.transactionId = transaction.getId();
+        this.sourceAccountId = transaction.getSourceAccountId();
+        this.targetAccountId = transaction.getTargetAccountId();
+        this.amount = transaction.getAmount();
+        this.occurredAt = transaction.getTransactionDate();
+    }
+    
+    // Getters and Setters
+    public Long getId() {
+        return id;
+    }
+    
+    public void setId(Long id) {
+        this.id = id;
+    }
+    
+    public Long getTransactionId() {
+        return transactionId;
+    }
+    
+    public void setTransactionId(Long transactionId) {
+        this.transactionId = transactionId;
+    }
+    
+    public Long getSourceAccountId() {
+        return sourceAccountId;
+    }
+    
+    public void setSourceAccountId(Long sourceAccountId) {
+        this.sourceAccountId = sourceAccountId;
+    }
+    
+    public Long getTargetAccountId() {
+        return targetAccountId;
+    }
+    
+    public void setTargetAccountId(Long targetAccountId) {
+        this.targetAccountId = targetAccountId;
+    }
+    
+    public Money getAmount() {
+        return amount;
+    }
+    
+    public void setAmount(Money amount) {
+        this.amount = amount;
+    }
+    
+    public LocalDateTime getOccurredAt() {
+        return occurredAt;
+    }
+    
+    public void setOccurredAt(LocalDateTime occurredAt) {
+        this.occurredAt = occurredAt;
+    }
+    
+    public Long getRelaySequence() {
+        return relaySequence;
+    }
+    
+    public void setRelaySequence(Long relaySequence) {
+        this.relaySequence = relaySequence;
+    }
+}
+
+// OutboxCursor.java
+package com.example.banking;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+
+// Single-row position of OutboxRelay: the last feed sequence handed to an event and the last
+// one delivered to every sink. Anything in between was sequenced but not yet delivered.
+@Entity
+@Table(name = "outbox_cursors")
+public class OutboxCursor {
+    
+    public static final int SINGLETON_ID = 1;
+    
+    @Id
+    private Integer id;
+    
+    @Column(name = "last_assigned", nullable = false)
+    private long lastAssigned;
+    
+    @Column(name = "last_delivered", nullable = false)
+    private long lastDelivered;
+    
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+    
+    // Default constructor
+    public OutboxCursor() {
+        this.id = SINGLETON_ID;
+        this.updatedAt = LocalDateTime.now();
+    }
+    
+    // Getters and Setters
+    public Integer getId() {
+        return id;
+    }
+    
+    public void setId(Integer id) {
+        this.id = id;
+    }
+    
+    public long getLastAssigned() {
+        return lastAssigned;
+    }
+    
+    public void setLastAssigned(long lastAssigned) {
+        this.lastAssigned = lastAssigned;
+    }
+    
+    public long getLastDelivered() {
+        return lastDelivered;
+    }
+    
+    public void setLastDelivered(long lastDelivered) {
+        this.lastDelivered = lastDelivered;
+    }
+    
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+    
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
+
+// Money.java
+package com.example.banking;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+// Fixed-point amount held as a long count of cents, matching the DECIMAL(19, 2) balance and
+// amount columns. Arithmetic is exact and throws ArithmeticException on overflow instead of
+// wrapping; values with more than two decimal places are rejected rather than rounded.
+public final class Money implements Comparable<Money>, Serializable {
+    
+    public static final Money ZERO = new Money(0);
+    
+    private static final int SCALE = 2;
+    
+    private final long minorUnits;
+    
+    private Money(long minorUnits) {
+        this.minorUnits = minorUnits;
+    }
+    
+    public static Money ofMinor(long minorUnits) {
+        return minorUnits == 0 ? ZERO : new Money(minorUnits);
+    }
+    
+    public static Money of(BigDecimal amount) {
+        try {
+            return ofMinor(amount.movePointRight(SCALE).longValueExact());
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(
+                    "Amount must have at most " + SCALE + " decimal places and fit in 19 digits: " + amount);
+        }
+    }
+    
+    public long getMinorUnits() {
+        return minorUnits;
+    }
+    
+    public Money add(Money other) {
+        return ofMinor(Math.addExact(minorUnits, other.minorUnits));
+    }
+    
+    public Money subtract(Money other) {
+        return ofMinor(Math.subtractExact(minorUnits, other.minorUnits));
+    }
+    
+    public Money negate() {
+        return ofMinor(Math.negateExact(minorUnits));
+    }
+    
+    public Money min(Money other) {
+        return minorUnits <= other.minorUnits ? this : other;
+    }
+    
+    public Money max(Money other) {
+        return minorUnits >= other.minorUnits ? this : other;
+    }
+    
+    public int signum() {
+        return Long.signum(minorUnits);
+    }
+    
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(minorUnits, SCALE);
+    }
+    
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(minorUnits, other.minorUnits);
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Money && ((Money) o).minorUnits == minorUnits;
+    }
+    
+    @Override
+    public int hashCode() {
+        return Long.hashCode(minorUnits);
+    }
+    
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+}
+
+// MoneyType.java
+package com.example.banking;
+
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.type.CustomType;
+import org.hibernate.usertype.UserType;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Objects;
+
+// Maps Money onto a DECIMAL column, so the schema stays exactly as it was with BigDecimal.
+// Use INSTANCE to bind Money query parameters where Hibernate cannot infer the type.
+public class MoneyType implements UserType {
+    
+    private static final int[] SQL_TYPES = {Types.DECIMAL};
+    
+    public static final CustomType INSTANCE = new CustomType(new MoneyType());
+    
+    @Override
+    public int[] sqlTypes() {
+        return SQL_TYPES;
+    }
+    
+    @Override
+    public Class<?> returnedClass() {
+        return Money.class;
+    }
+    
+    @Override
+    public boolean equals(Object x, Object y) {
+        return Objects.equals(x, y);
+    }
+    
+    @Override
+    public int hashCode(Object x) {
+        return Objects.hashCode(x);
+    }
+    
+    @Override
+    public Object nullSafeGet(ResultSet rs, String[] names, SharedSessionContractImplementor session, Object owner)
+            throws SQLException {
+        BigDecimal value = rs.getBigDecimal(names[0]);
+        return value == null ? null : Money.of(value);
+    }
+    
+    @Override
+    public void nullSafeSet(PreparedStatement st, Object value, int index, SharedSessionContractImplementor session)
+            throws SQLException {
+        if (value == null) {
+            st.setNull(index, Types.DECIMAL);
+        } else {
+            st.setBigDecimal(index, ((Money) value).toBigDecimal());
+        }
+    }
+    
+    // Money is immutable, so copies, cache entries and merges can share the instance
+    @Override
+    public Object deepCopy(Object value) {
+        return value;
+    }
+    
+    @Override
+    public boolean isMutable() {
+        return false;
+    }
+    
+    @Override
+    public Serializable disassemble(Object value) {
+        return (Serializable) value;
+    }
+    
+    @Override
+    public Object assemble(Serializable cached, Object owner) {
+        return cached;
+    }
+    
+    @Override
+    public Object replace(Object original, Object target, Object owner) {
+        return original;
+    }
+}
+
+// AccountRepository.java
+package com.example.banking.repository;
+
+import com.example.banking.Account;
+import com.example.banking.Money;
+import com.example.banking.MoneyType;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.query.Query;
+import org.hibernate.type.StandardBasicTypes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import javax.persistence.LockModeType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Objects;
+
+@Repository
+public class AccountRepository {
+    
+    // Keeps IN lists well below driver and database parameter limits
+    private static final int IN_LIST_CHUNK_SIZE = 1000;
+    
+    private final SessionFactory sessionFactory;
+    private final AccountNumberCache accountNumberCache;
+    
+    @Autowired
+    public AccountRepository(SessionFactory sessionFactory, AccountNumberCache accountNumberCache) {
+        this.sessionFactory = sessionFactory;
+        this.accountNumberCache = accountNumberCache;
+    }
+    
+    public Account findById(Long id) {
+        Session session = sessionFactory.getCurrentSession();
+        return session.get(Account.class, id);
+    }
+    
+    // A cached number turns the lookup into a primary key load, which is free when the
+    // account is already in the session; otherwise Hibernate resolves the natural id
+    public Account findByAccountNumber(String accountNumber) {
+        if (accountNumber == null) {
+            return null;
+        }
+        Session session = sessionFactory.getCurrentSession();
+        Long id = accountNumberCache.get(accountNumber);
+        if (id != null) {
+            Account account = session.get(Account.class, id);
+            if (account != null) {
+                return account;
+            }
+            // The cached id points at a row that no longer exists
+            accountNumberCache.invalidate(accountNumber);
+        }
+        
+        Account account = session.bySimpleNaturalId(Account.class).load(accountNumber);
+        if (account != null) {
+            accountNumberCache.putAfterCommit(accountNumber, account.getId());
+        }
+        return account;
+    }
+    
+    // Resolves an account number to its id without loading or locking the row
+    public Long findIdByAccountNumber(String accountNumber) {
+        if (accountNumber == null) {
+            return null;
+        }
+        Long cached = accountNumberCache.get(accountNumber);
+        if (cached != null) {
+            return cached;
+        }
+        
+        Session session = sessionFactory.getCurrentSession();
+        List<Long> results = session.createQuery(
+                "SELECT a.id FROM Account a WHERE a.accountNumber = :accountNumber", Long.class)
+                .setParameter("accountNumber", accountNumber)
+                .getResultList();
+        if (results.isEmpty()) {
+            return null;
+        }
+        accountNumberCache.putAfterCommit(accountNumber, results.get(0));
+        return results.get(0);
+    }
+    
+    // Loads the given accounts with SELECT ... FOR UPDATE, always in ascending id order,
+    // so two transfers over the same pair of accounts can never wait on each other in a cycle
+    public Map<Long, Account> findAllByIdForUpdate(Long... ids) {
+        Session session = sessionFactory.getCurrentSession();
+        Long[] ordered = Arrays.stream(ids)
+                .filter(Objects::nonNull)
+                .distinct()
+                .sorted()
+                .toArray(Long[]::new);
+        
+        Map<Long, Account> accounts = new HashMap<>();
+        for (Long id : ordered) {
+            Account account = session.get(Account.class, id, LockMode.PESSIMISTIC_WRITE);
+            if (account != null) {
+                accounts.put(id, account);
+            }
+        }
+        return accounts;
+    }
+    
+    public Map<String, Long> findIdsByAccountNumbers(Collection<String> accountNumbers) {
+        Map<String, Long> ids = new HashMap<>();
+        List<String> uncached = new ArrayList<>();
+        for (String accountNumber : accountNumbers) {
+            Long cached = accountNumberCache.get(accountNumber);
+            if (cached != null) {
+                ids.put(accountNumber, cached);
+            } else if (accountNumber != null) {
+                uncached.add(accountNumber);
+            }
+        }
+        
+        Session session = sessionFactory.getCurrentSession();
+        for (List<String> chunk : partition(uncached)) {
+            List<Object[]> rows = session.createQuery(
+                    "SELECT a.accountNumber, a.id FROM Account a WHERE a.accountNumber IN (:accountNumbers)",
+                    Object[].class)
+                    .setParameterList("accountNumbers", chunk)
+                    .getResultList();
+            for (Object[] row : rows) {
+                ids.put((String) row[0], (Long) row[1]);
+                accountNumberCache.putAfterCommit((String) row[0], (Long) row[1]);
+            }
+        }
+        return ids;
+    }
+    
+    public Map<String, Account> findAllByAccountNumbers(Collection<String> accountNumbers) {
+        Session session = sessionFactory.getCurrentSession();
+        Map<String, Account> accounts = new HashMap<>();
+        List<String> numbers = new ArrayList<>(accountNumbers);
+        numbers.removeIf(Objects::isNull);
+        for (List<String> chunk : partition(numbers)) {
+            List<Account> results = session.createQuery(
+                    "FROM Account a WHERE a.accountNumber IN (:accountNumbers)", Account.class)
+                    .setParameterList("accountNumbers", chunk)
+                    .getResultList();
+            for (Account account : results) {
+                accounts.put(account.getAccountNumber(), account);
+            }
+        }
+        return accounts;
+    }
+    
+    // Locks many accounts at once; each chunk walks the primary key in ascending order so
+    // rows are locked in the same order findAllByIdForUpdate uses
+    public List<Account> findAllByIdsForUpdate(Collection<Long> ids) {
+        Session session = sessionFactory.getCurrentSession();
+        List<Long> ordered = new ArrayList<>(ids);
+        ordered.removeIf(Objects::isNull);
+        ordered.sort(null);
+        
+        List<Account> accounts = new ArrayList<>(ordered.size());
+        for (List<Long> chunk : partition(ordered)) {
+            accounts.addAll(session.createQuery(
+                    "FROM Account a WHERE a.id IN (:ids) ORDER BY a.id", Account.class)
+                    .setParameterList("ids", chunk)
+                    .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                    .getResultList());
+        }
+        return accounts;
+    }
+    
+    public void save(Account account) {
+        Session session = sessionFactory.getCurrentSession();
+        boolean created = account.getId() == null;
+        session.saveOrUpdate(account);
+        if (created) {
+            accountNumberCache.putAfterCommit(account.getAccountNumber(), account.getId());
+        }
+    }
+    
+    // Slot counts of every sharded account, keyed by account id
+    public Map<Long, Integer> findBalanceSlotCounts() {
+        Session session = sessionFactory.getCurrentSession();
+        List<Object[]> rows = session.createQuery(
+                "SELECT a.id, a.balanceSlots FROM Account a WHERE a.balanceSlots > 0", Object[].class)
+                .getResultList();
+        Map<Long, Integer> slotCounts = new HashMap<>();
+        for (Object[] row : rows) {
+            slotCounts.put((Long) row[0], (Integer) row[1]);
+        }
+        return slotCounts;
+    }
+    
+    public CacheStats getAccountNumberCacheStats() {
+        return accountNumberCache.getStats();
+    }
+    
+    // Stops tracking the account, so changes made to it are never flushed
+    public void detach(Account account) {
+        sessionFactory.getCurrentSession().detach(account);
+    }
+    
+    // Loads every account as a managed entity; listings should use findSummaries instead
+    public List<Account> findAll() {
+        Session session = sessionFactory.getCurrentSession();
+        return session.createQuery("FROM Account", Account.class).getResultList();
+    }
+    
+    // Keyset-paged listing of read-only summaries built by a constructor expression, so no
+    // entity enters the persistence context. Rows without a value for the sort key, such as
+    // accounts without an owner name, come first in ascending and last in descending order.
+    // They are read as a separate range of the same index, because databases disagree on
+    // where NULLs sort. Balances, balance filters and the balance order include the slots of
+    // sharded accounts; those few accounts are read on their own (see findShardedSummaries)
+    // so the query over all other rows stays a range scan of its index.
+    public AccountSummaryPage findSummaries(AccountQuery query, AccountCursor after, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        AccountSortKey sortKey = query.getSortKey();
+        if (after != null) {
+            if (after.getSortKey() != sortKey) {
+                throw new IllegalArgumentException("Cursor belongs to a listing sorted by " + after.getSortKey());
+            }
+            Class<?> valueType = sortKey == AccountSortKey.BALANCE ? Money.class : String.class;
+            if (after.getValue() != null && !valueType.isInstance(after.getValue())) {
+                throw new IllegalArgumentException("Cursor value must be a " + valueType.getSimpleName());
+            }
+        }
+        
+        // Only needed when the row balance alone would filter or order sharded accounts wrongly
+        boolean balanceFiltered = query.getMinBalance() != null || query.getMaxBalance() != null;
+        List<AccountSummary> sharded = sortKey == AccountSortKey.BALANCE || balanceFiltered
+                ? findShardedSummaries(query)
+                : null;
+        
+        boolean afterNull = after != null && after.getValue() == null;
+        List<AccountSummary> items = new ArrayList<>(limit);
+        if (!query.isDescending()) {
+            if (after == null || afterNull) {
+                addSummaries(items, query, sharded, true, after, limit);
+            }
+            addSummaries(items, query, sharded, false, afterNull ? null : after, limit);
+        } else {
+            if (!afterNull) {
+                addSummaries(items, query, sharded, false, after, limit);
+            }
+            addSummaries(items, query, sharded, true, afterNull ? after : null, limit);
+        }
+        if (sharded != null) {
+            withShardedBalances(items, sharded);
+        } else {
+            addSlotBalances(items);
+        }
+        
+        AccountCursor next = items.size() < limit
+                ? null
+                : AccountCursor.after(items.get(items.size() - 1), sortKey);
+        return new AccountSummaryPage(items, next);
+    }
+    
+    // Appends up to limit - items.size() rows whose sort value is null, or not null. Balance
+    // bounds only filter unsharded rows here; sharded ones come from the given list, either
+    // merged in by full balance when sorting by balance, or matched by id otherwise.
+    private void addSummaries(List<AccountSummary> items, AccountQuery query, List<AccountSummary> sharded,
+                              boolean nullValues, AccountCursor after, int limit) {
+        if (items.size() >= limit || (nullValues && query.excludesNullSortValues())) {
+            return;
+        }
+        boolean byBalance = query.getSortKey() == AccountSortKey.BALANCE;
+        String property = "a." + query.getSortKey().getProperty();
+        String direction = query.isDescending() ? " DESC" : "";
+        String comparison = query.isDescending() ? " < " : " > ";
+        
+        List<String> conditions = new ArrayList<>();
+        if (query.getOwnerNamePrefix() != null) {
+            conditions.add("a.ownerName LIKE :ownerNamePrefix ESCAPE '!'");
+        }
+        // Without a balance bound or order, sharded rows are listed like any other
+        List<Long> shardedIds = new ArrayList<>();
+        if (sharded != null) {
+            String unsharded = "a.balanceSlots = 0"
+                    + (query.getMinBalance() != null ? " AND a.balance >= :minBalance" : "")
+                    + (query.getMaxBalance() != null ? " AND a.balance <= :maxBalance" : "");
+            if (!byBalance) {
+                for (AccountSummary summary : sharded) {
+                    shardedIds.add(summary.getId());
+                }
+            }
+            conditions.add(shardedIds.isEmpty() ? unsharded : "((" + unsharded + ") OR a.id IN (:shardedIds))");
+        }
+        conditions.add(property + (nullValues ? " IS NULL" : " IS NOT NULL"));
+        if (after != null) {
+            conditions.add(nullValues
+                    ? "a.id" + comparison + ":afterId"
+                    : "(" + property + comparison + ":afterValue"
+                    + " OR (" + property + " = :afterValue AND a.id" + comparison + ":afterId))");
+        }
+        String hql = "SELECT new com.example.banking.repository.AccountSummary("
+                + "a.id, a.accountNumber, a.ownerName, a.balance, a.balanceSlots)"
+                + " FROM Account a WHERE " + String.join(" AND ", conditions)
+                + " ORDER BY " + (nullValues ? "" : property + direction + ", ") + "a.id" + direction;
+        
+        Session session = sessionFactory.getCurrentSession();
+        Query<AccountSummary> summaries = session.createQuery(hql, AccountSummary.class)
+                .setMaxResults(limit - items.size());
+        if (query.getOwnerNamePrefix() != null) {
+            summaries.setParameter("ownerNamePrefix", likePrefix(query.getOwnerNamePrefix()));
+        }
+        if (query.getMinBalance() != null) {
+            summaries.setParameter("minBalance", query.getMinBalance(), MoneyType.INSTANCE);
+        }
+        if (query.getMaxBalance() != null) {
+            summaries.setParameter("maxBalance", query.getMaxBalance(), MoneyType.INSTANCE);
+        }
+        if (!shardedIds.isEmpty()) {
+            summaries.setParameterList("shardedIds", shardedIds);
+        }
+        if (after != null) {
+            summaries.setParameter("afterId", after.getId());
+            if (!nullValues) {
+                if (byBalance) {
+                    summaries.setParameter("afterValue", after.getValue(), MoneyType.INSTANCE);
+                } else {
+                    summaries.setParameter("afterValue", after.getValue());
+                }
+            }
+        }
+        List<AccountSummary> rows = summaries.getResultList();
+        if (!byBalance || nullValues) {
+            items.addAll(rows);
+            return;
+        }
+        
+        // Both sides are in (balance, id) order; sharded accounts sort by their full balance
+        Comparator<AccountSummary> order = Comparator.comparing(AccountSummary::getBalance)
+                .thenComparing(AccountSummary::getId);
+        if (query.isDescending()) {
+            order = order.reversed();
+        }
+        List<AccountSummary> shardedRows = new ArrayList<>();
+        for (AccountSummary summary : sharded) {
+            if (after == null || order.compare(summary, new AccountSummary(
+                    after.getId(), null, null, (Money) after.getValue(), 0)) > 0) {
+                shardedRows.add(summary);
+            }
+        }
+        shardedRows.sort(order);
+        int wanted = limit - items.size();
+        int row = 0;
+        int shardedRow = 0;
+        while (wanted-- > 0 && (row < rows.size() || shardedRow < shardedRows.size())) {
+            if (shardedRow == shardedRows.size()
+                    || (row < rows.size() && order.compare(rows.get(row), shardedRows.get(shardedRow)) < 0)) {
+                items.add(rows.get(row++));
+            } else {
+                items.add(shardedRows.get(shardedRow++));
+            }
+        }
+    }
+    
+    // Every sharded account matching the owner and balance filters, with its full balance.
+    // The slot table only has rows for sharded accounts, so this reads no other account.
+    private List<AccountSummary> findShardedSummaries(AccountQuery query) {
+        Session session = sessionFactory.getCurrentSession();
+        Map<Long, Money> slotSums = new HashMap<>();
+        // Native, so the sum keeps MoneyType instead of becoming a Double
+        List<?> rows = session.createNativeQuery(
+                        "SELECT s.account_id AS account_id, SUM(s.balance) AS total FROM account_balance_slots s"
+                                + " GROUP BY s.account_id")
+                .addScalar("account_id", StandardBasicTypes.LONG)
+                .addScalar("total", MoneyType.INSTANCE)
+                .getResultList();
+        for (Object result : rows) {
+            Object[] row = (Object[]) result;
+            slotSums.put((Long) row[0], (Money) row[1]);
+        }
+        
+        List<AccountSummary> sharded = new ArrayList<>();
+        for (List<Long> chunk : partition(slotSums.keySet())) {
+            String ownerCondition = query.getOwnerNamePrefix() != null
+                    ? " AND a.ownerName LIKE :ownerNamePrefix ESCAPE '!'"
+                    : "";
+            Query<AccountSummary> summaries = session.createQuery(
+                    "SELECT new com.example.banking.repository.AccountSummary("
+                            + "a.id, a.accountNumber, a.ownerName, a.balance, a.balanceSlots)"
+                            + " FROM Account a WHERE a.id IN (:ids) AND a.balanceSlots > 0" + ownerCondition,
+                    AccountSummary.class)
+                    .setParameterList("ids", chunk);
+            if (query.getOwnerNamePrefix() != null) {
+                summaries.setParameter("ownerNamePrefix", likePrefix(query.getOwnerNamePrefix()));
+            }
+            for (AccountSummary summary : summaries.getResultList()) {
+                Money balance = summary.getBalance().add(slotSums.get(summary.getId()));
+                if ((query.getMinBalance() == null || balance.compareTo(query.getMinBalance()) >= 0)
+                        && (query.getMaxBalance() == null || balance.compareTo(query.getMaxBalance()) <= 0)) {
+                    sharded.add(summary.withBalance(balance));
+                }
+            }
+        }
+        return sharded;
+    }
+    
+    // Replaces the row balance of sharded accounts on the page with the full balances given
+    private static void withShardedBalances(List<AccountSummary> items, List<AccountSummary> sharded) {
+        Map<Long, AccountSummary> byId = new HashMap<>();
+        for (AccountSummary summary : sharded) {
+            byId.put(summary.getId(), summary);
+        }
+        for (ListIterator<AccountSummary> it = items.listIterator(); it.hasNext(); ) {
+            AccountSummary full = byId.get(it.next().getId());
+            if (full != null) {
+                it.set(full);
+            }
+        }
+    }
+    
+    // Replaces the row balance of sharded accounts on the page with their full balance
+    private void addSlotBalances(List<AccountSummary> items) {
+        List<Long> shardedIds = new ArrayList<>();
+        for (AccountSummary summary : items) {
+            if (summary.isSharded()) {
+                shardedIds.add(summary.getId());
+            }
+        }
+        if (shardedIds.isEmpty()) {
+            return;
+        }
+        
+        Session session = sessionFactory.getCurrentSession();
+        Map<Long, Money> slotSums = new HashMap<>();
+        // Native, so the sum keeps MoneyType instead of becoming a Double
+        List<?> rows = session.createNativeQuery(
+                        "SELECT s.account_id AS account_id, SUM(s.balance) AS total FROM account_balance_slots s"
+                                + " WHERE s.account_id IN (:ids) GROUP BY s.account_id")
+                .addScalar("account_id", StandardBasicTypes.LONG)
+                .addScalar("total", MoneyType.INSTANCE)
+                .setParameterList("ids", shardedIds)
+                .getResultList();
+        for (Object result : rows) {
+            Object[] row = (Object[]) result;
+            slotSums.put((Long) row[0], (Money) row[1]);
+        }
+        for (ListIterator<AccountSummary> it = items.listIterator(); it.hasNext(); ) {
+            AccountSummary summary = it.next();
+            Money slotSum = slotSums.get(summary.getId());
+            if (slotSum != null) {
+                it.set(summary.withBalance(summary.getBalance().add(slotSum)));
+            }
+        }
+    }
+    
+    private static String likePrefix(String prefix) {
+        return prefix.replace("!", "!!").replace("%", "!%").replace("_", "!_") + "%";
+    }
+    
+    private static <T> List<List<T>> partition(Collection<T> values) {
+        List<T> list = values instanceof List ? (List<T>) values : new ArrayList<>(values);
+        List<List<T>> chunks = new ArrayList<>();
+        for (int from = 0; from < list.size(); from += IN_LIST_CHUNK_SIZE) {
+            chunks.add(list.subList(from, Math.min(from + IN_LIST_CHUNK_SIZE, list.size())));
+        }
+        return chunks;
+    }
+}
+
+// AccountNumberCache.java
+package com.example.banking.repository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded account number -> id map. Account numbers never change, so an entry only goes
+// stale when its row disappears, and callers invalidate when a cached id no longer loads.
+// The map is split into independently locked LRU segments to keep lookups from contending.
+// No account has a null number, so a null one is never cached and always misses; callers
+// then report the account as not found, as they would for any unknown number.
+@Component
+public class AccountNumberCache {
+    
+    private static final int SEGMENT_COUNT = 16;
+    
+    private final Segment[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    @Autowired
+    public AccountNumberCache(@Value("${banking.account-cache.size:100000}") int maxSize) {
+        if (maxSize < SEGMENT_COUNT) {
+            throw new IllegalArgumentException("Account cache size must be at least " + SEGMENT_COUNT);
+        }
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxSize / SEGMENT_COUNT);
+        }
+    }
+    
+    public Long get(String accountNumber) {
+        if (accountNumber == null) {
+            return null;
+        }
+        Segment segment = segmentFor(accountNumber);
+        Long id;
+        synchronized (segment) {
+            id = segment.get(accountNumber);
+        }
+        if (id != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return id;
+    }
+    
+    public void put(String accountNumber, Long id) {
+        if (accountNumber == null) {
+            return;
+        }
+        Segment segment = segmentFor(accountNumber);
+        synchronized (segment) {
+            segment.put(accountNumber, id);
+        }
+    }
+    
+    public void invalidate(String accountNumber) {
+        if (accountNumber == null) {
+            return;
+        }
+        Segment segment = segmentFor(accountNumber);
+        synchronized (segment) {
+            segment.remove(accountNumber);
+        }
+    }
+    
+    // Drops any old mapping now and only publishes the id once the surrounding transaction
+    // has committed. Used for every id read or created inside a transaction: the row may
+    // have been created by that same transaction, and a rollback must not leave its id here.
+    public void putAfterCommit(String accountNumber, Long id) {
+        if (accountNumber == null) {
+            return;
+        }
+        invalidate(accountNumber);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            put(accountNumber, id);
+            return;
+        }
+        
+        // One synchronization per transaction, however many ids it resolves
+        PendingIds pending = (PendingIds) TransactionSynchronizationManager.getResource(this);
+        if (pending == null) {
+            PendingIds transactionIds = new PendingIds();
+            TransactionSynchronizationManager.bindResource(this, transactionIds);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    transactionIds.ids.forEach(AccountNumberCache.this::put);
+                }
+                
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(AccountNumberCache.this);
+                }
+            });
+            pending = transactionIds;
+        }
+        pending.ids.put(accountNumber, id);
+    }
+    
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+    
+    public CacheStats getStats() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size);
+    }
+    
+    private Segment segmentFor(String accountNumber) {
+        int hash = accountNumber.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENT_COUNT - 1)];
+    }
+    
+    // Ids resolved by one transaction, published when it commits
+    private static final class PendingIds {
+        private final Map<String, Long> ids = new HashMap<>();
+    }
+    
+    private final class Segment extends LinkedHashMap<String, Long> {
+        
+        private final int capacity;
+        
+        private Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
+
+// AccountNumberCacheTest.java
+package com.example.banking.repository;
+
+import com.example.banking.Money;
+import com.example.banking.service.BankService;
+import com.example.banking.service.TransferRequest;
+import com.example.banking.service.TransferResult;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AccountNumberCacheTest {
+    
+    @Test
+    void nullAccountNumberIsNeverCached() {
+        AccountNumberCache cache = new AccountNumberCache(16);
+        cache.put(null, 1L);
+        cache.putAfterCommit(null, 1L);
+        cache.invalidate(null);
+        
+        assertNull(cache.get(null));
+        assertEquals(0, cache.getStats().getSize());
+    }
+    
+    // A null account number is reported like any unknown one, as it was before the cache
+    @Test
+    void transfersWithANullAccountNumberAreNotFound() {
+        try (InMemoryBankingContext context = new InMemoryBankingContext(Collections.emptyMap())) {
+            context.createAccounts(1, Money.ofMinor(10_000));
+            BankService bankService = context.getBean(BankService.class);
+            String existing = InMemoryBankingContext.accountNumber(0);
+            
+            IllegalArgumentException source = assertThrows(IllegalArgumentException.class,
+                    () -> bankService.transferMoney(null, existing, BigDecimal.ONE));
+            assertEquals("Source or target account not found", source.getMessage());
+            IllegalArgumentException target = assertThrows(IllegalArgumentException.class,
+                    () -> bankService.transferMoney(existing, null, BigDecimal.ONE));
+            assertEquals("Source or target account not found", target.getMessage());
+            
+            List<TransferResult> results = bankService.transferBatch(Collections.singletonList(
+                    new TransferRequest(null, existing, BigDecimal.ONE)));
+            assertFalse(results.get(0).isSuccess());
+            assertEquals("Source or target account not found", results.get(0).getErrorMessage());
+            assertNull(bankService.getAccountByNumber(null));
+        }
+    }
+}
+
+// CacheStats.java
+package com.example.banking.repository;
+
+public class CacheStats {
+    
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long size;
+    
+    public CacheStats(long hits, long misses, long evictions, long size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+    
+    public long getHits() {
+        return hits;
+    }
+    
+    public long getMisses() {
+        return misses;
+    }
+    
+    public long getEvictions() {
+        return evictions;
+    }
+    
+    public long getSize() {
+        return size;
+    }
+    
+    public double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+    
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", size=" + size +
+                ", hitRatio=" + String.format("%.3f", getHitRatio()) +
+                '}';
+    }
+}
+
+// AccountSummary.java
+package com.example.banking.repository;
+
+import com.example.banking.Money;
+
+// Read-only view of an account for listings, built straight from a query row, so no entity
+// is hydrated, tracked or dirty-checked. Unlike Account.getBalance, the balance of a sharded
+// account includes its slots (see AccountRepository.findSummaries).
+public final class AccountSummary {
+    
+    private final Long id;
+    private final String accountNumber;
+    private final String ownerName;
+    private final Money balance;
+    private final int balanceSlots;
+    
+    public AccountSummary(Long id, String accountNumber, String ownerName, Money balance, int balanceSlots) {
+        this.id = id;
+        this.accountNumber = accountNumber;
+        this.ownerName = ownerName;
+        this.balance = balance;
+        this.balanceSlots = balanceSlots;
+    }
+    
+    public Long getId() {
+        return id;
+    }
+    
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+    
+    public String getOwnerName() {
+        return ownerName;
+    }
+    
+    public Money getBalance() {
+        return balance;
+    }
+    
+    public boolean isSharded() {
+        return balanceSlots > 0;
+    }
+    
+    AccountSummary withBalance(Money balance) {
+        return new AccountSummary(id, accountNumber, ownerName, balance, balanceSlots);
+    }
+    
+    @Override
+    public String toString() {
+        return "AccountSummary{" +
+                "id=" + id +
+                ", accountNumber='" + accountNumber + '\'' +
+                ", ownerName='" + ownerName + '\'' +
+                ", balance=" + balance +
+                '}';
+    }
+}
+
+// AccountSortKey.java
+package com.example.banking.repository;
+
+// Orders of an account listing. Each key is paired with the id as a tie-breaker and backed
+// by an index on (column, id), so every page is an index range scan.
+public enum AccountSortKey {
+    
+    ACCOUNT_NUMBER("accountNumber"),
+    OWNER_NAME("ownerName"),
+    BALANCE("balance");
+    
+    private final String property;
+    
+    AccountSortKey(String property) {
+        this.property = property;
+    }
+    
+    String getProperty() {
+        return property;
+    }
+    
+    Object valueOf(AccountSummary summary) {
+        switch (this) {
+            case ACCOUNT_NUMBER:
+                return summary.getAccountNumber();
+            case OWNER_NAME:
+                return summary.getOwnerName();
+            default:
+                return summary.getBalance();
+        }
+    }
+}
+
+// AccountQuery.java
+package com.example.banking.repository;
+
+import com.example.banking.Money;
+
+// Filters and order of an account listing. Null filters match everything; the balance
+// bounds are inclusive and apply to the full balance, slots of sharded accounts included,
+// and so does sorting by balance.
+public final class AccountQuery {
+    
+    private final String ownerNamePrefix;
+    private final Money minBalance;
+    private final Money maxBalance;
+    private final AccountSortKey sortKey;
+    private final boolean descending;
+    
+    public AccountQuery(String ownerNamePrefix, Money minBalance, Money maxBalance,
+                        AccountSortKey sortKey, boolean descending) {
+        if (sortKey == null) {
+            throw new IllegalArgumentException("Sort key is required");
+        }
+        if (minBalance != null && maxBalance != null && minBalance.compareTo(maxBalance) > 0) {
+            throw new IllegalArgumentException("Minimum balance exceeds maximum balance");
+        }
+        this.ownerNamePrefix = ownerNamePrefix == null || ownerNamePrefix.isEmpty() ? null : ownerNamePrefix;
+        this.minBalance = minBalance;
+        this.maxBalance = maxBalance;
+        this.sortKey = sortKey;
+        this.descending = descending;
+    }
+    
+    // Every account by account number
+    public static AccountQuery all() {
+        return new AccountQuery(null, null, null, AccountSortKey.ACCOUNT_NUMBER, false);
+    }
+    
+    public String getOwnerNamePrefix() {
+        return ownerNamePrefix;
+    }
+    
+    public Money getMinBalance() {
+        return minBalance;
+    }
+    
+    public Money getMaxBalance() {
+        return maxBalance;
+    }
+    
+    public AccountSortKey getSortKey() {
+        return sortKey;
+    }
+    
+    public boolean isDescending() {
+        return descending;
+    }
+    
+    // Whether the filters already exclude rows with a null sort value
+    boolean excludesNullSortValues() {
+        switch (sortKey) {
+            case OWNER_NAME:
+                return ownerNamePrefix != null;
+            case BALANCE:
+                return minBalance != null || maxBalance != null;
+            default:
+                return false;
+        }
+    }
+}
+
+// AccountCursor.java
+package com.example.banking.repository;
+
+// Position in an account listing: the sort value and id of the last row already seen.
+// Only valid for the sort key it was created with.
+public final class AccountCursor {
+    
+    private final AccountSortKey sortKey;
+    private final Object value;
+    private final Long id;
+    
+    public AccountCursor(AccountSortKey sortKey, Object value, Long id) {
+        if (sortKey == null || id == null) {
+            throw new IllegalArgumentException("Cursor sort key and id are required");
+        }
+        this.sortKey = sortKey;
+        this.value = value;
+        this.id = id;
+    }
+    
+    public static AccountCursor after(AccountSummary summary, AccountSortKey sortKey) {
+        return new AccountCursor(sortKey, sortKey.valueOf(summary), summary.getId());
+    }
+    
+    public AccountSortKey getSortKey() {
+        return sortKey;
+    }
+    
+    // Null when the last row had no value for the sort key
+    public Object getValue() {
+        return value;
+    }
+    
+    public Long getId() {
+        return id;
+    }
+    
+    @Override
+    public String toString() {
+        return "AccountCursor{" +
+                "sortKey=" + sortKey +
+                ", value=" + value +
+                ", id=" + id +
+                '}';
+    }
+}
+
+// AccountSummaryPage.java
+package com.example.banking.repository;
+
+import java.util.Collections;
+import java.util.List;
+
+public class AccountSummaryPage {
+    
+    private final List<AccountSummary> items;
+    private final AccountCursor nextCursor;
+    
+    public AccountSummaryPage(List<AccountSummary> items, AccountCursor nextCursor) {
+        this.items = Collections.unmodifiableList(items);
+        this.nextCursor = nextCursor;
+    }
+    
+    public List<AccountSummary> getItems() {
+        return items;
+    }
+    
+    // Cursor to pass for the following page, or null when this was the last page
+    public AccountCursor getNextCursor() {
+        return nextCursor;
+    }
+    
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
+
+// AccountBalanceSlotRepository.java
+package com.example.banking.repository;
+
+import com.example.banking.AccountBalanceSlot;
+import com.example.banking.Money;
+import com.example.banking.MoneyType;
+import org.hibernate.LockMode;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public class AccountBalanceSlotRepository {
+    
+    private final SessionFactory sessionFactory;
+    
+    @Autowired
+    public AccountBalanceSlotRepository(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+    
+    public void save(AccountBalanceSlot slot) {
+        Session session = sessionFactory.getCurrentSession();
+        session.saveOrUpdate(slot);
+    }
+    
+    // Locks the first slot in [fromSlot, toSlot) that can cover the amount. Slots already
+    // locked by other transfers are skipped (SKIP LOCKED where the dialect supports it)
+    // instead of waited on, which is what lets transfers on one account run side by side.
+    public AccountBalanceSlot lockSlotWithBalance(Long accountId, Money amount, int fromSlot, int toSlot) {
+        Session session = sessionFactory.getCurrentSession();
+        List<AccountBalanceSlot> results = session.createQuery(
+                "FROM AccountBalanceSlot s WHERE s.accountId = :accountId AND s.balance >= :amount"
+                        + " AND s.slot >= :fromSlot AND s.slot < :toSlot ORDER BY s.slot",
+                AccountBalanceSlot.class)
+                .setParameter("accountId", accountId)
+                .setParameter("amount", amount, MoneyType.INSTANCE)
+                .setParameter("fromSlot", fromSlot)
+                .setParameter("toSlot", toSlot)
+                .setLockOptions(new LockOptions(LockMode.UPGRADE_SKIPLOCKED))
+                .setMaxResults(1)
+                .getResultList();
+        return results.isEmpty() ? null : results.get(0);
+    }
+    
+    // Locks one slot, waiting for it if another transfer holds it; null when it does not exist
+    public AccountBalanceSlot findSlotForUpdate(Long accountId, int slot) {
+        Session session = sessionFactory.getCurrentSession();
+        return session.createQuery(
+                "FROM AccountBalanceSlot s WHERE s.accountId = :accountId AND s.slot = :slot",
+                AccountBalanceSlot.class)
+                .setParameter("accountId", accountId)
+                .setParameter("slot", slot)
+                .setLockOptions(new LockOptions(LockMode.PESSIMISTIC_WRITE))
+                .uniqueResult();
+    }
+    
+    // Locks every slot of the account in ascending slot order
+    public List<AccountBalanceSlot> findAllByAccountIdForUpdate(Long accountId) {
+        Session session = sessionFactory.getCurrentSession();
+        return session.createQuery(
+                "FROM AccountBalanceSlot s WHERE s.accountId = :accountId ORDER BY s.slot",
+                AccountBalanceSlot.class)
+                .setParameter("accountId", accountId)
+                .setLockOptions(new LockOptions(LockMode.PESSIMISTIC_WRITE))
+                .getResultList();
+    }
+    
+    // Adds to one slot in place without reading it first; returns false when the slot does not exist
+    public boolean addToSlot(Long accountId, int slot, Money amount) {
+        Session session = sessionFactory.getCurrentSession();
+        int updated = session.createQuery(
+                "UPDATE AccountBalanceSlot s SET s.balance = s.balance + :amount"
+                        + " WHERE s.accountId = :accountId AND s.slot = :slot")
+                .setParameter("amount", amount, MoneyType.INSTANCE)
+                .setParameter("accountId", accountId)
+                .setParameter("slot", slot)
+                .executeUpdate();
+        return updated > 0;
+    }
+    
+    // Native so the sum stays DECIMAL; HQL would type SUM over a custom type as a double
+    public Money sumBalance(Long accountId) {
+        Session session = sessionFactory.getCurrentSession();
+        Object sum = session.createNativeQuery(
+                "SELECT COALESCE(SUM(s.balance), 0) AS total FROM account_balance_slots s"
+                        + " WHERE s.account_id = :accountId")
+                .addScalar("total", MoneyType.INSTANCE)
+                .setParameter("accountId", accountId)
+                .getSingleResult();
+        return (Money) sum;
+    }
+    
+    public void deleteAllByAccountId(Long accountId) {
+        Session session = sessionFactory.getCurrentSession();
+        session.createQuery("DELETE FROM AccountBalanceSlot s WHERE s.accountId = :accountId")
+                .setParameter("accountId", accountId)
+                .executeUpdate();
+    }
+}
+
+// LedgerSnapshotRepository.java
+package com.example.banking.repository;
+
+import com.example.banking.LedgerSnapshot;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+
+@Repository
+public class LedgerSnapshotRepository {
+    
+    private final SessionFactory sessionFactory;
+    
+    @Autowired
+    public LedgerSnapshotRepository(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+    
+    // Sequence of the last journal record already projected, or 0 before the first snapshot
+    public long findLastSequence() {
+        Session session = sessionFactory.getCurrentSession();
+        LedgerSnapshot snapshot = session.get(LedgerSnapshot.class, LedgerSnapshot.SINGLETON_ID);
+        return snapshot == null ? 0L : snapshot.getLastSequence();
+    }
+    
+    public void saveLastSequence(long lastSequence) {
+        Session session = sessionFactory.getCurrentSession();
+        LedgerSnapshot snapshot = session.get(LedgerSnapshot.class, LedgerSnapshot.SINGLETON_ID);
+        if (snapshot == null) {
+            session.persist(new LedgerSnapshot(lastSequence));
+        } else {
+            snapshot.setLastSequence(lastSequence);
+            snapshot.setTakenAt(LocalDateTime.now());
+        }
+    }
+    
+    // Adds the given amounts (in cents, negative for a net debit) to the balances of the
+    // accounts as one JDBC batch. Relative updates keep whatever other transfers did to the
+    // rows; the version bump makes optimistic transfers that read the old balance retry.
+    public void addToBalances(long[] accountIds, long[] deltaCents, int count, int batchSize) {
+        Session session = sessionFactory.getCurrentSession();
+        session.doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE accounts SET balance = balance + ?, version = version + 1 WHERE id = ?")) {
+                for (int i = 0; i < count; i++) {
+                    statement.setBigDecimal(1, BigDecimal.valueOf(deltaCents[i], 2));
+                    statement.setLong(2, accountIds[i]);
+                    statement.addBatch();
+                    if ((i + 1) % batchSize == 0) {
+                        statement.executeBatch();
+                    }
+                }
+                statement.executeBatch();
+            }
+        });
+    }
+}
+
+// TransactionRepository.java
+package com.example.banking.repository;
+
+import com.example.banking.ArchivedAccountTotal;
+import com.example.banking.ArchivedSegment;
+import com.example.banking.Money;
+import com.example.banking.MoneyType;
+import com.example.banking.Transaction;
+import com.example.banking.archive.SortedMerge;
+import com.example.banking.archive.TransactionArchive;
+import org.hibernate.CacheMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.query.NativeQuery;
+import org.hibernate.query.Query;
+import org.hibernate.type.LocalDateTimeType;
+import org.hibernate.type.StandardBasicTypes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// History queries cover both the transactions table and the TransactionArchive. Archived
+// transactions come back as detached, read-only copies; they are never saved again.
+// Every query reads the table first and the archive catalog second, so a concurrent archive
+// run can at worst show a row on both sides, and the merges drop such duplicates by id.
+// Net movement sums cannot, and rely on the transaction seeing one snapshot of the catalog
+// and the table, as REPEATABLE READ does on InnoDB.
+@Repository
+public class TransactionRepository {
+    
+    // Rows fetched per round trip while streaming; MySQL needs useCursorFetch=true to honour it
+    private static final int STREAM_FETCH_SIZE = 1000;
+    
+    // Same order as the statement query: by date and id, the debit before the credit of a self-transfer
+    private static final Comparator<StatementEntry> STATEMENT_ORDER = Comparator
+            .comparing(StatementEntry::getTransactionDate)
+            .thenComparing(StatementEntry::getTransactionId)
+            .thenComparing(StatementEntry::isCredit);
+    
+    private final SessionFactory sessionFactory;
+    private final TransactionArchive archive;
+    
+    @Autowired
+    public TransactionRepository(SessionFactory sessionFactory, TransactionArchive archive) {
+        this.sessionFactory = sessionFactory;
+        this.archive = archive;
+    }
+    
+    public void save(Transaction transaction) {
+        Session session = sessionFactory.getCurrentSession();
+        session.saveOrUpdate(transaction);
+    }
+    
+    // Persists new transactions and flushes them every batchSize rows so the inserts reach
+    // the driver as JDBC batches; flushed rows are evicted to keep the session small
+    public void saveAll(Collection<Transaction> transactions, int batchSize) {
+        Session session = sessionFactory.getCurrentSession();
+        List<Transaction> pending = new ArrayList<>(batchSize);
+        for (Transaction transaction : transactions) {
+            session.persist(transaction);
+            pending.add(transaction);
+            if (pending.size() >= batchSize) {
+                flushAndEvict(session, pending);
+            }
+        }
+        flushAndEvict(session, pending);
+    }
+    
+    private void flushAndEvict(Session session, List<Transaction> pending) {
+        session.flush();
+        for (Transaction transaction : pending) {
+            session.evict(transaction);
+        }
+        pending.clear();
+    }
+    
+    public Transaction findById(Long id) {
+        Session session = sessionFactory.getCurrentSession();
+        Transaction transaction = session.get(Transaction.class, id);
+        if (transaction != null) {
+            return transaction;
+        }
+        List<ArchivedSegment> catalog = session.createQuery(
+                "FROM ArchivedSegment s WHERE s.minId <= :id AND s.maxId >= :id", ArchivedSegment.class)
+                .setParameter("id", id)
+                .getResultList();
+        return catalog.isEmpty() ? null : archive.findById(catalog, id);
+    }
+    
+    // Only the table is searched: keys protect against retries, which arrive long before archiving
+    public Transaction findByIdempotencyKey(String idempotencyKey) {
+        Session session = sessionFactory.getCurrentSession();
+        List<Transaction> results = session.createQuery(
+                "FROM Transaction WHERE idempotencyKey = :idempotencyKey", Transaction.class)
+                .setParameter("idempotencyKey", idempotencyKey)
+                .getResultList();
+        return results.isEmpty() ? null : results.get(0);
+    }
+    
+    // Archived transactions come first, followed by the rows still in the table
+    public List<Transaction> findBySourceAccountId(Long accountId) {
+        Session session = sessionFactory.getCurrentSession();
+        List<Transaction> transactions = session.createQuery(
+                "FROM Transaction WHERE sourceAccountId = :accountId", 
+                Transaction.class)
+                .setParameter("accountId", accountId)
+                .getResultList();
+        return withArchived(transactions, accountId, accountFilter("sourceAccountId", accountId));
+    }
+    
+    public List<Transaction> findByTargetAccountId(Long accountId) {
+        Session session = sessionFactory.getCurrentSession();
+        List<Transaction> transactions = session.createQuery(
+                "FROM Transaction WHERE targetAccountId = :accountId", 
+                Transaction.class)
+                .setParameter("accountId", accountId)
+                .getResultList();
+        return withArchived(transactions, accountId, accountFilter("targetAccountId", accountId));
+    }
+    
+    public List<Transaction> findAll() {
+        Session session = sessionFactory.getCurrentSession();
+        List<Transaction> transactions = session.createQuery("FROM Transaction", Transaction.class).getResultList();
+        return withArchived(transactions, null, transaction -> true);
+    }
+    
+    // Keyset pagination: each page continues strictly after the (transactionDate, id) of the
+    // previous page's last row, so every page is an index range scan regardless of depth
+    public TransactionPage findPage(TransactionCursor after, int limit) {
+        return findPage(null, null, after, limit);
+    }
+    
+    public TransactionPage findPageBySourceAccountId(Long accountId, TransactionCursor after, int limit) {
+        return findPage("sourceAccountId", accountId, after, limit);
+    }
+    
+    public TransactionPage findPageByTargetAccountId(Long accountId, TransactionCursor after, int limit) {
+        return findPage("targetAccountId", accountId, after, limit);
+    }
+    
+    // Streams rows in (transactionDate, id) order over a forward-only cursor. Callers must
+    // close the stream, and must consume it inside the surrounding transaction.
+    public Stream<Transaction> streamAll() {
+        return stream(null, null);
+    }
+    
+    public Stream<Transaction> streamBySourceAccountId(Long accountId) {
+        return stream("sourceAccountId", accountId);
+    }
+    
+    public Stream<Transaction> streamByTargetAccountId(Long accountId) {
+        return stream("targetAccountId", accountId);
+    }
+    
+    // Debits and credits of one account in (transaction_date, id) order from a single statement.
+    // UNION ALL lets each branch range-scan its own (account, date, id) index where an OR
+    // over both columns would fall back to an index merge or a full scan plus sort.
+    // Bounds are optional: from is inclusive, to is exclusive.
+    public Stream<StatementEntry> streamStatementEntries(Long accountId, LocalDateTime from, LocalDateTime to) {
+        String dateRange = (from != null ? " AND t.transaction_date >= :fromDate" : "")
+                + (to != null ? " AND t.transaction_date < :toDate" : "");
+        String sql = "SELECT s.id, s.counterparty_id, s.amount, s.transaction_date, s.direction FROM ("
+                + " SELECT t.id AS id, t.target_account_id AS counterparty_id, t.amount AS amount,"
+                + " t.transaction_date AS transaction_date, 'D' AS direction"
+                + " FROM transactions t WHERE t.source_account_id = :accountId AND t.status = 'SUCCESS'" + dateRange
+                + " UNION ALL"
+                + " SELECT t.id, t.source_account_id, t.amount, t.transaction_date, 'C'"
+                + " FROM transactions t WHERE t.target_account_id = :accountId AND t.status = 'SUCCESS'" + dateRange
+                + ") s ORDER BY s.transaction_date, s.id, s.direction DESC";
+        
+        Session session = sessionFactory.getCurrentSession();
+        @SuppressWarnings("unchecked")
+        NativeQuery<Object[]> query = session.createNativeQuery(sql)
+                .addScalar("id", StandardBasicTypes.LONG)
+                .addScalar("counterparty_id", StandardBasicTypes.LONG)
+                .addScalar("amount", MoneyType.INSTANCE)
+                .addScalar("transaction_date", LocalDateTimeType.INSTANCE)
+                .addScalar("direction", StandardBasicTypes.STRING);
+        query.setParameter("accountId", accountId);
+        if (from != null) {
+            query.setParameter("fromDate", from);
+        }
+        if (to != null) {
+            query.setParameter("toDate", to);
+        }
+        query.setFetchSize(STREAM_FETCH_SIZE);
+        
+        Stream<StatementEntry> entries = query.stream().map(row -> new StatementEntry(
+                (Long) row[0],
+                (Long) row[1],
+                (Money) row[2],
+                (LocalDateTime) row[3],
+                "C".equals(row[4])));
+        List<ArchivedSegment> catalog = catalog(
+                from == null ? null : from.toLocalDate(), to == null ? null : to.toLocalDate(), accountId);
+        if (catalog.isEmpty()) {
+            return entries;
+        }
+        
+        Stream<StatementEntry> archived = archive.stream(catalog, accountId, null, transaction ->
+                "SUCCESS".equals(transaction.getStatus())
+                        && (accountId.equals(transaction.getSourceAccountId())
+                        || accountId.equals(transaction.getTargetAccountId()))
+                        && (from == null || !transaction.getTransactionDate().isBefore(from))
+                        && (to == null || transaction.getTransactionDate().isBefore(to)))
+                .flatMap(transaction -> {
+                    List<StatementEntry> sides = new ArrayList<>(2);
+                    if (accountId.equals(transaction.getSourceAccountId())) {
+                        sides.add(new StatementEntry(transaction.getId(), transaction.getTargetAccountId(),
+                                transaction.getAmount(), transaction.getTransactionDate(), false));
+                    }
+                    if (accountId.equals(transaction.getTargetAccountId())) {
+                        sides.add(new StatementEntry(transaction.getId(), transaction.getSourceAccountId(),
+                                transaction.getAmount(), transaction.getTransactionDate(), true));
+                    }
+                    return sides.stream();
+                });
+        
+        // Both inputs are in statement order, so a duplicate is always next to its original
+        StatementEntry[] previous = {null};
+        return SortedMerge.merge(archived, entries, STATEMENT_ORDER).filter(entry -> {
+            boolean duplicate = previous[0] != null
+                    && previous[0].getTransactionId().equals(entry.getTransactionId())
+                    && previous[0].isCredit() == entry.isCredit();
+            previous[0] = entry;
+            return !duplicate;
+        });
+    }
+    
+    // Credits minus debits for an account from the given date onward (all history when null).
+    // Two UNION ALL branches over the (account, date, id) indexes, as in streamStatementEntries;
+    // a transfer from the account to itself shows up in both and nets out to zero.
+    public Money sumNetMovementSince(Long accountId, LocalDateTime from) {
+        Session session = sessionFactory.getCurrentSession();
+        String dateRange = from != null ? " AND t.transaction_date >= :fromDate" : "";
+        String sql = "SELECT COALESCE(SUM(m.amount), 0) FROM ("
+                + " SELECT t.amount AS amount FROM transactions t"
+                + " WHERE t.target_account_id = :accountId AND t.status = 'SUCCESS'" + dateRange
+                + " UNION ALL"
+                + " SELECT -t.amount FROM transactions t"
+                + " WHERE t.source_account_id = :accountId AND t.status = 'SUCCESS'" + dateRange
+                + ") m";
+        
+        NativeQuery<?> query = session.createNativeQuery(sql)
+                .setParameter("accountId", accountId);
+        if (from != null) {
+            query.setParameter("fromDate", from);
+        }
+        Object result = query.getSingleResult();
+        Money net = result == null ? Money.ZERO : Money.of(new BigDecimal(result.toString()));
+        return net.add(sumArchivedNetMovementSince(session, accountId, from));
+    }
+    
+    // Whole archived days come from the segment indexes and the archived totals; only a
+    // partially covered first day is read
+    private Money sumArchivedNetMovementSince(Session session, Long accountId, LocalDateTime from) {
+        if (from == null) {
+            ArchivedAccountTotal total = session.get(ArchivedAccountTotal.class, accountId);
+            return total == null ? Money.ZERO : total.getArchivedNet();
+        }
+        
+        long net = 0;
+        List<ArchivedSegment> partialDay = new ArrayList<>();
+        for (ArchivedSegment entry : catalog(from.toLocalDate(), null, accountId)) {
+            if (entry.getSegmentDate().equals(from.toLocalDate()) && !from.toLocalTime().equals(LocalTime.MIDNIGHT)) {
+                partialDay.add(entry);
+            } else {
+                net += archive.netMovement(entry, accountId);
+            }
+        }
+        if (!partialDay.isEmpty()) {
+            try (Stream<Transaction> transactions = archive.stream(partialDay, accountId, null, transaction ->
+                    "SUCCESS".equals(transaction.getStatus()) && !transaction.getTransactionDate().isBefore(from))) {
+                for (Iterator<Transaction> it = transactions.iterator(); it.hasNext(); ) {
+                    Transaction transaction = it.next();
+                    long amount = transaction.getAmount() == null ? 0 : transaction.getAmount().getMinorUnits();
+                    if (accountId.equals(transaction.getTargetAccountId())) {
+                        net += amount;
+                    }
+                    if (accountId.equals(transaction.getSourceAccountId())) {
+                        net -= amount;
+                    }
+                }
+            }
+        }
+        return Money.ofMinor(net);
+    }
+    
+    private TransactionPage findPage(String accountProperty, Long accountId, TransactionCursor after, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        
+        Session session = sessionFactory.getCurrentSession();
+        Query<Transaction> query = session.createQuery(
+                historyQuery(accountProperty, after), Transaction.class)
+                .setMaxResults(limit);
+        if (accountProperty != null) {
+            query.setParameter("accountId", accountId);
+        }
+        if (after != null) {
+            query.setParameter("afterDate", after.getTransactionDate());
+            query.setParameter("afterId", after.getId());
+        }
+        
+        List<Transaction> items = query.getResultList();
+        List<ArchivedSegment> catalog = catalog(
+                after == null ? null : after.getTransactionDate().toLocalDate(), null, accountId);
+        if (!catalog.isEmpty()) {
+            List<Transaction> archived;
+            try (Stream<Transaction> transactions = archive.stream(
+                    catalog, accountId, after, accountFilter(accountProperty, accountId))) {
+                archived = transactions.limit(limit).collect(Collectors.toList());
+            }
+            try (Stream<Transaction> merged = distinctById(SortedMerge.merge(
+                    archived.stream(), items.stream(), TransactionArchive.HISTORY_ORDER))) {
+                items = merged.limit(limit).collect(Collectors.toList());
+            }
+        }
+        TransactionCursor next = items.size() < limit
+                ? null
+                : TransactionCursor.after(items.get(items.size() - 1));
+        return new TransactionPage(items, next);
+    }
+    
+    private Stream<Transaction> stream(String accountProperty, Long accountId) {
+        Session session = sessionFactory.getCurrentSession();
+        Query<Transaction> query = session.createQuery(
+                historyQuery(accountProperty, null), Transaction.class)
+                .setFetchSize(STREAM_FETCH_SIZE)
+                .setReadOnly(true)
+                .setCacheMode(CacheMode.IGNORE);
+        if (accountProperty != null) {
+            query.setParameter("accountId", accountId);
+        }
+        
+        // Detach each row as it is handed out so the persistence context never grows
+        Stream<Transaction> transactions = query.stream().map(transaction -> {
+            session.detach(transaction);
+            return transaction;
+        });
+        List<ArchivedSegment> catalog = catalog(null, null, accountId);
+        if (catalog.isEmpty()) {
+            return transactions;
+        }
+        Stream<Transaction> archived = archive.stream(catalog, accountId, null, accountFilter(accountProperty, accountId));
+        return distinctById(SortedMerge.merge(archived, transactions, TransactionArchive.HISTORY_ORDER));
+    }
+    
+    // Catalog entries for segments dated within the inclusive day bounds, either of which may be
+    // null. With an account id only segments that mention the account are returned, as listed
+    // in ArchivedSegmentAccount, so no other segment file is ever opened for it.
+    private List<ArchivedSegment> catalog(LocalDate fromDay, LocalDate toDay, Long accountId) {
+        Session session = sessionFactory.getCurrentSession();
+        Query<ArchivedSegment> query = session.createQuery("FROM ArchivedSegment s WHERE 1 = 1"
+                + (fromDay != null ? " AND s.segmentDate >= :fromDay" : "")
+                + (toDay != null ? " AND s.segmentDate <= :toDay" : "")
+                + (accountId != null ? " AND s.fileName IN (SELECT a.fileName FROM ArchivedSegmentAccount a"
+                        + " WHERE a.accountId = :accountId)" : "")
+                + " ORDER BY s.segmentDate, s.fileName", ArchivedSegment.class);
+        if (accountId != null) {
+            query.setParameter("accountId", accountId);
+        }
+        if (fromDay != null) {
+            query.setParameter("fromDay", fromDay);
+        }
+        if (toDay != null) {
+            query.setParameter("toDay", toDay);
+        }
+        return query.getResultList();
+    }
+    
+    private List<Transaction> withArchived(List<Transaction> transactions, Long accountId,
+                                           Predicate<Transaction> filter) {
+        List<ArchivedSegment> catalog = catalog(null, null, accountId);
+        if (catalog.isEmpty()) {
+            return transactions;
+        }
+        Set<Long> ids = transactions.stream().map(Transaction::getId).collect(Collectors.toCollection(HashSet::new));
+        List<Transaction> all = new ArrayList<>();
+        try (Stream<Transaction> archived = archive.stream(catalog, accountId, null, filter)) {
+            archived.filter(transaction -> !ids.contains(transaction.getId())).forEach(all::add);
+        }
+        all.addAll(transactions);
+        return all;
+    }
+    
+    private static Predicate<Transaction> accountFilter(String accountProperty, Long accountId) {
+        if (accountProperty == null) {
+            return transaction -> true;
+        }
+        return "sourceAccountId".equals(accountProperty)
+                ? transaction -> Objects.equals(accountId, transaction.getSourceAccountId())
+                : transaction -> Objects.equals(accountId, transaction.getTargetAccountId());
+    }
+    
+    // Drops the second of two adjacent rows with the same id, as a merge in history order yields them
+    private static Stream<Transaction> distinctById(Stream<Transaction> transactions) {
+        Long[] previous = {null};
+        return transactions.filter(transaction -> {
+            boolean duplicate = transaction.getId().equals(previous[0]);
+            previous[0] = transaction.getId();
+            return !duplicate;
+        });
+    }
+    
+    private static String historyQuery(String accountProperty, TransactionCursor after) {
+        List<String> conditions = new ArrayList<>();
+        if (accountProperty != null) {
+            conditions.add("t." + accountProperty + " = :accountId");
+        }
+        if (after != null) {
+            conditions.add("(t.transactionDate > :afterDate"
+                    + " OR (t.transactionDate = :afterDate AND t.id > :afterId))");
+        }
+        
+        StringBuilder hql = new StringBuilder("FROM Transaction t");
+        if (!conditions.isEmpty()) {
+            hql.append(" WHERE ").append(String.join(" AND ", conditions));
+        }
+        return hql.append(" ORDER BY t.transactionDate, t.id").toString();
+    }
+}
+
+// TransactionCursor.java
+package com.example.banking.repository;
+
+import com.example.banking.Transaction;
+
+import java.time.LocalDateTime;
+
+// Position in transaction history, i.e. the (transactionDate, id) of the last row already seen
+public class TransactionCursor {
+    
+    private final LocalDateTime transactionDate;
+    private final Long id;
+    
+    public TransactionCursor(LocalDateTime transactionDate, Long id) {
+        if (transactionDate == null || id == null) {
+            throw new IllegalArgumentException("Cursor date and id are required");
+        }
+        this.transactionDate = transactionDate;
+        this.id = id;
+    }
+    
+    public static TransactionCursor after(Transaction transaction) {
+        return new TransactionCursor(transaction.getTransactionDate(), transaction.getId());
+    }
+    
+    public LocalDateTime getTransactionDate() {
+        return transactionDate;
+    }
+    
+    public Long getId() {
+        return id;
+    }
+    
+    @Override
+    public String toString() {
+        return "TransactionCursor{" +
+                "transactionDate=" + transactionDate +
+                ", id=" + id +
+                '}';
+    }
+}
+
+// TransactionPage.java
+package com.example.banking.repository;
+
+import com.example.banking.Transaction;
+
+import java.util.Collections;
+import java.util.List;
+
+public class TransactionPage {
+    
+    private final List<Transaction> items;
+    private final TransactionCursor nextCursor;
+    
+    public TransactionPage(List<Transaction> items, TransactionCursor nextCursor) {
+        this.items = Collections.unmodifiableList(items);
+        this.nextCursor = nextCursor;
+    }
+    
+    public List<Transaction> getItems() {
+        return items;
+    }
+    
+    // Cursor to pass for the following page, or null when this was the last page
+    public TransactionCursor getNextCursor() {
+        return nextCursor;
+    }
+    
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
+
+// StatementEntry.java
+package com.example.banking.repository;
+
+import com.example.banking.Money;
+
+import java.time.LocalDateTime;
+
+// One side of a transfer as seen from a single account
+public class StatementEntry {
+    
+    private final Long transactionId;
+    private final Long counterpartyAccountId;
+    private final Money amount;
+    private final LocalDateTime transactionDate;
+    private final boolean credit;
+    
+    public StatementEntry(Long transactionId, Long counterpartyAccountId, Money amount,
+                          LocalDateTime transactionDate, boolean credit) {
+        this.transactionId = transactionId;
+        this.counterpartyAccountId = counterpartyAccountId;
+        this.amount = amount;
+        this.transactionDate = transactionDate;
+        this.credit = credit;
+    }
+    
+    public Long getTransactionId() {
+        return transactionId;
+    }
+    
+    public Long getCounterpartyAccountId() {
+        return counterpartyAccountId;
+    }
+    
+    public Money getAmount() {
+        return amount;
+    }
+    
+    public LocalDateTime getTransactionDate() {
+        return transactionDate;
+    }
+    
+    public boolean isCredit() {
+        return credit;
+    }
+}
+
+// BankService.java
+package com.example.banking.service;
+
+import com.example.banking.Account;
+import com.example.banking.AccountBalanceSlot;
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.outbox.TransactionOutbox;
+import com.example.banking.repository.AccountCursor;
+import com.example.banking.repository.AccountQuery;
+import com.example.banking.repository.AccountRepository;
+import com.example.banking.repository.AccountSummaryPage;
+import com.example.banking.repository.StatementEntry;
+import com.example.banking.repository.TransactionCursor;
+import com.example.banking.repository.TransactionPage;
+import com.example.banking.repository.TransactionRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+@Service
+public class BankService {
+    
+    private static final String BUSY_SHARDED_ACCOUNT =
+            "Sharded account has no free slot for this transfer; retry it on its own";
+    
+    private final AccountRepository accountRepository;
+    private final TransactionRepository transactionRepository;
+    private final AccountLockManager lockManager;
+    private final HotAccountService hotAccounts;
+    private final OptimisticRetryPolicy retryPolicy;
+    private final VelocityLimiter velocityLimiter;
+    private final TransactionOutbox outbox;
+    private final TransactionTemplate transactionTemplate;
+    private final LockingMode lockingMode;
+    private final boolean ledgerEnabled;
+    private final int batchSize;
+    
+    @Autowired
+    public BankService(AccountRepository accountRepository, TransactionRepository transactionRepository,
+                       AccountLockManager lockManager, HotAccountService hotAccounts,
+                       OptimisticRetryPolicy retryPolicy, VelocityLimiter velocityLimiter,
+                       TransactionOutbox outbox, PlatformTransactionManager transactionManager,
+                       @Value("${banking.locking.mode:PESSIMISTIC}") LockingMode lockingMode,
+                       @Value("${banking.ledger.enabled:false}") boolean ledgerEnabled,
+                       @Value("${hibernate.jdbc.batch_size:50}") int batchSize) {
+        this.accountRepository = accountRepository;
+        this.transactionRepository = transactionRepository;
+        this.lockManager = lockManager;
+        this.hotAccounts = hotAccounts;
+        this.retryPolicy = retryPolicy;
+        this.velocityLimiter = velocityLimiter;
+        this.outbox = outbox;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.lockingMode = lockingMode;
+        this.ledgerEnabled = ledgerEnabled;
+        this.batchSize = batchSize;
+    }
+    
+    @Transactional
+    public Account createAccount(Account account) {
+        accountRepository.save(account);
+        return account;
+    }
+    
+    // The account read APIs report the full balance of a sharded account (see withFullBalance)
+    @Transactional(readOnly = true)
+    public Account getAccountById(Long id) {
+        return withFullBalance(accountRepository.findById(id));
+    }
+    
+    @Transactional(readOnly = true)
+    public Account getAccountByNumber(String accountNumber) {
+        return withFullBalance(accountRepository.findByAccountNumber(accountNumber));
+    }
+    
+    // Same, but always read from the primary (see getTransactionByIdempotencyKeyOnPrimary)
+    @Transactional
+    public Account getAccountByNumberOnPrimary(String accountNumber) {
+        return withFullBalance(accountRepository.findByAccountNumber(accountNumber));
+    }
+    
+    @Transactional(readOnly = true)
+    public List<Account> getAllAccounts() {
+        List<Account> accounts = accountRepository.findAll();
+        accounts.forEach(this::withFullBalance);
+        return accounts;
+    }
+    
+    // One page of read-only account summaries; pass the page's next cursor for the following one
+    @Transactional(readOnly = true)
+    public AccountSummaryPage listAccounts(AccountQuery query, AccountCursor after, int limit) {
+        return accountRepository.findSummaries(query, after, limit);
+    }
+    
+    // Full balance of an account, including the slots of a sharded account
+    @Transactional(readOnly = true)
+    public Money getBalance(String accountNumber) {
+        return hotAccounts.getBalance(requireAccount(accountNumber));
+    }
+    
+    // The transfer methods manage their own transactions so that OPTIMISTIC mode can retry a
+    // transfer in a fresh one; called inside a caller's transaction they join it instead.
+    // In PESSIMISTIC mode account locks are then held until the caller's transaction ends
+    // (see AccountLockManager.lockForTransaction).
+    public Transaction transferMoney(String sourceAccountNumber, String targetAccountNumber, BigDecimal amount) {
+        return transferMoney(sourceAccountNumber, targetAccountNumber, amount, null);
+    }
+    
+    // Records the idempotency key on the transaction row; its unique index rejects a second
+    // transfer with the same key. Use IdempotentTransferService to get deduplicated retries.
+    public Transaction transferMoney(String sourceAccountNumber, String targetAccountNumber, BigDecimal amount,
+                                     String idempotencyKey) {
+        return transferMoney(sourceAccountNumber, targetAccountNumber, toMoney(amount), idempotencyKey);
+    }
+    
+    // Velocity limits are checked before the transaction starts, so a rejected transfer costs
+    // no database work; a transfer that then fails gives its reservation back
+    public Transaction transferMoney(String sourceAccountNumber, String targetAccountNumber, Money amount,
+                                     String idempotencyKey) {
+        requireLedgerDisabled();
+        VelocityLimiter.Reservation reservation = velocityLimiter.reserve(sourceAccountNumber, amount);
+        try {
+            return inTransaction("BankService.transferMoney",
+                    () -> transfer(sourceAccountNumber, targetAccountNumber, amount, idempotencyKey));
+        } catch (RuntimeException | Error e) {
+            reservation.release();
+            throw e;
+        }
+    }
+    
+    private Transaction transfer(String sourceAccountNumber, String targetAccountNumber, Money amount,
+                                 String idempotencyKey) {
+        Account sourceAccount;
+        Account targetAccount;
+        
+        if (lockingMode == LockingMode.PESSIMISTIC) {
+            // Resolve ids first so that both stripe and row locks are taken in a consistent order
+            Long sourceId = accountRepository.findIdByAccountNumber(sourceAccountNumber);
+            Long targetId = accountRepository.findIdByAccountNumber(targetAccountNumber);
+            if (sourceId == null || targetId == null) {
+                throw new IllegalArgumentException("Source or target account not found");
+            }
+            if (hotAccounts.isHot(sourceId) || hotAccounts.isHot(targetId)) {
+                return transferInvolvingShardedAccount(sourceId, targetId, amount, idempotencyKey);
+            }
+            
+            // Serialize hot accounts inside the JVM before queueing on database row locks
+            lockManager.lockForTransaction(sourceId, targetId);
+            Map<Long, Account> locked = accountRepository.findAllByIdForUpdate(sourceId, targetId);
+            sourceAccount = locked.get(sourceId);
+            targetAccount = locked.get(targetId);
+            if (sourceAccount != null && targetAccount != null
+                    && (sourceAccount.isSharded() || targetAccount.isSharded())) {
+                // Sharded since the hot account view was loaded: the row only holds part of
+                // the balance, so it must not be debited here (see lockRows for batches)
+                return transferInvolvingShardedAccount(sourceId, targetId, amount, idempotencyKey);
+            }
+        } else {
+            sourceAccount = accountRepository.findByAccountNumber(sourceAccountNumber);
+            targetAccount = accountRepository.findByAccountNumber(targetAccountNumber);
+            if (sourceAccount != null && targetAccount != null
+                    && (sourceAccount.isSharded() || targetAccount.isSharded())) {
+                return transferInvolvingShardedAccount(
+                        sourceAccount.getId(), targetAccount.getId(), amount, idempotencyKey);
+            }
+        }
+        
+        // Validate accounts and amount
+        String error = validateTransfer(sourceAccount, targetAccount, amount);
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        
+        // Create transaction record
+        Transaction transaction = new Transaction(sourceAccount.getId(), targetAccount.getId(), amount);
+        transaction.setIdempotencyKey(idempotencyKey);
+        
+        try {
+            // Update balances
+            sourceAccount.setBalance(sourceAccount.getBalance().subtract(amount));
+            targetAccount.setBalance(targetAccount.getBalance().add(amount));
+            
+            // Save updated accounts
+            accountRepository.save(sourceAccount);
+            accountRepository.save(targetAccount);
+            
+            // Mark transaction as successful
+            transaction.setStatus("SUCCESS");
+            
+        } catch (Exception e) {
+            // Mark transaction as failed
+            transaction.setStatus("FAILED");
+            // Rethrow to trigger rollback
+            throw e;
+        } finally {
+            // Save transaction record regardless of outcome
+            transactionRepository.save(transaction);
+        }
+        
+        outbox.record(transaction);
+        return transaction;
+    }
+    
+    // Applies many transfers in one database transaction: every involved account is loaded
+    // up front, balances are moved in memory and the writes go out as JDBC batches on commit.
+    // A transfer that fails validation is reported as failed and leaves balances untouched;
+    // a database error rolls back the whole batch. In OPTIMISTIC mode a version conflict
+    // reruns the whole batch, revalidating every transfer against the fresh balances.
+    // Transfers over a velocity limit are reported as failed without reaching the database.
+    public List<TransferResult> transferBatch(List<TransferRequest> requests) {
+        requireLedgerDisabled();
+        if (!velocityLimiter.isEnabled()) {
+            return inTransaction("BankService.transferBatch", () -> applyBatch(requests));
+        }
+        
+        TransferResult[] results = new TransferResult[requests.size()];
+        VelocityLimiter.Reservation[] reservations = new VelocityLimiter.Reservation[requests.size()];
+        List<TransferRequest> admitted = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            TransferRequest request = requests.get(i);
+            try {
+                reservations[i] = velocityLimiter.reserve(request.getSourceAccountNumber(), toMoney(request.getAmount()));
+                admitted.add(request);
+            } catch (IllegalArgumentException e) {
+                // Bad amounts are left to applyBatch, which reports them the usual way
+                if (e instanceof VelocityLimitExceededException) {
+                    results[i] = TransferResult.failure(request, e.getMessage());
+                } else {
+                    admitted.add(request);
+                }
+            }
+        }
+        
+        List<TransferResult> applied;
+        try {
+            applied = inTransaction("BankService.transferBatch", () -> applyBatch(admitted));
+        } catch (RuntimeException | Error e) {
+            for (VelocityLimiter.Reservation reservation : reservations) {
+                if (reservation != null) {
+                    reservation.release();
+                }
+            }
+            throw e;
+        }
+        
+        Iterator<TransferResult> next = applied.iterator();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = next.next();
+                if (!results[i].isSuccess() && reservations[i] != null) {
+                    reservations[i].release();
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+    
+    private List<TransferResult> applyBatch(List<TransferRequest> requests) {
+        Set<String> accountNumbers = new HashSet<>();
+        for (TransferRequest request : requests) {
+            accountNumbers.add(request.getSourceAccountNumber());
+            accountNumbers.add(request.getTargetAccountNumber());
+        }
+        Map<Long, AccountBalanceSlot> batchSlots = new HashMap<>();
+        Map<String, Account> accounts = loadAccounts(accountNumbers, batchSlots);
+        
+        List<TransferResult> results = new ArrayList<>(requests.size());
+        List<Transaction> transactions = new ArrayList<>(requests.size());
+        for (TransferRequest request : requests) {
+            Account sourceAccount = accounts.get(request.getSourceAccountNumber());
+            Account targetAccount = accounts.get(request.getTargetAccountNumber());
+            Money amount;
+            try {
+                amount = toMoney(request.getAmount());
+            } catch (IllegalArgumentException e) {
+                results.add(TransferResult.failure(request, e.getMessage()));
+                continue;
+            }
+            
+            String error = validateTransfer(sourceAccount, targetAccount, amount);
+            if (error == null && (sourceAccount.isSharded() || targetAccount.isSharded())) {
+                error = applyShardedTransfer(sourceAccount, targetAccount, amount, batchSlots);
+                if (error == null) {
+                    Transaction transaction = new Transaction(sourceAccount.getId(), targetAccount.getId(), amount);
+                    transaction.setIdempotencyKey(request.getIdempotencyKey());
+                    transaction.setStatus("SUCCESS");
+                    transactions.add(transaction);
+                    results.add(TransferResult.success(request, transaction));
+                    continue;
+                }
+            }
+            if (error != null) {
+                results.add(TransferResult.failure(request, error));
+                continue;
+            }
+            
+            // Managed accounts are dirty-checked, so each one is updated once at flush time
+            sourceAccount.setBalance(sourceAccount.getBalance().subtract(amount));
+            targetAccount.setBalance(targetAccount.getBalance().add(amount));
+            
+            Transaction transaction = new Transaction(sourceAccount.getId(), targetAccount.getId(), amount);
+            transaction.setIdempotencyKey(request.getIdempotencyKey());
+            transaction.setStatus("SUCCESS");
+            transactions.add(transaction);
+            results.add(TransferResult.success(request, transaction));
+        }
+        
+        transactionRepository.saveAll(transactions, batchSize);
+        outbox.recordAll(transactions);
+        return results;
+    }
+    
+    @Transactional(readOnly = true)
+    public Transaction getTransactionByIdempotencyKey(String idempotencyKey) {
+        return transactionRepository.findByIdempotencyKey(idempotencyKey);
+    }
+    
+    // Read-after-write variant for callers that have just seen the key committed, e.g. via a
+    // duplicate-key error: a read-write transaction is never routed to a replica, which may
+    // not have the row yet
+    @Transactional
+    public Transaction getTransactionByIdempotencyKeyOnPrimary(String idempotencyKey) {
+        return transactionRepository.findByIdempotencyKey(idempotencyKey);
+    }
+    
+    @Transactional(readOnly = true)
+    public List<Transaction> getAllTransactions() {
+        return transactionRepository.findAll();
+    }
+    
+    @Transactional(readOnly = true)
+    public TransactionPage getTransactionsPage(TransactionCursor after, int limit) {
+        return transactionRepository.findPage(after, limit);
+    }
+    
+    @Transactional(readOnly = true)
+    public TransactionPage getOutgoingTransactionsPage(Long accountId, TransactionCursor after, int limit) {
+        return transactionRepository.findPageBySourceAccountId(accountId, after, limit);
+    }
+    
+    @Transactional(readOnly = true)
+    public TransactionPage getIncomingTransactionsPage(Long accountId, TransactionCursor after, int limit) {
+        return transactionRepository.findPageByTargetAccountId(accountId, after, limit);
+    }
+    
+    // Hands every transaction to the sink in (transactionDate, id) order without holding
+    // more than one fetch of rows in memory; returns the number of rows exported
+    @Transactional(readOnly = true)
+    public long exportTransactions(Consumer<Transaction> sink) {
+        long exported = 0;
+        try (Stream<Transaction> transactions = transactionRepository.streamAll()) {
+            Iterator<Transaction> iterator = transactions.iterator();
+            while (iterator.hasNext()) {
+                sink.accept(iterator.next());
+                exported++;
+            }
+        }
+        return exported;
+    }
+    
+    // Statement for one account over [from, to); either bound may be null. Debits and
+    // credits come back from one query in date order and the running balance is carried
+    // forward as the rows arrive.
+    @Transactional(readOnly = true)
+    public AccountStatement getStatement(String accountNumber, LocalDateTime from, LocalDateTime to) {
+        Account account = requireAccount(accountNumber);
+        Money openingBalance = openingBalance(account, from);
+        List<StatementLine> lines = new ArrayList<>();
+        Money closingBalance = writeStatement(account, openingBalance, from, to, lines::add);
+        return new AccountStatement(accountNumber, from, to, openingBalance, closingBalance, lines);
+    }
+    
+    // Same as getStatement but hands each line to the sink instead of collecting them;
+    // returns the closing balance
+    @Transactional(readOnly = true)
+    public Money streamStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                                      Consumer<StatementLine> sink) {
+        Account account = requireAccount(accountNumber);
+        return writeStatement(account, openingBalance(account, from), from, to, sink);
+    }
+    
+    // The row of a sharded account only holds the part of the balance not in its slots. Such an
+    // account is detached and given its full balance, so callers see the same balance as
+    // getBalance and the session never writes the sum back into the row.
+    private Account withFullBalance(Account account) {
+        if (account != null && account.isSharded()) {
+            Money balance = hotAccounts.getBalance(account);
+            accountRepository.detach(account);
+            account.setBalance(balance);
+        }
+        return account;
+    }
+    
+    // With banking.ledger.enabled=true LedgerEngine owns every balance and checks funds against
+    // the ones it holds in memory; a transfer made here, by row or by slot, would not be among
+    // them, and both paths could then spend the same money
+    private void requireLedgerDisabled() {
+        if (ledgerEnabled) {
+            throw new IllegalStateException("Balances are owned by the ledger engine while"
+                    + " banking.ledger.enabled=true; transfer through LedgerEngine");
+        }
+    }
+    
+    // Runs the work in a transaction of its own, retried on version conflicts in OPTIMISTIC
+    // mode. Inside an existing transaction it just joins: a retry would reuse a session that
+    // a failed flush has left unusable, so the conflict goes to the caller.
+    private <T> T inTransaction(String operation, Supplier<T> work) {
+        if (lockingMode != LockingMode.OPTIMISTIC || TransactionSynchronizationManager.isActualTransactionActive()) {
+            return transactionTemplate.execute(status -> work.get());
+        }
+        return retryPolicy.execute(operation, () -> transactionTemplate.execute(status -> work.get()));
+    }
+    
+    // Loads the accounts of a batch. In PESSIMISTIC mode, and in OPTIMISTIC mode whenever a
+    // sharded account is involved, they are locked the way transferInvolvingShardedAccount
+    // locks: one account at a time by ascending id, the row of a regular account and one slot
+    // of a sharded account, which is then put in batchSlots for the batch to use. Rows of
+    // sharded accounts are never locked, so they keep taking transfers while the batch runs.
+    private Map<String, Account> loadAccounts(Collection<String> accountNumbers,
+                                              Map<Long, AccountBalanceSlot> batchSlots) {
+        Map<String, Long> ids = accountRepository.findIdsByAccountNumbers(accountNumbers);
+        Set<Long> hotIds = new HashSet<>();
+        List<Long> regularIds = new ArrayList<>();
+        for (Long id : ids.values()) {
+            if (hotAccounts.isHot(id)) {
+                hotIds.add(id);
+            } else {
+                regularIds.add(id);
+            }
+        }
+        if (lockingMode != LockingMode.PESSIMISTIC && hotIds.isEmpty()) {
+            return accountRepository.findAllByAccountNumbers(accountNumbers);
+        }
+        if (lockingMode == LockingMode.PESSIMISTIC) {
+            // Stripes before any database lock, as in transfer; sharded accounts take none
+            lockManager.lockForTransaction(regularIds.toArray(new Long[0]));
+        }
+        
+        List<Long> ordered = new ArrayList<>(ids.values());
+        ordered.sort(null);
+        Map<String, Account> accounts = new HashMap<>();
+        List<Long> rowsToLock = new ArrayList<>();
+        for (Long id : ordered) {
+            if (!hotIds.contains(id)) {
+                rowsToLock.add(id);
+                continue;
+            }
+            lockRows(rowsToLock, accounts, batchSlots);
+            Account account = accountRepository.findById(id);
+            AccountBalanceSlot slot = account != null && account.isSharded()
+                    ? hotAccounts.lockSlot(id, account.getBalanceSlots())
+                    : null;
+            if (slot != null) {
+                batchSlots.put(id, slot);
+                accounts.put(account.getAccountNumber(), account);
+            } else {
+                // No longer sharded: lock its row instead, still in id order
+                rowsToLock.add(id);
+            }
+        }
+        lockRows(rowsToLock, accounts, batchSlots);
+        return accounts;
+    }
+    
+    private void lockRows(List<Long> ids, Map<String, Account> accounts, Map<Long, AccountBalanceSlot> batchSlots) {
+        for (Account account : accountRepository.findAllByIdsForUpdate(ids)) {
+            accounts.put(account.getAccountNumber(), account);
+            if (account.isSharded() && !batchSlots.containsKey(account.getId())) {
+                // Sharded since the hot account view was loaded; its row is locked and higher
+                // ids may be too, so a slot can only be taken without waiting
+                AccountBalanceSlot slot = hotAccounts.tryLockSlot(account.getId(), account.getBalanceSlots());
+                if (slot != null) {
+                    batchSlots.put(account.getId(), slot);
+                }
+            }
+        }
+        ids.clear();
+    }
+    
+    private Account requireAccount(String accountNumber) {
+        Account account = accountRepository.findByAccountNumber(accountNumber);
+        if (account == null) {
+            throw new IllegalArgumentException("Account not found: " + accountNumber);
+        }
+        return account;
+    }
+    
+    // Balance just before the statement period: today's balance minus everything booked since
+    private Money openingBalance(Account account, LocalDateTime from) {
+        return hotAccounts.getBalance(account)
+                .subtract(transactionRepository.sumNetMovementSince(account.getId(), from));
+    }
+    
+    // Sharded accounts are never locked as a whole, so this path takes no stripe locks at all
+    // and only database locks, one account at a time in ascending id order. That keeps it
+    // deadlock-free against the regular path, which also locks rows in ascending id order.
+    private Transaction transferInvolvingShardedAccount(Long sourceId, Long targetId, Money amount,
+                                                        String idempotencyKey) {
+        if (amount == null || amount.signum() <= 0) {
+            throw new IllegalArgumentException("Transfer amount must be positive");
+        }
+        
+        if (sourceId.equals(targetId)) {
+            // The balance does not change; debiting one slot and crediting another would lock
+            // two slots of the same account in no particular order
+            Account account = accountRepository.findById(sourceId);
+            if (hotAccounts.getBalance(account).compareTo(amount) < 0) {
+                throw new IllegalArgumentException("Insufficient funds in source account");
+            }
+        } else if (sourceId < targetId) {
+            debit(sourceId, amount);
+            credit(targetId, amount);
+        } else {
+            credit(targetId, amount);
+            debit(sourceId, amount);
+        }
+        
+        Transaction transaction = new Transaction(sourceId, targetId, amount);
+        transaction.setIdempotencyKey(idempotencyKey);
+        transaction.setStatus("SUCCESS");
+        transactionRepository.save(transaction);
+        outbox.record(transaction);
+        return transaction;
+    }
+    
+    private void debit(Long accountId, Money amount) {
+        if (hotAccounts.isHot(accountId)) {
+            if (!hotAccounts.debit(accountId, amount)) {
+                throw new IllegalArgumentException("Insufficient funds in source account");
+            }
+            return;
+        }
+        Account account = accountRepository.findAllByIdForUpdate(accountId).get(accountId);
+        if (account.isSharded()) {
+            // Sharded since the hot account view was loaded; draw on the row and its slots
+            if (!hotAccounts.debit(accountId, amount)) {
+                throw new IllegalArgumentException("Insufficient funds in source account");
+            }
+            return;
+        }
+        if (account.getBalance().compareTo(amount) < 0) {
+            throw new IllegalArgumentException("Insufficient funds in source account");
+        }
+        account.setBalance(account.getBalance().subtract(amount));
+    }
+    
+    private void credit(Long accountId, Money amount) {
+        if (hotAccounts.isHot(accountId)) {
+            hotAccounts.credit(accountId, amount);
+            return;
+        }
+        Account account = accountRepository.findAllByIdForUpdate(accountId).get(accountId);
+        account.setBalance(account.getBalance().add(amount));
+    }
+    
+    // Batch variant: both accounts are already loaded by loadAccounts. A sharded side only
+    // uses the slot locked for it there and slots that no other transfer holds, because the
+    // batch may already hold locks on higher ids and must not wait for a slot.
+    private String applyShardedTransfer(Account sourceAccount, Account targetAccount, Money amount,
+                                        Map<Long, AccountBalanceSlot> batchSlots) {
+        if (sourceAccount == targetAccount) {
+            return hotAccounts.getBalance(sourceAccount).compareTo(amount) < 0
+                    ? "Insufficient funds in source account" : null;
+        }
+        AccountBalanceSlot targetSlot = null;
+        if (targetAccount.isSharded()) {
+            targetSlot = batchSlots.get(targetAccount.getId());
+            if (targetSlot == null) {
+                return BUSY_SHARDED_ACCOUNT;
+            }
+        }
+        
+        if (sourceAccount.isSharded()) {
+            AccountBalanceSlot sourceSlot = batchSlots.get(sourceAccount.getId());
+            if (sourceSlot != null && sourceSlot.getBalance().compareTo(amount) >= 0) {
+                sourceSlot.setBalance(sourceSlot.getBalance().subtract(amount));
+            } else if (!hotAccounts.tryDebit(sourceAccount.getId(), sourceAccount.getBalanceSlots(), amount)) {
+                return hotAccounts.getBalance(sourceAccount).compareTo(amount) < 0
+                        ? "Insufficient funds in source account" : BUSY_SHARDED_ACCOUNT;
+            }
+        } else {
+            sourceAccount.setBalance(sourceAccount.getBalance().subtract(amount));
+        }
+        
+        if (targetSlot != null) {
+            targetSlot.setBalance(targetSlot.getBalance().add(amount));
+        } else {
+            targetAccount.setBalance(targetAccount.getBalance().add(amount));
+        }
+        return null;
+    }
+    
+    private Money writeStatement(Account account, Money openingBalance, LocalDateTime from,
+                                 LocalDateTime to, Consumer<StatementLine> sink) {
+        Money balance = openingBalance;
+        try (Stream<StatementEntry> entries = transactionRepository.streamStatementEntries(account.getId(), from, to)) {
+            Iterator<StatementEntry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                StatementEntry entry = iterator.next();
+                balance = entry.isCredit()
+                        ? balance.add(entry.getAmount())
+                        : balance.subtract(entry.getAmount());
+                sink.accept(new StatementLine(entry, balance));
+            }
+        }
+        return balance;
+    }
+    
+    // Returns the reason a transfer cannot be applied, or null when it is valid
+    private String validateTransfer(Account sourceAccount, Account targetAccount, Money amount) {
+        if (sourceAccount == null || targetAccount == null) {
+            return "Source or target account not found";
+        }
+        
+        if (amount == null || amount.signum() <= 0) {
+            return "Transfer amount must be positive";
+        }
+        
+        // For a sharded source this is the balance over all slots; whether one slot can
+        // cover the amount is only known when the debit is applied
+        if (hotAccounts.getBalance(sourceAccount).compareTo(amount) < 0) {
+            return "Insufficient funds in source account";
+        }
+        return null;
+    }
+    
+    // Amounts enter the service as BigDecimal and are converted once; null is left for
+    // validateTransfer to report
+    private static Money toMoney(BigDecimal amount) {
+        return amount == null ? null : Money.of(amount);
+    }
+}
+
+// TransferRequest.java
+package com.example.banking.service;
+
+import java.math.BigDecimal;
+
+public class TransferRequest {
+    
+    private final String sourceAccountNumber;
+    private final String targetAccountNumber;
+    private final BigDecimal amount;
+    private final String idempotencyKey;
+    
+    public TransferRequest(String sourceAccountNumber, String targetAccountNumber, BigDecimal amount) {
+        this(sourceAccountNumber, targetAccountNumber, amount, null);
+    }
+    
+    // The key is stored on the resulting transaction, so the transfer can be retried through
+    // IdempotentTransferService without applying it twice
+    public TransferRequest(String sourceAccountNumber, String targetAccountNumber, BigDecimal amount,
+                           String idempotencyKey) {
+        this.sourceAccountNumber = sourceAccountNumber;
+        this.targetAccountNumber = targetAccountNumber;
+        this.amount = amount;
+        this.idempotencyKey = idempotencyKey;
+    }
+    
+    public String getSourceAccountNumber() {
+        return sourceAccountNumber;
+    }
+    
+    public String getTargetAccountNumber() {
+        return targetAccountNumber;
+    }
+    
+    public BigDecimal getAmount() {
+        return amount;
+    }
+    
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+    
+    @Override
+    public String toString() {
+        return "TransferRequest{" +
+                "sourceAccountNumber='" + sourceAccountNumber + '\'' +
+                ", targetAccountNumber='" + targetAccountNumber + '\'' +
+                ", amount=" + amount +
+                ", idempotencyKey='" + idempotencyKey + '\'' +
+                '}';
+    }
+}
+
+// TransferResult.java
+package com.example.banking.service;
+
+import com.example.banking.Transaction;
+
+// Outcome of one transfer in a batch: the recorded transaction on success,
+// or the validation error when the transfer was skipped
+public class TransferResult {
+    
+    private final TransferRequest request;
+    private final Transaction transaction;
+    private final String errorMessage;
+    
+    private TransferResult(TransferRequest request, Transaction transaction, String errorMessage) {
+        this.request = request;
+        this.transaction = transaction;
+        this.errorMessage = errorMessage;
+    }
+    
+    public static TransferResult success(TransferRequest request, Transaction transaction) {
+        return new TransferResult(request, transaction, null);
+    }
+    
+    public static TransferResult failure(TransferRequest request, String errorMessage) {
+        return new TransferResult(request, null, errorMessage);
+    }
+    
+    public boolean isSuccess() {
+        return transaction != null;
+    }
+    
+    public TransferRequest getRequest() {
+        return request;
+    }
+    
+    public Transaction getTransaction() {
+        return transaction;
+    }
+    
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+    
+    @Override
+    public String toString() {
+        return "TransferResult{" +
+                "request=" + request +
+                ", success=" + isSuccess() +
+                (isSuccess() ? ", transaction=" + transaction : ", errorMessage='" + errorMessage + '\'') +
+                '}';
+    }
+}
+
+// TransferBatchTest.java
+package com.example.banking.service;
+
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.example.banking.testing.InMemoryBankingContext.accountNumber;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// A batch applies every valid transfer and reports the rest one by one, in request order.
+// Funds are checked against the balances as the earlier transfers of the batch left them.
+class TransferBatchTest {
+    
+    private static final Money OPENING_BALANCE = Money.ofMinor(10_000);
+    
+    // With velocity limits on, the batch is split into admitted and rejected transfers and
+    // merged back, so that path is run too
+    @Test
+    void eachTransferSucceedsOrFailsOnItsOwn() {
+        Map<String, String> velocity = new HashMap<>();
+        velocity.put("banking.velocity.enabled", "true");
+        velocity.put("banking.velocity.max-transfers-per-minute", "100");
+        List<Map<String, String>> configurations = Arrays.asList(
+                Collections.singletonMap("banking.locking.mode", "PESSIMISTIC"),
+                Collections.singletonMap("banking.locking.mode", "OPTIMISTIC"),
+                velocity);
+        for (Map<String, String> configuration : configurations) {
+            String label = configuration.toString();
+            try (InMemoryBankingContext context = new InMemoryBankingContext(configuration)) {
+                context.createAccounts(4, OPENING_BALANCE);
+                BankService bankService = context.getBean(BankService.class);
+                
+                List<TransferRequest> requests = Arrays.asList(
+                        new TransferRequest(accountNumber(0), accountNumber(1), new BigDecimal("60.00")),
+                        // Only 40.00 left after the first transfer
+                        new TransferRequest(accountNumber(0), accountNumber(2), new BigDecimal("50.00")),
+                        new TransferRequest(accountNumber(1), accountNumber(0), new BigDecimal("30.00"), "batch-key"),
+                        // Covered again by the credit just before
+                        new TransferRequest(accountNumber(0), accountNumber(2), new BigDecimal("50.00")),
+                        new TransferRequest(accountNumber(0), "ACC9999999", new BigDecimal("1.00")),
+                        new TransferRequest(accountNumber(2), accountNumber(3), new BigDecimal("-5.00")),
+                        new TransferRequest(accountNumber(3), accountNumber(1), null));
+                List<TransferResult> results = bankService.transferBatch(requests);
+                
+                assertEquals(requests.size(), results.size(), label);
+                for (int i = 0; i < requests.size(); i++) {
+                    assertSame(requests.get(i), results.get(i).getRequest(), label);
+                }
+                assertSucceeded(results.get(0));
+                assertFailed("Insufficient funds in source account", results.get(1));
+                assertSucceeded(results.get(2));
+                assertEquals("batch-key", results.get(2).getTransaction().getIdempotencyKey());
+                assertSucceeded(results.get(3));
+                assertFailed("Source or target account not found", results.get(4));
+                assertFailed("Transfer amount must be positive", results.get(5));
+                assertFailed("Transfer amount must be positive", results.get(6));
+                
+                assertEquals(Money.ofMinor(2_000), bankService.getBalance(accountNumber(0)), label);
+                assertEquals(Money.ofMinor(13_000), bankService.getBalance(accountNumber(1)), label);
+                assertEquals(Money.ofMinor(15_000), bankService.getBalance(accountNumber(2)), label);
+                assertEquals(OPENING_BALANCE, bankService.getBalance(accountNumber(3)), label);
+                
+                List<Transaction> recorded = bankService.getAllTransactions();
+                assertEquals(3, recorded.size(), label);
+                for (Transaction transaction : recorded) {
+                    assertEquals("SUCCESS", transaction.getStatus());
+                }
+            }
+        }
+    }
+    
+    private static void assertSucceeded(TransferResult result) {
+        assertTrue(result.isSuccess(), result.toString());
+        assertNotNull(result.getTransaction().getId(), result.toString());
+        assertNull(result.getErrorMessage(), result.toString());
+    }
+    
+    private static void assertFailed(String errorMessage, TransferResult result) {
+        assertFalse(result.isSuccess(), result.toString());
+        assertNull(result.getTransaction(), result.toString());
+        assertEquals(errorMessage, result.getErrorMessage());
+    }
+}
+
+// StatementLine.java
+package com.example.banking.service;
+
+import com.example.banking.Money;
+import com.example.banking.repository.StatementEntry;
+
+import java.time.LocalDateTime;
+
+public class StatementLine {
+    
+    private final StatementEntry entry;
+    private final Money runningBalance;
+    
+    public StatementLine(StatementEntry entry, Money runningBalance) {
+        this.entry = entry;
+        this.runningBalance = runningBalance;
+    }
+    
+    public Long getTransactionId() {
+        return entry.getTransactionId();
+    }
+    
+    public Long getCounterpartyAccountId() {
+        return entry.getCounterpartyAccountId();
+    }
+    
+    public LocalDateTime getTransactionDate() {
+        return entry.getTransactionDate();
+    }
+    
+    public boolean isCredit() {
+        return entry.isCredit();
+    }
+    
+    public Money getAmount() {
+        return entry.getAmount();
+    }
+    
+    // Amount as it affects this account: positive for credits, negative for debits
+    public Money getSignedAmount() {
+        return entry.isCredit() ? entry.getAmount() : entry.getAmount().negate();
+    }
+    
+    public Money getRunningBalance() {
+        return runningBalance;
+    }
+    
+    @Override
+    public String toString() {
+        return "StatementLine{" +
+                "transactionId=" + getTransactionId() +
+                ", date=" + getTransactionDate() +
+                ", amount=" + getSignedAmount() +
+                ", runningBalance=" + runningBalance +
+                '}';
+    }
+}
+
+// AccountStatement.java
+package com.example.banking.service;
+
+import com.example.banking.Money;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+
+public class AccountStatement {
+    
+    private final String accountNumber;
+    private final LocalDateTime from;
+    private final LocalDateTime to;
+    private final Money openingBalance;
+    private final Money closingBalance;
+    private final List<StatementLine> lines;
+    
+    public AccountStatement(String accountNumber, LocalDateTime from, LocalDateTime to,
+                            Money openingBalance, Money closingBalance, List<StatementLine> lines) {
+        this.accountNumber = accountNumber;
+        this.from = from;
+        this.to = to;
+        this.openingBalance = openingBalance;
+        this.closingBalance = closingBalance;
+        this.lines = Collections.unmodifiableList(lines);
+    }
+    
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+    
+    public LocalDateTime getFrom() {
+        return from;
+    }
+    
+    public LocalDateTime getTo() {
+        return to;
+    }
+    
+    public Money getOpeningBalance() {
+        return openingBalance;
+    }
+    
+    public Money getClosingBalance() {
+        return closingBalance;
+    }
+    
+    public List<StatementLine> getLines() {
+        return lines;
+    }
+}
+
+// HotAccountService.java
+package com.example.banking.service;
+
+import com.example.banking.Account;
+import com.example.banking.AccountBalanceSlot;
+import com.example.banking.Money;
+import com.example.banking.repository.AccountBalanceSlotRepository;
+import com.example.banking.repository.AccountRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Opt-in sharding for accounts that take most of the transfer traffic. A hot account's
+// balance is the account row's balance plus the sum of its AccountBalanceSlot rows.
+// Credits go to a random slot; debits lock one slot with enough funds, skipping slots other
+// transfers hold, and only fall back to locking the whole account when no single slot can
+// cover the amount. Contention on the account therefore drops roughly by the slot count.
+@Service
+public class HotAccountService {
+    
+    private final AccountRepository accountRepository;
+    private final AccountBalanceSlotRepository slotRepository;
+    private final long refreshIntervalNanos;
+    private final AtomicLong lastRefresh = new AtomicLong();
+    private volatile Map<Long, Integer> slotCounts = Collections.emptyMap();
+    
+    @Autowired
+    public HotAccountService(AccountRepository accountRepository, AccountBalanceSlotRepository slotRepository,
+                             @Value("${banking.hot-accounts.refresh-ms:30000}") long refreshIntervalMillis) {
+        this.accountRepository = accountRepository;
+        this.slotRepository = slotRepository;
+        this.refreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(refreshIntervalMillis);
+        this.lastRefresh.set(System.nanoTime() - refreshIntervalNanos);
+    }
+    
+    // Uses the in-memory view of sharded accounts, reloaded from the database every
+    // refresh-ms so that accounts sharded on another node are picked up here as well.
+    // Must be called inside a transaction.
+    public boolean isHot(Long accountId) {
+        return currentSlotCounts().containsKey(accountId);
+    }
+    
+    // Spreads the account's balance evenly over the given number of slots
+    @Transactional
+    public void enable(String accountNumber, int slots) {
+        if (slots < 2) {
+            throw new IllegalArgumentException("A sharded account needs at least two slots");
+        }
+        Account account = lockAccount(accountNumber);
+        if (account.isSharded()) {
+            throw new IllegalStateException("Account is already sharded: " + accountNumber);
+        }
+        
+        long balance = account.getBalance().getMinorUnits();
+        long share = balance / slots;
+        long remainder = balance - share * slots;
+        for (int slot = 0; slot < slots; slot++) {
+            slotRepository.save(new AccountBalanceSlot(
+                    account.getId(), slot, Money.ofMinor(slot == 0 ? share + remainder : share)));
+        }
+        account.setBalance(Money.ZERO);
+        account.setBalanceSlots(slots);
+        publishAfterCommit(account.getId(), slots);
+    }
+    
+    // Folds every slot back into the account row
+    @Transactional
+    public void disable(String accountNumber) {
+        Account account = lockAccount(accountNumber);
+        if (!account.isSharded()) {
+            return;
+        }
+        
+        Money total = account.getBalance();
+        for (AccountBalanceSlot slot : slotRepository.findAllByAccountIdForUpdate(account.getId())) {
+            total = total.add(slot.getBalance());
+        }
+        slotRepository.deleteAllByAccountId(account.getId());
+        account.setBalance(total);
+        account.setBalanceSlots(0);
+        publishAfterCommit(account.getId(), 0);
+    }
+    
+    public Money getBalance(Account account) {
+        if (!account.isSharded()) {
+            return account.getBalance();
+        }
+        return account.getBalance().add(slotRepository.sumBalance(account.getId()));
+    }
+    
+    // Returns false when the account as a whole cannot cover the amount
+    public boolean debit(Long accountId, Money amount) {
+        int slots = currentSlotCounts().getOrDefault(accountId, 0);
+        if (slots > 0 && tryDebit(accountId, slots, amount)) {
+            return true;
+        }
+        
+        // No single slot can cover the amount: lock the account row and then every slot in
+        // slot order, and draw the amount from the row first and the slots after it
+        Account account = accountRepository.findAllByIdForUpdate(accountId).get(accountId);
+        List<AccountBalanceSlot> allSlots = slotRepository.findAllByAccountIdForUpdate(accountId);
+        Money available = account.getBalance();
+        for (AccountBalanceSlot slot : allSlots) {
+            available = available.add(slot.getBalance());
+        }
+        if (available.compareTo(amount) < 0) {
+            return false;
+        }
+        
+        Money remaining = amount;
+        Money fromRow = account.getBalance().min(remaining).max(Money.ZERO);
+        account.setBalance(account.getBalance().subtract(fromRow));
+        remaining = remaining.subtract(fromRow);
+        for (AccountBalanceSlot slot : allSlots) {
+            if (remaining.signum() == 0) {
+                break;
+            }
+            Money taken = slot.getBalance().min(remaining);
+            slot.setBalance(slot.getBalance().subtract(taken));
+            remaining = remaining.subtract(taken);
+        }
+        return true;
+    }
+    
+    // Debits one slot that no other transfer holds, without ever waiting for a lock; returns
+    // false when no such slot covers the amount, even if the account as a whole could
+    public boolean tryDebit(Long accountId, int slots, Money amount) {
+        AccountBalanceSlot slot = lockFreeSlot(accountId, slots, amount);
+        if (slot == null) {
+            return false;
+        }
+        slot.setBalance(slot.getBalance().subtract(amount));
+        return true;
+    }
+    
+    // Locks one slot of a sharded account for the rest of the transaction. A slot no other
+    // transfer holds is preferred; only when every slot is taken does it wait for a random
+    // one. Returns null when the account has no slots any more.
+    public AccountBalanceSlot lockSlot(Long accountId, int slots) {
+        AccountBalanceSlot slot = lockFreeSlot(accountId, slots, Money.ZERO);
+        if (slot != null) {
+            return slot;
+        }
+        return slotRepository.findSlotForUpdate(accountId, ThreadLocalRandom.current().nextInt(slots));
+    }
+    
+    // Like lockSlot, but returns null instead of waiting when every slot is taken
+    public AccountBalanceSlot tryLockSlot(Long accountId, int slots) {
+        return lockFreeSlot(accountId, slots, Money.ZERO);
+    }
+    
+    public void credit(Long accountId, Money amount) {
+        int slots = currentSlotCounts().getOrDefault(accountId, 0);
+        if (slots > 0 && slotRepository.addToSlot(accountId, ThreadLocalRandom.current().nextInt(slots), amount)) {
+            return;
+        }
+        // The account was unsharded since the last refresh; credit the row instead
+        Account account = accountRepository.findAllByIdForUpdate(accountId).get(accountId);
+        account.setBalance(account.getBalance().add(amount));
+    }
+    
+    // Starts at a random slot so concurrent transfers spread over the account
+    private AccountBalanceSlot lockFreeSlot(Long accountId, int slots, Money amount) {
+        int start = ThreadLocalRandom.current().nextInt(slots);
+        AccountBalanceSlot slot = slotRepository.lockSlotWithBalance(accountId, amount, start, slots);
+        if (slot == null && start > 0) {
+            slot = slotRepository.lockSlotWithBalance(accountId, amount, 0, start);
+        }
+        return slot;
+    }
+    
+    private Account lockAccount(String accountNumber) {
+        Long id = accountRepository.findIdByAccountNumber(accountNumber);
+        Account account = id == null ? null : accountRepository.findAllByIdForUpdate(id).get(id);
+        if (account == null) {
+            throw new IllegalArgumentException("Account not found: " + accountNumber);
+        }
+        return account;
+    }
+    
+    private Map<Long, Integer> currentSlotCounts() {
+        long last = lastRefresh.get();
+        long now = System.nanoTime();
+        // Only one caller reloads; everybody else keeps using the current view meanwhile
+        if (now - last >= refreshIntervalNanos && lastRefresh.compareAndSet(last, now)) {
+            slotCounts = Collections.unmodifiableMap(accountRepository.findBalanceSlotCounts());
+        }
+        return slotCounts;
+    }
+    
+    private void publishAfterCommit(Long accountId, int slots) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                Map<Long, Integer> updated = new HashMap<>(slotCounts);
+                if (slots > 0) {
+                    updated.put(accountId, slots);
+                } else {
+                    updated.remove(accountId);
+                }
+                slotCounts = Collections.unmodifiableMap(updated);
+            }
+        });
+    }
+}
+
+// HotAccountServiceTest.java
+package com.example.banking.service;
+
+import com.example.banking.Account;
+import com.example.banking.Money;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HotAccountServiceTest {
+    
+    private static final Money OPENING_BALANCE = Money.ofMinor(10_000);
+    
+    // Every BankService read API must report the balance of a sharded account including its
+    // slots, and handing it out must not write that sum back into the account row
+    @Test
+    void readApisReportTheFullBalanceOfAShardedAccount() {
+        try (InMemoryBankingContext context = new InMemoryBankingContext(Collections.emptyMap())) {
+            List<Long> ids = context.createAccounts(2, OPENING_BALANCE);
+            BankService bankService = context.getBean(BankService.class);
+            context.getBean(HotAccountService.class).enable(accountNumber(0), 4);
+            bankService.transferMoney(accountNumber(1), accountNumber(0), new BigDecimal("25.00"));
+            
+            Money expected = Money.of(new BigDecimal("125.00"));
+            assertEquals(expected, bankService.getBalance(accountNumber(0)));
+            assertEquals(expected, bankService.getAccountById(ids.get(0)).getBalance());
+            assertEquals(expected, bankService.getAccountByNumber(accountNumber(0)).getBalance());
+            assertEquals(expected, bankService.getAccountByNumberOnPrimary(accountNumber(0)).getBalance());
+            for (Account account : bankService.getAllAccounts()) {
+                if (account.getId().equals(ids.get(0))) {
+                    assertEquals(expected, account.getBalance());
+                }
+            }
+            
+            // Had the read-write read flushed the sum into the row, 125.00 would be left over
+            bankService.transferMoney(accountNumber(0), accountNumber(1), expected.toBigDecimal());
+            assertEquals(Money.ZERO, bankService.getBalance(accountNumber(0)));
+            assertEquals(Money.of(new BigDecimal("200.00")), bankService.getBalance(accountNumber(1)));
+        }
+    }
+    
+    private static String accountNumber(int index) {
+        return InMemoryBankingContext.accountNumber(index);
+    }
+}
+
+// IdempotentTransferService.java
+package com.example.banking.service;
+
+import com.example.banking.Account;
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Retry-safe transfers. A key seen recently is answered from IdempotencyCache without any
+// database work; concurrent duplicates in this JVM wait for the first attempt instead of
+// racing it; and duplicates from other nodes or older than the cache window are caught by
+// the unique index on transactions.idempotency_key, after which the original row is returned.
+// Failed transfers are not remembered, so a retry after e.g. insufficient funds runs again.
+// A key reused for a transfer with a different source, target or amount is rejected.
+@Service
+public class IdempotentTransferService {
+    
+    // Name of the unique index on transactions.idempotency_key (see Transaction)
+    private static final String IDEMPOTENCY_KEY_INDEX = "uk_transactions_idempotency_key";
+    
+    private final BankService bankService;
+    private final IdempotencyCache cache;
+    private final ConcurrentMap<String, Attempt> inFlight = new ConcurrentHashMap<>();
+    
+    @Autowired
+    public IdempotentTransferService(BankService bankService, IdempotencyCache cache) {
+        this.bankService = bankService;
+        this.cache = cache;
+    }
+    
+    public Transaction transferMoney(String idempotencyKey, String sourceAccountNumber, String targetAccountNumber,
+                                     BigDecimal amount) {
+        if (idempotencyKey == null || idempotencyKey.isEmpty() || idempotencyKey.length() > 64) {
+            throw new IllegalArgumentException("Idempotency key must be 1 to 64 characters");
+        }
+        // In minor units, so "100" and "100.00" are the same transfer, as the database check has it
+        String fingerprint = sourceAccountNumber + '|' + targetAccountNumber + '|'
+                + (amount == null ? null : Money.of(amount).getMinorUnits());
+        
+        IdempotencyCache.Entry cached = cache.get(idempotencyKey);
+        if (cached != null) {
+            checkSameTransfer(cached.getFingerprint(), fingerprint);
+            return cached.getTransaction();
+        }
+        
+        Attempt attempt = new Attempt(fingerprint);
+        Attempt running = inFlight.putIfAbsent(idempotencyKey, attempt);
+        if (running != null) {
+            checkSameTransfer(running.fingerprint, fingerprint);
+            return awaitFirstAttempt(running.result);
+        }
+        
+        try {
+            Transaction transaction;
+            try {
+                transaction = bankService.transferMoney(sourceAccountNumber, targetAccountNumber, amount, idempotencyKey);
+            } catch (RuntimeException e) {
+                if (!isDuplicateKey(e)) {
+                    throw e;
+                }
+                // Another node or an earlier process already committed this key; read it back
+                // from the primary, where the unique index just saw it
+                transaction = bankService.getTransactionByIdempotencyKeyOnPrimary(idempotencyKey);
+                if (transaction == null) {
+                    throw e;
+                }
+                checkSameTransfer(transaction, sourceAccountNumber, targetAccountNumber, amount);
+            }
+            cache.put(idempotencyKey, fingerprint, transaction);
+            attempt.result.complete(transaction);
+            return transaction;
+        } catch (RuntimeException e) {
+            attempt.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(idempotencyKey, attempt);
+        }
+    }
+    
+    private static Transaction awaitFirstAttempt(CompletableFuture<Transaction> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    private static void checkSameTransfer(String firstFingerprint, String fingerprint) {
+        if (!firstFingerprint.equals(fingerprint)) {
+            throw new IllegalArgumentException("Idempotency key was already used for a different transfer");
+        }
+    }
+    
+    // The stored row only has account ids, so the account numbers are resolved to compare them
+    private void checkSameTransfer(Transaction transaction, String sourceAccountNumber, String targetAccountNumber,
+                                   BigDecimal amount) {
+        Account sourceAccount = bankService.getAccountByNumberOnPrimary(sourceAccountNumber);
+        Account targetAccount = bankService.getAccountByNumberOnPrimary(targetAccountNumber);
+        if (sourceAccount == null || targetAccount == null
+                || !Objects.equals(sourceAccount.getId(), transaction.getSourceAccountId())
+                || !Objects.equals(targetAccount.getId(), transaction.getTargetAccountId())
+                || amount == null || transaction.getAmount().toBigDecimal().compareTo(amount) != 0) {
+            throw new IllegalArgumentException("Idempotency key was already used for a different transfer");
+        }
+    }
+    
+    // Only a violation of the idempotency key index means the key was taken; any other
+    // constraint failure is a genuine error of this transfer
+    private static boolean isDuplicateKey(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConstraintViolationException) {
+                String constraintName = ((ConstraintViolationException) cause).getConstraintName();
+                return constraintName != null
+                        && constraintName.toLowerCase(Locale.ROOT).contains(IDEMPOTENCY_KEY_INDEX);
+            }
+        }
+        return false;
+    }
+    
+    private static final class Attempt {
+        
+        private final String fingerprint;
+        private final CompletableFuture<Transaction> result = new CompletableFuture<>();
+        
+        private Attempt(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+}
+
+// IdempotencyCache.java
+package com.example.banking.service;
+
+import com.example.banking.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Completed transfers by idempotency key for a fixed time window. Every entry lives for the
+// same TTL, so insertion order is also expiry order and a FIFO queue is enough to expire and
+// bound entries without scanning the map. Lookups are lock-free; only puts take the queue lock.
+@Component
+public class IdempotencyCache {
+    
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> insertionOrder = new ArrayDeque<>();
+    private final long ttlNanos;
+    private final int maxEntries;
+    
+    @Autowired
+    public IdempotencyCache(@Value("${banking.idempotency.ttl-seconds:600}") long ttlSeconds,
+                            @Value("${banking.idempotency.max-entries:100000}") int maxEntries) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxEntries = maxEntries;
+    }
+    
+    public Entry get(String idempotencyKey) {
+        Entry entry = entries.get(idempotencyKey);
+        if (entry == null || entry.expiresAt - System.nanoTime() <= 0) {
+            return null;
+        }
+        return entry;
+    }
+    
+    public void put(String idempotencyKey, String fingerprint, Transaction transaction) {
+        long now = System.nanoTime();
+        Entry entry = new Entry(idempotencyKey, fingerprint, transaction, now + ttlNanos);
+        synchronized (insertionOrder) {
+            entries.put(idempotencyKey, entry);
+            insertionOrder.add(entry);
+            expire(now);
+        }
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    private void expire(long now) {
+        Entry oldest;
+        while ((oldest = insertionOrder.peek()) != null
+                && (oldest.expiresAt - now <= 0 || insertionOrder.size() > maxEntries)) {
+            insertionOrder.poll();
+            // Only drop the mapping if it has not been replaced by a newer entry
+            entries.remove(oldest.key, oldest);
+        }
+    }
+    
+    public static final class Entry {
+        
+        private final String key;
+        private final String fingerprint;
+        private final Transaction transaction;
+        private final long expiresAt;
+        
+        private Entry(String key, String fingerprint, Transaction transaction, long expiresAt) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.transaction = transaction;
+            this.expiresAt = expiresAt;
+        }
+        
+        public String getFingerprint() {
+            return fingerprint;
+        }
+        
+        public Transaction getTransaction() {
+            return transaction;
+        }
+    }
+}
+
+// IdempotentTransferServiceTest.java
+package com.example.banking.service;
+
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Many threads send the same transfer under one key: exactly one transaction may be recorded,
+// the balances may move once, and every caller must get that transaction back
+class IdempotentTransferServiceTest {
+    
+    private static final int THREADS = 16;
+    private static final Money OPENING_BALANCE = Money.ofMinor(10_000);
+    private static final BigDecimal AMOUNT = new BigDecimal("10.00");
+    
+    @Test
+    void concurrentDuplicatesTransferOnce() throws Exception {
+        try (InMemoryBankingContext context = new InMemoryBankingContext(Collections.emptyMap())) {
+            context.createAccounts(2, OPENING_BALANCE);
+            
+            assertTransferredOnce(context, sendConcurrently(context, "key-1"));
+        }
+    }
+    
+    // With a zero TTL no key is answered from the cache, so every retry reaches the database
+    // and only the unique index on the key stops it
+    @Test
+    void retriesAfterTheCacheExpiredFallBackToTheUniqueIndex() throws Exception {
+        try (InMemoryBankingContext context = new InMemoryBankingContext(
+                Collections.singletonMap("banking.idempotency.ttl-seconds", "0"))) {
+            context.createAccounts(2, OPENING_BALANCE);
+            IdempotentTransferService service = context.getBean(IdempotentTransferService.class);
+            
+            Transaction first = service.transferMoney("key-2", accountNumber(0), accountNumber(1), AMOUNT);
+            Transaction retried = service.transferMoney("key-2", accountNumber(0), accountNumber(1), new BigDecimal("10"));
+            assertEquals(first.getId(), retried.getId());
+            
+            List<Long> ids = sendConcurrently(context, "key-2");
+            ids.add(first.getId());
+            assertTransferredOnce(context, ids);
+            
+            assertThrows(IllegalArgumentException.class,
+                    () -> service.transferMoney("key-2", accountNumber(0), accountNumber(1), new BigDecimal("11.00")));
+        }
+    }
+    
+    // Returns the transaction id each thread got back
+    private static List<Long> sendConcurrently(InMemoryBankingContext context, String idempotencyKey) throws Exception {
+        IdempotentTransferService service = context.getBean(IdempotentTransferService.class);
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Transaction>> sends = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                sends.add(executor.submit(() -> {
+                    start.await();
+                    return service.transferMoney(idempotencyKey, accountNumber(0), accountNumber(1), AMOUNT);
+                }));
+            }
+            start.countDown();
+            
+            List<Long> ids = new ArrayList<>();
+            for (Future<Transaction> send : sends) {
+                ids.add(send.get(1, TimeUnit.MINUTES).getId());
+            }
+            return ids;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static void assertTransferredOnce(InMemoryBankingContext context, List<Long> transactionIds) {
+        BankService bankService = context.getBean(BankService.class);
+        List<Transaction> transactions = bankService.getAllTransactions();
+        assertEquals(1, transactions.size());
+        for (Long id : transactionIds) {
+            assertEquals(transactions.get(0).getId(), id);
+        }
+        assertEquals(Money.of(new BigDecimal("90.00")), bankService.getBalance(accountNumber(0)));
+        assertEquals(Money.of(new BigDecimal("110.00")), bankService.getBalance(accountNumber(1)));
+    }
+    
+    private static String accountNumber(int index) {
+        return InMemoryBankingContext.accountNumber(index);
+    }
+}
+
+// TransferPipeline.java
+package com.example.banking.service;
+
+import com.example.banking.Transaction;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Asynchronous front end for transfers. Submissions are queued, grouped into micro-batches
+// of up to batch-size transfers or window-ms of waiting, and each batch is applied through
+// BankService.transferBatch so it costs a single commit. Every transfer still gets its own
+// future. Both the submission queue and the committer pool are bounded: a full queue rejects
+// new submissions after submit-timeout-ms, and a busy pool makes the dispatcher wait.
+// Every transfer carries an idempotency key, so after a failed group commit, whose outcome
+// may be unknown, each transfer can be retried on its own without being applied twice.
+@Component
+public class TransferPipeline {
+    
+    private static final Log log = LogFactory.getLog(TransferPipeline.class);
+    
+    private final BankService bankService;
+    private final IdempotentTransferService idempotentTransfers;
+    private final String keyPrefix = UUID.randomUUID() + "-";
+    private final AtomicLong keySequence = new AtomicLong();
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final long submitTimeoutMillis;
+    private final BlockingQueue<PendingTransfer> queue;
+    private final ThreadPoolExecutor committers;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+    
+    @Autowired
+    public TransferPipeline(BankService bankService, IdempotentTransferService idempotentTransfers,
+                            @Value("${banking.pipeline.batch-size:200}") int maxBatchSize,
+                            @Value("${banking.pipeline.window-ms:5}") long windowMillis,
+                            @Value("${banking.pipeline.queue-capacity:10000}") int queueCapacity,
+                            @Value("${banking.pipeline.committers:4}") int committerThreads,
+                            @Value("${banking.pipeline.submit-timeout-ms:100}") long submitTimeoutMillis) {
+        if (maxBatchSize <= 0 || queueCapacity <= 0 || committerThreads <= 0) {
+            throw new IllegalArgumentException("Pipeline batch size, queue capacity and committers must be positive");
+        }
+        this.bankService = bankService;
+        this.idempotentTransfers = idempotentTransfers;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.submitTimeoutMillis = submitTimeoutMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        // CallerRunsPolicy runs the batch on the dispatcher when every committer is busy,
+        // which stops further draining until the database catches up
+        this.committers = new ThreadPoolExecutor(committerThreads, committerThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(committerThreads),
+                threadFactory("transfer-committer"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.dispatcher = threadFactory("transfer-dispatcher").newThread(this::dispatchLoop);
+    }
+    
+    @PostConstruct
+    public void start() {
+        dispatcher.start();
+    }
+    
+    public CompletableFuture<Transaction> submitTransfer(String sourceAccountNumber, String targetAccountNumber,
+                                                         BigDecimal amount) {
+        CompletableFuture<Transaction> future = new CompletableFuture<>();
+        if (!running) {
+            future.completeExceptionally(new RejectedExecutionException("Transfer pipeline is shut down"));
+            return future;
+        }
+        
+        PendingTransfer pending = new PendingTransfer(new TransferRequest(sourceAccountNumber,
+                targetAccountNumber, amount, keyPrefix + keySequence.incrementAndGet()), future);
+        try {
+            if (!queue.offer(pending, submitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                future.completeExceptionally(new RejectedExecutionException("Transfer queue is full"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    public int getQueuedTransfers() {
+        return queue.size();
+    }
+    
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        dispatcher.join();
+        committers.shutdown();
+        committers.awaitTermination(1, TimeUnit.MINUTES);
+        
+        // Anything that slipped in after the dispatcher's last drain
+        List<PendingTransfer> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        fail(leftovers, new RejectedExecutionException("Transfer pipeline is shut down"));
+    }
+    
+    private void dispatchLoop() {
+        while (running || !queue.isEmpty()) {
+            List<PendingTransfer> batch = new ArrayList<>(maxBatchSize);
+            try {
+                PendingTransfer first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                
+                // Fill the batch with whatever is already queued, waiting at most until the window closes
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatchSize) {
+                    if (queue.drainTo(batch, maxBatchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    PendingTransfer next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                committers.execute(() -> commit(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(batch, e);
+                return;
+            } catch (Throwable e) {
+                // Includes Errors from a batch that CallerRunsPolicy ran right here; the
+                // dispatcher must survive them, or every later submit would wait forever
+                log.error("Transfer batch failed on the dispatcher", e);
+                fail(batch, e);
+            }
+        }
+    }
+    
+    private void commit(List<PendingTransfer> batch) {
+        try {
+            commitBatch(batch);
+        } catch (Throwable e) {
+            // Nobody may be left waiting on a future, whatever went wrong; completed ones keep their result
+            fail(batch, e);
+            throw e;
+        }
+    }
+    
+    private void commitBatch(List<PendingTransfer> batch) {
+        List<TransferRequest> requests = new ArrayList<>(batch.size());
+        for (PendingTransfer pending : batch) {
+            requests.add(pending.request);
+        }
+        
+        List<TransferResult> results;
+        try {
+            results = bankService.transferBatch(requests);
+        } catch (RuntimeException e) {
+            // The shared commit failed and may or may not have been applied, e.g. when the
+            // connection dropped during COMMIT. Retry each transfer under its idempotency key:
+            // one that did commit is found by its key instead of being applied again, and a
+            // single failing transfer cannot take its neighbours down with it.
+            log.warn("Group commit of " + batch.size() + " transfers failed, retrying individually", e);
+            for (PendingTransfer pending : batch) {
+                commitSingle(pending);
+            }
+            return;
+        }
+        
+        for (int i = 0; i < batch.size(); i++) {
+            TransferResult result = results.get(i);
+            if (result.isSuccess()) {
+                batch.get(i).future.complete(result.getTransaction());
+            } else {
+                batch.get(i).future.completeExceptionally(new IllegalArgumentException(result.getErrorMessage()));
+            }
+        }
+    }
+    
+    private void commitSingle(PendingTransfer pending) {
+        try {
+            pending.future.complete(idempotentTransfers.transferMoney(
+                    pending.request.getIdempotencyKey(),
+                    pending.request.getSourceAccountNumber(),
+                    pending.request.getTargetAccountNumber(),
+                    pending.request.getAmount()));
+        } catch (RuntimeException e) {
+            pending.future.completeExceptionally(e);
+        }
+    }
+    
+    private static void fail(List<PendingTransfer> batch, Throwable cause) {
+        for (PendingTransfer pending : batch) {
+            pending.future.completeExceptionally(cause);
+        }
+    }
+    
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+    
+    private static final class PendingTransfer {
+        
+        private final TransferRequest request;
+        private final CompletableFuture<Transaction> future;
+        
+        private PendingTransfer(TransferRequest request, CompletableFuture<Transaction> future) {
+            this.request = request;
+            this.future = future;
+        }
+    }
+}
+
+// LockingMode.java
+package com.example.banking.service;
+
+// How BankService.transferMoney protects account balances against concurrent transfers.
+// Selected per deployment with the banking.locking.mode property.
+public enum LockingMode {
+    
+    // Plain reads with no locks and no retries; a concurrent update of the same account
+    // fails the transfer at commit with an optimistic locking error
+    NONE,
+    
+    // JVM stripe locks plus SELECT ... FOR UPDATE on both accounts in ascending id order
+    PESSIMISTIC,
+    
+    // Plain reads; the Account version check at commit detects a concurrent update and the
+    // whole transfer is retried with backoff by OptimisticRetryPolicy. Cheapest when
+    // transfers rarely touch the same accounts at the same time.
+    OPTIMISTIC
+}
+
+// AccountLockManager.java
+package com.example.banking.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Component
+public class AccountLockManager {
+    
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final long outOfOrderTimeoutNanos;
+    
+    @Autowired
+    public AccountLockManager(@Value("${banking.locking.stripes:1024}") int stripeCount,
+                              @Value("${banking.locking.out-of-order-timeout-ms:1000}") long outOfOrderTimeoutMillis) {
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("Stripe count must be positive");
+        }
+        if (outOfOrderTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Out-of-order lock timeout must not be negative");
+        }
+        // Round up to a power of two so the stripe index is a simple mask
+        int size = Integer.highestOneBit(stripeCount);
+        if (size < stripeCount) {
+            size <<= 1;
+        }
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+        this.outOfOrderTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(outOfOrderTimeoutMillis);
+    }
+    
+    // Locks the stripes of the given accounts and keeps them until the surrounding
+    // Spring transaction has committed or rolled back. Later calls in the same transaction,
+    // such as several transfers run in one caller transaction, may need a stripe below one
+    // already held. Waiting for it could wait on a thread that is waiting for ours, so those
+    // stripes are only tried for out-of-order-timeout-ms; if one stays busy the call throws
+    // CannotAcquireLockException, the transaction rolls back and frees its stripes, and the
+    // caller can retry it, as it would after a database deadlock.
+    public void lockForTransaction(Long... accountIds) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("Account stripe locks require an active transaction");
+        }
+        
+        int[] indexes = stripeIndexes(accountIds);
+        if (indexes.length == 0) {
+            return;
+        }
+        HeldStripes held = (HeldStripes) TransactionSynchronizationManager.getResource(this);
+        if (held != null) {
+            int[] added = held.without(indexes);
+            lockAfter(held.highest(), added);
+            held.add(added);
+            return;
+        }
+        
+        lock(indexes);
+        HeldStripes transactionStripes = new HeldStripes(indexes);
+        TransactionSynchronizationManager.bindResource(this, transactionStripes);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                TransactionSynchronizationManager.unbindResourceIfPossible(AccountLockManager.this);
+                unlock(transactionStripes.indexes);
+            }
+        });
+    }
+    
+    // Locks the stripes of the given accounts until the returned handle is closed
+    public Handle lock(Long... accountIds) {
+        int[] indexes = stripeIndexes(accountIds);
+        lock(indexes);
+        return () -> unlock(indexes);
+    }
+    
+    public int getStripeCount() {
+        return stripes.length;
+    }
+    
+    // Distinct stripe indexes in ascending order; taking stripes in this order is what
+    // keeps two threads locking the same pair of accounts from deadlocking
+    private int[] stripeIndexes(Long... accountIds) {
+        return Arrays.stream(accountIds)
+                .mapToInt(this::stripeIndex)
+                .distinct()
+                .sorted()
+                .toArray();
+    }
+    
+    private int stripeIndex(Long accountId) {
+        int hash = Long.hashCode(accountId);
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+    
+    private void lock(int[] indexes) {
+        int acquired = 0;
+        try {
+            for (int index : indexes) {
+                stripes[index].lock();
+                acquired++;
+            }
+        } finally {
+            if (acquired < indexes.length) {
+                unlock(Arrays.copyOf(indexes, acquired));
+            }
+        }
+    }
+    
+    // Takes the stripes in ascending order while the ones below the highest held stripe are
+    // taken with a timeout. Every wait that could close a cycle is bounded, so two
+    // transactions adding stripes in opposite orders cannot wait for each other forever.
+    private void lockAfter(int highestHeld, int[] indexes) {
+        int acquired = 0;
+        try {
+            for (int index : indexes) {
+                if (index < highestHeld) {
+                    if (!tryLock(index)) {
+                        throw new CannotAcquireLockException("Timed out waiting for an account lock held by"
+                                + " another transaction; retry the transaction");
+                    }
+                } else {
+                    stripes[index].lock();
+                }
+                acquired++;
+            }
+        } finally {
+            if (acquired < indexes.length) {
+                unlock(Arrays.copyOf(indexes, acquired));
+            }
+        }
+    }
+    
+    private boolean tryLock(int index) {
+        try {
+            return stripes[index].tryLock(outOfOrderTimeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CannotAcquireLockException("Interrupted while waiting for an account lock", e);
+        }
+    }
+    
+    private void unlock(int[] indexes) {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            stripes[indexes[i]].unlock();
+        }
+    }
+    
+    public interface Handle extends AutoCloseable {
+        @Override
+        void close();
+    }
+    
+    // Stripes held by one transaction, in ascending order
+    private static final class HeldStripes {
+        
+        private int[] indexes;
+        
+        private HeldStripes(int[] indexes) {
+            this.indexes = indexes;
+        }
+        
+        private int highest() {
+            return indexes[indexes.length - 1];
+        }
+        
+        private int[] without(int[] candidates) {
+            return Arrays.stream(candidates)
+                    .filter(index -> Arrays.binarySearch(indexes, index) < 0)
+                    .toArray();
+        }
+        
+        private void add(int[] added) {
+            int[] merged = Arrays.copyOf(indexes, indexes.length + added.length);
+            System.arraycopy(added, 0, merged, indexes.length, added.length);
+            Arrays.sort(merged);
+            indexes = merged;
+        }
+    }
+}
+
+// AccountLockManagerTest.java
+package com.example.banking.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.CannotAcquireLockException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Many threads lock random pairs of accounts, given in either order, each pair in a
+// transaction of its own: none may deadlock, and no two may hold an account at once
+class AccountLockManagerTest {
+    
+    private static final int ACCOUNTS = 8;
+    private static final int THREADS = 16;
+    private static final int TRANSFERS_PER_THREAD = 2_000;
+    
+    @Test
+    void pairsLockedInEitherOrderNeverDeadlockOrOverlap() throws Exception {
+        // Few stripes, so different accounts share stripes as well
+        AccountLockManager lockManager = new AccountLockManager(4, 1000);
+        long[] balances = new long[ACCOUNTS];
+        
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            SplittableRandom random = new SplittableRandom(thread);
+            workers.add(executor.submit(() -> {
+                for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                    int source = random.nextInt(ACCOUNTS);
+                    int target = random.nextInt(ACCOUNTS);
+                    inTransaction(() -> {
+                        lockManager.lockForTransaction((long) source, (long) target);
+                        // Unsynchronized read-modify-write: only correct under the stripe locks
+                        long debited = balances[source] - 1;
+                        Thread.yield();
+                        balances[source] = debited;
+                        balances[target] = balances[target] + 1;
+                    });
+                }
+            }));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES), "Lockers deadlocked");
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        
+        long total = 0;
+        for (long balance : balances) {
+            total += balance;
+        }
+        assertEquals(0, total);
+    }
+    
+    @Test
+    void locksAreReleasedWhenTheTransactionCompletes() throws Exception {
+        AccountLockManager lockManager = new AccountLockManager(16, 1000);
+        inTransaction(() -> lockManager.lockForTransaction(1L, 2L));
+        
+        // Another thread can take the same accounts right away
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> inTransaction(() -> lockManager.lockForTransaction(2L, 1L)))
+                    .get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    void laterCallsInATransactionMayAddLowerStripes() throws Exception {
+        AccountLockManager lockManager = new AccountLockManager(16, 1000);
+        inTransaction(() -> {
+            lockManager.lockForTransaction(5L, 6L);
+            lockManager.lockForTransaction(1L, 2L);
+        });
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> inTransaction(() -> lockManager.lockForTransaction(1L, 2L, 5L, 6L)))
+                    .get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    // Each transaction holds one stripe and then asks for the other's. The one going below its
+    // highest stripe gives up after the timeout, and its rollback lets the other one finish.
+    @Test
+    void transactionsLockingInOppositeOrdersTimeOutInsteadOfDeadlocking() throws Exception {
+        AccountLockManager lockManager = new AccountLockManager(16, 50);
+        CountDownLatch bothLocked = new CountDownLatch(2);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> descending = executor.submit(() -> inTransaction(() -> {
+                lockManager.lockForTransaction(3L);
+                arriveAndAwait(bothLocked);
+                lockManager.lockForTransaction(1L);
+            }));
+            Future<?> ascending = executor.submit(() -> inTransaction(() -> {
+                lockManager.lockForTransaction(1L);
+                arriveAndAwait(bothLocked);
+                lockManager.lockForTransaction(3L);
+            }));
+            
+            ExecutionException failure =
+                    assertThrows(ExecutionException.class, () -> descending.get(10, TimeUnit.SECONDS));
+            assertTrue(failure.getCause() instanceof CannotAcquireLockException, failure.getCause().toString());
+            ascending.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    void lockingOutsideATransactionIsRejected() {
+        AccountLockManager lockManager = new AccountLockManager(16, 1000);
+        assertThrows(IllegalStateException.class, () -> lockManager.lockForTransaction(1L, 2L));
+    }
+    
+    // Runs the work the way a Spring transaction would: synchronizations registered during it
+    // get afterCompletion once it has finished
+    private static void inTransaction(Runnable work) {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            work.run();
+        } finally {
+            List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+            TransactionSynchronizationManager.clearSynchronization();
+            TransactionSynchronizationUtils.invokeAfterCompletion(
+                    synchronizations, TransactionSynchronization.STATUS_COMMITTED);
+        }
+    }
+    
+    private static void arriveAndAwait(CountDownLatch latch) {
+        latch.countDown();
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS), "Other locker did not arrive");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+// OptimisticRetryPolicy.java
+package com.example.banking.service;
+
+import com.example.banking.metrics.Histogram;
+import com.example.banking.metrics.MetricsRegistry;
+import org.hibernate.StaleStateException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.OptimisticLockException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Reruns an operation that lost an optimistic version check. Each attempt must be a whole
+// transaction, since a session is unusable after a failed flush. Between attempts the
+// thread sleeps a random time up to a cap that doubles per attempt ("full jitter"), so
+// transfers that collided once do not collide again in lockstep. Attempts per call are
+// recorded as the <operation>.attempts distribution; getStats() gives the conflict rate.
+@Component
+public class OptimisticRetryPolicy {
+    
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final MetricsRegistry metrics;
+    
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    
+    @Autowired
+    public OptimisticRetryPolicy(MetricsRegistry metrics,
+                                 @Value("${banking.optimistic.max-attempts:5}") int maxAttempts,
+                                 @Value("${banking.optimistic.initial-backoff-ms:2}") long initialBackoffMillis,
+                                 @Value("${banking.optimistic.max-backoff-ms:100}") long maxBackoffMillis) {
+        if (maxAttempts <= 0 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("Invalid optimistic retry attempts or backoff");
+        }
+        this.metrics = metrics;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMillis);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+    }
+    
+    // Runs the attempt until it completes without a version conflict or maxAttempts is reached,
+    // in which case the last conflict is thrown. Any other exception is thrown immediately.
+    public <T> T execute(String operation, Supplier<T> attempt) {
+        Histogram attemptsPerCall = metrics.distribution(operation + ".attempts");
+        calls.increment();
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            attempts.increment();
+            try {
+                T result = attempt.get();
+                attemptsPerCall.record(attemptNumber);
+                return result;
+            } catch (RuntimeException e) {
+                if (!isConflict(e)) {
+                    attemptsPerCall.record(attemptNumber);
+                    throw e;
+                }
+                conflicts.increment();
+                if (attemptNumber >= maxAttempts) {
+                    exhausted.increment();
+                    attemptsPerCall.record(attemptNumber);
+                    throw e;
+                }
+                if (!backOff(attemptNumber)) {
+                    attemptsPerCall.record(attemptNumber);
+                    throw e;
+                }
+            }
+        }
+    }
+    
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+    
+    public RetryStats getStats() {
+        return new RetryStats(calls.sum(), attempts.sum(), conflicts.sum(), exhausted.sum());
+    }
+    
+    // Spring translates conflicts found at commit; ones found at an explicit flush arrive as
+    // Hibernate or JPA exceptions, possibly wrapped
+    static boolean isConflict(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof OptimisticLockingFailureException
+                    || cause instanceof StaleStateException
+                    || cause instanceof OptimisticLockException) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Returns false when interrupted, leaving the interrupt flag set
+    private boolean backOff(int attemptNumber) {
+        long cap = Math.min(maxBackoffNanos, initialBackoffNanos << Math.min(attemptNumber - 1, 30));
+        if (cap <= 0) {
+            return true;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
+
+// RetryStats.java
+package com.example.banking.service;
+
+public class RetryStats {
+    
+    private final long calls;
+    private final long attempts;
+    private final long conflicts;
+    private final long exhausted;
+    
+    public RetryStats(long calls, long attempts, long conflicts, long exhausted) {
+        this.calls = calls;
+        this.attempts = attempts;
+        this.conflicts = conflicts;
+        this.exhausted = exhausted;
+    }
+    
+    public long getCalls() {
+        return calls;
+    }
+    
+    public long getAttempts() {
+        return attempts;
+    }
+    
+    public long getConflicts() {
+        return conflicts;
+    }
+    
+    // Calls that still conflicted on their last allowed attempt
+    public long getExhausted() {
+        return exhausted;
+    }
+    
+    // Share of attempts that lost a version check
+    public double getConflictRate() {
+        return attempts == 0 ? 0.0 : (double) conflicts / attempts;
+    }
+    
+    @Override
+    public String toString() {
+        return "RetryStats{" +
+                "calls=" + calls +
+                ", attempts=" + attempts +
+                ", conflicts=" + conflicts +
+                ", exhausted=" + exhausted +
+                ", conflictRate=" + String.format("%.3f", getConflictRate()) +
+                '}';
+    }
+}
+
+// VelocityLimiter.java
+package com.example.banking.service;
+
+import com.example.banking.Money;
+import com.example.banking.MoneyType;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.type.LocalDateTimeType;
+import org.hibernate.type.StandardBasicTypes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Per-account limits on outgoing transfers: how many and how much per minute and per day.
+// Each source account has two sliding windows of time buckets kept in memory by account
+// number, so a check needs neither the database nor an account id. A transfer first adds
+// itself to its buckets and then sums the windows; if a limit is now exceeded the addition
+// is taken back and the transfer rejected. Concurrent transfers therefore can never
+// overshoot a limit together, at worst both are rejected. Buckets are immutable and swapped
+// with compare-and-set, and the windows are looked up without holding the map's lock while
+// adding, so transfers from one busy account never wait for each other. Windows the sweeper
+// drops are marked retired first; a transfer that added to them retries on fresh ones.
+//
+// Windows slide a bucket at a time: a minute of minute-buckets buckets and a day of
+// day-buckets buckets. A failed transfer releases its reservation, so only transfers that
+// went through count. On startup the windows are filled from the last day of successful
+// transactions. Limits are per node. Off unless banking.velocity.enabled=true; a limit of 0
+// or an empty amount is no limit.
+@Component
+public class VelocityLimiter {
+    
+    private static final Log log = LogFactory.getLog(VelocityLimiter.class);
+    
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    
+    // Rows fetched per round trip while warming up; MySQL needs useCursorFetch=true to honour it
+    private static final int FETCH_SIZE = 1000;
+    
+    private static final Reservation NO_RESERVATION = () -> {
+    };
+    
+    private final SessionFactory sessionFactory;
+    private final boolean enabled;
+    private final long maxTransfersPerMinute;
+    private final long maxAmountPerMinute;
+    private final long maxTransfersPerDay;
+    private final long maxAmountPerDay;
+    private final int minuteBuckets;
+    private final int dayBuckets;
+    
+    private final ConcurrentMap<String, AccountWindows> accounts = new ConcurrentHashMap<>();
+    private ScheduledExecutorService sweeper;
+    
+    @Autowired
+    public VelocityLimiter(SessionFactory sessionFactory,
+                           @Value("${banking.velocity.enabled:false}") boolean enabled,
+                           @Value("${banking.velocity.max-transfers-per-minute:0}") long maxTransfersPerMinute,
+                           @Value("${banking.velocity.max-amount-per-minute:}") String maxAmountPerMinute,
+                           @Value("${banking.velocity.max-transfers-per-day:0}") long maxTransfersPerDay,
+                           @Value("${banking.velocity.max-amount-per-day:}") String maxAmountPerDay,
+                           @Value("${banking.velocity.minute-buckets:12}") int minuteBuckets,
+                           @Value("${banking.velocity.day-buckets:96}") int dayBuckets) {
+        if (maxTransfersPerMinute < 0 || maxTransfersPerDay < 0 || minuteBuckets <= 0 || dayBuckets <= 0
+                || MINUTE_MILLIS % minuteBuckets != 0 || DAY_MILLIS % dayBuckets != 0) {
+            throw new IllegalArgumentException("Invalid velocity limits or bucket counts");
+        }
+        this.sessionFactory = sessionFactory;
+        this.enabled = enabled;
+        this.maxTransfersPerMinute = maxTransfersPerMinute == 0 ? Long.MAX_VALUE : maxTransfersPerMinute;
+        this.maxAmountPerMinute = parseAmountLimit(maxAmountPerMinute);
+        this.maxTransfersPerDay = maxTransfersPerDay == 0 ? Long.MAX_VALUE : maxTransfersPerDay;
+        this.maxAmountPerDay = parseAmountLimit(maxAmountPerDay);
+        this.minuteBuckets = minuteBuckets;
+        this.dayBuckets = dayBuckets;
+    }
+    
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        warmUp(System.currentTimeMillis());
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "velocity-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> sweep(System.currentTimeMillis()), 1, 1, TimeUnit.MINUTES);
+    }
+    
+    @PreDestroy
+    public void stop() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    // Counts the transfer against the source account's limits, or throws
+    // VelocityLimitExceededException without counting it. Release the reservation if the
+    // transfer does not go through.
+    public Reservation reserve(String sourceAccountNumber, Money amount) {
+        if (!enabled || sourceAccountNumber == null || amount == null || amount.signum() <= 0) {
+            return NO_RESERVATION;
+        }
+        long now = System.currentTimeMillis();
+        long minor = amount.getMinorUnits();
+        long[] bucketIndexes = new long[2];
+        AccountWindows windows = add(sourceAccountNumber, now, minor, bucketIndexes);
+        
+        long minuteBucket = bucketIndexes[0];
+        long dayBucket = bucketIndexes[1];
+        Reservation reservation = () -> {
+            windows.minute.remove(minuteBucket, 1, minor);
+            windows.day.remove(dayBucket, 1, minor);
+        };
+        
+        String exceeded = null;
+        if (windows.minute.count(now) > maxTransfersPerMinute) {
+            exceeded = maxTransfersPerMinute + " transfers per minute";
+        } else if (windows.minute.amount(now) > maxAmountPerMinute) {
+            exceeded = Money.ofMinor(maxAmountPerMinute) + " per minute";
+        } else if (windows.day.count(now) > maxTransfersPerDay) {
+            exceeded = maxTransfersPerDay + " transfers per day";
+        } else if (windows.day.amount(now) > maxAmountPerDay) {
+            exceeded = Money.ofMinor(maxAmountPerDay) + " per day";
+        }
+        if (exceeded != null) {
+            reservation.release();
+            throw new VelocityLimitExceededException(
+                    "Velocity limit of " + exceeded + " exceeded for account " + sourceAccountNumber);
+        }
+        return reservation;
+    }
+    
+    // Adds one transfer to the account's windows and returns them, with the minute and day
+    // bucket indexes it went into in bucketIndexes. Only creating the windows takes the map's
+    // lock for the account; the additions themselves are compare-and-set on the buckets.
+    private AccountWindows add(String accountNumber, long now, long minor, long[] bucketIndexes) {
+        while (true) {
+            AccountWindows windows = accounts.get(accountNumber);
+            if (windows == null) {
+                windows = accounts.computeIfAbsent(accountNumber, number -> newWindows());
+            }
+            bucketIndexes[0] = windows.minute.add(now, 1, minor);
+            bucketIndexes[1] = windows.day.add(now, 1, minor);
+            if (!windows.retired) {
+                return windows;
+            }
+            // The sweeper is dropping these windows; take the transfer back out and retry on
+            // the windows that replace them
+            windows.minute.remove(bucketIndexes[0], 1, minor);
+            windows.day.remove(bucketIndexes[1], 1, minor);
+        }
+    }
+    
+    // Number of accounts with windows in memory
+    public int getTrackedAccounts() {
+        return accounts.size();
+    }
+    
+    // Fills the windows from the last day of successful transfers
+    void warmUp(long now) {
+        LocalDateTime since = LocalDateTime.ofInstant(Instant.ofEpochMilli(now - DAY_MILLIS), ZoneId.systemDefault());
+        long warmed = 0;
+        try (StatelessSession session = sessionFactory.openStatelessSession();
+             ScrollableResults rows = session.createNativeQuery(
+                     "SELECT a.account_number, t.transaction_date, t.amount FROM transactions t"
+                             + " JOIN accounts a ON a.id = t.source_account_id"
+                             + " WHERE t.transaction_date >= :since AND t.status = 'SUCCESS'")
+                     .addScalar("account_number", StandardBasicTypes.STRING)
+                     .addScalar("transaction_date", LocalDateTimeType.INSTANCE)
+                     .addScalar("amount", MoneyType.INSTANCE)
+                     .setParameter("since", since)
+                     .setFetchSize(FETCH_SIZE)
+                     .setReadOnly(true)
+                     .scroll(ScrollMode.FORWARD_ONLY)) {
+            while (rows.next()) {
+                Object[] row = rows.get();
+                if (row[2] == null) {
+                    continue;
+                }
+                long at = ((LocalDateTime) row[1]).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                long minor = ((Money) row[2]).getMinorUnits();
+                AccountWindows windows = accounts.computeIfAbsent((String) row[0], number -> newWindows());
+                if (at > now - MINUTE_MILLIS) {
+                    windows.minute.add(at, 1, minor);
+                }
+                windows.day.add(at, 1, minor);
+                warmed++;
+            }
+        }
+        log.info("Velocity limits warmed up from " + warmed + " transfers of " + accounts.size() + " accounts");
+    }
+    
+    // Drops accounts whose day window is empty. The windows are marked retired before
+    // idleness is checked again, and reserve adds before it reads the mark, so either the
+    // second check sees the transfer and the windows stay, or the transfer sees the mark and
+    // takes itself back out; no reservation is ever lost with dropped windows.
+    void sweep(long now) {
+        for (Map.Entry<String, AccountWindows> entry : accounts.entrySet()) {
+            AccountWindows windows = entry.getValue();
+            if (!windows.day.isIdle(now)) {
+                continue;
+            }
+            windows.retired = true;
+            if (windows.day.isIdle(now)) {
+                accounts.remove(entry.getKey(), windows);
+            } else {
+                windows.retired = false;
+            }
+        }
+    }
+    
+    private AccountWindows newWindows() {
+        return new AccountWindows(
+                new SlidingWindow(MINUTE_MILLIS / minuteBuckets, minuteBuckets),
+                new SlidingWindow(DAY_MILLIS / dayBuckets, dayBuckets));
+    }
+    
+    private static long parseAmountLimit(String amount) {
+        if (amount == null || amount.trim().isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        long minor = Money.of(new BigDecimal(amount.trim())).getMinorUnits();
+        return minor == 0 ? Long.MAX_VALUE : minor;
+    }
+    
+    public interface Reservation {
+        
+        // Takes the transfer back out of the windows; call at most once
+        void release();
+    }
+    
+    private static final class AccountWindows {
+        
+        private final SlidingWindow minute;
+        private final SlidingWindow day;
+        // Set by the sweeper while it drops the windows; see sweep
+        private volatile boolean retired;
+        
+        private AccountWindows(SlidingWindow minute, SlidingWindow day) {
+            this.minute = minute;
+            this.day = day;
+        }
+    }
+    
+    // Ring of buckets indexed by time / bucketMillis. A slot holding an older bucket index is
+    // expired and is replaced, never cleared, so a stale bucket can't be counted or reset twice.
+    private static final class SlidingWindow {
+        
+        private final long bucketMillis;
+        private final AtomicReferenceArray<Bucket> buckets;
+        
+        private SlidingWindow(long bucketMillis, int bucketCount) {
+            this.bucketMillis = bucketMillis;
+            this.buckets = new AtomicReferenceArray<>(bucketCount);
+        }
+        
+        // Returns the bucket index the values went into
+        long add(long now, long count, long amount) {
+            long index = now / bucketMillis;
+            int slot = (int) (index % buckets.length());
+            while (true) {
+                Bucket current = buckets.get(slot);
+                Bucket updated;
+                if (current != null && current.index == index) {
+                    updated = new Bucket(index, current.count + count, current.amount + amount);
+                } else if (current == null || current.index < index) {
+                    updated = new Bucket(index, count, amount);
+                } else {
+                    // Only while warming up from rows older than the slot's bucket; too old to matter
+                    return index;
+                }
+                if (buckets.compareAndSet(slot, current, updated)) {
+                    return index;
+                }
+            }
+        }
+        
+        // Takes values back out of a bucket unless it has already expired
+        void remove(long index, long count, long amount) {
+            int slot = (int) (index % buckets.length());
+            while (true) {
+                Bucket current = buckets.get(slot);
+                if (current == null || current.index != index) {
+                    return;
+                }
+                if (buckets.compareAndSet(slot, current,
+                        new Bucket(index, current.count - count, current.amount - amount))) {
+                    return;
+                }
+            }
+        }
+        
+        long count(long now) {
+            long oldest = now / bucketMillis - buckets.length();
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket bucket = buckets.get(i);
+                if (bucket != null && bucket.index > oldest) {
+                    total += bucket.count;
+                }
+            }
+            return total;
+        }
+        
+        long amount(long now) {
+            long oldest = now / bucketMillis - buckets.length();
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                Bucket bucket = buckets.get(i);
+                if (bucket != null && bucket.index > oldest) {
+                    total += bucket.amount;
+                }
+            }
+            return total;
+        }
+        
+        boolean isIdle(long now) {
+            return count(now) == 0;
+        }
+    }
+    
+    private static final class Bucket {
+        
+        private final long index;
+        private final long count;
+        private final long amount;
+        
+        private Bucket(long index, long count, long amount) {
+            this.index = index;
+            this.count = count;
+            this.amount = amount;
+        }
+    }
+}
+
+// VelocityLimiterTest.java
+package com.example.banking.service;
+
+import com.example.banking.Money;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VelocityLimiterTest {
+    
+    private static final int THREADS = 8;
+    private static final int RESERVATIONS_PER_THREAD = 20_000;
+    private static final String ACCOUNT = "ACC0000000";
+    
+    // Threads reserve and release on one account while the sweeper keeps dropping its windows
+    // whenever they are idle. A limit of one transfer per thread can only be hit early if a
+    // retried addition was counted twice, and is only missed at the end if a held reservation
+    // was lost with windows the sweeper dropped.
+    @Test
+    void reservationsSurviveConcurrentSweeps() throws Exception {
+        VelocityLimiter limiter = new VelocityLimiter(null, true, THREADS, "", 0, "", 12, 96);
+        Money amount = Money.ofMinor(100);
+        AtomicBoolean done = new AtomicBoolean();
+        CyclicBarrier allHolding = new CyclicBarrier(THREADS + 1);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+        List<Future<?>> workers = new ArrayList<>();
+        Future<?> sweeper = executor.submit(() -> {
+            while (!done.get()) {
+                limiter.sweep(System.currentTimeMillis());
+            }
+        });
+        for (int thread = 0; thread < THREADS; thread++) {
+            workers.add(executor.submit(() -> {
+                for (int i = 0; i < RESERVATIONS_PER_THREAD; i++) {
+                    limiter.reserve(ACCOUNT, amount).release();
+                }
+                limiter.reserve(ACCOUNT, amount);
+                allHolding.await(1, TimeUnit.MINUTES);
+                return null;
+            }));
+        }
+        try {
+            allHolding.await(1, TimeUnit.MINUTES);
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            done.set(true);
+            sweeper.get(1, TimeUnit.MINUTES);
+            executor.shutdown();
+        }
+        
+        limiter.sweep(System.currentTimeMillis());
+        assertEquals(1, limiter.getTrackedAccounts());
+        assertThrows(VelocityLimitExceededException.class, () -> limiter.reserve(ACCOUNT, amount));
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    }
+}
+
+// VelocityLimitExceededException.java
+package com.example.banking.service;
+
+// A transfer was rejected by VelocityLimiter. Like other rejected transfers it is an
+// IllegalArgumentException, so batch and pipeline callers report it as a failed transfer.
+public class VelocityLimitExceededException extends IllegalArgumentException {
+    
+    public VelocityLimitExceededException(String message) {
+        super(message);
+    }
+}
+
+// LongLongMap.java
+package com.example.banking.ledger;
+
+import java.util.Arrays;
+
+// Open-addressing map from long to long without boxing. Key 0 marks an empty slot, which is
+// safe for account ids since they start at 1. Not thread-safe.
+public class LongLongMap {
+    
+    private static final long EMPTY = 0L;
+    
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int resizeAt;
+    private int size;
+    
+    public LongLongMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+    
+    public boolean containsKey(long key) {
+        return keys[indexOf(key)] != EMPTY;
+    }
+    
+    public long get(long key, long missingValue) {
+        int index = indexOf(key);
+        return keys[index] == EMPTY ? missingValue : values[index];
+    }
+    
+    public void put(long key, long value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+        int index = indexOf(key);
+        if (keys[index] == EMPTY) {
+            keys[index] = key;
+            if (++size > resizeAt) {
+                values[index] = value;
+                rehash(keys.length << 1);
+                return;
+            }
+        }
+        values[index] = value;
+    }
+    
+    // Backward-shift deletion: later keys of the probe chain move into the hole, so lookups
+    // never need tombstones
+    public void remove(long key) {
+        int hole = indexOf(key);
+        if (keys[hole] == EMPTY) {
+            return;
+        }
+        size--;
+        for (int index = (hole + 1) & mask; keys[index] != EMPTY; index = (index + 1) & mask) {
+            // The key can fill the hole unless its home slot lies between the hole and here
+            if (((index - home(keys[index])) & mask) >= ((index - hole) & mask)) {
+                keys[hole] = keys[index];
+                values[hole] = values[index];
+                hole = index;
+            }
+        }
+        keys[hole] = EMPTY;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+    
+    public void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+    
+    // Linear probing: the slot holding the key, or the empty slot where it belongs
+    private int indexOf(long key) {
+        int index = home(key);
+        while (keys[index] != EMPTY && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+    
+    private int home(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+    
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int index = indexOf(oldKeys[i]);
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+    
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * 0.6);
+    }
+    
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long key, long value);
+    }
+}
+
+// LedgerJournal.java
+package com.example.banking.ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Append-only journal of fixed-size transfer records in memory-mapped segment files.
+// Each segment is named after the sequence of its first record and holds a fixed number
+// of 48-byte records:
+//
+//   0  long sequence      8  long sourceId     16  long targetId
+//  24  long amountCents  32  long timestamp    40  int checksum   44  int reserved
+//
+// A record is valid when its sequence is the expected next one and its checksum matches,
+// so a torn write at the tail is detected on recovery and simply overwritten.
+// append() must be called by one thread at a time; sync() and force() may be called from
+// any thread, and replay() may run concurrently for sequences the writer has already published.
+public class LedgerJournal implements Closeable {
+    
+    public static final int RECORD_SIZE = 48;
+    
+    private static final String SEGMENT_PREFIX = "ledger-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    
+    private final Path directory;
+    private final int recordsPerSegment;
+    private final int syncEvery;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Object syncLock = new Object();
+    private volatile Segment active;
+    private volatile long lastSequence;
+    private volatile long syncedSequence;
+    
+    // syncEvery forces the mapped segment to disk once that many appended records are unforced
+    // (see sync); 0 leaves flushing to the OS page cache, which survives a process crash but
+    // not a machine crash
+    public LedgerJournal(Path directory, int recordsPerSegment, int syncEvery) throws IOException {
+        if (recordsPerSegment <= 0 || syncEvery < 0) {
+            throw new IllegalArgumentException("Invalid journal segment size or sync interval");
+        }
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        this.syncEvery = syncEvery;
+        Files.createDirectories(directory);
+        recover();
+    }
+    
+    public long getLastSequence() {
+        return lastSequence;
+    }
+    
+    public long append(long sourceId, long targetId, long amountCents, long timestamp) throws IOException {
+        if (active.count == active.capacity) {
+            roll();
+        }
+        
+        long sequence = lastSequence + 1;
+        MappedByteBuffer buffer = active.buffer;
+        int offset = active.count * RECORD_SIZE;
+        buffer.putLong(offset, sequence);
+        buffer.putLong(offset + 8, sourceId);
+        buffer.putLong(offset + 16, targetId);
+        buffer.putLong(offset + 24, amountCents);
+        buffer.putLong(offset + 32, timestamp);
+        buffer.putInt(offset + 40, checksum(sequence, sourceId, targetId, amountCents, timestamp));
+        buffer.putInt(offset + 44, 0);
+        active.count++;
+        lastSequence = sequence;
+        return sequence;
+    }
+    
+    // Called after append() for the record it returned, typically once the appending thread no
+    // longer holds its own lock: forces the journal when syncEvery records are unforced, so with
+    // syncEvery=1 the record is durable when this returns. A force covers every record appended
+    // so far, and callers that arrive while one is running usually find their record covered
+    // by it, so concurrent writers share forces instead of paying for one each.
+    public void sync(long sequence) {
+        if (syncEvery == 0 || sequence - syncedSequence < syncEvery) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (sequence - syncedSequence >= syncEvery) {
+                forceLocked();
+            }
+        }
+    }
+    
+    // Makes every record appended so far durable, whatever syncEvery is
+    public void force() {
+        synchronized (syncLock) {
+            forceLocked();
+        }
+    }
+    
+    // Caller holds syncLock. A roll forces the segment it leaves before switching, so forcing
+    // the active segment read after lastSequence covers every record up to that sequence.
+    private void forceLocked() {
+        long upTo = lastSequence;
+        if (upTo > syncedSequence) {
+            active.buffer.force();
+            syncedSequence = upTo;
+        }
+    }
+    
+    // Visits every record with afterSequence < sequence <= upToSequence in order
+    public void replay(long afterSequence, long upToSequence, RecordVisitor visitor) {
+        for (Segment segment : segments) {
+            long first = Math.max(afterSequence + 1, segment.firstSequence);
+            long last = Math.min(upToSequence, segment.firstSequence + segment.capacity - 1);
+            for (long sequence = first; sequence <= last; sequence++) {
+                int offset = (int) (sequence - segment.firstSequence) * RECORD_SIZE;
+                MappedByteBuffer buffer = segment.buffer;
+                visitor.visit(sequence,
+                        buffer.getLong(offset + 8),
+                        buffer.getLong(offset + 16),
+                        buffer.getLong(offset + 24),
+                        buffer.getLong(offset + 32));
+            }
+        }
+    }
+    
+    // Drops closed segments whose records are all at or below the given sequence
+    public void deleteSegmentsUpTo(long sequence) throws IOException {
+        for (Segment segment : segments) {
+            if (segment != active && segment.firstSequence + segment.count - 1 <= sequence) {
+                segments.remove(segment);
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (active != null) {
+            active.buffer.force();
+        }
+        for (Segment segment : segments) {
+            segment.channel.close();
+        }
+        segments.clear();
+    }
+    
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        // Zero-padded sequence numbers make lexical order the same as sequence order
+        paths.sort(null);
+        
+        for (int i = 0; i < paths.size(); i++) {
+            Path path = paths.get(i);
+            String name = path.getFileName().toString();
+            long firstSequence = Long.parseLong(
+                    name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            int capacity = (int) (Files.size(path) / RECORD_SIZE);
+            Segment segment = open(path, firstSequence, capacity);
+            segment.count = countValidRecords(segment);
+            
+            boolean last = i == paths.size() - 1;
+            if (!last && segment.count < segment.capacity) {
+                throw new IllegalStateException("Ledger journal segment is corrupt: " + path);
+            }
+            if (!segments.isEmpty() && firstSequence != lastSequence + 1) {
+                throw new IllegalStateException("Ledger journal has a gap before " + path);
+            }
+            segments.add(segment);
+            if (segment.count > 0) {
+                lastSequence = firstSequence + segment.count - 1;
+            } else {
+                lastSequence = firstSequence - 1;
+            }
+            active = segment;
+        }
+        
+        if (active == null) {
+            active = create(1);
+        }
+        syncedSequence = lastSequence;
+    }
+    
+    private int countValidRecords(Segment segment) {
+        int count = 0;
+        while (count < segment.capacity) {
+            int offset = count * RECORD_SIZE;
+            MappedByteBuffer buffer = segment.buffer;
+            long sequence = buffer.getLong(offset);
+            if (sequence != segment.firstSequence + count) {
+                break;
+            }
+            int expected = checksum(sequence,
+                    buffer.getLong(offset + 8),
+                    buffer.getLong(offset + 16),
+                    buffer.getLong(offset + 24),
+                    buffer.getLong(offset + 32));
+            if (buffer.getInt(offset + 40) != expected) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+    
+    private void roll() throws IOException {
+        active.buffer.force();
+        active = create(lastSequence + 1);
+    }
+    
+    private Segment create(long firstSequence) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        Segment segment = open(path, firstSequence, recordsPerSegment);
+        segments.add(segment);
+        return segment;
+    }
+    
+    private static Segment open(Path path, long firstSequence, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+        return new Segment(path, firstSequence, capacity, channel, buffer);
+    }
+    
+    private static int checksum(long sequence, long sourceId, long targetId, long amountCents, long timestamp) {
+        long hash = sequence;
+        hash = hash * 0x9E3779B97F4A7C15L + sourceId;
+        hash = hash * 0x9E3779B97F4A7C15L + targetId;
+        hash = hash * 0x9E3779B97F4A7C15L + amountCents;
+        hash = hash * 0x9E3779B97F4A7C15L + timestamp;
+        hash ^= hash >>> 29;
+        return (int) (hash ^ (hash >>> 32));
+    }
+    
+    @FunctionalInterface
+    public interface RecordVisitor {
+        void visit(long sequence, long sourceId, long targetId, long amountCents, long timestamp);
+    }
+    
+    private static final class Segment {
+        
+        private final Path path;
+        private final long firstSequence;
+        private final int capacity;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private volatile int count;
+        
+        private Segment(Path path, long firstSequence, int capacity, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.firstSequence = firstSequence;
+            this.capacity = capacity;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
+
+// LedgerEngine.java
+package com.example.banking.ledger;
+
+import com.example.banking.Account;
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.outbox.TransactionOutbox;
+import com.example.banking.repository.AccountNumberCache;
+import com.example.banking.repository.AccountRepository;
+import com.example.banking.repository.LedgerSnapshotRepository;
+import com.example.banking.repository.TransactionRepository;
+import com.example.banking.service.HotAccountService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Alternative to the relational transfer path. Transfers are appended to a memory-mapped
+// LedgerJournal and applied to an in-memory map of balances in cents; the accounts and
+// transactions tables become a projection written by periodic snapshots. On restart the
+// engine replays every journal record after the last snapshot on top of the projected
+// balances. Off unless banking.ledger.enabled=true.
+//
+// While enabled the engine is the only writer of balances: BankService refuses transfers, so
+// the balances checked here never lag a transfer made elsewhere. A snapshot adds the net
+// movement of each account to its row rather than overwriting the balance, which keeps the
+// split of a sharded account between its row and its slots intact. Journal appends happen
+// under one lock, but the force that makes them durable runs outside it and is shared by the
+// transfers that wait for it (see LedgerJournal.sync).
+@Component
+public class LedgerEngine {
+    
+    private static final Log log = LogFactory.getLog(LedgerEngine.class);
+    
+    private final AccountRepository accountRepository;
+    private final AccountNumberCache accountNumberCache;
+    private final TransactionRepository transactionRepository;
+    private final LedgerSnapshotRepository snapshotRepository;
+    private final TransactionOutbox outbox;
+    private final HotAccountService hotAccounts;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final String directory;
+    private final int segmentRecords;
+    private final int syncEvery;
+    private final long snapshotIntervalMillis;
+    private final int batchSize;
+    
+    private final Object lock = new Object();
+    // Held for a whole snapshot so two callers never project the same records
+    private final Object snapshotLock = new Object();
+    private final LongLongMap balances = new LongLongMap(1 << 16);
+    // Net movement per account in cents since the last snapshot
+    private final LongLongMap pending = new LongLongMap(1 << 12);
+    // Bumped under lock whenever accounts leave balances; a balance loaded before the bump
+    // may be older than the snapshot that caused it
+    private volatile long evictions;
+    private LedgerJournal journal;
+    private volatile long snapshotSequence;
+    private ScheduledExecutorService snapshotter;
+    
+    @Autowired
+    public LedgerEngine(AccountRepository accountRepository, AccountNumberCache accountNumberCache,
+                        TransactionRepository transactionRepository, LedgerSnapshotRepository snapshotRepository, TransactionOutbox outbox,
+                        HotAccountService hotAccounts, PlatformTransactionManager transactionManager,
+                        @Value("${banking.ledger.enabled:false}") boolean enabled,
+                        @Value("${banking.ledger.directory:ledger}") String directory,
+                        @Value("${banking.ledger.segment-records:1048576}") int segmentRecords,
+                        @Value("${banking.ledger.sync-every:1}") int syncEvery,
+                        @Value("${banking.ledger.snapshot-interval-ms:1000}") long snapshotIntervalMillis,
+                        @Value("${hibernate.jdbc.batch_size:50}") int batchSize) {
+        this.accountRepository = accountRepository;
+        this.accountNumberCache = accountNumberCache;
+        this.transactionRepository = transactionRepository;
+        this.snapshotRepository = snapshotRepository;
+        this.outbox = outbox;
+        this.hotAccounts = hotAccounts;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.syncEvery = syncEvery;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.batchSize = batchSize;
+    }
+    
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        journal = new LedgerJournal(Paths.get(directory), segmentRecords, syncEvery);
+        snapshotSequence = transactionTemplate.execute(status -> snapshotRepository.findLastSequence());
+        if (journal.getLastSequence() < snapshotSequence) {
+            // The active segment is never deleted, so the journal can only be behind the last
+            // snapshot if its files were lost; numbering would restart below the marker and the
+            // next snapshot would move it backwards
+            long journalSequence = journal.getLastSequence();
+            journal.close();
+            throw new IllegalStateException("Ledger journal in " + directory + " ends at sequence "
+                    + journalSequence + " but the last snapshot is at " + snapshotSequence);
+        }
+        
+        // Bring balances up to the journal tail; base balances come from the last snapshot
+        long[] replayed = {0};
+        synchronized (lock) {
+            journal.replay(snapshotSequence, journal.getLastSequence(), (sequence, sourceId, targetId, amount, timestamp) -> {
+                apply(sourceId, targetId, amount, balanceOrLoad(sourceId), balanceOrLoad(targetId));
+                replayed[0]++;
+            });
+        }
+        log.info("Ledger recovered at sequence " + journal.getLastSequence()
+                + " after replaying " + replayed[0] + " records");
+        
+        snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ledger-snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(this::snapshotQuietly,
+                snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    // Returns the journal sequence of the transfer
+    public long transfer(String sourceAccountNumber, String targetAccountNumber, BigDecimal amount) {
+        Long sourceId = resolveId(sourceAccountNumber);
+        Long targetId = resolveId(targetAccountNumber);
+        if (sourceId == null || targetId == null) {
+            throw new IllegalArgumentException("Source or target account not found");
+        }
+        if (amount == null || amount.signum() <= 0) {
+            throw new IllegalArgumentException("Transfer amount must be positive");
+        }
+        return transfer(sourceId, targetId, Money.of(amount).getMinorUnits());
+    }
+    
+    public long transfer(long sourceId, long targetId, long amountCents) {
+        requireEnabled();
+        if (amountCents <= 0) {
+            throw new IllegalArgumentException("Transfer amount must be positive");
+        }
+        while (true) {
+            // First touch of an account reads its projected balance outside the lock; the read
+            // is repeated if a snapshot evicted accounts meanwhile
+            long generation = evictions;
+            long sourceBalance = balanceOrLoad(sourceId);
+            long targetBalance = balanceOrLoad(targetId);
+            
+            long sequence;
+            synchronized (lock) {
+                if (generation != evictions) {
+                    continue;
+                }
+                sequence = transferLocked(sourceId, targetId, amountCents, sourceBalance, targetBalance);
+            }
+            journal.sync(sequence);
+            return sequence;
+        }
+    }
+    
+    public Money getBalance(String accountNumber) {
+        Long id = resolveId(accountNumber);
+        if (id == null) {
+            throw new IllegalArgumentException("Account not found: " + accountNumber);
+        }
+        return Money.ofMinor(balanceOrLoad(id));
+    }
+    
+    public long getSnapshotSequence() {
+        return snapshotSequence;
+    }
+    
+    // Projects every record since the previous snapshot into the transactions table, adds the
+    // net movement of each account to its balance, and moves the snapshot marker, all in one
+    // database transaction. Journal segments that are fully projected are deleted afterwards.
+    public void snapshot() throws IOException {
+        requireEnabled();
+        synchronized (snapshotLock) {
+            long fromSequence = snapshotSequence;
+            long upToSequence;
+            long[] ids;
+            long[] deltas;
+            int[] count = {0};
+            synchronized (lock) {
+                upToSequence = journal.getLastSequence();
+                if (upToSequence == fromSequence) {
+                    return;
+                }
+                journal.force();
+                ids = new long[pending.size()];
+                deltas = new long[pending.size()];
+                pending.forEach((id, ignored) -> ids[count[0]++] = id);
+                // Rows are updated in ascending id order, the order BankService locks them in
+                Arrays.sort(ids);
+                for (int i = 0; i < ids.length; i++) {
+                    deltas[i] = pending.get(ids[i], 0L);
+                }
+                pending.clear();
+            }
+            
+            try {
+                transactionTemplate.execute(status -> {
+                    List<Transaction> projected = new ArrayList<>();
+                    journal.replay(fromSequence, upToSequence, (sequence, sourceId, targetId, amount, timestamp) -> {
+                        Transaction transaction = new Transaction(sourceId, targetId, Money.ofMinor(amount));
+                        transaction.setTransactionDate(
+                                LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault()));
+                        transaction.setStatus("SUCCESS");
+                        projected.add(transaction);
+                    });
+                    transactionRepository.saveAll(projected, batchSize);
+                    outbox.recordAll(projected);
+                    snapshotRepository.addToBalances(ids, deltas, count[0], batchSize);
+                    snapshotRepository.saveLastSequence(upToSequence);
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                // Put the movement back so the next snapshot writes it
+                synchronized (lock) {
+                    for (int i = 0; i < count[0]; i++) {
+                        pending.put(ids[i], pending.get(ids[i], 0L) + deltas[i]);
+                    }
+                }
+                throw e;
+            }
+            
+            snapshotSequence = upToSequence;
+            evictIdle(ids, count[0]);
+            journal.deleteSegmentsUpTo(upToSequence);
+        }
+    }
+    
+    @PreDestroy
+    public void stop() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+        journal.close();
+    }
+    
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            log.error("Ledger snapshot failed; it will be retried", e);
+        }
+    }
+    
+    // Caller holds lock; balances passed in are used for accounts not loaded yet
+    private long transferLocked(long sourceId, long targetId, long amountCents,
+                                long sourceBalance, long targetBalance) {
+        sourceBalance = balances.get(sourceId, sourceBalance);
+        targetBalance = balances.get(targetId, targetBalance);
+        if (sourceBalance < amountCents) {
+            throw new IllegalArgumentException("Insufficient funds in source account");
+        }
+        long sequence;
+        try {
+            sequence = journal.append(sourceId, targetId, amountCents, System.currentTimeMillis());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append to ledger journal", e);
+        }
+        apply(sourceId, targetId, amountCents, sourceBalance, targetBalance);
+        return sequence;
+    }
+    
+    private void apply(long sourceId, long targetId, long amountCents, long sourceBalance, long targetBalance) {
+        balances.put(sourceId, Math.subtractExact(sourceBalance, amountCents));
+        // Re-read so a transfer from an account to itself nets out to zero
+        balances.put(targetId, Math.addExact(balances.get(targetId, targetBalance), amountCents));
+        pending.put(sourceId, Math.subtractExact(pending.get(sourceId, 0L), amountCents));
+        pending.put(targetId, Math.addExact(pending.get(targetId, 0L), amountCents));
+    }
+    
+    // Drops the just-projected accounts that have not moved since, so idle accounts do not
+    // stay in memory; their next use reloads the projected balance
+    private void evictIdle(long[] ids, int count) {
+        synchronized (lock) {
+            boolean evicted = false;
+            for (int i = 0; i < count; i++) {
+                if (!pending.containsKey(ids[i])) {
+                    balances.remove(ids[i]);
+                    evicted = true;
+                }
+            }
+            if (evicted) {
+                evictions++;
+            }
+        }
+    }
+    
+    private long balanceOrLoad(long accountId) {
+        synchronized (lock) {
+            if (balances.containsKey(accountId)) {
+                return balances.get(accountId, 0L);
+            }
+        }
+        return loadedBalance(accountId);
+    }
+    
+    // Includes the slots of a sharded account, whose row only holds the remainder
+    private long loadedBalance(long accountId) {
+        Money balance = transactionTemplate.execute(status -> {
+            Account account = accountRepository.findById(accountId);
+            return account == null ? null : hotAccounts.getBalance(account);
+        });
+        if (balance == null) {
+            throw new IllegalArgumentException("Account not found: " + accountId);
+        }
+        return balance.getMinorUnits();
+    }
+    
+    // Ids of known accounts come from the cache without a transaction; only a miss costs one
+    private Long resolveId(String accountNumber) {
+        Long cached = accountNumberCache.get(accountNumber);
+        if (cached != null) {
+            return cached;
+        }
+        return transactionTemplate.execute(status -> accountRepository.findIdByAccountNumber(accountNumber));
+    }
+    
+    private void requireEnabled() {
+        if (!enabled) {
+            throw new IllegalStateException("Ledger engine is disabled (banking.ledger.enabled=false)");
+        }
+    }
+}
+
+// LedgerEngineTest.java
+package com.example.banking.ledger;
+
+import com.example.banking.Money;
+import com.example.banking.service.BankService;
+import com.example.banking.service.TransferRequest;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Runs the engine against the production wiring on H2, with its journal in a temporary directory
+class LedgerEngineTest {
+    
+    private static final Money OPENING_BALANCE = Money.ofMinor(10_000);
+    
+    @TempDir
+    Path directory;
+    
+    // Copies the journal and the database while two transfers are not projected yet, which is
+    // what a crash leaves behind, and starts a second engine from the copies: it must replay
+    // those transfers on top of the projected balances and project them exactly once
+    @Test
+    void restartReplaysTheJournalAfterTheLastSnapshot() throws Exception {
+        Path journal = directory.resolve("journal");
+        Path crashedJournal = directory.resolve("crashed-journal");
+        Path crashedDatabase = directory.resolve("crashed-database.sql");
+        String restartedUrl = InMemoryBankingContext.databaseUrl("ledger-restart-" + System.nanoTime());
+        
+        try (InMemoryBankingContext context = new InMemoryBankingContext(ledgerProperties(journal))) {
+            context.createAccounts(3, OPENING_BALANCE);
+            LedgerEngine engine = context.getBean(LedgerEngine.class);
+            engine.transfer(accountNumber(0), accountNumber(1), new BigDecimal("10.00"));
+            engine.snapshot();
+            engine.transfer(accountNumber(0), accountNumber(1), new BigDecimal("5.00"));
+            engine.transfer(accountNumber(1), accountNumber(2), new BigDecimal("2.00"));
+            
+            copyDirectory(journal, crashedJournal);
+            try (Connection connection = context.getBean(DataSource.class).getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.execute("SCRIPT TO '" + crashedDatabase + "'");
+            }
+        }
+        try (Connection connection = DriverManager.getConnection(restartedUrl, "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.execute("RUNSCRIPT FROM '" + crashedDatabase + "'");
+        }
+        
+        Map<String, String> properties = ledgerProperties(crashedJournal);
+        properties.put("jdbc.url", restartedUrl);
+        properties.put("hibernate.hbm2ddl.auto", "none");
+        try (InMemoryBankingContext context = new InMemoryBankingContext(properties)) {
+            LedgerEngine engine = context.getBean(LedgerEngine.class);
+            BankService bankService = context.getBean(BankService.class);
+            assertEquals(1, engine.getSnapshotSequence());
+            // The row only has the snapshotted transfer; the engine has all three
+            assertEquals(Money.of(new BigDecimal("90.00")), bankService.getBalance(accountNumber(0)));
+            assertEquals(Money.of(new BigDecimal("85.00")), engine.getBalance(accountNumber(0)));
+            assertEquals(Money.of(new BigDecimal("103.00")), engine.getBalance(accountNumber(1)));
+            assertEquals(Money.of(new BigDecimal("102.00")), engine.getBalance(accountNumber(2)));
+            
+            engine.snapshot();
+            assertEquals(3, engine.getSnapshotSequence());
+            assertEquals(Money.of(new BigDecimal("85.00")), bankService.getBalance(accountNumber(0)));
+            assertEquals(Money.of(new BigDecimal("103.00")), bankService.getBalance(accountNumber(1)));
+            assertEquals(Money.of(new BigDecimal("102.00")), bankService.getBalance(accountNumber(2)));
+            assertEquals(3, bankService.getAllTransactions().size());
+        }
+    }
+    
+    // The engine checks funds against the balances it holds; money moved by BankService would
+    // not be among them, so BankService must refuse to move any while the engine is enabled
+    @Test
+    void bankServiceRefusesTransfersWhileTheLedgerIsEnabled() throws Exception {
+        try (InMemoryBankingContext context = new InMemoryBankingContext(ledgerProperties(directory))) {
+            context.createAccounts(3, OPENING_BALANCE);
+            LedgerEngine engine = context.getBean(LedgerEngine.class);
+            BankService bankService = context.getBean(BankService.class);
+            BigDecimal amount = new BigDecimal("60.00");
+            
+            engine.transfer(accountNumber(0), accountNumber(1), amount);
+            assertThrows(IllegalStateException.class,
+                    () -> bankService.transferMoney(accountNumber(0), accountNumber(2), amount));
+            assertThrows(IllegalStateException.class, () -> bankService.transferBatch(Collections.singletonList(
+                    new TransferRequest(accountNumber(0), accountNumber(2), amount))));
+            assertThrows(IllegalArgumentException.class,
+                    () -> engine.transfer(accountNumber(0), accountNumber(2), amount));
+            
+            engine.snapshot();
+            assertEquals(Money.of(new BigDecimal("40.00")), bankService.getBalance(accountNumber(0)));
+            assertEquals(Money.of(new BigDecimal("160.00")), bankService.getBalance(accountNumber(1)));
+            assertEquals(OPENING_BALANCE, bankService.getBalance(accountNumber(2)));
+        }
+    }
+    
+    private static Map<String, String> ledgerProperties(Path journal) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("banking.ledger.enabled", "true");
+        properties.put("banking.ledger.directory", journal.toString());
+        properties.put("banking.ledger.segment-records", "1024");
+        // Snapshots are only taken when a test asks for one
+        properties.put("banking.ledger.snapshot-interval-ms", "3600000");
+        return properties;
+    }
+    
+    private static void copyDirectory(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (Stream<Path> files = Files.list(from)) {
+            Iterator<Path> iterator = files.iterator();
+            while (iterator.hasNext()) {
+                Path file = iterator.next();
+                Files.copy(file, to.resolve(file.getFileName()));
+            }
+        }
+    }
+    
+    private static String accountNumber(int index) {
+        return InMemoryBankingContext.accountNumber(index);
+    }
+}
+
+// BulkFormat.java
+package com.example.banking.bulk;
+
+// File formats for bulk import and export. Both start with the column names and then hold
+// one record per row; money is always in minor units of the account currency.
+//
+// CSV: RFC 4180 with a header line, UTF-8, '\n' line ends. Empty unquoted fields are null,
+// money is a plain decimal ("10.50") and timestamps are ISO-8601 local date-times.
+//
+// BINARY: the big-endian int magic 0x424E4B32 ("BNK2"), the column count and the column
+// names, then each record as its byte length followed by its fields. Integers are LEB128
+// varints, zigzag-encoded where they can be negative. Strings are their UTF-8 byte length
+// plus one (0 for null) followed by the bytes, money is zigzag-encoded minor units plus one
+// and timestamps zigzag-encoded microseconds since 1970-01-01T00:00 plus one (0 for null).
+// "BNK1" files stored timestamps without the added one and are no longer read.
+public enum BulkFormat {
+    CSV,
+    BINARY
+}
+
+// BulkFileWriter.java
+package com.example.banking.bulk;
+
+import com.example.banking.Money;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+// Writes records in a BulkFormat through a fixed-size buffer straight to a FileChannel.
+// Output goes to a temporary file next to the target that finish() moves into place, so
+// an export that fails halfway never leaves a truncated file under the target name.
+public class BulkFileWriter implements Closeable {
+    
+    static final int MAGIC = 0x424E4B32;
+    static final int MAX_VARINT_BYTES = 10;
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    private final BulkFormat format;
+    private final Path target;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private ByteBuffer record = ByteBuffer.allocate(1024);
+    private boolean finished;
+    
+    public BulkFileWriter(Path target, BulkFormat format, String... columns) throws IOException {
+        this.format = format;
+        this.target = target;
+        this.temporary = target.resolveSibling(target.getFileName() + ".part");
+        this.channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        
+        if (format == BulkFormat.BINARY) {
+            buffer.putInt(MAGIC);
+            putVarLong(buffer, columns.length);
+        }
+        for (String column : columns) {
+            writeString(column);
+        }
+        if (format == BulkFormat.CSV) {
+            endRecord();
+        } else {
+            write(record.flip());
+            record.clear();
+        }
+    }
+    
+    public void writeString(String value) {
+        if (format == BulkFormat.CSV) {
+            separate();
+            if (value != null) {
+                writeCsvString(value);
+            }
+            return;
+        }
+        if (value == null) {
+            putRecordVarLong(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putRecordVarLong(bytes.length + 1L);
+        ensureRecordCapacity(bytes.length);
+        record.put(bytes);
+    }
+    
+    public void writeMoney(Money value) {
+        if (format == BulkFormat.CSV) {
+            separate();
+            if (value != null) {
+                putAscii(value.toString());
+            }
+        } else {
+            putRecordVarLong(value == null ? 0 : zigZag(value.getMinorUnits()) + 1);
+        }
+    }
+    
+    public void writeDateTime(LocalDateTime value) {
+        if (format == BulkFormat.CSV) {
+            separate();
+            if (value != null) {
+                putAscii(value.toString());
+            }
+        } else {
+            putRecordVarLong(value == null ? 0
+                    : zigZag(value.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + value.getNano() / 1_000) + 1);
+        }
+    }
+    
+    public void endRecord() throws IOException {
+        if (format == BulkFormat.CSV) {
+            ensureRecordCapacity(1);
+            record.put((byte) '\n');
+        } else {
+            if (buffer.remaining() < MAX_VARINT_BYTES) {
+                flush();
+            }
+            putVarLong(buffer, record.position());
+        }
+        write(record.flip());
+        record.clear();
+    }
+    
+    // Flushes, syncs and moves the file to the target name
+    public void finish() throws IOException {
+        flush();
+        channel.force(true);
+        channel.close();
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            channel.close();
+            Files.deleteIfExists(temporary);
+        }
+    }
+    
+    private void separate() {
+        if (record.position() > 0) {
+            ensureRecordCapacity(1);
+            record.put((byte) ',');
+        }
+    }
+    
+    // Empty strings are quoted so they read back as "" rather than null
+    private void writeCsvString(String value) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensureRecordCapacity(bytes.length);
+            record.put(bytes);
+            return;
+        }
+        byte[] bytes = value.replace("\"", "\"\"").getBytes(StandardCharsets.UTF_8);
+        ensureRecordCapacity(bytes.length + 2);
+        record.put((byte) '"');
+        record.put(bytes);
+        record.put((byte) '"');
+    }
+    
+    private void putRecordVarLong(long value) {
+        ensureRecordCapacity(MAX_VARINT_BYTES);
+        putVarLong(record, value);
+    }
+    
+    private static void putVarLong(ByteBuffer target, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        target.put((byte) value);
+    }
+    
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    private void putAscii(String value) {
+        ensureRecordCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            record.put((byte) value.charAt(i));
+        }
+    }
+    
+    private void ensureRecordCapacity(int bytes) {
+        if (record.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + bytes));
+            larger.put(record.flip());
+            record = larger;
+        }
+    }
+    
+    private void write(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            int count = Math.min(source.remaining(), buffer.remaining());
+            ByteBuffer slice = source.slice();
+            slice.limit(count);
+            buffer.put(slice);
+            source.position(source.position() + count);
+        }
+    }
+    
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
+
+// BulkFileReader.java
+package com.example.banking.bulk;
+
+import com.example.banking.Money;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+// Reads records written by BulkFileWriter, holding at most one buffer of the file plus the
+// current record in memory. getPosition() is the byte offset just past the current record,
+// which is what an import checkpoints; opening at that offset resumes with the next record.
+// Malformed input fails with an IOException naming the byte offset of the bad record.
+public class BulkFileReader implements Closeable {
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final int HEADER_READ_SIZE = 4096;
+    
+    private final BulkFormat format;
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long bufferStart;
+    private boolean endOfFile;
+    private long recordStart;
+    private long recordEnd;
+    
+    // CSV fields of the current record; the binary format is read straight from the buffer
+    private final String[] fields;
+    private int nextField;
+    private byte[] fieldBytes = new byte[256];
+    
+    public BulkFileReader(Path file, BulkFormat format, long position, String... columns) throws IOException {
+        this.format = format;
+        this.fields = new String[columns.length];
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        buffer.flip();
+        try {
+            readHeader(columns);
+            if (position > recordEnd) {
+                if (position > channel.size()) {
+                    throw new IOException("Resume position " + position + " is past the end of " + file);
+                }
+                channel.position(position);
+                buffer.clear().flip();
+                bufferStart = position;
+                recordEnd = position;
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    public boolean next() throws IOException {
+        buffer.position((int) (recordEnd - bufferStart));
+        recordStart = recordEnd;
+        nextField = 0;
+        if (format == BulkFormat.CSV) {
+            if (!parseCsvRecord()) {
+                return false;
+            }
+        } else {
+            if (!ensure(1)) {
+                return false;
+            }
+            // Fills whatever is left when the file ends within the next few bytes
+            ensure(BulkFileWriter.MAX_VARINT_BYTES);
+            recordEnd = Long.MAX_VALUE;
+            long length = getVarLong();
+            if (length > MAX_RECORD_SIZE) {
+                throw malformed("invalid record length " + length);
+            }
+            if (!ensure((int) length)) {
+                throw malformed("truncated record");
+            }
+            recordEnd = bufferStart + buffer.position() + length;
+        }
+        return true;
+    }
+    
+    public long getPosition() {
+        return recordEnd;
+    }
+    
+    public String readString() throws IOException {
+        if (format == BulkFormat.CSV) {
+            return nextCsvField();
+        }
+        long length = getVarLong() - 1;
+        if (length < 0) {
+            return null;
+        }
+        requireInRecord(length);
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + (int) length);
+        return value;
+    }
+    
+    public String readRequiredString() throws IOException {
+        String value = readString();
+        if (value == null) {
+            throw malformed("missing value");
+        }
+        return value;
+    }
+    
+    public Money readMoney() throws IOException {
+        Money value = readNullableMoney();
+        if (value == null) {
+            throw malformed("missing value");
+        }
+        return value;
+    }
+    
+    public Money readNullableMoney() throws IOException {
+        if (format == BulkFormat.BINARY) {
+            long encoded = getVarLong();
+            return encoded == 0 ? null : Money.ofMinor(unZigZag(encoded - 1));
+        }
+        String value = nextCsvField();
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Money.of(new BigDecimal(value));
+        } catch (RuntimeException e) {
+            throw malformed("invalid amount '" + value + "'");
+        }
+    }
+    
+    public LocalDateTime readDateTime() throws IOException {
+        LocalDateTime value = readNullableDateTime();
+        if (value == null) {
+            throw malformed("missing value");
+        }
+        return value;
+    }
+    
+    public LocalDateTime readNullableDateTime() throws IOException {
+        if (format == BulkFormat.BINARY) {
+            long encoded = getVarLong();
+            if (encoded == 0) {
+                return null;
+            }
+            long micros = unZigZag(encoded - 1);
+            return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                    (int) Math.floorMod(micros, 1_000_000L) * 1_000, ZoneOffset.UTC);
+        }
+        String value = nextCsvField();
+        if (value == null) {
+            return null;
+        }
+        try {
+            return LocalDateTime.parse(value);
+        } catch (RuntimeException e) {
+            throw malformed("invalid timestamp '" + value + "'");
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    private void readHeader(String[] columns) throws IOException {
+        String[] actual;
+        if (format == BulkFormat.CSV) {
+            if (!parseCsvRecord()) {
+                throw malformed("missing header");
+            }
+            actual = fields.clone();
+        } else {
+            // The header is read from a single fill of the buffer
+            ensure(HEADER_READ_SIZE);
+            if (buffer.remaining() < 4 || buffer.getInt() != BulkFileWriter.MAGIC) {
+                throw malformed("not a binary bulk file");
+            }
+            recordEnd = Long.MAX_VALUE;
+            long count = getVarLong();
+            if (count > columns.length) {
+                throw malformed("unexpected column count " + count);
+            }
+            actual = new String[(int) count];
+            for (int i = 0; i < actual.length; i++) {
+                actual[i] = readString();
+            }
+            recordEnd = bufferStart + buffer.position();
+        }
+        if (!Arrays.equals(actual, columns)) {
+            throw malformed("expected columns " + Arrays.toString(columns) + " but found " + Arrays.toString(actual));
+        }
+    }
+    
+    // Parses one CSV record into fields, decoding each field only once it is complete.
+    // Delimiters are ASCII, and UTF-8 never uses ASCII bytes inside a multi-byte character,
+    // so the record can be split on raw bytes.
+    private boolean parseCsvRecord() throws IOException {
+        int b = nextByte();
+        if (b == -1) {
+            return false;
+        }
+        int count = 0;
+        int length = 0;
+        boolean quoted = false;
+        boolean inQuotes = false;
+        while (true) {
+            if (inQuotes) {
+                if (b == -1) {
+                    throw malformed("unterminated quoted field");
+                }
+                if (b == '"') {
+                    int following = nextByte();
+                    if (following == '"') {
+                        length = appendFieldByte(length, b);
+                    } else {
+                        inQuotes = false;
+                        if (following != -1) {
+                            buffer.position(buffer.position() - 1);
+                        }
+                    }
+                } else {
+                    length = appendFieldByte(length, b);
+                }
+            } else if (b == '"' && length == 0 && !quoted) {
+                quoted = true;
+                inQuotes = true;
+            } else if (b == ',' || b == '\n' || b == -1) {
+                if (count == fields.length) {
+                    throw malformed("more than " + fields.length + " fields");
+                }
+                fields[count++] = length == 0 && !quoted ? null : new String(fieldBytes, 0, length, StandardCharsets.UTF_8);
+                length = 0;
+                quoted = false;
+                if (b != ',') {
+                    break;
+                }
+            } else if (b != '\r') {
+                length = appendFieldByte(length, b);
+            }
+            b = nextByte();
+        }
+        recordEnd = bufferStart + buffer.position();
+        if (count != fields.length) {
+            throw malformed("expected " + fields.length + " fields but found " + count);
+        }
+        return true;
+    }
+    
+    private int appendFieldByte(int length, int b) throws IOException {
+        if (length == fieldBytes.length) {
+            if (length >= MAX_RECORD_SIZE) {
+                throw malformed("field longer than " + MAX_RECORD_SIZE + " bytes");
+            }
+            fieldBytes = Arrays.copyOf(fieldBytes, length * 2);
+        }
+        fieldBytes[length] = (byte) b;
+        return length + 1;
+    }
+    
+    private String nextCsvField() throws IOException {
+        if (nextField == fields.length) {
+            throw malformed("read past the last field");
+        }
+        return fields[nextField++];
+    }
+    
+    private void requireInRecord(long bytes) throws IOException {
+        if (bytes > buffer.remaining() || bufferStart + buffer.position() + bytes > recordEnd) {
+            throw malformed("record shorter than its fields");
+        }
+    }
+    
+    private long getVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            requireInRecord(1);
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw malformed("invalid varint");
+    }
+    
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    private int nextByte() throws IOException {
+        if (!buffer.hasRemaining() && !ensure(1)) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+    
+    // Makes at least the given number of bytes available from the current position,
+    // growing the buffer when a record does not fit; false if the file ends first
+    private boolean ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        if (bytes > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(bytes, buffer.capacity() * 2));
+            bufferStart += buffer.position();
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            bufferStart += buffer.position();
+            buffer.compact();
+        }
+        while (buffer.position() < bytes && !endOfFile) {
+            if (channel.read(buffer) < 0) {
+                endOfFile = true;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= bytes;
+    }
+    
+    private IOException malformed(String reason) {
+        return new IOException("Malformed " + format + " bulk file at byte offset " + recordStart + ": " + reason);
+    }
+}
+
+// BulkFileWriterTest.java
+package com.example.banking.bulk;
+
+import com.example.banking.Money;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkFileWriterTest {
+    
+    private static final String[] COLUMNS = {"transaction_date", "amount"};
+    
+    // The epoch itself must not read back as null, nor null as the epoch
+    private static final List<LocalDateTime> DATES = Arrays.asList(
+            LocalDateTime.of(2026, 3, 1, 12, 30, 15, 123_456_000),
+            null,
+            LocalDateTime.of(1970, 1, 1, 0, 0),
+            LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999_999_000));
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void nullDatesAndAmountsRoundTripInBothFormats() throws IOException {
+        for (BulkFormat format : BulkFormat.values()) {
+            Path file = directory.resolve("transactions." + format);
+            try (BulkFileWriter writer = new BulkFileWriter(file, format, COLUMNS)) {
+                for (LocalDateTime date : DATES) {
+                    writer.writeDateTime(date);
+                    writer.writeMoney(date == null ? null : Money.ofMinor(-250));
+                    writer.endRecord();
+                }
+                writer.finish();
+            }
+            
+            try (BulkFileReader reader = new BulkFileReader(file, format, 0, COLUMNS)) {
+                for (LocalDateTime date : DATES) {
+                    assertTrue(reader.next(), format.toString());
+                    assertEquals(date, reader.readNullableDateTime(), format.toString());
+                    assertEquals(date == null ? null : Money.ofMinor(-250), reader.readNullableMoney(), format.toString());
+                }
+                assertFalse(reader.next(), format.toString());
+            }
+        }
+    }
+    
+    @Test
+    void requiredDateRejectsNull() throws IOException {
+        for (BulkFormat format : BulkFormat.values()) {
+            Path file = directory.resolve("missing-date." + format);
+            try (BulkFileWriter writer = new BulkFileWriter(file, format, COLUMNS)) {
+                writer.writeDateTime(null);
+                writer.writeMoney(Money.ofMinor(1));
+                writer.endRecord();
+                writer.finish();
+            }
+            
+            try (BulkFileReader reader = new BulkFileReader(file, format, 0, COLUMNS)) {
+                assertTrue(reader.next(), format.toString());
+                assertThrows(IOException.class, reader::readDateTime, format.toString());
+            }
+        }
+    }
+}
+
+// BulkDataService.java
+package com.example.banking.bulk;
+
+import com.example.banking.Account;
+import com.example.banking.BulkImportCheckpoint;
+import com.example.banking.Money;
+import com.example.banking.MoneyType;
+import com.example.banking.Transaction;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.LockMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.query.NativeQuery;
+import org.hibernate.type.LocalDateTimeType;
+import org.hibernate.type.StandardBasicTypes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Bulk import and export of accounts and transactions, for onboarding partner banks and for
+// migrations. Everything runs on a StatelessSession, so there is no first-level cache or
+// dirty checking and inserts reach the driver as JDBC batches. Imports commit every
+// chunkRows rows together with the job's BulkImportCheckpoint: memory stays bounded by one
+// chunk, and a job that failed or was killed continues after its last commit when it is run
+// again with the same id. Running a finished job again imports nothing. Exports write each
+// row of a forward-only cursor straight to the file.
+//
+// Files refer to accounts by account number. Imported accounts get fresh ids, and sharded
+// balances are exported as their total and imported unsharded. Opening balances travel with
+// the accounts so imported history still reconciles; a file of new accounts without history
+// should repeat the balance as the opening balance. Accounts must therefore be
+// imported before the transactions that refer to them. Importing transactions only loads
+// history; balances are left as they are. Transaction exports cover the transactions table
+// only, not history already moved to the TransactionArchive.
+@Service
+public class BulkDataService {
+    
+    private static final Log log = LogFactory.getLog(BulkDataService.class);
+    
+    public static final String[] ACCOUNT_COLUMNS = {"account_number", "owner_name", "balance", "opening_balance"};
+    public static final String[] TRANSACTION_COLUMNS = {
+            "transaction_date", "source_account_number", "target_account_number", "amount", "status", "idempotency_key"};
+    
+    // Rows fetched per round trip while exporting; MySQL needs useCursorFetch=true to honour it
+    private static final int EXPORT_FETCH_SIZE = 1000;
+    
+    // Account numbers resolved per IN list while importing transactions
+    private static final int LOOKUP_CHUNK_SIZE = 1000;
+    
+    private final SessionFactory sessionFactory;
+    private final int chunkRows;
+    private final int batchSize;
+    
+    @Autowired
+    public BulkDataService(SessionFactory sessionFactory,
+                           @Value("${banking.bulk.chunk-rows:10000}") int chunkRows,
+                           @Value("${banking.bulk.batch-size:500}") int batchSize) {
+        if (chunkRows <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Bulk chunk rows and batch size must be positive");
+        }
+        this.sessionFactory = sessionFactory;
+        this.chunkRows = chunkRows;
+        this.batchSize = batchSize;
+    }
+    
+    // Returns the number of accounts exported
+    public long exportAccounts(Path file, BulkFormat format) throws IOException {
+        String sql = "SELECT a.account_number, a.owner_name, CASE WHEN a.balance_slots > 0 THEN a.balance"
+                + " + COALESCE((SELECT SUM(s.balance) FROM account_balance_slots s WHERE s.account_id = a.id), 0)"
+                + " ELSE a.balance END AS balance, a.opening_balance"
+                + " FROM accounts a ORDER BY a.id";
+        return export(file, format, ACCOUNT_COLUMNS, session -> session.createNativeQuery(sql)
+                        .addScalar("account_number", StandardBasicTypes.STRING)
+                        .addScalar("owner_name", StandardBasicTypes.STRING)
+                        .addScalar("balance", MoneyType.INSTANCE)
+                        .addScalar("opening_balance", MoneyType.INSTANCE),
+                (row, writer) -> {
+                    writer.writeString((String) row[0]);
+                    writer.writeString((String) row[1]);
+                    writer.writeMoney((Money) row[2]);
+                    writer.writeMoney((Money) row[3]);
+                });
+    }
+    
+    // Returns the number of transactions exported, in (transaction_date, id) order
+    public long exportTransactions(Path file, BulkFormat format) throws IOException {
+        String sql = "SELECT t.transaction_date, sa.account_number AS source_account_number,"
+                + " ta.account_number AS target_account_number, t.amount, t.status, t.idempotency_key"
+                + " FROM transactions t"
+                + " LEFT JOIN accounts sa ON sa.id = t.source_account_id"
+                + " LEFT JOIN accounts ta ON ta.id = t.target_account_id"
+                + " ORDER BY t.transaction_date, t.id";
+        return export(file, format, TRANSACTION_COLUMNS, session -> session.createNativeQuery(sql)
+                        .addScalar("transaction_date", LocalDateTimeType.INSTANCE)
+                        .addScalar("source_account_number", StandardBasicTypes.STRING)
+                        .addScalar("target_account_number", StandardBasicTypes.STRING)
+                        .addScalar("amount", MoneyType.INSTANCE)
+                        .addScalar("status", StandardBasicTypes.STRING)
+                        .addScalar("idempotency_key", StandardBasicTypes.STRING),
+                (row, writer) -> {
+                    writer.writeDateTime((LocalDateTime) row[0]);
+                    writer.writeString((String) row[1]);
+                    writer.writeString((String) row[2]);
+                    writer.writeMoney((Money) row[3]);
+                    writer.writeString((String) row[4]);
+                    writer.writeString((String) row[5]);
+                });
+    }
+    
+    // Returns the number of accounts the job has imported in total, including earlier runs
+    public long importAccounts(String jobId, Path file, BulkFormat format) throws IOException {
+        return importFile(jobId, file, format, ACCOUNT_COLUMNS, this::loadAccounts);
+    }
+    
+    // Returns the number of transactions the job has imported in total, including earlier runs
+    public long importTransactions(String jobId, Path file, BulkFormat format) throws IOException {
+        return importFile(jobId, file, format, TRANSACTION_COLUMNS, this::loadTransactions);
+    }
+    
+    private long export(Path file, BulkFormat format, String[] columns,
+                        QueryFactory queryFactory, RowWriter rowWriter) throws IOException {
+        long exported = 0;
+        try (StatelessSession session = sessionFactory.openStatelessSession();
+             BulkFileWriter writer = new BulkFileWriter(file, format, columns)) {
+            org.hibernate.Transaction tx = session.beginTransaction();
+            try (ScrollableResults rows = queryFactory.create(session)
+                    .setFetchSize(EXPORT_FETCH_SIZE)
+                    .setReadOnly(true)
+                    .scroll(ScrollMode.FORWARD_ONLY)) {
+                while (rows.next()) {
+                    rowWriter.write(rows.get(), writer);
+                    writer.endRecord();
+                    exported++;
+                }
+                tx.commit();
+            } catch (IOException | RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+            writer.finish();
+        }
+        return exported;
+    }
+    
+    private long importFile(String jobId, Path file, BulkFormat format, String[] columns,
+                            ChunkLoader loader) throws IOException {
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            session.setJdbcBatchSize(batchSize);
+            BulkImportCheckpoint checkpoint = findCheckpoint(session, jobId, false);
+            boolean persisted = checkpoint != null;
+            if (persisted) {
+                log.info("Resuming import job " + jobId + " at byte " + checkpoint.getFilePosition()
+                        + " after " + checkpoint.getImportedRows() + " rows");
+            } else {
+                checkpoint = new BulkImportCheckpoint(jobId);
+            }
+            
+            try (BulkFileReader reader = new BulkFileReader(file, format, checkpoint.getFilePosition(), columns)) {
+                int loaded;
+                do {
+                    org.hibernate.Transaction tx = session.beginTransaction();
+                    try {
+                        // The lock keeps two runs of the same job from importing the same chunk
+                        BulkImportCheckpoint current = findCheckpoint(session, jobId, true);
+                        long position = current == null ? 0L : current.getFilePosition();
+                        if (position != checkpoint.getFilePosition()) {
+                            throw new IllegalStateException("Import job " + jobId + " was advanced by another run");
+                        }
+                        
+                        loaded = loader.load(session, reader, chunkRows);
+                        if (loaded > 0) {
+                            // A stateless session has no flush, so the last partial batch is sent here
+                            ((SharedSessionContractImplementor) session).getJdbcCoordinator().executeBatch();
+                            checkpoint.setFilePosition(reader.getPosition());
+                            checkpoint.setImportedRows(checkpoint.getImportedRows() + loaded);
+                            checkpoint.setUpdatedAt(LocalDateTime.now());
+                            if (persisted) {
+                                session.update(checkpoint);
+                            } else {
+                                session.insert(checkpoint);
+                                persisted = true;
+                            }
+                        }
+                        tx.commit();
+                    } catch (IOException | RuntimeException e) {
+                        tx.rollback();
+                        throw e;
+                    }
+                } while (loaded == chunkRows);
+            }
+            log.info("Import job " + jobId + " finished after " + checkpoint.getImportedRows() + " rows");
+            return checkpoint.getImportedRows();
+        }
+    }
+    
+    private static BulkImportCheckpoint findCheckpoint(StatelessSession session, String jobId, boolean lock) {
+        if (lock) {
+            return (BulkImportCheckpoint) session.get(BulkImportCheckpoint.class, jobId, LockMode.PESSIMISTIC_WRITE);
+        }
+        return (BulkImportCheckpoint) session.get(BulkImportCheckpoint.class, jobId);
+    }
+    
+    private int loadAccounts(StatelessSession session, BulkFileReader reader, int maxRows) throws IOException {
+        int loaded = 0;
+        while (loaded < maxRows && reader.next()) {
+            String accountNumber = reader.readRequiredString();
+            String ownerName = reader.readString();
+            Money balance = reader.readMoney();
+            Account account = new Account(accountNumber, ownerName, balance);
+            account.setOpeningBalance(reader.readNullableMoney());
+            session.insert(account);
+            loaded++;
+        }
+        return loaded;
+    }
+    
+    // Reads the whole chunk first so its account numbers resolve in a few IN queries
+    private int loadTransactions(StatelessSession session, BulkFileReader reader, int maxRows) throws IOException {
+        List<Transaction> transactions = new ArrayList<>();
+        List<String> accountNumbers = new ArrayList<>();
+        Set<String> distinctNumbers = new HashSet<>();
+        while (transactions.size() < maxRows && reader.next()) {
+            Transaction transaction = new Transaction();
+            transaction.setTransactionDate(reader.readNullableDateTime());
+            String sourceAccountNumber = reader.readString();
+            String targetAccountNumber = reader.readString();
+            transaction.setAmount(reader.readMoney());
+            transaction.setStatus(reader.readString());
+            transaction.setIdempotencyKey(reader.readString());
+            transactions.add(transaction);
+            accountNumbers.add(sourceAccountNumber);
+            accountNumbers.add(targetAccountNumber);
+            if (sourceAccountNumber != null) {
+                distinctNumbers.add(sourceAccountNumber);
+            }
+            if (targetAccountNumber != null) {
+                distinctNumbers.add(targetAccountNumber);
+            }
+        }
+        
+        Map<String, Long> accountIds = findAccountIds(session, distinctNumbers);
+        for (int i = 0; i < transactions.size(); i++) {
+            Transaction transaction = transactions.get(i);
+            transaction.setSourceAccountId(resolve(accountIds, accountNumbers.get(2 * i)));
+            transaction.setTargetAccountId(resolve(accountIds, accountNumbers.get(2 * i + 1)));
+            session.insert(transaction);
+        }
+        return transactions.size();
+    }
+    
+    private static Map<String, Long> findAccountIds(StatelessSession session, Set<String> accountNumbers) {
+        Map<String, Long> ids = new HashMap<>();
+        List<String> chunk = new ArrayList<>(LOOKUP_CHUNK_SIZE);
+        for (String accountNumber : accountNumbers) {
+            chunk.add(accountNumber);
+            if (chunk.size() == LOOKUP_CHUNK_SIZE) {
+                findAccountIds(session, chunk, ids);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            findAccountIds(session, chunk, ids);
+        }
+        return ids;
+    }
+    
+    private static void findAccountIds(StatelessSession session, List<String> accountNumbers, Map<String, Long> ids) {
+        List<Object[]> rows = session.createQuery(
+                "SELECT a.accountNumber, a.id FROM Account a WHERE a.accountNumber IN (:accountNumbers)",
+                Object[].class)
+                .setParameterList("accountNumbers", accountNumbers)
+                .getResultList();
+        for (Object[] row : rows) {
+            ids.put((String) row[0], (Long) row[1]);
+        }
+    }
+    
+    private static Long resolve(Map<String, Long> accountIds, String accountNumber) {
+        if (accountNumber == null) {
+            return null;
+        }
+        Long id = accountIds.get(accountNumber);
+        if (id == null) {
+            throw new IllegalArgumentException("Unknown account number in import: " + accountNumber);
+        }
+        return id;
+    }
+    
+    @FunctionalInterface
+    private interface QueryFactory {
+        NativeQuery<?> create(StatelessSession session);
+    }
+    
+    @FunctionalInterface
+    private interface RowWriter {
+        void write(Object[] row, BulkFileWriter writer) throws IOException;
+    }
+    
+    @FunctionalInterface
+    private interface ChunkLoader {
+        int load(StatelessSession session, BulkFileReader reader, int maxRows) throws IOException;
+    }
+}
+
+// BalanceMismatch.java
+package com.example.banking.reconciliation;
+
+import com.example.banking.Money;
+
+public class BalanceMismatch {
+    
+    private final long accountId;
+    private final String accountNumber;
+    private final Money expectedBalance;
+    private final Money actualBalance;
+    
+    public BalanceMismatch(long accountId, String accountNumber, Money expectedBalance, Money actualBalance) {
+        this.accountId = accountId;
+        this.accountNumber = accountNumber;
+        this.expectedBalance = expectedBalance;
+        this.actualBalance = actualBalance;
+    }
+    
+    public long getAccountId() {
+        return accountId;
+    }
+    
+    public String getAccountNumber() {
+        return accountNumber;
+    }
+    
+    // Opening balance plus credits minus debits
+    public Money getExpectedBalance() {
+        return expectedBalance;
+    }
+    
+    public Money getActualBalance() {
+        return actualBalance;
+    }
+    
+    // Positive when the account holds more than its history explains
+    public Money getDifference() {
+        return actualBalance.subtract(expectedBalance);
+    }
+    
+    @Override
+    public String toString() {
+        return "BalanceMismatch{" +
+                "accountId=" + accountId +
+                ", accountNumber='" + accountNumber + '\'' +
+                ", expected=" + expectedBalance +
+                ", actual=" + actualBalance +
+                '}';
+    }
+}
+
+// ReconciliationReport.java
+package com.example.banking.reconciliation;
+
+import java.util.Collections;
+import java.util.List;
+
+public class ReconciliationReport {
+    
+    private final long accountsChecked;
+    private final long unverifiedAccounts;
+    private final long transactionsScanned;
+    private final long mismatchCount;
+    private final List<BalanceMismatch> mismatches;
+    private final long elapsedMillis;
+    
+    public ReconciliationReport(long accountsChecked, long unverifiedAccounts, long transactionsScanned,
+                                long mismatchCount, List<BalanceMismatch> mismatches, long elapsedMillis) {
+        this.accountsChecked = accountsChecked;
+        this.unverifiedAccounts = unverifiedAccounts;
+        this.transactionsScanned = transactionsScanned;
+        this.mismatchCount = mismatchCount;
+        this.mismatches = Collections.unmodifiableList(mismatches);
+        this.elapsedMillis = elapsedMillis;
+    }
+    
+    public long getAccountsChecked() {
+        return accountsChecked;
+    }
+    
+    // Accounts without an opening balance, which cannot be checked
+    public long getUnverifiedAccounts() {
+        return unverifiedAccounts;
+    }
+    
+    // Each transfer counts once for its debit and once for its credit
+    public long getTransactionsScanned() {
+        return transactionsScanned;
+    }
+    
+    public long getMismatchCount() {
+        return mismatchCount;
+    }
+    
+    // The first mismatches by account id; may hold fewer than getMismatchCount()
+    public List<BalanceMismatch> getMismatches() {
+        return mismatches;
+    }
+    
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+    
+    public boolean isBalanced() {
+        return mismatchCount == 0;
+    }
+    
+    @Override
+    public String toString() {
+        return "ReconciliationReport{" +
+                "accountsChecked=" + accountsChecked +
+                ", unverifiedAccounts=" + unverifiedAccounts +
+                ", transactionsScanned=" + transactionsScanned +
+                ", mismatchCount=" + mismatchCount +
+                ", elapsedMillis=" + elapsedMillis +
+                '}';
+    }
+}
+
+// LedgerReconciler.java
+package com.example.banking.reconciliation;
+
+import com.example.banking.Money;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Checks that every account's balance, including its balance slots, equals its opening
+// balance plus successful credits minus successful debits, with transactions moved to the
+// archive counted through their per-account totals. The account id space is cut
+// into ranges of rangeSize ids that run in parallel on a ForkJoinPool. Each range streams
+// its accounts, slots and both sides of its transfers over forward-only cursors into
+// primitive long arrays indexed by id, so memory per worker is a few arrays of rangeSize
+// longs however many transactions there are.
+//
+// Each range is a read-only REPEATABLE READ transaction, so it sees one consistent state
+// of its accounts and their transfers even while transfers continue, and is served by a
+// replica when any are configured. Every worker holds one connection for the length of
+// its range, which bounds useful parallelism by the pool size.
+@Service
+public class LedgerReconciler {
+    
+    private static final Log log = LogFactory.getLog(LedgerReconciler.class);
+    
+    // Rows fetched per round trip; MySQL needs useCursorFetch=true to honour it
+    private static final int FETCH_SIZE = 1000;
+    
+    // Amounts are read as minor units so no row allocates a BigDecimal
+    private static final String ACCOUNTS_SQL =
+            "SELECT id, balance * 100, opening_balance * 100 FROM accounts WHERE id >= ? AND id < ?";
+    private static final String SLOTS_SQL =
+            "SELECT account_id, balance * 100 FROM account_balance_slots WHERE account_id >= ? AND account_id < ?";
+    private static final String CREDITS_SQL =
+            "SELECT target_account_id, amount * 100 FROM transactions"
+                    + " WHERE target_account_id >= ? AND target_account_id < ? AND status = 'SUCCESS'";
+    private static final String DEBITS_SQL =
+            "SELECT source_account_id, amount * 100 FROM transactions"
+                    + " WHERE source_account_id >= ? AND source_account_id < ? AND status = 'SUCCESS'";
+    private static final String ARCHIVED_SQL =
+            "SELECT account_id, archived_net * 100 FROM transaction_archive_totals"
+                    + " WHERE account_id >= ? AND account_id < ?";
+    
+    private static final byte ABSENT = 0;
+    private static final byte VERIFIABLE = 1;
+    private static final byte NO_OPENING_BALANCE = 2;
+    
+    private final SessionFactory sessionFactory;
+    private final TransactionTemplate transactionTemplate;
+    private final int rangeSize;
+    private final int parallelism;
+    private final int maxReported;
+    
+    // A parallelism of 0 uses one worker per available processor
+    @Autowired
+    public LedgerReconciler(SessionFactory sessionFactory, PlatformTransactionManager transactionManager,
+                            @Value("${banking.reconciliation.range-size:10000}") int rangeSize,
+                            @Value("${banking.reconciliation.parallelism:0}") int parallelism,
+                            @Value("${banking.reconciliation.max-reported:1000}") int maxReported) {
+        if (rangeSize <= 0 || parallelism < 0 || maxReported < 0) {
+            throw new IllegalArgumentException("Invalid reconciliation range size, parallelism or report limit");
+        }
+        this.sessionFactory = sessionFactory;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        this.rangeSize = rangeSize;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.maxReported = maxReported;
+    }
+    
+    public ReconciliationReport reconcile() {
+        long start = System.nanoTime();
+        long[] idBounds = transactionTemplate.execute(status -> sessionFactory.getCurrentSession()
+                .doReturningWork(LedgerReconciler::findIdBounds));
+        
+        RangeResult result = new RangeResult();
+        if (idBounds != null) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                result = pool.invoke(new RangeTask(idBounds[0], idBounds[1] + 1));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        
+        ReconciliationReport report = new ReconciliationReport(result.accountsChecked, result.unverifiedAccounts,
+                result.transactionsScanned, result.mismatchCount, result.mismatches,
+                (System.nanoTime() - start) / 1_000_000);
+        if (report.isBalanced()) {
+            log.info("Reconciliation found no mismatches: " + report);
+        } else {
+            log.warn("Reconciliation found mismatches: " + report + ", first " + report.getMismatches());
+        }
+        return report;
+    }
+    
+    // Lowest and highest account id, or null when there are no accounts
+    private static long[] findIdBounds(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT MIN(id), MAX(id) FROM accounts");
+             ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            long min = resultSet.getLong(1);
+            return resultSet.wasNull() ? null : new long[]{min, resultSet.getLong(2)};
+        }
+    }
+    
+    private RangeResult reconcileRange(long fromId, long toId) {
+        return transactionTemplate.execute(status -> sessionFactory.getCurrentSession()
+                .doReturningWork(connection -> reconcileRange(connection, fromId, toId)));
+    }
+    
+    private RangeResult reconcileRange(Connection connection, long fromId, long toId) throws SQLException {
+        int size = (int) (toId - fromId);
+        byte[] state = new byte[size];
+        long[] expected = new long[size];
+        long[] actual = new long[size];
+        
+        try (PreparedStatement statement = prepare(connection, ACCOUNTS_SQL, fromId, toId);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                int index = (int) (resultSet.getLong(1) - fromId);
+                actual[index] = resultSet.getLong(2);
+                expected[index] = resultSet.getLong(3);
+                state[index] = resultSet.wasNull() ? NO_OPENING_BALANCE : VERIFIABLE;
+            }
+        }
+        accumulate(connection, SLOTS_SQL, fromId, toId, actual, 1);
+        long scanned = accumulate(connection, CREDITS_SQL, fromId, toId, expected, 1)
+                + accumulate(connection, DEBITS_SQL, fromId, toId, expected, -1);
+        accumulate(connection, ARCHIVED_SQL, fromId, toId, expected, 1);
+        
+        RangeResult result = new RangeResult();
+        result.transactionsScanned = scanned;
+        List<Long> mismatchedIds = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (state[i] == ABSENT) {
+                continue;
+            }
+            result.accountsChecked++;
+            if (state[i] == NO_OPENING_BALANCE) {
+                result.unverifiedAccounts++;
+            } else if (expected[i] != actual[i]) {
+                result.mismatchCount++;
+                if (mismatchedIds.size() < maxReported) {
+                    mismatchedIds.add(fromId + i);
+                }
+            }
+        }
+        
+        // Account numbers are only looked up for the accounts that are reported
+        Map<Long, String> accountNumbers = findAccountNumbers(connection, mismatchedIds);
+        for (Long id : mismatchedIds) {
+            int index = (int) (id - fromId);
+            result.mismatches.add(new BalanceMismatch(id, accountNumbers.get(id),
+                    Money.ofMinor(expected[index]), Money.ofMinor(actual[index])));
+        }
+        return result;
+    }
+    
+    // Adds sign * amount of every row to the sums of its account; returns the number of rows
+    private static long accumulate(Connection connection, String sql, long fromId, long toId,
+                                   long[] sums, int sign) throws SQLException {
+        long rows = 0;
+        try (PreparedStatement statement = prepare(connection, sql, fromId, toId);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                sums[(int) (resultSet.getLong(1) - fromId)] += sign * resultSet.getLong(2);
+                rows++;
+            }
+        }
+        return rows;
+    }
+    
+    private static PreparedStatement prepare(Connection connection, String sql, long fromId, long toId)
+            throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        statement.setFetchSize(FETCH_SIZE);
+        statement.setLong(1, fromId);
+        statement.setLong(2, toId);
+        return statement;
+    }
+    
+    private static Map<Long, String> findAccountNumbers(Connection connection, List<Long> ids) throws SQLException {
+        Map<Long, String> accountNumbers = new HashMap<>();
+        for (Long id : ids) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT account_number FROM accounts WHERE id = ?")) {
+                statement.setLong(1, id);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        accountNumbers.put(id, resultSet.getString(1));
+                    }
+                }
+            }
+        }
+        return accountNumbers;
+    }
+    
+    // Splits its id range at rangeSize boundaries until a single range remains
+    private final class RangeTask extends RecursiveTask<RangeResult> {
+        
+        private final long fromId;
+        private final long toId;
+        
+        private RangeTask(long fromId, long toId) {
+            this.fromId = fromId;
+            this.toId = toId;
+        }
+        
+        @Override
+        protected RangeResult compute() {
+            long ranges = (toId - fromId + rangeSize - 1) / rangeSize;
+            if (ranges <= 1) {
+                return reconcileRange(fromId, toId);
+            }
+            long middle = fromId + ranges / 2 * rangeSize;
+            RangeTask upper = new RangeTask(middle, toId);
+            upper.fork();
+            RangeResult lower = new RangeTask(fromId, middle).compute();
+            return lower.merge(upper.join(), maxReported);
+        }
+    }
+    
+    private static final class RangeResult {
+        
+        private long accountsChecked;
+        private long unverifiedAccounts;
+        private long transactionsScanned;
+        private long mismatchCount;
+        private final List<BalanceMismatch> mismatches = new ArrayList<>();
+        
+        // Keeps mismatches in account id order; this range lies below the other one
+        private RangeResult merge(RangeResult other, int maxReported) {
+            accountsChecked += other.accountsChecked;
+            unverifiedAccounts += other.unverifiedAccounts;
+            transactionsScanned += other.transactionsScanned;
+            mismatchCount += other.mismatchCount;
+            for (BalanceMismatch mismatch : other.mismatches) {
+                if (mismatches.size() == maxReported) {
+                    break;
+                }
+                mismatches.add(mismatch);
+            }
+            return this;
+        }
+    }
+}
+
+// SortedMerge.java
+package com.example.banking.archive;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Merges sources that are each already sorted into one sorted sequence, pulling a single
+// element at a time from each source
+public final class SortedMerge {
+    
+    private SortedMerge() {
+    }
+    
+    // Closing the merged stream closes both inputs
+    public static <T> Stream<T> merge(Stream<T> first, Stream<T> second, Comparator<? super T> order) {
+        Iterator<T> merged = merge(List.of(first.iterator(), second.iterator()), order);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED), false)
+                .onClose(() -> {
+                    try {
+                        first.close();
+                    } finally {
+                        second.close();
+                    }
+                });
+    }
+    
+    public static <T> Iterator<T> merge(List<? extends Iterator<T>> sources, Comparator<? super T> order) {
+        if (sources.size() == 1) {
+            return sources.get(0);
+        }
+        PriorityQueue<Head<T>> heads = new PriorityQueue<>(
+                Math.max(1, sources.size()), (a, b) -> order.compare(a.value, b.value));
+        for (Iterator<T> source : sources) {
+            if (source.hasNext()) {
+                heads.add(new Head<>(source.next(), source));
+            }
+        }
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+            
+            @Override
+            public T next() {
+                Head<T> head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                if (head.source.hasNext()) {
+                    heads.add(new Head<>(head.source.next(), head.source));
+                }
+                return head.value;
+            }
+        };
+    }
+    
+    private static final class Head<T> {
+        
+        private final T value;
+        private final Iterator<T> source;
+        
+        private Head(T value, Iterator<T> source) {
+            this.value = value;
+            this.source = source;
+        }
+    }
+}
+
+// ArchiveSegmentWriter.java
+package com.example.banking.archive;
+
+import com.example.banking.Money;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes one archive segment; see ArchiveSegment for the layout. Transactions must be added
+// in (transactionDate, id) order. Only the current block and the index are held in memory.
+public class ArchiveSegmentWriter implements Closeable {
+    
+    private final FileChannel channel;
+    private final int blockRecords;
+    private final Deflater deflater = new Deflater();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+    private byte[] compressed = new byte[64 * 1024];
+    private final List<long[]> directory = new ArrayList<>();
+    private final Map<Long, AccountEntry> accounts = new HashMap<>();
+    private long position;
+    
+    private int blockCount;
+    private long blockFirstMicros;
+    private long blockFirstId;
+    private long blockMinId;
+    private long blockMaxId;
+    private long previousMicros;
+    private long previousId;
+    
+    private long recordCount;
+    private long minId = Long.MAX_VALUE;
+    private long maxId = Long.MIN_VALUE;
+    
+    public ArchiveSegmentWriter(Path file, int blockRecords) throws IOException {
+        if (blockRecords <= 0) {
+            throw new IllegalArgumentException("Archive block size must be positive");
+        }
+        this.blockRecords = blockRecords;
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+    
+    public void add(long id, LocalDateTime transactionDate, Long sourceAccountId, Long targetAccountId,
+                    Money amount, String status, String idempotencyKey) throws IOException {
+        long micros = ArchiveSegment.toMicros(transactionDate);
+        if (recordCount > 0 && (micros < previousMicros || (micros == previousMicros && id <= previousId))) {
+            throw new IllegalArgumentException("Archived transactions must be added in (transactionDate, id) order");
+        }
+        if (blockCount == 0) {
+            blockFirstMicros = micros;
+            blockFirstId = id;
+            blockMinId = id;
+            blockMaxId = id;
+            previousMicros = 0;
+            previousId = 0;
+        }
+        
+        byte[] statusBytes = status == null ? null : status.getBytes(StandardCharsets.UTF_8);
+        byte[] keyBytes = idempotencyKey == null ? null : idempotencyKey.getBytes(StandardCharsets.UTF_8);
+        ensureBlockCapacity(7 * ArchiveSegment.MAX_VARINT_BYTES
+                + (statusBytes == null ? 0 : statusBytes.length) + (keyBytes == null ? 0 : keyBytes.length));
+        putVarLong(block, zigZag(id - previousId));
+        putVarLong(block, zigZag(micros - previousMicros));
+        putVarLong(block, sourceAccountId == null ? 0 : sourceAccountId + 1);
+        putVarLong(block, targetAccountId == null ? 0 : targetAccountId + 1);
+        putVarLong(block, amount == null ? 0 : zigZag(amount.getMinorUnits()) + 1);
+        putBytes(statusBytes);
+        putBytes(keyBytes);
+        
+        long net = amount != null && "SUCCESS".equals(status) ? amount.getMinorUnits() : 0;
+        index(sourceAccountId, -net);
+        index(targetAccountId, net);
+        
+        previousMicros = micros;
+        previousId = id;
+        blockMinId = Math.min(blockMinId, id);
+        blockMaxId = Math.max(blockMaxId, id);
+        minId = Math.min(minId, id);
+        maxId = Math.max(maxId, id);
+        recordCount++;
+        if (++blockCount == blockRecords) {
+            flushBlock();
+        }
+    }
+    
+    public long getRecordCount() {
+        return recordCount;
+    }
+    
+    public long getMinId() {
+        return minId;
+    }
+    
+    public long getMaxId() {
+        return maxId;
+    }
+    
+    // Net movement in minor units of every account in the segment, over successful transactions
+    public Map<Long, Long> getNetMovements() {
+        Map<Long, Long> movements = new HashMap<>();
+        accounts.forEach((accountId, entry) -> movements.put(accountId, entry.net));
+        return movements;
+    }
+    
+    // Writes the last block, the metadata and the trailer, and syncs the file
+    public void finish() throws IOException {
+        if (blockCount > 0) {
+            flushBlock();
+        }
+        
+        ByteBuffer metadata = ByteBuffer.allocate(64 + directory.size() * 11 * ArchiveSegment.MAX_VARINT_BYTES
+                + accounts.size() * 4 * ArchiveSegment.MAX_VARINT_BYTES
+                + accounts.values().stream().mapToInt(entry -> entry.blockCount).sum() * ArchiveSegment.MAX_VARINT_BYTES);
+        putVarLong(metadata, directory.size());
+        for (long[] entry : directory) {
+            for (int i = 0; i < entry.length; i++) {
+                putVarLong(metadata, i >= 5 ? zigZag(entry[i]) : entry[i]);
+            }
+        }
+        
+        long[] accountIds = accounts.keySet().stream().mapToLong(Long::longValue).sorted().toArray();
+        putVarLong(metadata, accountIds.length);
+        long previousAccountId = 0;
+        for (long accountId : accountIds) {
+            AccountEntry entry = accounts.get(accountId);
+            putVarLong(metadata, accountId - previousAccountId);
+            putVarLong(metadata, zigZag(entry.net));
+            putVarLong(metadata, entry.blockCount);
+            int previousBlock = 0;
+            for (int i = 0; i < entry.blockCount; i++) {
+                putVarLong(metadata, entry.blocks[i] - previousBlock);
+                previousBlock = entry.blocks[i];
+            }
+            previousAccountId = accountId;
+        }
+        metadata.flip();
+        
+        crc.reset();
+        crc.update(metadata.duplicate());
+        ByteBuffer trailer = ByteBuffer.allocate(ArchiveSegment.TRAILER_SIZE);
+        trailer.putLong(position);
+        trailer.putInt(metadata.remaining());
+        trailer.putInt((int) crc.getValue());
+        trailer.putInt(ArchiveSegment.VERSION);
+        trailer.putInt(ArchiveSegment.MAGIC);
+        trailer.flip();
+        write(metadata);
+        write(trailer);
+        channel.force(true);
+        channel.close();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        channel.close();
+    }
+    
+    private void index(Long accountId, long net) {
+        if (accountId == null) {
+            return;
+        }
+        AccountEntry entry = accounts.computeIfAbsent(accountId, id -> new AccountEntry());
+        entry.net += net;
+        entry.addBlock(directory.size());
+    }
+    
+    private void flushBlock() throws IOException {
+        int rawLength = block.position();
+        crc.reset();
+        crc.update(block.array(), 0, rawLength);
+        
+        deflater.reset();
+        deflater.setInput(block.array(), 0, rawLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        
+        directory.add(new long[]{
+                position, compressedLength, rawLength, blockCount, crc.getValue(),
+                blockFirstMicros, blockFirstId, previousMicros, previousId, blockMinId, blockMaxId});
+        write(ByteBuffer.wrap(compressed, 0, compressedLength));
+        block.clear();
+        blockCount = 0;
+    }
+    
+    private void write(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source);
+        }
+    }
+    
+    private void putBytes(byte[] bytes) {
+        if (bytes == null) {
+            putVarLong(block, 0);
+            return;
+        }
+        putVarLong(block, bytes.length + 1L);
+        block.put(bytes);
+    }
+    
+    private void ensureBlockCapacity(int bytes) {
+        if (block.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(block.capacity() * 2, block.position() + bytes));
+            larger.put(block.flip());
+            block = larger;
+        }
+    }
+    
+    private static void putVarLong(ByteBuffer target, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        target.put((byte) value);
+    }
+    
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    private static final class AccountEntry {
+        
+        private long net;
+        private int[] blocks = new int[4];
+        private int blockCount;
+        
+        // Blocks arrive in ascending order, so a repeat is always the last one added
+        private void addBlock(int block) {
+            if (blockCount > 0 && blocks[blockCount - 1] == block) {
+                return;
+            }
+            if (blockCount == blocks.length) {
+                blocks = Arrays.copyOf(blocks, blockCount * 2);
+            }
+            blocks[blockCount++] = block;
+        }
+    }
+}
+
+// ArchiveSegment.java
+package com.example.banking.archive;
+
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Parsed metadata of one immutable archive segment file. A segment holds the transactions of
+// a single day in (transactionDate, id) order:
+//
+//   blocks     Deflate-compressed runs of up to block-records transactions
+//   metadata   block directory and per-account sparse index, all varints
+//   trailer    long metadataOffset, int metadataLength, int metadataCrc, int version, int magic
+//
+// A block record is: zigzag id delta, zigzag timestamp delta in epoch microseconds (UTC),
+// source id + 1, target id + 1, zigzag amount in minor units + 1, then status and
+// idempotency key as UTF-8 length + 1 and bytes, 0 standing for null throughout. Deltas
+// restart at every block so each block decodes on its own. The directory carries every
+// block's file offset, lengths, record count, CRC32 of the raw bytes and its first, last,
+// lowest and highest (timestamp, id); the index lists for every account its net movement
+// over SUCCESS transactions and the blocks that mention it. Reading one account's history
+// therefore only inflates that account's blocks, and its net movement needs no block at all.
+public final class ArchiveSegment {
+    
+    static final int MAGIC = 0x54584152;
+    static final int VERSION = 1;
+    static final int TRAILER_SIZE = 24;
+    static final int MAX_VARINT_BYTES = 10;
+    
+    private static final int[] NO_BLOCKS = new int[0];
+    
+    private final Path file;
+    private final long[] offsets;
+    private final int[] compressedLengths;
+    private final int[] rawLengths;
+    private final int[] recordCounts;
+    private final int[] checksums;
+    private final long[] lastMicros;
+    private final long[] lastIds;
+    private final long[] minIds;
+    private final long[] maxIds;
+    private final long[] accountIds;
+    private final long[] accountNets;
+    private final int[][] accountBlocks;
+    private final int[] allBlocks;
+    
+    private ArchiveSegment(Path file, int blockCount, int accountCount) {
+        this.file = file;
+        this.offsets = new long[blockCount];
+        this.compressedLengths = new int[blockCount];
+        this.rawLengths = new int[blockCount];
+        this.recordCounts = new int[blockCount];
+        this.checksums = new int[blockCount];
+        this.lastMicros = new long[blockCount];
+        this.lastIds = new long[blockCount];
+        this.minIds = new long[blockCount];
+        this.maxIds = new long[blockCount];
+        this.accountIds = new long[accountCount];
+        this.accountNets = new long[accountCount];
+        this.accountBlocks = new int[accountCount][];
+        this.allBlocks = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            allBlocks[i] = i;
+        }
+    }
+    
+    // Reads and verifies the trailer and metadata; blocks are only read on demand
+    public static ArchiveSegment open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < TRAILER_SIZE) {
+                throw malformed(file, "file is shorter than its trailer");
+            }
+            ByteBuffer trailer = readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+            long metadataOffset = trailer.getLong();
+            int metadataLength = trailer.getInt();
+            int metadataCrc = trailer.getInt();
+            int version = trailer.getInt();
+            if (trailer.getInt() != MAGIC || version != VERSION) {
+                throw malformed(file, "unknown magic or version " + version);
+            }
+            if (metadataOffset < 0 || metadataLength < 0 || metadataOffset + metadataLength != size - TRAILER_SIZE) {
+                throw malformed(file, "metadata bounds do not match the file size");
+            }
+            
+            ByteBuffer metadata = readFully(channel, metadataOffset, metadataLength);
+            CRC32 crc = new CRC32();
+            crc.update(metadata.duplicate());
+            if ((int) crc.getValue() != metadataCrc) {
+                throw malformed(file, "metadata checksum mismatch");
+            }
+            
+            int blockCount = (int) getVarLong(metadata);
+            long[] directory = new long[11 * blockCount];
+            for (int i = 0; i < directory.length; i++) {
+                long value = getVarLong(metadata);
+                directory[i] = i % 11 >= 5 ? zigZagDecode(value) : value;
+            }
+            int accountCount = (int) getVarLong(metadata);
+            ArchiveSegment segment = new ArchiveSegment(file, blockCount, accountCount);
+            for (int i = 0; i < blockCount; i++) {
+                int base = 11 * i;
+                segment.offsets[i] = directory[base];
+                segment.compressedLengths[i] = (int) directory[base + 1];
+                segment.rawLengths[i] = (int) directory[base + 2];
+                segment.recordCounts[i] = (int) directory[base + 3];
+                segment.checksums[i] = (int) directory[base + 4];
+                segment.lastMicros[i] = directory[base + 7];
+                segment.lastIds[i] = directory[base + 8];
+                segment.minIds[i] = directory[base + 9];
+                segment.maxIds[i] = directory[base + 10];
+                if (segment.offsets[i] + segment.compressedLengths[i] > metadataOffset) {
+                    throw malformed(file, "block " + i + " extends past the metadata");
+                }
+            }
+            
+            long accountId = 0;
+            for (int i = 0; i < accountCount; i++) {
+                accountId += getVarLong(metadata);
+                segment.accountIds[i] = accountId;
+                segment.accountNets[i] = zigZagDecode(getVarLong(metadata));
+                int[] blocks = new int[(int) getVarLong(metadata)];
+                int block = 0;
+                for (int j = 0; j < blocks.length; j++) {
+                    block += (int) getVarLong(metadata);
+                    blocks[j] = block;
+                }
+                segment.accountBlocks[i] = blocks;
+            }
+            return segment;
+        } catch (RuntimeException e) {
+            throw malformed(file, "metadata is truncated or corrupt (" + e + ")");
+        }
+    }
+    
+    public Path getFile() {
+        return file;
+    }
+    
+    public int getBlockCount() {
+        return offsets.length;
+    }
+    
+    // Ascending block numbers that mention the account, or every block for a null account
+    public int[] blocksOf(Long accountId) {
+        if (accountId == null) {
+            return allBlocks;
+        }
+        int index = Arrays.binarySearch(accountIds, accountId);
+        return index < 0 ? NO_BLOCKS : accountBlocks[index];
+    }
+    
+    // Credits minus debits of the account over the segment's SUCCESS transactions, in minor units
+    public long netMovement(long accountId) {
+        int index = Arrays.binarySearch(accountIds, accountId);
+        return index < 0 ? 0 : accountNets[index];
+    }
+    
+    // Whether every transaction in the block sorts at or before the given (timestamp, id)
+    public boolean endsAtOrBefore(int block, LocalDateTime transactionDate, long id) {
+        long micros = toMicros(transactionDate);
+        return lastMicros[block] < micros || (lastMicros[block] == micros && lastIds[block] <= id);
+    }
+    
+    public boolean mayContainId(int block, long id) {
+        return id >= minIds[block] && id <= maxIds[block];
+    }
+    
+    // Inflates one block and decodes its transactions as detached entities in segment order
+    public List<Transaction> readBlock(FileChannel channel, int block) throws IOException {
+        ByteBuffer compressed = readFully(channel, offsets[block], compressedLengths[block]);
+        byte[] raw = new byte[rawLengths[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), 0, compressed.remaining());
+            int length = 0;
+            while (length < raw.length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != raw.length) {
+                throw malformed(file, "block " + block + " inflates to " + length + " of " + raw.length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw malformed(file, "block " + block + " is not valid Deflate data (" + e.getMessage() + ")");
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(raw);
+        if ((int) crc.getValue() != checksums[block]) {
+            throw malformed(file, "block " + block + " checksum mismatch");
+        }
+        
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        List<Transaction> transactions = new ArrayList<>(recordCounts[block]);
+        long id = 0;
+        long micros = 0;
+        try {
+            for (int i = 0; i < recordCounts[block]; i++) {
+                id += zigZagDecode(getVarLong(buffer));
+                micros += zigZagDecode(getVarLong(buffer));
+                Transaction transaction = new Transaction();
+                transaction.setId(id);
+                transaction.setTransactionDate(fromMicros(micros));
+                transaction.setSourceAccountId(getNullableId(buffer));
+                transaction.setTargetAccountId(getNullableId(buffer));
+                long amount = getVarLong(buffer);
+                transaction.setAmount(amount == 0 ? null : Money.ofMinor(zigZagDecode(amount - 1)));
+                transaction.setStatus(getString(buffer));
+                transaction.setIdempotencyKey(getString(buffer));
+                transactions.add(transaction);
+            }
+        } catch (RuntimeException e) {
+            throw malformed(file, "block " + block + " is truncated (" + e + ")");
+        }
+        return transactions;
+    }
+    
+    static long toMicros(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + dateTime.getNano() / 1_000;
+    }
+    
+    static LocalDateTime fromMicros(long micros) {
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(micros, 1_000_000L),
+                (int) Math.floorMod(micros, 1_000_000L) * 1_000, ZoneOffset.UTC);
+    }
+    
+    private static Long getNullableId(ByteBuffer buffer) {
+        long value = getVarLong(buffer);
+        return value == 0 ? null : value - 1;
+    }
+    
+    private static String getString(ByteBuffer buffer) {
+        int length = (int) getVarLong(buffer);
+        if (length == 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.position(), length - 1, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length - 1);
+        return value;
+    }
+    
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Varint longer than 10 bytes");
+    }
+    
+    private static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+    
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of archive segment at byte offset " + (position + buffer.position()));
+            }
+        }
+        return buffer.flip();
+    }
+    
+    private static IOException malformed(Path file, String reason) {
+        return new IOException("Malformed archive segment " + file.getFileName() + ": " + reason);
+    }
+}
+
+// ArchiveSegmentTest.java
+package com.example.banking.archive;
+
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveSegmentTest {
+    
+    private static final LocalDateTime MORNING = LocalDateTime.of(2026, 1, 5, 9, 0, 0, 123_456_000);
+    
+    @TempDir
+    Path directory;
+    
+    // A record with every field set, one with every nullable field null, a failed transfer
+    // with a lower id than its predecessor and a transfer from an account to itself
+    private static List<Transaction> transactions() {
+        List<Transaction> transactions = new ArrayList<>();
+        transactions.add(transaction(10, MORNING, 1L, 2L, Money.ofMinor(1234), "SUCCESS", "key-é"));
+        transactions.add(transaction(11, MORNING, null, null, null, null, null));
+        transactions.add(transaction(7, MORNING.plusSeconds(1), 2L, 1L, Money.ofMinor(500), "FAILED", null));
+        transactions.add(transaction(12, MORNING.plusSeconds(1), 1L, 1L, Money.ofMinor(100), "SUCCESS", ""));
+        return transactions;
+    }
+    
+    @Test
+    void transactionsSurviveARoundTripWhateverTheBlockSize() throws IOException {
+        for (int blockRecords : new int[] {1, 3, 1024}) {
+            Path file = write("segment-" + blockRecords + ".seg", blockRecords);
+            ArchiveSegment segment = ArchiveSegment.open(file);
+            
+            assertEquals((transactions().size() + blockRecords - 1) / blockRecords, segment.getBlockCount());
+            List<Transaction> read = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                for (int block = 0; block < segment.getBlockCount(); block++) {
+                    read.addAll(segment.readBlock(channel, block));
+                }
+            }
+            List<Transaction> written = transactions();
+            assertEquals(written.size(), read.size());
+            for (int i = 0; i < written.size(); i++) {
+                assertSameTransaction(written.get(i), read.get(i));
+            }
+        }
+    }
+    
+    // Only SUCCESS transfers move money, and a transfer to oneself nets out
+    @Test
+    void indexListsTheBlocksAndNetMovementOfEveryAccount() throws IOException {
+        ArchiveSegmentWriter writer = new ArchiveSegmentWriter(directory.resolve("index.seg"), 1);
+        try {
+            for (Transaction transaction : transactions()) {
+                add(writer, transaction);
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        assertEquals(4, writer.getRecordCount());
+        assertEquals(7, writer.getMinId());
+        assertEquals(12, writer.getMaxId());
+        assertEquals(-1234L, writer.getNetMovements().get(1L).longValue());
+        assertEquals(1234L, writer.getNetMovements().get(2L).longValue());
+        
+        ArchiveSegment segment = ArchiveSegment.open(directory.resolve("index.seg"));
+        assertArrayEquals(new int[] {0, 2, 3}, segment.blocksOf(1L));
+        assertArrayEquals(new int[] {0, 2}, segment.blocksOf(2L));
+        assertArrayEquals(new int[0], segment.blocksOf(99L));
+        assertArrayEquals(new int[] {0, 1, 2, 3}, segment.blocksOf(null));
+        assertEquals(-1234L, segment.netMovement(1L));
+        assertEquals(1234L, segment.netMovement(2L));
+        assertEquals(0L, segment.netMovement(99L));
+    }
+    
+    @Test
+    void transactionsMustBeAddedInDateAndIdOrder() throws IOException {
+        try (ArchiveSegmentWriter writer = new ArchiveSegmentWriter(directory.resolve("order.seg"), 16)) {
+            writer.add(10, MORNING, 1L, 2L, Money.ofMinor(1), "SUCCESS", null);
+            assertThrows(IllegalArgumentException.class,
+                    () -> writer.add(9, MORNING, 1L, 2L, Money.ofMinor(1), "SUCCESS", null));
+            assertThrows(IllegalArgumentException.class,
+                    () -> writer.add(11, MORNING.minusNanos(1_000), 1L, 2L, Money.ofMinor(1), "SUCCESS", null));
+        }
+    }
+    
+    // Byte 2 is the first byte of Deflate data after the zlib header of block 0; the damage
+    // must be reported and must stay confined to that block
+    @Test
+    void corruptBlockIsDetected() throws IOException {
+        Path file = write("corrupt-block.seg", 2);
+        ArchiveSegment segment = ArchiveSegment.open(file);
+        flipByte(file, 2);
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            IOException e = assertThrows(IOException.class, () -> segment.readBlock(channel, 0));
+            assertTrue(e.getMessage().startsWith("Malformed archive segment"), e.getMessage());
+            List<Transaction> intact = segment.readBlock(channel, 1);
+            assertSameTransaction(transactions().get(2), intact.get(0));
+            assertSameTransaction(transactions().get(3), intact.get(1));
+        }
+    }
+    
+    @Test
+    void corruptMetadataIsDetected() throws IOException {
+        Path file = write("corrupt-metadata.seg", 2);
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            size = channel.size();
+        }
+        flipByte(file, size - ArchiveSegment.TRAILER_SIZE - 1);
+        
+        assertThrows(IOException.class, () -> ArchiveSegment.open(file));
+    }
+    
+    @Test
+    void truncatedFileIsDetected() throws IOException {
+        Path file = write("truncated.seg", 2);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        
+        assertThrows(IOException.class, () -> ArchiveSegment.open(file));
+    }
+    
+    private Path write(String fileName, int blockRecords) throws IOException {
+        Path file = directory.resolve(fileName);
+        ArchiveSegmentWriter writer = new ArchiveSegmentWriter(file, blockRecords);
+        try {
+            for (Transaction transaction : transactions()) {
+                add(writer, transaction);
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+    
+    private static void add(ArchiveSegmentWriter writer, Transaction transaction) throws IOException {
+        writer.add(transaction.getId(), transaction.getTransactionDate(), transaction.getSourceAccountId(),
+                transaction.getTargetAccountId(), transaction.getAmount(), transaction.getStatus(),
+                transaction.getIdempotencyKey());
+    }
+    
+    private static void flipByte(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, position);
+            buffer.put(0, (byte) ~buffer.get(0));
+            buffer.rewind();
+            channel.write(buffer, position);
+        }
+    }
+    
+    private static Transaction transaction(long id, LocalDateTime transactionDate, Long sourceAccountId,
+                                           Long targetAccountId, Money amount, String status, String idempotencyKey) {
+        Transaction transaction = new Transaction(sourceAccountId, targetAccountId, amount);
+        transaction.setId(id);
+        transaction.setTransactionDate(transactionDate);
+        transaction.setStatus(status);
+        transaction.setIdempotencyKey(idempotencyKey);
+        return transaction;
+    }
+    
+    private static void assertSameTransaction(Transaction expected, Transaction actual) {
+        assertEquals(Arrays.asList(expected.getId(), expected.getTransactionDate(), expected.getSourceAccountId(),
+                        expected.getTargetAccountId(), expected.getAmount(), expected.getStatus(),
+                        expected.getIdempotencyKey()),
+                Arrays.asList(actual.getId(), actual.getTransactionDate(), actual.getSourceAccountId(),
+                        actual.getTargetAccountId(), actual.getAmount(), actual.getStatus(),
+                        actual.getIdempotencyKey()));
+    }
+}
+
+// TransactionArchive.java
+package com.example.banking.archive;
+
+import com.example.banking.ArchivedSegment;
+import com.example.banking.Transaction;
+import com.example.banking.repository.TransactionCursor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Read side of the transaction archive. Callers pass the catalog rows they read in their own
+// database transaction, so the files consulted always match the rows already gone from the
+// transactions table. Parsed segment metadata is kept in a small LRU; blocks are not cached.
+@Component
+public class TransactionArchive {
+    
+    // The order of transaction history everywhere: (transactionDate, id)
+    public static final Comparator<Transaction> HISTORY_ORDER = Comparator
+            .comparing(Transaction::getTransactionDate)
+            .thenComparing(Transaction::getId);
+    
+    private final Path directory;
+    private final Map<String, ArchiveSegment> segments;
+    
+    @Autowired
+    public TransactionArchive(@Value("${banking.archive.directory:archive}") String directory,
+                              @Value("${banking.archive.cached-segments:64}") int cachedSegments) {
+        if (cachedSegments <= 0) {
+            throw new IllegalArgumentException("Archive segment cache size must be positive");
+        }
+        this.directory = Paths.get(directory);
+        this.segments = Collections.synchronizedMap(new LinkedHashMap<String, ArchiveSegment>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ArchiveSegment> eldest) {
+                return size() > cachedSegments;
+            }
+        });
+    }
+    
+    public Path getDirectory() {
+        return directory;
+    }
+    
+    // Archived transactions in history order, lazily one day at a time. When accountId is
+    // set only blocks that mention the account are read; the filter then selects rows exactly.
+    // Only rows strictly after the cursor are returned. Callers must close the stream.
+    public Stream<Transaction> stream(List<ArchivedSegment> catalog, Long accountId, TransactionCursor after,
+                                      Predicate<Transaction> filter) {
+        TreeMap<LocalDate, List<ArchivedSegment>> days = new TreeMap<>();
+        for (ArchivedSegment entry : catalog) {
+            if (after == null || !entry.getSegmentDate().isBefore(after.getTransactionDate().toLocalDate())) {
+                days.computeIfAbsent(entry.getSegmentDate(), day -> new ArrayList<>()).add(entry);
+            }
+        }
+        
+        List<FileChannel> open = new ArrayList<>();
+        Iterator<List<ArchivedSegment>> dayIterator = days.values().iterator();
+        Iterator<Transaction> transactions = new Iterator<Transaction>() {
+            private Iterator<Transaction> day = Collections.emptyIterator();
+            
+            @Override
+            public boolean hasNext() {
+                while (!day.hasNext()) {
+                    closeAll(open);
+                    if (!dayIterator.hasNext()) {
+                        return false;
+                    }
+                    // Later archive runs can add more segments for a day already archived
+                    List<Iterator<Transaction>> generations = new ArrayList<>();
+                    for (ArchivedSegment entry : dayIterator.next()) {
+                        FileChannel channel = openChannel(entry);
+                        open.add(channel);
+                        generations.add(new SegmentIterator(segment(entry), channel, accountId, after, filter));
+                    }
+                    day = SortedMerge.merge(generations, HISTORY_ORDER);
+                }
+                return true;
+            }
+            
+            @Override
+            public Transaction next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return day.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(transactions, Spliterator.ORDERED), false)
+                .onClose(() -> closeAll(open));
+    }
+    
+    public Transaction findById(List<ArchivedSegment> catalog, long id) {
+        for (ArchivedSegment entry : catalog) {
+            if (id < entry.getMinId() || id > entry.getMaxId()) {
+                continue;
+            }
+            ArchiveSegment segment = segment(entry);
+            try (FileChannel channel = openChannel(entry)) {
+                for (int block = 0; block < segment.getBlockCount(); block++) {
+                    if (!segment.mayContainId(block, id)) {
+                        continue;
+                    }
+                    for (Transaction transaction : segment.readBlock(channel, block)) {
+                        if (transaction.getId() == id) {
+                            return transaction;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return null;
+    }
+    
+    // Credits minus debits of the account over the segment, from the index alone, in minor units
+    public long netMovement(ArchivedSegment entry, long accountId) {
+        return segment(entry).netMovement(accountId);
+    }
+    
+    private ArchiveSegment segment(ArchivedSegment entry) {
+        ArchiveSegment segment = segments.get(entry.getFileName());
+        if (segment == null) {
+            try {
+                segment = ArchiveSegment.open(directory.resolve(entry.getFileName()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            segments.put(entry.getFileName(), segment);
+        }
+        return segment;
+    }
+    
+    private FileChannel openChannel(ArchivedSegment entry) {
+        try {
+            return FileChannel.open(directory.resolve(entry.getFileName()), StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private static void closeAll(List<FileChannel> channels) {
+        for (FileChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Read-only channel; nothing is lost
+            }
+        }
+        channels.clear();
+    }
+    
+    // Walks the blocks of one segment that can hold matching rows after the cursor
+    private static final class SegmentIterator implements Iterator<Transaction> {
+        
+        private final ArchiveSegment segment;
+        private final FileChannel channel;
+        private final int[] blocks;
+        private final TransactionCursor after;
+        private final Predicate<Transaction> filter;
+        private int nextBlock;
+        private Iterator<Transaction> current = Collections.emptyIterator();
+        private Transaction next;
+        
+        private SegmentIterator(ArchiveSegment segment, FileChannel channel, Long accountId,
+                                TransactionCursor after, Predicate<Transaction> filter) {
+            this.segment = segment;
+            this.channel = channel;
+            this.blocks = segment.blocksOf(accountId);
+            this.after = after;
+            this.filter = filter;
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (current.hasNext()) {
+                    Transaction candidate = current.next();
+                    if (isAfterCursor(candidate) && filter.test(candidate)) {
+                        next = candidate;
+                    }
+                    continue;
+                }
+                if (nextBlock == blocks.length) {
+                    return false;
+                }
+                int block = blocks[nextBlock++];
+                if (after != null && segment.endsAtOrBefore(block, after.getTransactionDate(), after.getId())) {
+                    continue;
+                }
+                try {
+                    current = segment.readBlock(channel, block).iterator();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public Transaction next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Transaction result = next;
+            next = null;
+            return result;
+        }
+        
+        private boolean isAfterCursor(Transaction transaction) {
+            if (after == null) {
+                return true;
+            }
+            int byDate = transaction.getTransactionDate().compareTo(after.getTransactionDate());
+            return byDate > 0 || (byDate == 0 && transaction.getId() > after.getId());
+        }
+    }
+}
+
+// TransactionArchiver.java
+package com.example.banking.archive;
+
+import com.example.banking.ArchivedAccountTotal;
+import com.example.banking.ArchivedSegment;
+import com.example.banking.ArchivedSegmentAccount;
+import com.example.banking.Money;
+import com.example.banking.MoneyType;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.LockMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.type.LocalDateTimeType;
+import org.hibernate.type.StandardBasicTypes;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Moves transactions older than max-age-days out of the transactions table into archive
+// segment files, one day per segment. A day is written to a .part file, synced and renamed
+// into place, and only then deleted from the table in the same database transaction that
+// records the segment and the accounts it mentions in the catalog and adds its per-account
+// net movements to ArchivedAccountTotal. If the delete does not remove exactly the rows written, e.g. because
+// a row for that day arrived meanwhile, the transaction rolls back and the segment stays
+// out of the catalog, so a transaction is always either in the table or in exactly one
+// cataloged segment. Renamed segment files are never deleted here, since a failed commit
+// may still have committed on the server; files that did not make it into the catalog,
+// whether from a failure or a crash, are deleted at the start of the next run.
+//
+// Rows that arrive for an already archived day go into a further segment for that day.
+// Archived transactions no longer take part in the idempotency key check. Run the archiver
+// on a single node; it is off unless banking.archive.enabled=true.
+@Component
+public class TransactionArchiver {
+    
+    private static final Log log = LogFactory.getLog(TransactionArchiver.class);
+    
+    // Rows fetched per round trip while archiving; MySQL needs useCursorFetch=true to honour it
+    private static final int FETCH_SIZE = 1000;
+    
+    private final SessionFactory sessionFactory;
+    private final TransactionArchive archive;
+    private final boolean enabled;
+    private final int maxAgeDays;
+    private final int blockRecords;
+    private final long intervalMillis;
+    
+    private ScheduledExecutorService scheduler;
+    
+    @Autowired
+    public TransactionArchiver(SessionFactory sessionFactory, TransactionArchive archive,
+                               @Value("${banking.archive.enabled:false}") boolean enabled,
+                               @Value("${banking.archive.max-age-days:90}") int maxAgeDays,
+                               @Value("${banking.archive.block-records:1024}") int blockRecords,
+                               @Value("${banking.archive.interval-ms:3600000}") long intervalMillis) {
+        if (maxAgeDays < 0 || blockRecords <= 0 || intervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid archive age, block size or interval");
+        }
+        this.sessionFactory = sessionFactory;
+        this.archive = archive;
+        this.enabled = enabled;
+        this.maxAgeDays = maxAgeDays;
+        this.blockRecords = blockRecords;
+        this.intervalMillis = intervalMillis;
+    }
+    
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transaction-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::archiveQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    public void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Archives every day older than max-age-days; returns the number of segments written
+    public int archive() {
+        return archiveBefore(LocalDate.now().minusDays(maxAgeDays));
+    }
+    
+    // Archives every day before the cutoff, oldest first; returns the number of segments written
+    public synchronized int archiveBefore(LocalDate cutoff) {
+        try {
+            Files.createDirectories(archive.getDirectory());
+            deleteOrphans();
+            int written = 0;
+            LocalDate day;
+            while ((day = findOldestDayBefore(cutoff)) != null) {
+                archiveDay(day);
+                written++;
+            }
+            return written;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private void archiveQuietly() {
+        try {
+            int written = archive();
+            if (written > 0) {
+                log.info("Archived " + written + " days of transactions");
+            }
+        } catch (RuntimeException e) {
+            log.warn("Transaction archiving failed; retrying in " + intervalMillis + " ms", e);
+        }
+    }
+    
+    private LocalDate findOldestDayBefore(LocalDate cutoff) {
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            Object oldest = session.createNativeQuery(
+                    "SELECT MIN(transaction_date) AS oldest FROM transactions WHERE transaction_date < :cutoff")
+                    .addScalar("oldest", LocalDateTimeType.INSTANCE)
+                    .setParameter("cutoff", cutoff.atStartOfDay())
+                    .uniqueResult();
+            return oldest == null ? null : ((LocalDateTime) oldest).toLocalDate();
+        }
+    }
+    
+    private void archiveDay(LocalDate day) throws IOException {
+        LocalDateTime from = day.atStartOfDay();
+        LocalDateTime to = day.plusDays(1).atStartOfDay();
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            org.hibernate.Transaction tx = session.beginTransaction();
+            Path part = null;
+            try {
+                long generation = session.createQuery(
+                        "SELECT COUNT(s) FROM ArchivedSegment s WHERE s.segmentDate = :day", Long.class)
+                        .setParameter("day", day)
+                        .uniqueResult() + 1;
+                String fileName = String.format("transactions-%s-%04d.seg", day, generation);
+                part = archive.getDirectory().resolve(fileName + ".part");
+                
+                ArchiveSegmentWriter writer = new ArchiveSegmentWriter(part, blockRecords);
+                try (ScrollableResults rows = session.createNativeQuery(
+                        "SELECT t.id, t.transaction_date, t.source_account_id, t.target_account_id, t.amount,"
+                                + " t.status, t.idempotency_key FROM transactions t"
+                                + " WHERE t.transaction_date >= :fromDate AND t.transaction_date < :toDate"
+                                + " ORDER BY t.transaction_date, t.id")
+                        .addScalar("id", StandardBasicTypes.LONG)
+                        .addScalar("transaction_date", LocalDateTimeType.INSTANCE)
+                        .addScalar("source_account_id", StandardBasicTypes.LONG)
+                        .addScalar("target_account_id", StandardBasicTypes.LONG)
+                        .addScalar("amount", MoneyType.INSTANCE)
+                        .addScalar("status", StandardBasicTypes.STRING)
+                        .addScalar("idempotency_key", StandardBasicTypes.STRING)
+                        .setParameter("fromDate", from)
+                        .setParameter("toDate", to)
+                        .setFetchSize(FETCH_SIZE)
+                        .setReadOnly(true)
+                        .scroll(ScrollMode.FORWARD_ONLY)) {
+                    while (rows.next()) {
+                        Object[] row = rows.get();
+                        writer.add((Long) row[0], (LocalDateTime) row[1], (Long) row[2], (Long) row[3],
+                                (Money) row[4], (String) row[5], (String) row[6]);
+                    }
+                    writer.finish();
+                } finally {
+                    writer.close();
+                }
+                Files.move(part, archive.getDirectory().resolve(fileName), StandardCopyOption.ATOMIC_MOVE);
+                part = null;
+                
+                int deleted = session.createNativeQuery(
+                        "DELETE FROM transactions WHERE transaction_date >= :fromDate AND transaction_date < :toDate")
+                        .setParameter("fromDate", from)
+                        .setParameter("toDate", to)
+                        .executeUpdate();
+                if (deleted != writer.getRecordCount()) {
+                    throw new IllegalStateException("Transactions of " + day + " changed while archiving: wrote "
+                            + writer.getRecordCount() + " rows but deleted " + deleted);
+                }
+                
+                session.insert(new ArchivedSegment(fileName, day, writer.getRecordCount(),
+                        writer.getMinId(), writer.getMaxId()));
+                for (Map.Entry<Long, Long> movement : writer.getNetMovements().entrySet()) {
+                    session.insert(new ArchivedSegmentAccount(movement.getKey(), fileName));
+                    Money net = Money.ofMinor(movement.getValue());
+                    ArchivedAccountTotal total = (ArchivedAccountTotal) session.get(
+                            ArchivedAccountTotal.class, movement.getKey(), LockMode.PESSIMISTIC_WRITE);
+                    if (total == null) {
+                        session.insert(new ArchivedAccountTotal(movement.getKey(), net));
+                    } else {
+                        total.setArchivedNet(total.getArchivedNet().add(net));
+                        session.update(total);
+                    }
+                }
+                tx.commit();
+                log.info("Archived " + writer.getRecordCount() + " transactions of " + day + " to " + fileName);
+            } catch (IOException | RuntimeException e) {
+                tx.rollback();
+                // Only the .part file: once renamed, the segment may be the sole copy of the
+                // day if the commit went through; deleteOrphans removes it otherwise
+                deleteQuietly(part);
+                throw e;
+            }
+        }
+    }
+    
+    // Segment files that are not in the catalog come from runs that never committed
+    private void deleteOrphans() throws IOException {
+        Set<String> cataloged;
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            cataloged = new HashSet<>(session.createQuery(
+                    "SELECT s.fileName FROM ArchivedSegment s", String.class).getResultList());
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(archive.getDirectory(), "transactions-*.seg*")) {
+            for (Path file : files) {
+                if (!cataloged.contains(file.getFileName().toString())) {
+                    log.info("Deleting uncommitted archive segment " + file.getFileName());
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+    
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete " + file + "; it is removed on the next archive run", e);
+        }
+    }
+}
+
+// TransactionArchiverTest.java
+package com.example.banking.archive;
+
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.repository.TransactionCursor;
+import com.example.banking.repository.TransactionPage;
+import com.example.banking.repository.TransactionRepository;
+import com.example.banking.service.AccountStatement;
+import com.example.banking.service.BankService;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.h2.api.Trigger;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.example.banking.testing.InMemoryBankingContext.accountNumber;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Archiving must not change what the history and statement reads return: they are taken once
+// over the table alone and again once two old days live in segments and today in the table
+class TransactionArchiverTest {
+    
+    private static final LocalDate FIRST_DAY = LocalDate.now().minusDays(5);
+    private static final LocalDate SECOND_DAY = FIRST_DAY.plusDays(1);
+    private static final int PAGE_SIZE = 2;
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void historyAndStatementsReadTheSameAcrossTableAndArchive() throws IOException {
+        try (InMemoryBankingContext context = new InMemoryBankingContext(archiveProperties())) {
+            List<Long> accountIds = seed(context);
+            List<String> before = readEverything(context, accountIds);
+            
+            int written = context.getBean(TransactionArchiver.class).archiveBefore(LocalDate.now().minusDays(1));
+            
+            assertEquals(2, written);
+            assertEquals(2, segmentFiles().size());
+            assertEquals(2L, count(context, "SELECT COUNT(s) FROM ArchivedSegment s"));
+            assertEquals(2L, countRows(context));
+            assertEquals(before, readEverything(context, accountIds));
+        }
+    }
+    
+    // A row for the day being archived shows up between writing the segment and deleting the
+    // day: the delete then removes one row more than was written, and everything rolls back.
+    // The segment file is already renamed but not cataloged, and the next run replaces it.
+    @Test
+    void dayThatChangesWhileArchivingRollsBack() throws IOException {
+        try (InMemoryBankingContext context = new InMemoryBankingContext(archiveProperties())) {
+            List<Long> accountIds = seed(context);
+            List<String> before = readEverything(context, accountIds);
+            TransactionArchiver archiver = context.getBean(TransactionArchiver.class);
+            
+            ArrivingTransaction.arrival = FIRST_DAY.atTime(23, 0);
+            execute(context, "CREATE TRIGGER arriving_transaction BEFORE DELETE ON transactions CALL '"
+                    + ArrivingTransaction.class.getName() + "'");
+            IllegalStateException e = assertThrows(IllegalStateException.class,
+                    () -> archiver.archiveBefore(LocalDate.now().minusDays(1)));
+            assertEquals("Transactions of " + FIRST_DAY + " changed while archiving: wrote 3 rows but deleted 4",
+                    e.getMessage());
+            
+            assertEquals(0L, count(context, "SELECT COUNT(s) FROM ArchivedSegment s"));
+            assertEquals(0L, count(context, "SELECT COUNT(t) FROM ArchivedAccountTotal t"));
+            assertEquals(7L, countRows(context));
+            assertEquals(1, segmentFiles().size());
+            assertEquals(before, readEverything(context, accountIds));
+            
+            execute(context, "DROP TRIGGER arriving_transaction");
+            assertEquals(2, archiver.archiveBefore(LocalDate.now().minusDays(1)));
+            assertEquals(2, segmentFiles().size());
+            assertEquals(2L, countRows(context));
+            assertEquals(before, readEverything(context, accountIds));
+        }
+    }
+    
+    // Inserts a transaction for the configured day through the connection of the statement that
+    // fired it, so it belongs to the archiving transaction and disappears with its rollback
+    public static class ArrivingTransaction implements Trigger {
+        
+        static volatile LocalDateTime arrival;
+        
+        @Override
+        public void fire(Connection connection, Object[] oldRow, Object[] newRow) throws SQLException {
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO transactions (id, transaction_date, status) VALUES (?, ?, 'SUCCESS')")) {
+                insert.setLong(1, 1_000_000_000L);
+                insert.setTimestamp(2, Timestamp.valueOf(arrival));
+                insert.executeUpdate();
+            }
+        }
+    }
+    
+    private Map<String, String> archiveProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("banking.archive.directory", directory.toString());
+        properties.put("banking.archive.block-records", "2");
+        return properties;
+    }
+    
+    // Three accounts; three transfers on the first day, one of them failed, two on the second,
+    // one of them from an account to itself, and two today
+    private static List<Long> seed(InMemoryBankingContext context) {
+        List<Long> ids = context.createAccounts(3, Money.ofMinor(100_000));
+        List<Transaction> transactions = new ArrayList<>();
+        transactions.add(transaction(ids.get(0), ids.get(1), 1000, FIRST_DAY.atTime(9, 0), "SUCCESS"));
+        transactions.add(transaction(ids.get(1), ids.get(0), 250, FIRST_DAY.atTime(13, 0), "SUCCESS"));
+        transactions.add(transaction(ids.get(0), ids.get(2), 100, FIRST_DAY.atTime(15, 0), "FAILED"));
+        transactions.add(transaction(ids.get(2), ids.get(0), 400, SECOND_DAY.atTime(10, 0), "SUCCESS"));
+        transactions.add(transaction(ids.get(0), ids.get(0), 100, SECOND_DAY.atTime(11, 0), "SUCCESS"));
+        transactions.add(transaction(ids.get(0), ids.get(1), 700, LocalDateTime.now().minusMinutes(2), "SUCCESS"));
+        transactions.add(transaction(ids.get(2), ids.get(0), 50, LocalDateTime.now().minusMinutes(1), "SUCCESS"));
+        TransactionRepository transactionRepository = context.getBean(TransactionRepository.class);
+        new TransactionTemplate(context.getBean(PlatformTransactionManager.class))
+                .executeWithoutResult(status -> transactionRepository.saveAll(transactions, 100));
+        return ids;
+    }
+    
+    // Every page of the whole history and of each account's debits and credits, and statements
+    // over all time, from the middle of the first day and over a window ending on the second
+    private static List<String> readEverything(InMemoryBankingContext context, List<Long> accountIds) {
+        BankService bankService = context.getBean(BankService.class);
+        List<String> reads = new ArrayList<>();
+        reads.add(pages((after, limit) -> bankService.getTransactionsPage(after, limit)));
+        for (int i = 0; i < accountIds.size(); i++) {
+            Long accountId = accountIds.get(i);
+            reads.add(pages((after, limit) -> bankService.getOutgoingTransactionsPage(accountId, after, limit)));
+            reads.add(pages((after, limit) -> bankService.getIncomingTransactionsPage(accountId, after, limit)));
+            reads.add(describe(bankService.getStatement(accountNumber(i), null, null)));
+            reads.add(describe(bankService.getStatement(accountNumber(i), FIRST_DAY.atTime(12, 0), null)));
+            reads.add(describe(bankService.getStatement(accountNumber(i),
+                    FIRST_DAY.atTime(12, 0), SECOND_DAY.atTime(10, 30))));
+        }
+        return reads;
+    }
+    
+    private static String pages(BiFunction<TransactionCursor, Integer, TransactionPage> read) {
+        List<Long> ids = new ArrayList<>();
+        TransactionPage page = read.apply(null, PAGE_SIZE);
+        page.getItems().forEach(transaction -> ids.add(transaction.getId()));
+        while (page.hasMore()) {
+            page = read.apply(page.getNextCursor(), PAGE_SIZE);
+            page.getItems().forEach(transaction -> ids.add(transaction.getId()));
+        }
+        return ids.toString();
+    }
+    
+    private static String describe(AccountStatement statement) {
+        return statement.getOpeningBalance() + " " + statement.getLines() + " " + statement.getClosingBalance();
+    }
+    
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+    
+    private static long countRows(InMemoryBankingContext context) {
+        try (StatelessSession session = context.getBean(SessionFactory.class).openStatelessSession()) {
+            return ((Number) session.createNativeQuery("SELECT COUNT(*) FROM transactions").uniqueResult()).longValue();
+        }
+    }
+    
+    private static long count(InMemoryBankingContext context, String query) {
+        try (StatelessSession session = context.getBean(SessionFactory.class).openStatelessSession()) {
+            return session.createQuery(query, Long.class).uniqueResult();
+        }
+    }
+    
+    private static void execute(InMemoryBankingContext context, String statement) {
+        try (StatelessSession session = context.getBean(SessionFactory.class).openStatelessSession()) {
+            org.hibernate.Transaction tx = session.beginTransaction();
+            session.createNativeQuery(statement).executeUpdate();
+            tx.commit();
+        }
+    }
+    
+    private static Transaction transaction(Long sourceAccountId, Long targetAccountId, long minorUnits,
+                                           LocalDateTime transactionDate, String status) {
+        Transaction transaction = new Transaction(sourceAccountId, targetAccountId, Money.ofMinor(minorUnits));
+        transaction.setTransactionDate(transactionDate);
+        transaction.setStatus(status);
+        return transaction;
+    }
+}
+
+// TransferEvent.java
+package com.example.banking.outbox;
+
+import com.example.banking.Money;
+
+import java.time.LocalDateTime;
+
+// One entry of the transfer feed: amount moved from the source to the target account.
+// Sequences start at 1 and increase by one per event, so a consumer that remembers the last
+// sequence it processed can skip events delivered to it a second time.
+public class TransferEvent {
+    
+    private final long sequence;
+    private final Long transactionId;
+    private final Long sourceAccountId;
+    private final Long targetAccountId;
+    private final Money amount;
+    private final LocalDateTime occurredAt;
+    
+    public TransferEvent(long sequence, Long transactionId, Long sourceAccountId, Long targetAccountId,
+                         Money amount, LocalDateTime occurredAt) {
+        this.sequence = sequence;
+        this.transactionId = transactionId;
+        this.sourceAccountId = sourceAccountId;
+        this.targetAccountId = targetAccountId;
+        this.amount = amount;
+        this.occurredAt = occurredAt;
+    }
+    
+    public long getSequence() {
+        return sequence;
+    }
+    
+    public Long getTransactionId() {
+        return transactionId;
+    }
+    
+    public Long getSourceAccountId() {
+        return sourceAccountId;
+    }
+    
+    public Long getTargetAccountId() {
+        return targetAccountId;
+    }
+    
+    public Money getAmount() {
+        return amount;
+    }
+    
+    public LocalDateTime getOccurredAt() {
+        return occurredAt;
+    }
+    
+    @Override
+    public String toString() {
+        return "TransferEvent{" +
+                "sequence=" + sequence +
+                ", transactionId=" + transactionId +
+                ", sourceAccountId=" + sourceAccountId +
+                ", targetAccountId=" + targetAccountId +
+                ", amount=" + amount +
+                ", occurredAt=" + occurredAt +
+                '}';
+    }
+}
+
+// TransactionOutbox.java
+package com.example.banking.outbox;
+
+import com.example.banking.OutboxEvent;
+import com.example.banking.Transaction;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+// Write side of the transactional outbox: adds an OutboxEvent for each successful transfer
+// to the caller's database transaction, so an event exists exactly when its transfer
+// committed. Ids come from a pooled generator that hands them out in increasing order on
+// each node, and a transfer records its event while it holds its accounts' locks, so the
+// events of one account keep their order as long as its transfers run on one node.
+// Off unless banking.outbox.enabled=true.
+@Component
+public class TransactionOutbox {
+    
+    private final SessionFactory sessionFactory;
+    private final boolean enabled;
+    private final int batchSize;
+    
+    @Autowired
+    public TransactionOutbox(SessionFactory sessionFactory,
+                             @Value("${banking.outbox.enabled:false}") boolean enabled,
+                             @Value("${hibernate.jdbc.batch_size:50}") int batchSize) {
+        this.sessionFactory = sessionFactory;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+    }
+    
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    public void record(Transaction transaction) {
+        if (enabled && "SUCCESS".equals(transaction.getStatus())) {
+            sessionFactory.getCurrentSession().persist(new OutboxEvent(transaction));
+        }
+    }
+    
+    // Same as TransactionRepository.saveAll: flushed every batchSize events so the inserts go
+    // out as JDBC batches, and evicted to keep the session small. Transactions that did not
+    // succeed are skipped.
+    public void recordAll(Collection<Transaction> transactions) {
+        if (!enabled) {
+            return;
+        }
+        Session session = sessionFactory.getCurrentSession();
+        List<OutboxEvent> pending = new ArrayList<>(batchSize);
+        for (Transaction transaction : transactions) {
+            if (!"SUCCESS".equals(transaction.getStatus())) {
+                continue;
+            }
+            OutboxEvent event = new OutboxEvent(transaction);
+            session.persist(event);
+            pending.add(event);
+            if (pending.size() >= batchSize) {
+                flushAndEvict(session, pending);
+            }
+        }
+        flushAndEvict(session, pending);
+    }
+    
+    private void flushAndEvict(Session session, List<OutboxEvent> pending) {
+        if (pending.isEmpty()) {
+            return;
+        }
+        session.flush();
+        for (OutboxEvent event : pending) {
+            session.evict(event);
+        }
+        pending.clear();
+    }
+}
+
+// OutboxFileSink.java
+package com.example.banking.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Append-only CSV copy of the transfer feed in the BulkFormat CSV conventions: a header line,
+// then one line per event with money as a plain decimal and ISO-8601 local date-times.
+// Each append is forced to disk before it returns. Events at or below the last sequence
+// already in the file are skipped, so redelivered batches are written once; a line torn by
+// a crash is cut off when the file is reopened.
+public class OutboxFileSink implements Closeable {
+    
+    static final String HEADER = "sequence,transaction_id,source_account_id,target_account_id,amount,occurred_at";
+    
+    // Longer than any line, so the tail always holds the last complete one
+    private static final int TAIL_BYTES = 4096;
+    
+    private final Path file;
+    private final FileChannel channel;
+    private long lastSequence;
+    
+    public OutboxFileSink(Path file) throws IOException {
+        this.file = file;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            this.lastSequence = recover();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    public Path getFile() {
+        return file;
+    }
+    
+    public long getLastSequence() {
+        return lastSequence;
+    }
+    
+    public void append(List<TransferEvent> events) throws IOException {
+        StringBuilder lines = new StringBuilder(events.size() * 80);
+        long last = lastSequence;
+        for (TransferEvent event : events) {
+            if (event.getSequence() <= last) {
+                continue;
+            }
+            lines.append(event.getSequence()).append(',')
+                    .append(event.getTransactionId()).append(',')
+                    .append(event.getSourceAccountId()).append(',')
+                    .append(event.getTargetAccountId()).append(',')
+                    .append(event.getAmount()).append(',')
+                    .append(event.getOccurredAt()).append('\n');
+            last = event.getSequence();
+        }
+        if (last == lastSequence) {
+            return;
+        }
+        write(lines.toString());
+        channel.force(false);
+        lastSequence = last;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    private long recover() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            write(HEADER + "\n");
+            channel.force(true);
+            return 0;
+        }
+        
+        int length = (int) Math.min(size, TAIL_BYTES);
+        ByteBuffer tail = ByteBuffer.allocate(length);
+        while (tail.hasRemaining() && channel.read(tail, size - length + tail.position()) >= 0) {
+            // read until the buffer is full
+        }
+        String text = new String(tail.array(), StandardCharsets.UTF_8);
+        int end = text.lastIndexOf('\n');
+        if (end < 0) {
+            throw new IOException("No complete line in the last " + length + " bytes of " + file);
+        }
+        if (end < text.length() - 1) {
+            channel.truncate(size - length + end + 1);
+            channel.force(true);
+        }
+        
+        int start = text.lastIndexOf('\n', end - 1) + 1;
+        if (start == 0 && size > length) {
+            throw new IOException("Line longer than " + length + " bytes at the end of " + file);
+        }
+        String line = text.substring(start, end);
+        if (line.equals(HEADER)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(line.substring(0, line.indexOf(',')));
+        } catch (RuntimeException e) {
+            throw new IOException("Unreadable last line in " + file + ": " + line, e);
+        }
+    }
+    
+    private void write(String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
+
+// OutboxRelay.java
+package com.example.banking.outbox;
+
+import com.example.banking.OutboxCursor;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.LockMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Read side of the transactional outbox. Each round first numbers up to batch-size new
+// outbox events in id order, continuing the sequence kept in OutboxCursor, then hands the
+// numbered events in sequence order to the file sink and to every subscriber, and only then
+// moves the cursor's delivered mark. A failed delivery leaves the mark where it was and the
+// same events, with the same sequences, are delivered again in the next round; subscribers
+// therefore see every event at least once and in order, and should ignore sequences they
+// have already processed. Numbering happens under a lock on the cursor row and new events
+// are only numbered once the previous ones are delivered.
+//
+// An event is numbered when the relay first sees it committed, so a transfer that commits
+// late follows events with higher ids; see TransactionOutbox for the order within an account.
+// Delivered events stay in the table for retention-hours and can be read again with
+// findEventsAfter. Run the relay on a single node; it is off unless
+// banking.outbox.relay-enabled=true.
+@Component
+public class OutboxRelay {
+    
+    private static final Log log = LogFactory.getLog(OutboxRelay.class);
+    
+    private static final long PRUNE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    
+    private final SessionFactory sessionFactory;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long intervalMillis;
+    private final String file;
+    private final long retentionHours;
+    
+    private final List<Consumer<List<TransferEvent>>> subscribers = new CopyOnWriteArrayList<>();
+    private OutboxFileSink fileSink;
+    private ScheduledExecutorService scheduler;
+    private long nextPruneAt;
+    
+    @Autowired
+    public OutboxRelay(SessionFactory sessionFactory,
+                       @Value("${banking.outbox.relay-enabled:false}") boolean enabled,
+                       @Value("${banking.outbox.batch-size:500}") int batchSize,
+                       @Value("${banking.outbox.interval-ms:100}") long intervalMillis,
+                       @Value("${banking.outbox.file:outbox/transfer-events.csv}") String file,
+                       @Value("${banking.outbox.retention-hours:24}") long retentionHours) {
+        if (batchSize <= 0 || intervalMillis <= 0 || retentionHours < 0) {
+            throw new IllegalArgumentException("Invalid outbox batch size, interval or retention");
+        }
+        this.sessionFactory = sessionFactory;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.intervalMillis = intervalMillis;
+        this.file = file;
+        this.retentionHours = retentionHours;
+    }
+    
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (!file.isEmpty()) {
+            fileSink = new OutboxFileSink(Paths.get(file));
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbox-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::relayQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    public void stop() throws IOException {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (fileSink != null) {
+            fileSink.close();
+        }
+    }
+    
+    // Subscribers are called on the relay thread with each batch in sequence order; a
+    // subscriber that throws makes the whole batch be delivered again
+    public void subscribe(Consumer<List<TransferEvent>> subscriber) {
+        subscribers.add(subscriber);
+    }
+    
+    public void unsubscribe(Consumer<List<TransferEvent>> subscriber) {
+        subscribers.remove(subscriber);
+    }
+    
+    // Delivers everything committed so far; returns the number of events delivered
+    public synchronized long relay() {
+        long delivered = 0;
+        int batch;
+        do {
+            batch = relayBatch();
+            delivered += batch;
+        } while (batch == batchSize);
+        
+        long now = System.currentTimeMillis();
+        if (now >= nextPruneAt) {
+            prune();
+            nextPruneAt = now + PRUNE_INTERVAL_MILLIS;
+        }
+        return delivered;
+    }
+    
+    // Delivered events after the given sequence that are still retained, in sequence order
+    public List<TransferEvent> findEventsAfter(long sequence, int limit) {
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            return session.createQuery(
+                    "SELECT new com.example.banking.outbox.TransferEvent(e.relaySequence, e.transactionId,"
+                            + " e.sourceAccountId, e.targetAccountId, e.amount, e.occurredAt)"
+                            + " FROM OutboxEvent e, OutboxCursor c"
+                            + " WHERE c.id = :cursor AND e.relaySequence > :after AND e.relaySequence <= c.lastDelivered"
+                            + " ORDER BY e.relaySequence", TransferEvent.class)
+                    .setParameter("cursor", OutboxCursor.SINGLETON_ID)
+                    .setParameter("after", sequence)
+                    .setMaxResults(limit)
+                    .getResultList();
+        }
+    }
+    
+    public long getLastDeliveredSequence() {
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            OutboxCursor cursor = (OutboxCursor) session.get(OutboxCursor.class, OutboxCursor.SINGLETON_ID);
+            return cursor == null ? 0L : cursor.getLastDelivered();
+        }
+    }
+    
+    private void relayQuietly() {
+        try {
+            relay();
+        } catch (RuntimeException e) {
+            log.warn("Outbox relay failed; retrying in " + intervalMillis + " ms", e);
+        }
+    }
+    
+    private int relayBatch() {
+        OutboxCursor cursor = assignSequences();
+        if (cursor.getLastAssigned() == cursor.getLastDelivered()) {
+            return 0;
+        }
+        
+        List<TransferEvent> events;
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            events = session.createQuery(
+                    "SELECT new com.example.banking.outbox.TransferEvent(e.relaySequence, e.transactionId,"
+                            + " e.sourceAccountId, e.targetAccountId, e.amount, e.occurredAt)"
+                            + " FROM OutboxEvent e WHERE e.relaySequence > :after AND e.relaySequence <= :upTo"
+                            + " ORDER BY e.relaySequence", TransferEvent.class)
+                    .setParameter("after", cursor.getLastDelivered())
+                    .setParameter("upTo", cursor.getLastAssigned())
+                    .setMaxResults(batchSize)
+                    .getResultList();
+        }
+        if (events.isEmpty()) {
+            throw new IllegalStateException("Outbox events " + (cursor.getLastDelivered() + 1) + " to "
+                    + cursor.getLastAssigned() + " are missing");
+        }
+        
+        List<TransferEvent> batch = Collections.unmodifiableList(events);
+        try {
+            if (fileSink != null) {
+                fileSink.append(batch);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append to " + fileSink.getFile(), e);
+        }
+        for (Consumer<List<TransferEvent>> subscriber : subscribers) {
+            subscriber.accept(batch);
+        }
+        markDelivered(events.get(events.size() - 1).getSequence());
+        return events.size();
+    }
+    
+    // Numbers the next batch of new events unless earlier ones still wait for delivery;
+    // returns the cursor after numbering
+    private OutboxCursor assignSequences() {
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            org.hibernate.Transaction tx = session.beginTransaction();
+            try {
+                OutboxCursor cursor = (OutboxCursor) session.get(
+                        OutboxCursor.class, OutboxCursor.SINGLETON_ID, LockMode.PESSIMISTIC_WRITE);
+                if (cursor == null) {
+                    cursor = new OutboxCursor();
+                    session.insert(cursor);
+                }
+                if (cursor.getLastAssigned() == cursor.getLastDelivered()) {
+                    List<Long> ids = session.createQuery(
+                            "SELECT e.id FROM OutboxEvent e WHERE e.relaySequence IS NULL ORDER BY e.id", Long.class)
+                            .setMaxResults(batchSize)
+                            .getResultList();
+                    if (!ids.isEmpty()) {
+                        long first = cursor.getLastAssigned() + 1;
+                        session.doWork(connection -> {
+                            try (PreparedStatement statement = connection.prepareStatement(
+                                    "UPDATE outbox_events SET relay_sequence = ? WHERE id = ?")) {
+                                for (int i = 0; i < ids.size(); i++) {
+                                    statement.setLong(1, first + i);
+                                    statement.setLong(2, ids.get(i));
+                                    statement.addBatch();
+                                }
+                                statement.executeBatch();
+                            }
+                        });
+                        cursor.setLastAssigned(first + ids.size() - 1);
+                        cursor.setUpdatedAt(LocalDateTime.now());
+                        session.update(cursor);
+                    }
+                }
+                tx.commit();
+                return cursor;
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    private void markDelivered(long sequence) {
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            org.hibernate.Transaction tx = session.beginTransaction();
+            try {
+                session.createQuery("UPDATE OutboxCursor c SET c.lastDelivered = :sequence, c.updatedAt = :now"
+                        + " WHERE c.id = :cursor AND c.lastDelivered < :sequence")
+                        .setParameter("sequence", sequence)
+                        .setParameter("now", LocalDateTime.now())
+                        .setParameter("cursor", OutboxCursor.SINGLETON_ID)
+                        .executeUpdate();
+                tx.commit();
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    private void prune() {
+        try (StatelessSession session = sessionFactory.openStatelessSession()) {
+            org.hibernate.Transaction tx = session.beginTransaction();
+            try {
+                int deleted = session.createQuery("DELETE FROM OutboxEvent e WHERE e.relaySequence <="
+                        + " (SELECT c.lastDelivered FROM OutboxCursor c WHERE c.id = :cursor)"
+                        + " AND e.occurredAt < :cutoff")
+                        .setParameter("cursor", OutboxCursor.SINGLETON_ID)
+                        .setParameter("cutoff", LocalDateTime.now().minusHours(retentionHours))
+                        .executeUpdate();
+                tx.commit();
+                if (deleted > 0) {
+                    log.info("Pruned " + deleted + " delivered outbox events");
+                }
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+}
+
+// Histogram.java
+package com.example.banking.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed-size log-linear histogram in the style of HdrHistogram: every power of two is split
+// into 128 linear sub-buckets, so a recorded value is off by less than 1% and recording is
+// a bucket computation plus two atomic increments, with no allocation or locking.
+// Values from 2^40 up (about 18 minutes in nanoseconds) all land in the last bucket.
+public class Histogram {
+    
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    
+    private final String name;
+    private final String unit;
+    private final double scale;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    
+    // Recorded values are divided by scale when reported, e.g. nanoseconds shown as "us"
+    public Histogram(String name, String unit, double scale) {
+        this.name = name;
+        this.unit = unit;
+        this.scale = scale;
+    }
+    
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+    
+    // Concurrent recording may or may not be included; the snapshot itself is consistent
+    public HistogramSnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        long maxValue = max.get();
+        return new HistogramSnapshot(name, unit, count,
+                count == 0 ? 0 : sum.sum() / (double) count / scale,
+                percentile(copy, count, 0.50, maxValue) / scale,
+                percentile(copy, count, 0.99, maxValue) / scale,
+                percentile(copy, count, 0.999, maxValue) / scale,
+                maxValue / scale);
+    }
+    
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        sum.reset();
+        max.set(0);
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift);
+        return (shift + 1) * SUB_BUCKETS + subBucket - SUB_BUCKETS;
+    }
+    
+    // Highest value that maps to the bucket
+    static long highestValueAt(int index) {
+        int shift = index / SUB_BUCKETS - 1;
+        if (shift <= 0) {
+            return index;
+        }
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+    
+    private static long percentile(long[] counts, long count, double percentile, long maxValue) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), maxValue);
+            }
+        }
+        return maxValue;
+    }
+}
+
+// HistogramSnapshot.java
+package com.example.banking.metrics;
+
+// Point-in-time summary of a Histogram, already converted to its reporting unit
+public class HistogramSnapshot {
+    
+    private final String name;
+    private final String unit;
+    private final long count;
+    private final double mean;
+    private final double p50;
+    private final double p99;
+    private final double p999;
+    private final double max;
+    
+    public HistogramSnapshot(String name, String unit, long count, double mean,
+                             double p50, double p99, double p999, double max) {
+        this.name = name;
+        this.unit = unit;
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public String getUnit() {
+        return unit;
+    }
+    
+    public long getCount() {
+        return count;
+    }
+    
+    public double getMean() {
+        return mean;
+    }
+    
+    public double getP50() {
+        return p50;
+    }
+    
+    public double getP99() {
+        return p99;
+    }
+    
+    public double getP999() {
+        return p999;
+    }
+    
+    public double getMax() {
+        return max;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%s count=%d mean=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f %s",
+                name, count, mean, p50, p99, p999, max, unit);
+    }
+}
+
+// HistogramMXBean.java
+package com.example.banking.metrics;
+
+// JMX view of one histogram, registered as com.example.banking:type=Metrics,name=<metric>
+public interface HistogramMXBean {
+    
+    String getUnit();
+    
+    long getCount();
+    
+    double getMean();
+    
+    double getP50();
+    
+    double getP99();
+    
+    double getP999();
+    
+    double getMax();
+    
+    void reset();
+}
+
+// SqlStatementCounter.java
+package com.example.banking.metrics;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+// Registered as Hibernate's statement inspector; counts every statement Hibernate prepares
+// on the calling thread. A JDBC batch reuses one prepared statement and counts once.
+public class SqlStatementCounter implements StatementInspector {
+    
+    private static final ThreadLocal<long[]> COUNT = ThreadLocal.withInitial(() -> new long[1]);
+    
+    // Statements prepared by the current thread so far; callers take the difference
+    public static long currentCount() {
+        return COUNT.get()[0];
+    }
+    
+    @Override
+    public String inspect(String sql) {
+        COUNT.get()[0]++;
+        return sql;
+    }
+}
+
+// MetricsRegistry.java
+package com.example.banking.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// In-process registry of named histograms. Timers record nanoseconds and report
+// microseconds; distributions report what was recorded. Each histogram is published over
+// JMX when it is first created, and non-empty ones are logged every
+// banking.metrics.log-interval-ms (0 turns the log dump off).
+@Component
+public class MetricsRegistry {
+    
+    private static final Log log = LogFactory.getLog(MetricsRegistry.class);
+    private static final String OBJECT_NAME_PREFIX = "com.example.banking:type=Metrics,name=";
+    
+    private final boolean jmxEnabled;
+    private final long logIntervalMillis;
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+    private ScheduledExecutorService reporter;
+    
+    // Created early by MetricsBeanPostProcessor, before ${...} placeholders are resolvable,
+    // so settings are read from the Environment directly
+    @Autowired
+    public MetricsRegistry(Environment env) {
+        this.jmxEnabled = env.getProperty("banking.metrics.jmx-enabled", Boolean.class, true);
+        this.logIntervalMillis = env.getProperty("banking.metrics.log-interval-ms", Long.class, 60000L);
+    }
+    
+    @PostConstruct
+    public void start() {
+        if (logIntervalMillis <= 0) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleWithFixedDelay(this::logSnapshot, logIntervalMillis, logIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    @PreDestroy
+    public void stop() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registeredNames) {
+            for (ObjectName name : registeredNames) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    log.warn("Could not unregister " + name, e);
+                }
+            }
+            registeredNames.clear();
+        }
+    }
+    
+    public Histogram timer(String name) {
+        return histogram(name, "us", 1000.0);
+    }
+    
+    public Histogram distribution(String name) {
+        return histogram(name, "", 1.0);
+    }
+    
+    // Sorted by name
+    public Map<String, HistogramSnapshot> snapshot() {
+        Map<String, HistogramSnapshot> snapshots = new TreeMap<>();
+        for (Histogram histogram : histograms.values()) {
+            snapshots.put(histogram.getName(), histogram.snapshot());
+        }
+        return snapshots;
+    }
+    
+    public void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+    
+    public void logSnapshot() {
+        for (HistogramSnapshot snapshot : snapshot().values()) {
+            if (snapshot.getCount() > 0) {
+                log.info(snapshot);
+            }
+        }
+    }
+    
+    private Histogram histogram(String name, String unit, double scale) {
+        Histogram histogram = histograms.get(name);
+        if (histogram != null) {
+            return histogram;
+        }
+        Histogram created = new Histogram(name, unit, scale);
+        histogram = histograms.putIfAbsent(name, created);
+        if (histogram != null) {
+            return histogram;
+        }
+        if (jmxEnabled) {
+            register(created);
+        }
+        return created;
+    }
+    
+    private void register(Histogram histogram) {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(histogram.getName()));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new HistogramView(histogram), name);
+            synchronized (registeredNames) {
+                registeredNames.add(name);
+            }
+        } catch (JMException e) {
+            // Typically a second context in the same JVM; the histogram still records
+            log.warn("Could not register metric " + histogram.getName() + " over JMX", e);
+        }
+    }
+    
+    private static class HistogramView implements HistogramMXBean {
+        
+        private final Histogram histogram;
+        
+        HistogramView(Histogram histogram) {
+            this.histogram = histogram;
+        }
+        
+        @Override
+        public String getUnit() {
+            return histogram.snapshot().getUnit();
+        }
+        
+        @Override
+        public long getCount() {
+            return histogram.snapshot().getCount();
+        }
+        
+        @Override
+        public double getMean() {
+            return histogram.snapshot().getMean();
+        }
+        
+        @Override
+        public double getP50() {
+            return histogram.snapshot().getP50();
+        }
+        
+        @Override
+        public double getP99() {
+            return histogram.snapshot().getP99();
+        }
+        
+        @Override
+        public double getP999() {
+            return histogram.snapshot().getP999();
+        }
+        
+        @Override
+        public double getMax() {
+            return histogram.snapshot().getMax();
+        }
+        
+        @Override
+        public void reset() {
+            histogram.reset();
+        }
+    }
+}
+
+// MetricsBeanPostProcessor.java
+package com.example.banking.metrics;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.ClassFilter;
+import org.springframework.aop.framework.autoproxy.AbstractBeanFactoryAwareAdvisingPostProcessor;
+import org.springframework.aop.support.ClassFilters;
+import org.springframework.aop.support.ComposablePointcut;
+import org.springframework.aop.support.DefaultPointcutAdvisor;
+import org.springframework.aop.support.StaticMethodMatcher;
+import org.springframework.aop.support.annotation.AnnotationClassFilter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.stereotype.Repository;
+import org.springframework.stereotype.Service;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Times every public method of @Service and @Repository beans as <Class>.<method>. For
+// services it also records how many SQL statements the call prepared as <Class>.<method>.sql.
+// The advice is added in front of the transaction interceptor, so service timings include
+// the commit. Off when banking.metrics.enabled=false.
+@Component
+public class MetricsBeanPostProcessor extends AbstractBeanFactoryAwareAdvisingPostProcessor {
+    
+    @Autowired
+    public MetricsBeanPostProcessor(MetricsRegistry registry, Environment env) {
+        if (env.getProperty("banking.metrics.enabled", Boolean.class, true)) {
+            ClassFilter metered = ClassFilters.union(
+                    new AnnotationClassFilter(Service.class, true), new AnnotationClassFilter(Repository.class, true));
+            this.advisor = new DefaultPointcutAdvisor(
+                    new ComposablePointcut(metered, new PublicMethodMatcher()), new MeteringInterceptor(registry));
+        }
+        setBeforeExistingAdvisors(true);
+    }
+    
+    private static class PublicMethodMatcher extends StaticMethodMatcher {
+        
+        @Override
+        public boolean matches(Method method, Class<?> targetClass) {
+            return Modifier.isPublic(method.getModifiers()) && method.getDeclaringClass() != Object.class;
+        }
+    }
+    
+    private static class MeteringInterceptor implements MethodInterceptor {
+        
+        private final MetricsRegistry registry;
+        private final ConcurrentMap<Method, Histogram[]> histograms = new ConcurrentHashMap<>();
+        
+        MeteringInterceptor(MetricsRegistry registry) {
+            this.registry = registry;
+        }
+        
+        @Override
+        public Object invoke(MethodInvocation invocation) throws Throwable {
+            Histogram[] metrics = histograms.get(invocation.getMethod());
+            if (metrics == null) {
+                metrics = histograms.computeIfAbsent(invocation.getMethod(), this::createHistograms);
+            }
+            long statements = SqlStatementCounter.currentCount();
+            long start = System.nanoTime();
+            try {
+                return invocation.proceed();
+            } finally {
+                metrics[0].record(System.nanoTime() - start);
+                if (metrics.length > 1) {
+                    metrics[1].record(SqlStatementCounter.currentCount() - statements);
+                }
+            }
+        }
+        
+        private Histogram[] createHistograms(Method method) {
+            Class<?> type = method.getDeclaringClass();
+            String name = type.getSimpleName() + "." + method.getName();
+            if (type.isAnnotationPresent(Service.class)) {
+                return new Histogram[] {registry.timer(name), registry.distribution(name + ".sql")};
+            }
+            return new Histogram[] {registry.timer(name)};
+        }
     }
 }
 
 // ApplicationConfig.java
 package com.example.banking.config;
 
-import org.apache.commons.dbcp2.BasicDataSource;
+import com.example.banking.metrics.MetricsRegistry;
+import com.example.banking.metrics.SqlStatementCounter;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.orm.hibernate5.HibernateTransactionManager;
+import org.springframework.orm.hibernate5.LocalSessionFactoryBean;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.util.StringUtils;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+@Configuration
+@PropertySource("classpath:application.properties")
+@EnableTransactionManagement
+@ComponentScan(basePackages = "com.example.banking")
+public class ApplicationConfig {
+    
+    @Autowired
+    private Environment env;
+    
+    @Autowired
+    private MetricsRegistry metricsRegistry;
+    
+    @Bean
+    public DataSource dataSource() {
+        String url = env.getProperty("jdbc.url");
+        String username = env.getProperty("jdbc.username");
+        String password = env.getProperty("jdbc.password");
+        BasicDataSource primary = createPool(url, username, password, env.getProperty("jdbc.pool.max-total", Integer.class, 8));
+        BasicDataSource idAllocationPool = createPool(url, username, password, env.getProperty("jdbc.id-pool.max-total", Integer.class, 2));
+        
+        // Read-only transactions go to the replicas when any are configured
+        List<DataSource> replicas = new ArrayList<>();
+        for (String replicaUrl : StringUtils.tokenizeToStringArray(env.getProperty("jdbc.replica.urls", ""), ",")) {
+            BasicDataSource replica = createPool(replicaUrl,
+                    env.getProperty("jdbc.replica.username", username),
+                    env.getProperty("jdbc.replica.password", password),
+                    env.getProperty("jdbc.replica.pool.max-total", Integer.class, 8));
+            replica.setDefaultReadOnly(Boolean.TRUE);
+            replicas.add(replica);
+        }
+        DataSource pool = replicas.isEmpty() ? primary : new ReadWriteRoutingDataSource(primary, replicas,
+                env.getProperty("jdbc.replica.lag-check-ms", Long.class, 1000L),
+                env.getProperty("jdbc.replica.max-lag-ms", Long.class, 5000L));
+        return new IdAllocationDataSource(pool, idAllocationPool, metricsRegistry.timer("DataSource.getConnection"));
+    }
+    
+    private BasicDataSource createPool(String url, String username, String password, int maxTotal) {
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName(env.getProperty("jdbc.driverClassName"));
+        dataSource.setUrl(url);
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+        dataSource.setMaxTotal(maxTotal);
+        dataSource.setMaxIdle(maxTotal);
+        
+        // MySQL only turns a JDBC batch into a multi-row statement when this is enabled
+        String rewriteBatchedStatements = env.getProperty("jdbc.rewriteBatchedStatements");
+        if (rewriteBatchedStatements != null) {
+            dataSource.addConnectionProperty("rewriteBatchedStatements", rewriteBatchedStatements);
+        }
+        return dataSource;
+    }
+    
+    @Bean
+    public LocalSessionFactoryBean sessionFactory() {
+        LocalSessionFactoryBean sessionFactory = new LocalSessionFactoryBean();
+        sessionFactory.setDataSource(dataSource());
+        sessionFactory.setPackagesToScan("com.example.banking");
+        sessionFactory.setHibernateProperties(hibernateProperties());
+        return sessionFactory;
+    }
+    
+    @Bean
+    @Autowired
+    public HibernateTransactionManager transactionManager(SessionFactory sessionFactory) {
+        HibernateTransactionManager transactionManager = new ReadWriteRoutingTransactionManager();
+        transactionManager.setSessionFactory(sessionFactory);
+        return transactionManager;
+    }
+    
+    private Properties hibernateProperties() {
+        Properties properties = new Properties();
+        properties.put("hibernate.dialect", env.getProperty("hibernate.dialect"));
+        properties.put("hibernate.show_sql", env.getProperty("hibernate.show_sql", "false"));
+        properties.put("hibernate.format_sql", env.getProperty("hibernate.format_sql", "false"));
+        properties.put("hibernate.hbm2ddl.auto", env.getProperty("hibernate.hbm2ddl.auto", "update"));
+        
+        // JDBC batching; ordering groups statements by entity so batches are not broken up
+        properties.put("hibernate.jdbc.batch_size", env.getProperty("hibernate.jdbc.batch_size", "50"));
+        properties.put("hibernate.order_inserts", "true");
+        properties.put("hibernate.order_updates", "true");
+        properties.put("hibernate.jdbc.batch_versioned_data", "true");
+        
+        // Lets MetricsBeanPostProcessor report SQL statements per service call
+        properties.put("hibernate.session_factory.statement_inspector", SqlStatementCounter.class.getName());
+        return properties;
+    }
+}
+
+// IdAllocationDataSource.java
+package com.example.banking.config;
+
+import com.example.banking.metrics.Histogram;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.function.Supplier;
+
+// The pooled id generators keep their hi values in tables on MySQL, and Hibernate fetches the
+// next block on a separate connection while the inserting transaction still holds its own.
+// If that second connection came from the same pool, a burst of transfers waiting on account
+// locks could hold every connection while the lock owner waits for one to allocate ids.
+// Connections opened while ReservedPoolSequenceGenerator allocates ids are therefore served
+// from a small reserved pool that never waits on anything but the id tables. Everything else,
+// including StatelessSession work started inside a transaction, uses the main pool.
+public class IdAllocationDataSource extends DelegatingDataSource {
+    
+    private static final ThreadLocal<Boolean> ALLOCATING_IDS = new ThreadLocal<>();
+    
+    private final DataSource pool;
+    private final BasicDataSource idAllocationPool;
+    private final Histogram connectionWait;
+    
+    // connectionWait records how long each checkout from the main pool took
+    public IdAllocationDataSource(DataSource pool, BasicDataSource idAllocationPool, Histogram connectionWait) {
+        super(pool);
+        this.pool = pool;
+        this.idAllocationPool = idAllocationPool;
+        this.connectionWait = connectionWait;
+    }
+    
+    // Runs id allocation so that any connection it opens comes from the reserved pool
+    public static <T> T allocatingIds(Supplier<T> allocation) {
+        if (ALLOCATING_IDS.get() != null) {
+            return allocation.get();
+        }
+        ALLOCATING_IDS.set(Boolean.TRUE);
+        try {
+            return allocation.get();
+        } finally {
+            ALLOCATING_IDS.remove();
+        }
+    }
+    
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (ALLOCATING_IDS.get() != null) {
+            return idAllocationPool.getConnection();
+        }
+        long start = System.nanoTime();
+        try {
+            return pool.getConnection();
+        } finally {
+            connectionWait.record(System.nanoTime() - start);
+        }
+    }
+    
+    public void close() throws Exception {
+        try {
+            if (pool instanceof AutoCloseable) {
+                ((AutoCloseable) pool).close();
+            }
+        } finally {
+            idAllocationPool.close();
+        }
+    }
+}
+
+// ReservedPoolSequenceGenerator.java
+package com.example.banking.config;
+
+import org.hibernate.HibernateException;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+
+import java.io.Serializable;
+
+// SequenceStyleGenerator whose id block fetches take their connection from the reserved pool
+// of IdAllocationDataSource. Ids handed out from an already fetched block open no connection.
+public class ReservedPoolSequenceGenerator extends SequenceStyleGenerator {
+    
+    @Override
+    public Serializable generate(SharedSessionContractImplementor session, Object object) throws HibernateException {
+        return IdAllocationDataSource.allocatingIds(() -> super.generate(session, object));
+    }
+}
+
+// ReadWriteRoutingDataSource.java
+package com.example.banking.config;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sends the connection of a read-only transaction to one of the replica pools, round-robin,
+// and every other connection to the primary. ReadWriteRoutingTransactionManager marks the
+// thread while it opens a transaction's connection, so nothing else is ever routed to a
+// replica. Every lag check interval the primary rewrites the replica_heartbeats row; a
+// replica whose copy is more than maxLagMillis older, or that cannot be read, is taken out
+// of rotation until it catches up. With no replica in rotation reads go to the primary.
+// A negative maxLagMillis disables the checks and keeps every replica in rotation.
+public class ReadWriteRoutingDataSource extends AbstractDataSource implements AutoCloseable {
+    
+    private static final Log log = LogFactory.getLog(ReadWriteRoutingDataSource.class);
+    private static final ThreadLocal<Boolean> READ_ONLY = new ThreadLocal<>();
+    
+    private final DataSource primary;
+    private final List<DataSource> replicas;
+    private final long maxLagMillis;
+    private final AtomicInteger next = new AtomicInteger();
+    private final boolean[] inRotation;
+    private volatile List<DataSource> available;
+    private ScheduledExecutorService lagChecker;
+    
+    public ReadWriteRoutingDataSource(DataSource primary, List<DataSource> replicas,
+                                      long lagCheckIntervalMillis, long maxLagMillis) {
+        this.primary = primary;
+        this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+        this.maxLagMillis = maxLagMillis;
+        this.inRotation = new boolean[replicas.size()];
+        if (maxLagMillis < 0 || replicas.isEmpty()) {
+            available = this.replicas;
+            return;
+        }
+        
+        // Replicas join the rotation once the first check has seen them current
+        available = Collections.emptyList();
+        lagChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-lag-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lagChecker.scheduleWithFixedDelay(this::checkReplicasQuietly, 0, lagCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    static void setReadOnlyRouting(boolean readOnly) {
+        if (readOnly) {
+            READ_ONLY.set(Boolean.TRUE);
+        } else {
+            READ_ONLY.remove();
+        }
+    }
+    
+    @Override
+    public Connection getConnection() throws SQLException {
+        DataSource replica = nextReplica();
+        if (replica != null) {
+            try {
+                return replica.getConnection();
+            } catch (SQLException e) {
+                log.warn("Could not connect to replica, reading from the primary", e);
+            }
+        }
+        return primary.getConnection();
+    }
+    
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        DataSource replica = nextReplica();
+        if (replica != null) {
+            try {
+                return replica.getConnection(username, password);
+            } catch (SQLException e) {
+                log.warn("Could not connect to replica, reading from the primary", e);
+            }
+        }
+        return primary.getConnection(username, password);
+    }
+    
+    public int getReplicasInRotation() {
+        return available.size();
+    }
+    
+    @Override
+    public void close() throws Exception {
+        if (lagChecker != null) {
+            lagChecker.shutdownNow();
+        }
+        closeQuietly(primary);
+        for (DataSource replica : replicas) {
+            closeQuietly(replica);
+        }
+    }
+    
+    private DataSource nextReplica() {
+        List<DataSource> candidates = available;
+        if (READ_ONLY.get() == null || candidates.isEmpty()) {
+            return null;
+        }
+        return candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+    }
+    
+    private void checkReplicasQuietly() {
+        try {
+            checkReplicas();
+        } catch (Exception e) {
+            // Without a fresh heartbeat on the primary no replica can be judged current.
+            // Only worth a warning when it takes replicas out of rotation; the first checks
+            // can run before the schema exists.
+            if (available.isEmpty()) {
+                log.debug("Replica lag check failed", e);
+            } else {
+                log.warn("Replica lag check failed, reading from the primary", e);
+            }
+            available = Collections.emptyList();
+            Arrays.fill(inRotation, false);
+        }
+    }
+    
+    private void checkReplicas() throws SQLException {
+        long beat = System.currentTimeMillis();
+        try (Connection connection = primary.getConnection()) {
+            writeHeartbeat(connection, beat);
+        }
+        
+        List<DataSource> healthy = new ArrayList<>(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            long lag;
+            try (Connection connection = replicas.get(i).getConnection()) {
+                lag = beat - readHeartbeat(connection);
+            } catch (SQLException e) {
+                lag = Long.MAX_VALUE;
+            }
+            boolean current = lag <= maxLagMillis;
+            if (current != inRotation[i]) {
+                inRotation[i] = current;
+                log.info("Replica " + i + (current ? " back in rotation" : " out of rotation, lag " 
+                        + (lag == Long.MAX_VALUE ? "unknown" : lag + " ms")));
+            }
+            if (current) {
+                healthy.add(replicas.get(i));
+            }
+        }
+        available = Collections.unmodifiableList(healthy);
+    }
+    
+    private static void writeHeartbeat(Connection connection, long beat) throws SQLException {
+        try (PreparedStatement update = connection.prepareStatement(
+                "UPDATE replica_heartbeats SET beat_at = ? WHERE id = 1")) {
+            update.setLong(1, beat);
+            if (update.executeUpdate() > 0) {
+                return;
+            }
+        }
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO replica_heartbeats (id, beat_at) VALUES (1, ?)")) {
+            insert.setLong(1, beat);
+            insert.executeUpdate();
+        }
+    }
+    
+    // Throws when the row has not been replicated yet
+    private static long readHeartbeat(Connection connection) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT beat_at FROM replica_heartbeats WHERE id = 1");
+             ResultSet resultSet = select.executeQuery()) {
+            if (!resultSet.next()) {
+                throw new SQLException("No heartbeat replicated yet");
+            }
+            return resultSet.getLong(1);
+        }
+    }
+    
+    private static void closeQuietly(DataSource dataSource) {
+        if (dataSource instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) dataSource).close();
+            } catch (Exception e) {
+                log.warn("Could not close connection pool", e);
+            }
+        }
+    }
+}
+
+// ReadWriteRoutingDataSourceTest.java
+package com.example.banking.config;
+
+import com.example.banking.testing.InMemoryBankingContext;
 import org.hibernate.SessionFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.ComponentScan;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.context.annotation.PropertySource;
-import org.springframework.core.env.Environment;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Boots the application with extra in-memory databases as replicas. Every database gets a
+// one-row database_marker table naming it, so a query shows where a connection came from.
+class ReadWriteRoutingDataSourceTest {
+    
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    
+    @Test
+    void readOnlyTransactionsGoToTheReplicasInTurn() throws Exception {
+        Map<String, String> properties = replicatedProperties(
+                database("primary"), database("replica-a"), database("replica-b"));
+        // Keep both replicas in rotation without heartbeats
+        properties.put("jdbc.replica.max-lag-ms", "-1");
+        
+        try (InMemoryBankingContext context = new InMemoryBankingContext(properties)) {
+            assertEquals("primary", servedBy(context, false));
+            
+            String first = servedBy(context, true);
+            String second = servedBy(context, true);
+            assertEquals(new HashSet<>(Arrays.asList("replica-a", "replica-b")), new HashSet<>(Arrays.asList(first, second)));
+            assertEquals(first, servedBy(context, true));
+            assertEquals(second, servedBy(context, true));
+            
+            assertEquals("primary", servedBy(context, false));
+        }
+    }
+    
+    // Replica heartbeats are written by hand here: replica-a always looks current until it is
+    // set back, replica-b never does
+    @Test
+    void laggingReplicasAreTakenOutOfRotation() throws Exception {
+        String replicaA = database("replica-a");
+        String replicaB = database("replica-b");
+        setHeartbeat(replicaA, Long.MAX_VALUE);
+        setHeartbeat(replicaB, 0);
+        Map<String, String> properties = replicatedProperties(database("primary"), replicaA, replicaB);
+        properties.put("jdbc.replica.lag-check-ms", "50");
+        properties.put("jdbc.replica.max-lag-ms", "1000");
+        
+        try (InMemoryBankingContext context = new InMemoryBankingContext(properties)) {
+            awaitReadsFrom(context, "replica-a");
+            for (int i = 0; i < 4; i++) {
+                assertEquals("replica-a", servedBy(context, true));
+            }
+            
+            setHeartbeat(replicaA, 0);
+            awaitReadsFrom(context, "primary");
+            assertNotEquals("replica-b", servedBy(context, true));
+        }
+    }
+    
+    @Test
+    void connectionsFallBackToThePrimaryWhenAReplicaFails() throws Exception {
+        DriverManagerDataSource primary = new DriverManagerDataSource(database("primary"), "sa", "");
+        AbstractDataSource unreachable = new AbstractDataSource() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                throw new SQLException("Replica is down");
+            }
+            
+            @Override
+            public Connection getConnection(String username, String password) throws SQLException {
+                throw new SQLException("Replica is down");
+            }
+        };
+        ReadWriteRoutingDataSource routing =
+                new ReadWriteRoutingDataSource(primary, Collections.singletonList(unreachable), 1000, -1);
+        
+        ReadWriteRoutingDataSource.setReadOnlyRouting(true);
+        try (Connection connection = routing.getConnection()) {
+            assertEquals("primary", marker(connection));
+        } finally {
+            ReadWriteRoutingDataSource.setReadOnlyRouting(false);
+        }
+        ReadWriteRoutingDataSource.setReadOnlyRouting(true);
+        try (Connection connection = routing.getConnection("sa", "")) {
+            assertEquals("primary", marker(connection));
+        } finally {
+            ReadWriteRoutingDataSource.setReadOnlyRouting(false);
+            routing.close();
+        }
+    }
+    
+    private static Map<String, String> replicatedProperties(String primaryUrl, String... replicaUrls) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("jdbc.url", primaryUrl);
+        properties.put("jdbc.replica.urls", String.join(",", replicaUrls));
+        return properties;
+    }
+    
+    // Creates a database holding the marker table and returns its URL
+    private static String database(String name) throws SQLException {
+        String url = InMemoryBankingContext.databaseUrl("routing-" + DATABASES.incrementAndGet());
+        try (Connection connection = DriverManager.getConnection(url, "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE database_marker (name VARCHAR(32) NOT NULL)");
+            statement.execute("INSERT INTO database_marker (name) VALUES ('" + name + "')");
+        }
+        return url;
+    }
+    
+    private static void setHeartbeat(String url, long beatAt) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(url, "sa", "")) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS replica_heartbeats (id INT PRIMARY KEY, beat_at BIGINT NOT NULL)");
+                statement.execute("DELETE FROM replica_heartbeats");
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO replica_heartbeats (id, beat_at) VALUES (1, ?)")) {
+                insert.setLong(1, beatAt);
+                insert.executeUpdate();
+            }
+        }
+    }
+    
+    // Name of the database a transaction with the given read-only flag was connected to
+    private static String servedBy(InMemoryBankingContext context, boolean readOnly) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        transactionTemplate.setReadOnly(readOnly);
+        SessionFactory sessionFactory = context.getBean(SessionFactory.class);
+        return transactionTemplate.execute(status -> (String) sessionFactory.getCurrentSession()
+                .createNativeQuery("SELECT name FROM database_marker")
+                .getSingleResult());
+    }
+    
+    private static void awaitReadsFrom(InMemoryBankingContext context, String name) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!name.equals(servedBy(context, true))) {
+            assertTrue(System.nanoTime() < deadline, "Read-only transactions never went to " + name);
+            Thread.sleep(20);
+        }
+    }
+    
+    private static String marker(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT name FROM database_marker")) {
+            resultSet.next();
+            return resultSet.getString(1);
+        }
+    }
+}
+
+// ReadWriteRoutingTransactionManager.java
+package com.example.banking.config;
+
 import org.springframework.orm.hibernate5.HibernateTransactionManager;
-import org.springframework.orm.hibernate5.LocalSessionFactoryBean;
-import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.transaction.TransactionDefinition;
 
-import javax.sql.DataSource;
-import java.util.Properties;
+// Spring publishes a transaction's read-only flag only after doBegin, but doBegin is where
+// the transaction's connection is opened; this exposes the flag to ReadWriteRoutingDataSource
+// for exactly that moment
+public class ReadWriteRoutingTransactionManager extends HibernateTransactionManager {
+    
+    @Override
+    protected void doBegin(Object transaction, TransactionDefinition definition) {
+        ReadWriteRoutingDataSource.setReadOnlyRouting(definition.isReadOnly());
+        try {
+            super.doBegin(transaction, definition);
+        } finally {
+            ReadWriteRoutingDataSource.setReadOnlyRouting(false);
+        }
+    }
+}
 
-@Configuration
-@PropertySource("classpath:application.properties")
-@EnableTransactionManagement
-@ComponentScan(basePackages = "com.example.banking")
-public class Applic
+// IdSequenceAligner.java
+package com.example.banking.config;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+// Tables created before the pooled generators existed already hold auto-increment ids,
+// while a freshly created id table starts at 1. On startup each id table is moved past
+// the current MAX(id) so the first allocated block cannot collide with existing rows.
+@Component
+public class IdSequenceAligner {
+    
+    private static final String[][] ID_TABLES = {
+            {"accounts", "account_id_seq"},
+            {"transactions", "transaction_id_seq"},
+            {"account_balance_slots", "account_balance_slot_id_seq"}
+    };
+    
+    private final SessionFactory sessionFactory;
+    
+    @Autowired
+    public IdSequenceAligner(SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+    
+    @PostConstruct
+    public void alignSequences() {
+        try (Session session = sessionFactory.openSession()) {
+            Transaction tx = session.beginTransaction();
+            try {
+                for (String[] idTable : ID_TABLES) {
+                    align(session, idTable[0], idTable[1]);
+                }
+                tx.commit();
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    private void align(Session session, String entityTable, String sequenceTable) {
+        Number maxId = (Number) session.createNativeQuery(
+                "SELECT COALESCE(MAX(id), 0) FROM " + entityTable)
+                .getSingleResult();
+        long next = maxId.longValue() + 1;
+        
+        // Only ever moves forward, so concurrent startups and live allocations are safe
+        session.createNativeQuery(
+                "UPDATE " + sequenceTable + " SET next_val = :next WHERE next_val < :next")
+                .setParameter("next", next)
+                .executeUpdate();
+    }
+}
+
+// application.properties
+jdbc.driverClassName=com.mysql.cj.jdbc.Driver
+jdbc.url=jdbc:mysql://localhost:3306/banking_db?createDatabaseIfNotExist=true&useSSL=false&serverTimezone=UTC&useCursorFetch=true
+jdbc.username=root
+jdbc.password=password
+jdbc.rewriteBatchedStatements=true
+jdbc.pool.max-total=8
+jdbc.id-pool.max-total=2
+jdbc.replica.urls=
+jdbc.replica.pool.max-total=8
+jdbc.replica.lag-check-ms=1000
+jdbc.replica.max-lag-ms=5000
+
+hibernate.dialect=org.hibernate.dialect.MySQL8Dialect
+hibernate.show_sql=false
+hibernate.format_sql=false
+hibernate.hbm2ddl.auto=update
+hibernate.jdbc.batch_size=50
+
+banking.locking.mode=PESSIMISTIC
+banking.locking.stripes=1024
+banking.locking.out-of-order-timeout-ms=1000
+banking.optimistic.max-attempts=5
+banking.optimistic.initial-backoff-ms=2
+banking.optimistic.max-backoff-ms=100
+banking.account-cache.size=100000
+banking.hot-accounts.refresh-ms=30000
+banking.idempotency.ttl-seconds=600
+banking.idempotency.max-entries=100000
+
+banking.velocity.enabled=false
+banking.velocity.max-transfers-per-minute=0
+banking.velocity.max-amount-per-minute=
+banking.velocity.max-transfers-per-day=0
+banking.velocity.max-amount-per-day=
+banking.velocity.minute-buckets=12
+banking.velocity.day-buckets=96
+
+banking.pipeline.batch-size=200
+banking.pipeline.window-ms=5
+banking.pipeline.queue-capacity=10000
+banking.pipeline.committers=4
+banking.pipeline.submit-timeout-ms=100
+
+banking.ledger.enabled=false
+banking.ledger.directory=ledger
+banking.ledger.segment-records=1048576
+banking.ledger.sync-every=1
+banking.ledger.snapshot-interval-ms=1000
+
+banking.bulk.chunk-rows=10000
+banking.bulk.batch-size=500
+
+banking.reconciliation.range-size=10000
+banking.reconciliation.parallelism=4
+banking.reconciliation.max-reported=1000
+
+banking.archive.enabled=false
+banking.archive.directory=archive
+banking.archive.max-age-days=90
+banking.archive.block-records=1024
+banking.archive.interval-ms=3600000
+banking.archive.cached-segments=64
+
+banking.outbox.enabled=false
+banking.outbox.relay-enabled=false
+banking.outbox.batch-size=500
+banking.outbox.interval-ms=100
+banking.outbox.file=outbox/transfer-events.csv
+banking.outbox.retention-hours=24
+
+banking.metrics.enabled=true
+banking.metrics.jmx-enabled=true
+banking.metrics.log-interval-ms=60000
+
+// InMemoryBankingContext.java
+package com.example.banking.testing;
+
+import com.example.banking.Account;
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.config.ApplicationConfig;
+import com.example.banking.repository.AccountRepository;
+import com.example.banking.repository.TransactionRepository;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Boots the production ApplicationConfig against a private in-memory H2 database, for tests
+// and benchmarks alike. The properties set here take precedence over application.properties,
+// so the wiring exercised is the one the application runs with; only the connection and
+// dialect differ. Lives with the tests, in src/test/java, not with the benchmark sources.
+public class InMemoryBankingContext implements AutoCloseable {
+    
+    private static final int SEED_CHUNK_SIZE = 10_000;
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+    
+    private final AnnotationConfigApplicationContext context;
+    private final TransactionTemplate transactionTemplate;
+    
+    public InMemoryBankingContext(Map<String, String> overrides) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("jdbc.driverClassName", "org.h2.Driver");
+        properties.put("jdbc.url", databaseUrl("banking-" + DATABASES.incrementAndGet()));
+        properties.put("jdbc.username", "sa");
+        properties.put("jdbc.password", "");
+        properties.put("jdbc.pool.max-total", "64");
+        properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        properties.put("hibernate.hbm2ddl.auto", "create");
+        properties.put("hibernate.show_sql", "false");
+        properties.putAll(overrides);
+        
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("in-memory", properties));
+        context.register(ApplicationConfig.class);
+        context.refresh();
+        transactionTemplate = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+    }
+    
+    public <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+    
+    // Creates accounts ACC0000000, ACC0000001, ... and returns their ids in that order
+    public List<Long> createAccounts(int count, Money balance) {
+        AccountRepository accountRepository = context.getBean(AccountRepository.class);
+        List<Long> ids = new ArrayList<>(count);
+        for (int from = 0; from < count; from += SEED_CHUNK_SIZE) {
+            int to = Math.min(count, from + SEED_CHUNK_SIZE);
+            int first = from;
+            transactionTemplate.executeWithoutResult(status -> {
+                for (int i = first; i < to; i++) {
+                    Account account = new Account(accountNumber(i), "Owner " + i, balance);
+                    accountRepository.save(account);
+                    ids.add(account.getId());
+                }
+            });
+        }
+        return ids;
+    }
+    
+    // Inserts successful transfers between random accounts, one second apart and ending now;
+    // balances are not touched, only history is generated
+    public void createTransactions(List<Long> accountIds, int count, long seed) {
+        TransactionRepository transactionRepository = context.getBean(TransactionRepository.class);
+        SplittableRandom random = new SplittableRandom(seed);
+        LocalDateTime start = LocalDateTime.now().minusSeconds(count);
+        for (int from = 0; from < count; from += SEED_CHUNK_SIZE) {
+            int to = Math.min(count, from + SEED_CHUNK_SIZE);
+            List<Transaction> chunk = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                Long sourceId = accountIds.get(random.nextInt(accountIds.size()));
+                Long targetId = accountIds.get(random.nextInt(accountIds.size()));
+                Transaction transaction = new Transaction(sourceId, targetId, Money.ofMinor(1 + random.nextInt(100_000)));
+                transaction.setTransactionDate(start.plusSeconds(i));
+                transaction.setStatus("SUCCESS");
+                chunk.add(transaction);
+            }
+            transactionTemplate.executeWithoutResult(status -> transactionRepository.saveAll(chunk, 1000));
+        }
+    }
+    
+    public static String accountNumber(int index) {
+        return String.format("ACC%07d", index);
+    }
+    
+    // URL of a named in-memory database that outlives its connections, for tests that pass it
+    // as jdbc.url or jdbc.replica.urls; two contexts given the same URL share the database.
+    // IGNORE_UNKNOWN_SETTINGS lets the MySQL-only connection properties pass through.
+    public static String databaseUrl(String name) {
+        return "jdbc:h2:mem:" + name + ";MODE=MySQL;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000;IGNORE_UNKNOWN_SETTINGS=TRUE";
+    }
+    
+    @Override
+    public void close() {
+        context.close();
+    }
+}
+
+// TransferBenchmark.java
+package com.example.banking.benchmark;
+
+import com.example.banking.Account;
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.service.BankService;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Transfers between uniformly chosen accounts, so contention is low and the numbers show
+// the per-transfer cost of locking, flushing and committing
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransferBenchmark {
+    
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+    
+    @Param({"PESSIMISTIC", "OPTIMISTIC"})
+    public String lockingMode;
+    
+    @Param({"10000"})
+    public int accounts;
+    
+    private InMemoryBankingContext context;
+    private BankService bankService;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new InMemoryBankingContext(Collections.singletonMap("banking.locking.mode", lockingMode));
+        context.createAccounts(accounts, Money.ofMinor(100_000_000L));
+        bankService = context.getBean(BankService.class);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+    
+    @Benchmark
+    @Threads(1)
+    public Transaction transferSingleThread() {
+        return transferBetweenRandomAccounts();
+    }
+    
+    @Benchmark
+    @Threads(8)
+    public Transaction transferMultiThread() {
+        return transferBetweenRandomAccounts();
+    }
+    
+    @Benchmark
+    @Threads(8)
+    public Account findByAccountNumber() {
+        return bankService.getAccountByNumber(randomAccountNumber());
+    }
+    
+    private Transaction transferBetweenRandomAccounts() {
+        return bankService.transferMoney(randomAccountNumber(), randomAccountNumber(), AMOUNT);
+    }
+    
+    private String randomAccountNumber() {
+        return InMemoryBankingContext.accountNumber(ThreadLocalRandom.current().nextInt(accounts));
+    }
+}
+
+// HotAccountBenchmark.java
+package com.example.banking.benchmark;
+
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.service.BankService;
+import com.example.banking.service.HotAccountService;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Every thread pays out of the same account, the pattern of a merchant or fee account.
+// With slots = 0 all transfers queue on one stripe and row; with slots > 0 the account is
+// sharded through HotAccountService first.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class HotAccountBenchmark {
+    
+    private static final BigDecimal AMOUNT = new BigDecimal("0.01");
+    private static final int ACCOUNTS = 1000;
+    
+    @Param({"0", "16"})
+    public int slots;
+    
+    private InMemoryBankingContext context;
+    private BankService bankService;
+    private String hotAccount;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Refresh the hot account registry often enough that the first iteration sees it
+        context = new InMemoryBankingContext(Collections.singletonMap("banking.hot-accounts.refresh-ms", "100"));
+        context.createAccounts(ACCOUNTS, Money.ofMinor(100_000_000_000L));
+        bankService = context.getBean(BankService.class);
+        hotAccount = InMemoryBankingContext.accountNumber(0);
+        if (slots > 0) {
+            context.getBean(HotAccountService.class).enable(hotAccount, slots);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+    
+    @Benchmark
+    public Transaction transferFromHotAccount() {
+        String target = InMemoryBankingContext.accountNumber(1 + ThreadLocalRandom.current().nextInt(ACCOUNTS - 1));
+        return bankService.transferMoney(hotAccount, target, AMOUNT);
+    }
+    
+    @Benchmark
+    public Transaction transferToHotAccount() {
+        String source = InMemoryBankingContext.accountNumber(1 + ThreadLocalRandom.current().nextInt(ACCOUNTS - 1));
+        return bankService.transferMoney(source, hotAccount, AMOUNT);
+    }
+}
+
+// HistoryQueryBenchmark.java
+package com.example.banking.benchmark;
+
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.repository.TransactionPage;
+import com.example.banking.service.AccountStatement;
+import com.example.banking.service.BankService;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// History reads against a pre-generated transactions table. findAll materializes the whole
+// table and is there as the baseline the paged and streaming reads are compared against.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class HistoryQueryBenchmark {
+    
+    private static final int ACCOUNTS = 1000;
+    private static final int PAGE_SIZE = 50;
+    
+    @Param({"10000", "1000000"})
+    public int rows;
+    
+    private InMemoryBankingContext context;
+    private BankService bankService;
+    private List<Long> accountIds;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = new InMemoryBankingContext(Collections.emptyMap());
+        accountIds = context.createAccounts(ACCOUNTS, Money.ofMinor(100_000_000L));
+        context.createTransactions(accountIds, rows, 42);
+        bankService = context.getBean(BankService.class);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+    
+    @Benchmark
+    public List<Transaction> findAll() {
+        return bankService.getAllTransactions();
+    }
+    
+    @Benchmark
+    public long exportAll(Blackhole blackhole) {
+        return bankService.exportTransactions(blackhole::consume);
+    }
+    
+    @Benchmark
+    public TransactionPage latestPage() {
+        return bankService.getTransactionsPage(null, PAGE_SIZE);
+    }
+    
+    @Benchmark
+    public TransactionPage accountOutgoingPage() {
+        return bankService.getOutgoingTransactionsPage(randomAccountId(), null, PAGE_SIZE);
+    }
+    
+    @Benchmark
+    public AccountStatement accountStatement() {
+        int index = ThreadLocalRandom.current().nextInt(ACCOUNTS);
+        return bankService.getStatement(InMemoryBankingContext.accountNumber(index), null, null);
+    }
+    
+    private Long randomAccountId() {
+        return accountIds.get(ThreadLocalRandom.current().nextInt(accountIds.size()));
+    }
+}
+
+// BenchmarkRunner.java
+package com.example.banking.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks and writes JMH's JSON result file, which is what builds are compared on.
+// Arguments: [include regex] [result file], e.g. "TransferBenchmark" target/jmh-result.json
+public class BenchmarkRunner {
+    
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+        String resultFile = args.length > 1 ? args[1] : "jmh-result.json";
+        
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(options).run();
+    }
+}
+
+// TransferConcurrencyTest.java
+package com.example.banking.service;
+
+import com.example.banking.Account;
+import com.example.banking.Money;
+import com.example.banking.Transaction;
+import com.example.banking.testing.InMemoryBankingContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Runs PESSIMISTIC transfers between a few accounts from many threads, in both directions,
+// against the production wiring on H2: every transfer must finish and every balance must
+// match its opening balance plus the successful transfers recorded for it
+class TransferConcurrencyTest {
+    
+    private static final int ACCOUNTS = 8;
+    private static final int THREADS = 16;
+    private static final int TRANSFERS_PER_THREAD = 250;
+    private static final Money OPENING_BALANCE = Money.ofMinor(10_000);
+    
+    private InMemoryBankingContext context;
+    private BankService bankService;
+    private List<Long> accountIds;
+    
+    @BeforeEach
+    void setUp() {
+        context = new InMemoryBankingContext(Collections.singletonMap("banking.locking.mode", "PESSIMISTIC"));
+        accountIds = context.createAccounts(ACCOUNTS, OPENING_BALANCE);
+        bankService = context.getBean(BankService.class);
+    }
+    
+    @AfterEach
+    void tearDown() {
+        context.close();
+    }
+    
+    @Test
+    void concurrentTransfersDoNotDriftBalances() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            SplittableRandom random = new SplittableRandom(thread);
+            workers.add(executor.submit(() -> {
+                for (int i = 0; i < TRANSFERS_PER_THREAD; i++) {
+                    String source = InMemoryBankingContext.accountNumber(random.nextInt(ACCOUNTS));
+                    String target = InMemoryBankingContext.accountNumber(random.nextInt(ACCOUNTS));
+                    BigDecimal amount = Money.ofMinor(1 + random.nextInt(5_000)).toBigDecimal();
+                    try {
+                        bankService.transferMoney(source, target, amount);
+                    } catch (IllegalArgumentException e) {
+                        // Insufficient funds; the balance check below covers rejected transfers too
+                    }
+                }
+            }));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(2, TimeUnit.MINUTES), "Transfers did not finish");
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        
+        Map<Long, Money> expected = new HashMap<>();
+        for (Long id : accountIds) {
+            expected.put(id, OPENING_BALANCE);
+        }
+        for (Transaction transaction : bankService.getAllTransactions()) {
+            if ("SUCCESS".equals(transaction.getStatus())) {
+                expected.merge(transaction.getSourceAccountId(), transaction.getAmount().negate(), Money::add);
+                expected.merge(transaction.getTargetAccountId(), transaction.getAmount(), Money::add);
+            }
+        }
+        
+        Money total = Money.ZERO;
+        for (Account account : bankService.getAllAccounts()) {
+            Money balance = bankService.getBalance(account.getAccountNumber());
+            assertEquals(expected.get(account.getId()), balance, account.getAccountNumber());
+            assertTrue(balance.signum() >= 0, account.getAccountNumber() + " went negative");
+            total = total.add(balance);
+        }
+        assertEquals(Money.ofMinor(OPENING_BALANCE.getMinorUnits() * ACCOUNTS), total);
+    }
+    
+    // With the default 1024 stripes, freshly created accounts map to stripes in id order, so
+    // the second transfer of the second transaction locks below the stripes the first holds
+    @Test
+    void transfersInOneTransactionMayLockInAnyOrder() {
+        TransactionTemplate transactionTemplate =
+                new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        BigDecimal amount = BigDecimal.ONE;
+        
+        transactionTemplate.executeWithoutResult(status -> {
+            bankService.transferMoney(accountNumber(0), accountNumber(1), amount);
+            bankService.transferMoney(accountNumber(2), accountNumber(3), amount);
+        });
+        transactionTemplate.executeWithoutResult(status -> {
+            bankService.transferMoney(accountNumber(4), accountNumber(5), amount);
+            bankService.transferMoney(accountNumber(0), accountNumber(1), amount);
+        });
+        
+        // Both transactions committed and released their stripes
+        bankService.transferMoney(accountNumber(1), accountNumber(4), amount);
+        assertEquals(Money.of(new BigDecimal("98.00")), bankService.getBalance(accountNumber(0)));
+        assertEquals(Money.of(new BigDecimal("101.00")), bankService.getBalance(accountNumber(1)));
+        assertEquals(Money.of(new BigDecimal("100.00")), bankService.getBalance(accountNumber(4)));
+        assertEquals(Money.of(new BigDecimal("101.00")), bankService.getBalance(accountNumber(5)));
+    }
+    
+    private static String accountNumber(int index) {
+        return InMemoryBankingContext.accountNumber(index);
+    }
+}
+
+// pom.xml
+<?xml version="1.0" encoding="UTF-8"?>
+<project xmlns="http://maven.apache.org/POM/4.0.0"
+         xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance"
+         xsi:schemaLocation="http://maven.apache.org/POM/4.0.0 http://maven.apache.org/xsd/maven-4.0.0.xsd">
+    <modelVersion>4.0.0</modelVersion>
+
+    <groupId>com.example</groupId>
+    <artifactId>banking</artifactId>
+    <version>1.0-SNAPSHOT</version>
+
+    <!--
+        src/main/java   the application
+        src/test/java   tests and InMemoryBankingContext, which tests and benchmarks share
+        src/jmh/java    the JMH benchmarks, compiled with the tests so they stay out of the jar
+
+        mvn test                                    runs the tests
+        mvn test-compile exec:exec@benchmarks       runs every benchmark into target/jmh-result.json
+    -->
+    <properties>
+        <maven.compiler.source>11</maven.compiler.source>
+        <maven.compiler.target>11</maven.compiler.target>
+        <project.build.sourceEncoding>UTF-8</project.build.sourceEncoding>
+        <spring.version>5.3.27</spring.version>
+        <hibernate.version>5.6.15.Final</hibernate.version>
+        <mysql.version>8.0.30</mysql.version>
+        <jmh.version>1.36</jmh.version>
+    </properties>
+
+    <dependencies>
+        <!-- Spring Context, ORM and transactions -->
+        <dependency>
+            <groupId>org.springframework</groupId>
+            <artifactId>spring-context</artifactId>
+            <version>${spring.version}</version>
+        </dependency>
+        
+        <dependency>
+            <groupId>org.springframework</groupId>
+            <artifactId>spring-orm</artifactId>
+            <version>${spring.version}</version>
+        </dependency>
+        
+        <!-- Hibernate Core -->
+        <dependency>
+            <groupId>org.hibernate</groupId>
+            <artifactId>hibernate-core</artifactId>
+            <version>${hibernate.version}</version>
+        </dependency>
+        
+        <!-- Connection pools -->
+        <dependency>
+            <groupId>org.apache.commons</groupId>
+            <artifactId>commons-dbcp2</artifactId>
+            <version>2.9.0</version>
+        </dependency>
+        
+        <!-- MySQL Connector -->
+        <dependency>
+            <groupId>mysql</groupId>
+            <artifactId>mysql-connector-java</artifactId>
+            <version>${mysql.version}</version>
+        </dependency>
+        
+        <!-- @PostConstruct and @PreDestroy, no longer part of the JDK -->
+        <dependency>
+            <groupId>javax.annotation</groupId>
+            <artifactId>javax.annotation-api</artifactId>
+            <version>1.3.2</version>
+        </dependency>
+        
+        <!-- Tests and benchmarks -->
+        <dependency>
+            <groupId>org.junit.jupiter</groupId>
+            <artifactId>junit-jupiter</artifactId>
+            <version>5.9.3</version>
+            <scope>test</scope>
+        </dependency>
+        
+        <dependency>
+            <groupId>com.h2database</groupId>
+            <artifactId>h2</artifactId>
+            <version>2.1.214</version>
+            <scope>test</scope>
+        </dependency>
+        
+        <dependency>
+            <groupId>org.openjdk.jmh</groupId>
+            <artifactId>jmh-core</artifactId>
+            <version>${jmh.version}</version>
+            <scope>test</scope>
+        </dependency>
+    </dependencies>
+
+    <build>
+        <plugins>
+            <plugin>
+                <groupId>org.codehaus.mojo</groupId>
+                <artifactId>build-helper-maven-plugin</artifactId>
+                <version>3.4.0</version>
+                <executions>
+                    <execution>
+                        <id>add-benchmark-sources</id>
+                        <phase>generate-test-sources</phase>
+                        <goals>
+                            <goal>add-test-source</goal>
+                        </goals>
+                        <configuration>
+                            <sources>
+                                <source>src/jmh/java</source>
+                            </sources>
+                        </configuration>
+                    </execution>
+                </executions>
+            </plugin>
+            
+            <!-- The JMH annotation processor generates the benchmark harness at test-compile -->
+            <plugin>
+                <groupId>org.apache.maven.plugins</groupId>
+                <artifactId>maven-compiler-plugin</artifactId>
+                <version>3.11.0</version>
+                <executions>
+                    <execution>
+                        <id>default-testCompile</id>
+                        <configuration>
+                            <annotationProcessorPaths>
+                                <path>
+                                    <groupId>org.openjdk.jmh</groupId>
+                                    <artifactId>jmh-generator-annprocess</artifactId>
+                                    <version>${jmh.version}</version>
+                                </path>
+                            </annotationProcessorPaths>
+                        </configuration>
+                    </execution>
+                </executions>
+            </plugin>
+            
+            <plugin>
+                <groupId>org.apache.maven.plugins</groupId>
+                <artifactId>maven-surefire-plugin</artifactId>
+                <version>3.1.2</version>
+            </plugin>
+            
+            <!-- Benchmarks fork JVMs, so they run in a java process of their own with the test classpath -->
+            <plugin>
+                <groupId>org.codehaus.mojo</groupId>
+                <artifactId>exec-maven-plugin</artifactId>
+                <version>3.1.0</version>
+                <executions>
+                    <execution>
+                        <id>benchmarks</id>
+                        <goals>
+                            <goal>exec</goal>
+                        </goals>
+                        <configuration>
+                            <executable>java</executable>
+                            <classpathScope>test</classpathScope>
+                            <arguments>
+                                <argument>-classpath</argument>
+                                <classpath/>
+                                <argument>com.example.banking.benchmark.BenchmarkRunner</argument>
+                                <argument>com.example.banking.benchmark.*</argument>
+                                <argument>${project.build.directory}/jmh-result.json</argument>
+                            </arguments>
+                        </configuration>
+                    </execution>
+                </executions>
+            </plugin>
+        </plugins>
+    </build>
+</project>
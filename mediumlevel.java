@@ -1,14 +1,35 @@
 // Student.java
 package com.example.hibernate;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
+
 import javax.persistence.*;
 
+// Cached in the "students" second-level cache region, sized in hibernate.cfg.xml. READ_WRITE
+// locks a student's entry while a transaction updates or deletes it, so other sessions read
+// the row from the database until the change has committed and the entry is replaced or removed.
 @Entity
 @Table(name = "students")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "students")
 public class Student {
     
+    // IDENTITY would make Hibernate insert every student on its own; a pooled table-backed
+    // generator hands out ids in blocks so inserts can go out as JDBC batches
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "student_id_generator")
+    @GenericGenerator(
+            name = "student_id_generator",
+            strategy = "org.hibernate.id.enhanced.SequenceStyleGenerator",
+            parameters = {
+                    @Parameter(name = "sequence_name", value = "student_id_seq"),
+                    @Parameter(name = "force_table_use", value = "true"),
+                    @Parameter(name = "increment_size", value = "50"),
+                    @Parameter(name = "optimizer", value = "pooled-lo")
+            })
     private int id;
     
     @Column(name = "name")
@@ -61,21 +82,75 @@ public class Student {
 // StudentDAO.java
 package com.example.hibernate;
 
+import org.hibernate.CacheMode;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Function;
 
 public class StudentDAO {
     private final SessionFactory sessionFactory;
     
+    // True for the DAO handed to inTransaction work: its methods run in the thread's current
+    // session and transaction instead of opening their own
+    private final boolean unitOfWork;
+    
     public StudentDAO(SessionFactory sessionFactory) {
+        this(sessionFactory, false);
+    }
+    
+    private StudentDAO(SessionFactory sessionFactory, boolean unitOfWork) {
         this.sessionFactory = sessionFactory;
+        this.unitOfWork = unitOfWork;
+    }
+    
+    // Run several DAO calls as one unit of work: one session and transaction, bound to the
+    // calling thread through current_session_context_class=thread. Students read through the
+    // given DAO stay managed, so changes to them are written on commit without updateStudent.
+    // Commits when the work returns and returns the work's result. If anything in it fails,
+    // Errors included, the unit of work is rolled back and the failure is rethrown, so callers
+    // can tell that their changes were not written. Nested calls join the outer unit of work.
+    public <T> T inTransaction(Function<StudentDAO, T> work) {
+        if (unitOfWork) {
+            return work.apply(this);
+        }
+        
+        Session session = sessionFactory.getCurrentSession();
+        StudentDAO dao = new StudentDAO(sessionFactory, true);
+        if (session.getTransaction().isActive()) {
+            return work.apply(dao);
+        }
+        Transaction tx = session.beginTransaction();
+        
+        try {
+            T result = work.apply(dao);
+            tx.commit();
+            return result;
+        } catch (Throwable e) {
+            // Rolling back also closes the thread-bound session, so the thread starts clean
+            if (tx.getStatus().canRollback()) {
+                try {
+                    tx.rollback();
+                } catch (RuntimeException rollbackFailure) {
+                    e.addSuppressed(rollbackFailure);
+                }
+            }
+            throw e;
+        }
     }
     
     // Create a new student
     public void saveStudent(Student student) {
+        if (unitOfWork) {
+            sessionFactory.getCurrentSession().save(student);
+            return;
+        }
+        
         Session session = sessionFactory.openSession();
         Transaction tx = null;
         
@@ -94,8 +169,76 @@ public class StudentDAO {
         }
     }
     
+    // Create many students in one transaction; returns the number saved
+    public int saveAll(Collection<Student> students) {
+        return saveAll(students.iterator());
+    }
+    
+    // Create students as the iterator produces them, so the input never has to be in memory
+    // at once. Every hibernate.jdbc.batch_size students the session is flushed, sending the
+    // inserts as one JDBC batch, and the saved students are evicted. Returns the number
+    // saved, or 0 if the transaction was rolled back.
+    public int saveAll(Iterator<Student> students) {
+        if (unitOfWork) {
+            return saveBatched(sessionFactory.getCurrentSession(), students);
+        }
+        
+        Session session = sessionFactory.openSession();
+        // Keep a bulk load from pushing recently read students out of the second-level cache
+        session.setCacheMode(CacheMode.IGNORE);
+        Transaction tx = null;
+        int saved = 0;
+        
+        try {
+            tx = session.beginTransaction();
+            saved = saveBatched(session, students);
+            tx.commit();
+            System.out.println(saved + " students saved successfully!");
+        } catch (Exception e) {
+            if (tx != null) {
+                tx.rollback();
+            }
+            e.printStackTrace();
+            saved = 0;
+        } finally {
+            session.close();
+        }
+        
+        return saved;
+    }
+    
+    // Evicts only the students it saved, so a unit of work keeps the entities it loaded itself
+    private int saveBatched(Session session, Iterator<Student> students) {
+        int batchSize = Math.max(1, sessionFactory.getSessionFactoryOptions().getJdbcBatchSize());
+        List<Student> pending = new ArrayList<>(batchSize);
+        int saved = 0;
+        while (students.hasNext()) {
+            Student student = students.next();
+            session.save(student);
+            pending.add(student);
+            saved++;
+            if (pending.size() == batchSize) {
+                flushAndEvict(session, pending);
+            }
+        }
+        flushAndEvict(session, pending);
+        return saved;
+    }
+    
+    private void flushAndEvict(Session session, List<Student> pending) {
+        session.flush();
+        for (Student student : pending) {
+            session.evict(student);
+        }
+        pending.clear();
+    }
+    
     // Read a student by ID
     public Student getStudentById(int id) {
+        if (unitOfWork) {
+            return sessionFactory.getCurrentSession().get(Student.class, id);
+        }
+        
         Session session = sessionFactory.openSession();
         Student student = null;
         
@@ -110,8 +253,16 @@ public class StudentDAO {
         return student;
     }
     
-    // Update a student
+    // Update a student; inside a unit of work only needed for students loaded elsewhere
     public void updateStudent(Student student) {
+        if (unitOfWork) {
+            Session current = sessionFactory.getCurrentSession();
+            if (!current.contains(student)) {
+                current.merge(student);
+            }
+            return;
+        }
+        
         Session session = sessionFactory.openSession();
         Transaction tx = null;
         
@@ -132,6 +283,15 @@ public class StudentDAO {
     
     // Delete a student
     public void deleteStudent(int id) {
+        if (unitOfWork) {
+            Session current = sessionFactory.getCurrentSession();
+            Student student = current.get(Student.class, id);
+            if (student != null) {
+                current.delete(student);
+            }
+            return;
+        }
+        
         Session session = sessionFactory.openSession();
         Transaction tx = null;
         
@@ -155,6 +315,10 @@ public class StudentDAO {
     
     // Get all students
     public List<Student> getAllStudents() {
+        if (unitOfWork) {
+            return sessionFactory.getCurrentSession().createQuery("from Student", Student.class).list();
+        }
+        
         Session session = sessionFactory.openSession();
         List<Student> students = null;
         
@@ -173,24 +337,519 @@ public class StudentDAO {
 // HibernateUtil.java
 package com.example.hibernate;
 
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-import org.hibernate.cfg.Configuration;
+import org.hibernate.Transaction;
+import org.hibernate.boot.Metadata;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.cfgxml.spi.LoadedConfig;
+import org.hibernate.boot.cfgxml.spi.MappingReference;
+import org.hibernate.boot.model.relational.Namespace;
+import org.hibernate.boot.model.relational.Sequence;
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.boot.spi.MetadataImplementor;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.mapping.Column;
+import org.hibernate.mapping.Index;
+import org.hibernate.mapping.Table;
+import org.hibernate.mapping.UniqueKey;
+import org.hibernate.stat.Statistics;
+import org.hibernate.tool.hbm2ddl.SchemaUpdate;
+import org.hibernate.tool.hbm2ddl.SchemaValidator;
+import org.hibernate.tool.schema.TargetType;
+import org.jboss.logging.Logger;
 
+import javax.persistence.PersistenceException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Builds the SessionFactory from hibernate.cfg.xml on first use, on a background thread;
+// call startInBackground() early to overlap the build with other startup work.
+//
+// With <property name="fast_start.enabled">true</property> in hibernate.cfg.xml startup
+// also skips work that is the same on every run:
+// - The parsed settings and mapped classes are cached in a properties file, so later runs
+//   do not parse the XML with Hibernate. The file lives in ~/.cache/hibernate-fast-start,
+//   which only its owner may access, and is used only if it still is private and was
+//   written for the current hibernate.cfg.xml. Connection credentials are never cached;
+//   a cached start reads just those properties from the XML.
+// - hbm2ddl.auto=update or validate only runs when the fingerprint of the mapped schema
+//   differs from the one stored in the hibernate_schema_fingerprint table by the last
+//   successful run. Change the schema only through the mapping, or clear that table.
+// The duration of each startup phase is logged once the SessionFactory is built and stays
+// available from getStartupTimings().
 public class HibernateUtil {
-    private static final SessionFactory sessionFactory = buildSessionFactory();
+    private static final Logger LOG = Logger.getLogger(HibernateUtil.class);
+    private static final String CONFIG_RESOURCE = "hibernate.cfg.xml";
+    private static final String FAST_START = "fast_start.enabled";
+    private static final String MAPPED_CLASSES = "fast_start.mapped_classes";
+    private static final String CONFIG_HASH = "fast_start.config_hash";
+    
+    // Anyone who can write the cache can inject settings, so it is kept out of the shared
+    // java.io.tmpdir
+    private static final Path CACHE_DIRECTORY =
+            Paths.get(System.getProperty("user.home"), ".cache", "hibernate-fast-start");
+    private static final EnumSet<PosixFilePermission> NOT_OWNER = EnumSet.of(
+            PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE,
+            PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE);
+    
+    private static final Map<String, Long> startupTimings = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static CompletableFuture<SessionFactory> sessionFactory;
+    
+    // Starts building the SessionFactory unless that has already begun
+    public static synchronized CompletableFuture<SessionFactory> startInBackground() {
+        if (sessionFactory == null) {
+            sessionFactory = new CompletableFuture<>();
+            Thread builder = new Thread(() -> {
+                try {
+                    sessionFactory.complete(buildSessionFactory());
+                } catch (Throwable ex) {
+                    System.err.println("Initial SessionFactory creation failed." + ex);
+                    sessionFactory.completeExceptionally(ex);
+                }
+            }, "session-factory-builder");
+            builder.setDaemon(true);
+            builder.start();
+        }
+        return sessionFactory;
+    }
     
     private static SessionFactory buildSessionFactory() {
+        long started = System.nanoTime();
+        long phase = started;
+        
+        // Create the service registry from hibernate.cfg.xml, or from its cached settings
+        byte[] configXml = readConfigXml();
+        String configHash = sha256(configXml);
+        Path cacheFile = CACHE_DIRECTORY.resolve("hibernate-cfg-" + configHash.substring(0, 16) + ".properties");
+        Properties cached = loadCachedSettings(cacheFile, configHash);
+        StandardServiceRegistryBuilder registryBuilder = new StandardServiceRegistryBuilder();
+        List<String> mappedClasses = new ArrayList<>();
+        Map<String, Object> settings;
+        if (cached != null) {
+            for (String className : cached.getProperty(MAPPED_CLASSES).split(",")) {
+                mappedClasses.add(className);
+            }
+            cached.remove(MAPPED_CLASSES);
+            cached.remove(CONFIG_HASH);
+            settings = new LinkedHashMap<>();
+            for (String name : cached.stringPropertyNames()) {
+                settings.put(name, cached.getProperty(name));
+            }
+            settings.putAll(readCredentials(configXml));
+        } else {
+            LoadedConfig config = registryBuilder.configure(CONFIG_RESOURCE).getAggregatedCfgXml();
+            @SuppressWarnings("unchecked")
+            Map<String, Object> values = config.getConfigurationValues();
+            settings = new LinkedHashMap<>(values);
+            if (isFastStart(settings)) {
+                storeCachedSettings(cacheFile, configHash, config);
+            }
+        }
+        phase = recordPhase("configure", phase);
+        
+        // The schema step runs after the build so it can be skipped when nothing changed
+        boolean fastStart = isFastStart(settings);
+        String schemaAction = String.valueOf(settings.getOrDefault(AvailableSettings.HBM2DDL_AUTO, "none")).trim();
+        boolean deferSchema = fastStart && (schemaAction.equals("update") || schemaAction.equals("validate"));
+        if (deferSchema) {
+            settings.put(AvailableSettings.HBM2DDL_AUTO, "none");
+        }
+        StandardServiceRegistry registry = registryBuilder.applySettings(settings).build();
+        phase = recordPhase("registry", phase);
+        
+        try {
+            MetadataSources sources = new MetadataSources(registry);
+            for (String className : mappedClasses) {
+                sources.addAnnotatedClassName(className);
+            }
+            Metadata metadata = sources.buildMetadata();
+            phase = recordPhase("metadata", phase);
+            
+            SessionFactory factory = metadata.buildSessionFactory();
+            phase = recordPhase("session-factory", phase);
+            
+            try {
+                if (deferSchema) {
+                    checkSchema(factory, metadata, registry, schemaAction);
+                    phase = recordPhase("schema", phase);
+                }
+                alignStudentIdSequence(factory);
+                recordPhase("id-sequence", phase);
+            } catch (RuntimeException e) {
+                factory.close();
+                throw e;
+            }
+            
+            startupTimings.put("total", (System.nanoTime() - started) / 1_000_000);
+            LOG.infof("SessionFactory built; startup phases in ms: %s", getStartupTimings());
+            return factory;
+        } catch (RuntimeException e) {
+            StandardServiceRegistryBuilder.destroy(registry);
+            throw e;
+        }
+    }
+    
+    private static boolean isFastStart(Map<String, Object> settings) {
+        return Boolean.parseBoolean(String.valueOf(settings.get(FAST_START)).trim());
+    }
+    
+    private static long recordPhase(String name, long phaseStarted) {
+        long now = System.nanoTime();
+        startupTimings.put(name, (now - phaseStarted) / 1_000_000);
+        return now;
+    }
+    
+    private static byte[] readConfigXml() {
+        try (InputStream in = HibernateUtil.class.getClassLoader().getResourceAsStream(CONFIG_RESOURCE)) {
+            if (in == null) {
+                throw new IllegalStateException(CONFIG_RESOURCE + " not found on the classpath");
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    // A cache that is not private, cannot be read, or was written for another version of
+    // hibernate.cfg.xml is ignored; that only costs a parse of the XML
+    private static Properties loadCachedSettings(Path cacheFile, String configHash) {
+        if (!isPrivate(CACHE_DIRECTORY) || !Files.isRegularFile(cacheFile, LinkOption.NOFOLLOW_LINKS)
+                || !isPrivate(cacheFile)) {
+            return null;
+        }
+        Properties cached = new Properties();
+        try (InputStream in = Files.newInputStream(cacheFile, LinkOption.NOFOLLOW_LINKS)) {
+            cached.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!configHash.equals(cached.getProperty(CONFIG_HASH)) || cached.getProperty(MAPPED_CLASSES) == null) {
+            return null;
+        }
+        return cached;
+    }
+    
+    // Only plain settings and annotated classes can be replayed from the cache; anything else
+    // in hibernate.cfg.xml, like mapping files or cache region elements, leaves it uncached
+    private static void storeCachedSettings(Path cacheFile, String configHash, LoadedConfig config) {
+        if (!isEmpty(config.getCacheRegionDefinitions()) || !isEmpty(config.getEventListenerMap())
+                || hasJaccPermissions(config)) {
+            return;
+        }
+        Properties cached = new Properties();
+        for (Object entry : config.getConfigurationValues().entrySet()) {
+            Map.Entry<?, ?> setting = (Map.Entry<?, ?>) entry;
+            if (!(setting.getValue() instanceof String)) {
+                return;
+            }
+            if (!isCredential((String) setting.getKey())) {
+                cached.setProperty((String) setting.getKey(), (String) setting.getValue());
+            }
+        }
+        List<String> classNames = new ArrayList<>();
+        for (MappingReference mapping : config.getMappingReferences()) {
+            if (mapping.getType() != MappingReference.Type.CLASS) {
+                return;
+            }
+            classNames.add(mapping.getReference());
+        }
+        cached.setProperty(MAPPED_CLASSES, String.join(",", classNames));
+        cached.setProperty(CONFIG_HASH, configHash);
+        
         try {
-            // Create the SessionFactory from hibernate.cfg.xml
-            return new Configuration().configure().buildSessionFactory();
-        } catch (Throwable ex) {
-            System.err.println("Initial SessionFactory creation failed." + ex);
-            throw new ExceptionInInitializerError(ex);
+            if (!createPrivateDirectory(CACHE_DIRECTORY)) {
+                System.err.println("Not caching " + CONFIG_RESOURCE + " settings: " + CACHE_DIRECTORY
+                        + " is accessible to other users");
+                return;
+            }
+            // Temporary files are created readable and writable by their owner only
+            Path part = Files.createTempFile(cacheFile.getParent(), "hibernate-cfg-", ".part");
+            try (OutputStream out = Files.newOutputStream(part)) {
+                cached.store(out, "Settings cached from " + CONFIG_RESOURCE);
+            }
+            Files.move(part, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not cache " + CONFIG_RESOURCE + " settings: " + e);
+        }
+    }
+    
+    // LoadedConfig offers no other way to see <security> (JACC) grants, which the cache cannot
+    // replay; the accessor is deprecated together with Hibernate's JACC support
+    @SuppressWarnings("deprecation")
+    private static boolean hasJaccPermissions(LoadedConfig config) {
+        return !isEmpty(config.getJaccPermissionsByContextId());
+    }
+    
+    // Database user, password and URL, which can carry credentials as well
+    private static boolean isCredential(String setting) {
+        String name = setting.toLowerCase(Locale.ROOT);
+        return name.endsWith("password") || name.endsWith(".user") || name.endsWith("username")
+                || name.endsWith(".url");
+    }
+    
+    // The credentials left out of the cache, read from the XML with a plain StAX pass, which
+    // costs far less than the full parse the cache saves. Names and values are normalized
+    // the way LoadedConfig does it.
+    private static Map<String, Object> readCredentials(byte[] configXml) {
+        Map<String, Object> credentials = new LinkedHashMap<>();
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            XMLStreamReader reader = factory.createXMLStreamReader(new ByteArrayInputStream(configXml));
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("property")) {
+                        continue;
+                    }
+                    String name = reader.getAttributeValue(null, "name");
+                    if (name != null && isCredential(name)) {
+                        String value = reader.getElementText().trim();
+                        credentials.put(name, value);
+                        if (!name.startsWith("hibernate.")) {
+                            credentials.put("hibernate." + name, value);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Could not read " + CONFIG_RESOURCE, e);
+        }
+        return credentials;
+    }
+    
+    // Creates the directory readable, writable and searchable by its owner only, where the
+    // file system has POSIX permissions; returns whether it is private
+    private static boolean createPrivateDirectory(Path directory) throws IOException {
+        if (!Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            Files.createDirectories(directory.getParent());
+            try {
+                if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                    Files.createDirectory(directory,
+                            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                } else {
+                    Files.createDirectory(directory);
+                }
+            } catch (FileAlreadyExistsException e) {
+                // Created concurrently; checked below like any existing directory
+            }
+        }
+        return isPrivate(directory);
+    }
+    
+    // Not a symbolic link and, where the file system has POSIX permissions, owned by the
+    // current user and closed to group and others
+    private static boolean isPrivate(Path path) {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS) || Files.isSymbolicLink(path)) {
+            return false;
+        }
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return true;
+        }
+        try {
+            PosixFileAttributes attributes =
+                    Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return attributes.owner().getName().equals(System.getProperty("user.name"))
+                    && Collections.disjoint(attributes.permissions(), NOT_OWNER);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    private static boolean isEmpty(Object collectionOrMap) {
+        if (collectionOrMap instanceof Map) {
+            return ((Map<?, ?>) collectionOrMap).isEmpty();
         }
+        return collectionOrMap == null || ((Collection<?>) collectionOrMap).isEmpty();
     }
     
+    // Runs the deferred hbm2ddl action only if the mapped schema changed since the last run
+    // that brought the database up to date
+    private static void checkSchema(SessionFactory factory, Metadata metadata, StandardServiceRegistry registry,
+                                    String schemaAction) {
+        String fingerprint = schemaFingerprint(metadata);
+        if (fingerprint.equals(readSchemaFingerprint(factory))) {
+            return;
+        }
+        
+        if (schemaAction.equals("validate")) {
+            new SchemaValidator().validate(metadata, registry);
+        } else {
+            SchemaUpdate update = new SchemaUpdate();
+            update.execute(EnumSet.of(TargetType.DATABASE), metadata, registry);
+            if (!update.getExceptions().isEmpty()) {
+                throw new IllegalStateException("Schema update failed", (Throwable) update.getExceptions().get(0));
+            }
+        }
+        storeSchemaFingerprint(factory, fingerprint);
+    }
+    
+    // Hash of every table, column, key, index and sequence the mapping expects
+    private static String schemaFingerprint(Metadata metadata) {
+        Dialect dialect = metadata.getDatabase().getDialect();
+        TreeSet<String> parts = new TreeSet<>();
+        for (Namespace namespace : metadata.getDatabase().getNamespaces()) {
+            for (Table table : namespace.getTables()) {
+                String name = table.getQualifiedTableName().render();
+                parts.add("table " + name);
+                Iterator<Column> columns = table.getColumnIterator();
+                while (columns.hasNext()) {
+                    Column column = columns.next();
+                    parts.add("column " + name + "." + column.getName() + " "
+                            + column.getSqlType(dialect, (MetadataImplementor) metadata)
+                            + (column.isNullable() ? " null" : " not null"));
+                }
+                Iterator<Index> indexes = table.getIndexIterator();
+                while (indexes.hasNext()) {
+                    parts.add("index " + name + "." + indexes.next().getName());
+                }
+                Iterator<UniqueKey> uniqueKeys = table.getUniqueKeyIterator();
+                while (uniqueKeys.hasNext()) {
+                    parts.add("unique " + name + "." + uniqueKeys.next().getName());
+                }
+            }
+            for (Sequence sequence : namespace.getSequences()) {
+                parts.add("sequence " + sequence.getName().render());
+            }
+        }
+        return sha256(String.join("\n", parts).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static String readSchemaFingerprint(SessionFactory factory) {
+        try (Session session = factory.openSession()) {
+            Object fingerprint = session.createNativeQuery(
+                    "SELECT fingerprint FROM hibernate_schema_fingerprint WHERE id = 1")
+                    .uniqueResult();
+            return fingerprint == null ? null : fingerprint.toString();
+        } catch (PersistenceException e) {
+            // No table yet
+            return null;
+        }
+    }
+    
+    private static void storeSchemaFingerprint(SessionFactory factory, String fingerprint) {
+        try (Session session = factory.openSession()) {
+            Transaction tx = session.beginTransaction();
+            try {
+                session.createNativeQuery("CREATE TABLE IF NOT EXISTS hibernate_schema_fingerprint"
+                        + " (id INT NOT NULL PRIMARY KEY, fingerprint VARCHAR(64) NOT NULL)")
+                        .executeUpdate();
+                session.createNativeQuery("DELETE FROM hibernate_schema_fingerprint WHERE id = 1")
+                        .executeUpdate();
+                session.createNativeQuery("INSERT INTO hibernate_schema_fingerprint (id, fingerprint) VALUES (1, :fingerprint)")
+                        .setParameter("fingerprint", fingerprint)
+                        .executeUpdate();
+                tx.commit();
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    private static String sha256(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    // Students created while ids were auto-increments are already in the table, but a newly
+    // created id table starts at 1; move it past MAX(id) so new ids cannot collide
+    private static void alignStudentIdSequence(SessionFactory factory) {
+        try (Session session = factory.openSession()) {
+            Transaction tx = session.beginTransaction();
+            try {
+                Number maxId = (Number) session.createNativeQuery(
+                        "SELECT COALESCE(MAX(id), 0) FROM students")
+                        .getSingleResult();
+                long next = maxId.longValue() + 1;
+                
+                // Only ever moves forward, so it is safe while other instances allocate ids
+                session.createNativeQuery(
+                        "UPDATE student_id_seq SET next_val = :next WHERE next_val < :next")
+                        .setParameter("next", next)
+                        .executeUpdate();
+                tx.commit();
+            } catch (RuntimeException e) {
+                tx.rollback();
+                throw e;
+            }
+        }
+    }
+    
+    // Waits for the SessionFactory, starting the build if nobody has yet
     public static SessionFactory getSessionFactory() {
-        return sessionFactory;
+        try {
+            return startInBackground().join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("SessionFactory creation failed", e.getCause());
+        }
+    }
+    
+    // Milliseconds spent in each startup phase so far, in the order they ran
+    public static Map<String, Long> getStartupTimings() {
+        synchronized (startupTimings) {
+            return new LinkedHashMap<>(startupTimings);
+        }
+    }
+    
+    // Hit ratio, evictions and size of a second-level cache region, e.g. "students". Hits and
+    // misses are only counted with hibernate.generate_statistics on
+    public static CacheRegionStats getCacheStats(String regionName) {
+        SessionFactoryImplementor factory = getSessionFactory().unwrap(SessionFactoryImplementor.class);
+        RegionFactory regionFactory = factory.getCache().getRegionFactory();
+        if (!(regionFactory instanceof LruCacheRegionFactory)) {
+            throw new IllegalStateException("Second-level cache is not provided by LruCacheRegionFactory");
+        }
+        Statistics statistics = factory.getStatistics();
+        return ((LruCacheRegionFactory) regionFactory).getStats(regionName,
+                statistics.isStatisticsEnabled() ? statistics.getDomainDataRegionStatistics(regionName) : null);
     }
     
     public static void shutdown() {
@@ -199,6 +858,255 @@ public class HibernateUtil {
     }
 }
 
+// LruCacheRegionFactory.java
+package com.example.hibernate;
+
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.cfg.spi.DomainDataRegionBuildingContext;
+import org.hibernate.cache.cfg.spi.DomainDataRegionConfig;
+import org.hibernate.cache.spi.support.DomainDataStorageAccess;
+import org.hibernate.cache.spi.support.RegionFactoryTemplate;
+import org.hibernate.cache.spi.support.StorageAccess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.stat.CacheRegionStatistics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// In-process second-level cache, used through hibernate.cache.region.factory_class. Each region
+// holds at most max_entries entries, evicting the least recently used one when it is full, and
+// drops an entry ttl_seconds after it was cached; 0 keeps entries until they are evicted.
+// Both are read from hibernate.cfg.xml, per region or as defaults for every region:
+//   lru_cache.<region>.max_entries, lru_cache.<region>.ttl_seconds
+//   lru_cache.max_entries, lru_cache.ttl_seconds
+public class LruCacheRegionFactory extends RegionFactoryTemplate {
+    private static final long serialVersionUID = 1L;
+    private static final String PREFIX = "lru_cache.";
+    private static final String MAX_ENTRIES = "max_entries";
+    private static final String TTL_SECONDS = "ttl_seconds";
+    private static final long DEFAULT_MAX_ENTRIES = 10_000;
+    private static final long DEFAULT_TTL_SECONDS = 300;
+    
+    private final Map<String, Storage> regions = new ConcurrentHashMap<>();
+    private Map<?, ?> configValues = Collections.emptyMap();
+    
+    // AbstractRegionFactory declares the parameter as a raw Map; Map<?, ?> would not override
+    // it but clash with it, so the raw type is confined to this signature
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected void prepareForUse(SessionFactoryOptions settings, Map configValues) {
+        Map<?, ?> values = configValues;
+        this.configValues = new HashMap<Object, Object>(values);
+    }
+    
+    @Override
+    protected void releaseFromUse() {
+        for (Storage storage : regions.values()) {
+            storage.release();
+        }
+        regions.clear();
+    }
+    
+    @Override
+    protected DomainDataStorageAccess createDomainDataStorageAccess(DomainDataRegionConfig regionConfig,
+                                                                    DomainDataRegionBuildingContext buildingContext) {
+        return createStorage(regionConfig.getRegionName());
+    }
+    
+    @Override
+    protected StorageAccess createQueryResultsRegionStorageAccess(String regionName,
+                                                                  SessionFactoryImplementor sessionFactory) {
+        return createStorage(regionName);
+    }
+    
+    // Never bounded: losing a table's last update time would let the query cache return
+    // results cached before that update
+    @Override
+    protected StorageAccess createTimestampsRegionStorageAccess(String regionName,
+                                                                SessionFactoryImplementor sessionFactory) {
+        Storage storage = new Storage(0, 0);
+        regions.put(regionName, storage);
+        return storage;
+    }
+    
+    private Storage createStorage(String regionName) {
+        long maxEntries = setting(regionName, MAX_ENTRIES, DEFAULT_MAX_ENTRIES);
+        long ttlSeconds = setting(regionName, TTL_SECONDS, DEFAULT_TTL_SECONDS);
+        if (maxEntries < 1 || maxEntries > Integer.MAX_VALUE || ttlSeconds < 0) {
+            throw new CacheException("Invalid " + PREFIX + " settings for cache region " + regionName
+                    + ": max_entries=" + maxEntries + ", ttl_seconds=" + ttlSeconds);
+        }
+        Storage storage = new Storage((int) maxEntries, ttlSeconds);
+        regions.put(regionName, storage);
+        return storage;
+    }
+    
+    private long setting(String regionName, String name, long defaultValue) {
+        Object value = configValues.get(PREFIX + regionName + "." + name);
+        if (value == null) {
+            value = configValues.get(PREFIX + name);
+        }
+        try {
+            return value == null ? defaultValue : Long.parseLong(value.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new CacheException("Invalid " + PREFIX + name + " for cache region " + regionName + ": " + value, e);
+        }
+    }
+    
+    // Hits and misses are Hibernate's own counts for the region, taken from the given
+    // statistics; they are 0 when hibernate.generate_statistics is off and statistics is null
+    public CacheRegionStats getStats(String regionName, CacheRegionStatistics statistics) {
+        Storage storage = regions.get(regionName);
+        if (storage == null) {
+            throw new IllegalArgumentException("No cache region named " + regionName);
+        }
+        long hits = statistics == null ? 0 : statistics.getHitCount();
+        long misses = statistics == null ? 0 : statistics.getMissCount();
+        synchronized (storage) {
+            return new CacheRegionStats(regionName, hits, misses, storage.evictions, storage.expirations,
+                    storage.entries.size());
+        }
+    }
+    
+    // Holds Hibernate's cache entries and the locks it places on them during writes
+    private static final class Storage implements DomainDataStorageAccess {
+        private final int maxEntries;
+        private final long ttlNanos;
+        private final LinkedHashMap<Object, CachedValue> entries;
+        private long evictions;
+        private long expirations;
+        
+        private Storage(int maxEntries, long ttlSeconds) {
+            this.maxEntries = maxEntries;
+            this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+            this.entries = new LinkedHashMap<Object, CachedValue>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, CachedValue> eldest) {
+                    if (Storage.this.maxEntries > 0 && size() > Storage.this.maxEntries) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        
+        @Override
+        public synchronized Object getFromCache(Object key, SharedSessionContractImplementor session) {
+            CachedValue cached = entries.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (ttlNanos > 0 && System.nanoTime() - cached.cachedAt >= ttlNanos) {
+                entries.remove(key);
+                expirations++;
+                return null;
+            }
+            return cached.value;
+        }
+        
+        @Override
+        public synchronized void putIntoCache(Object key, Object value, SharedSessionContractImplementor session) {
+            entries.put(key, new CachedValue(value, System.nanoTime()));
+        }
+        
+        @Override
+        public boolean contains(Object key) {
+            return getFromCache(key, null) != null;
+        }
+        
+        @Override
+        public synchronized void evictData() {
+            entries.clear();
+        }
+        
+        @Override
+        public synchronized void evictData(Object key) {
+            entries.remove(key);
+        }
+        
+        @Override
+        public void release() {
+            evictData();
+        }
+    }
+    
+    private static final class CachedValue {
+        private final Object value;
+        private final long cachedAt;
+        
+        private CachedValue(Object value, long cachedAt) {
+            this.value = value;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
+
+// CacheRegionStats.java
+package com.example.hibernate;
+
+public class CacheRegionStats {
+    private final String regionName;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long expirations;
+    private final long size;
+    
+    public CacheRegionStats(String regionName, long hits, long misses, long evictions, long expirations, long size) {
+        this.regionName = regionName;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.expirations = expirations;
+        this.size = size;
+    }
+    
+    public String getRegionName() {
+        return regionName;
+    }
+    
+    public long getHits() {
+        return hits;
+    }
+    
+    public long getMisses() {
+        return misses;
+    }
+    
+    // Entries dropped to make room for newer ones
+    public long getEvictions() {
+        return evictions;
+    }
+    
+    // Entries found older than the region's ttl_seconds when read
+    public long getExpirations() {
+        return expirations;
+    }
+    
+    public long getSize() {
+        return size;
+    }
+    
+    public double getHitRatio() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0.0 : (double) hits / lookups;
+    }
+    
+    @Override
+    public String toString() {
+        return "CacheRegionStats [region=" + regionName + ", hits=" + hits + ", misses=" + misses
+                + ", hitRatio=" + String.format("%.3f", getHitRatio()) + ", evictions=" + evictions
+                + ", expirations=" + expirations + ", size=" + size + "]";
+    }
+}
+
 // MainApp.java
 package com.example.hibernate;
 
@@ -228,11 +1136,13 @@ public class MainApp {
             System.out.println(student);
         }
         
-        // Update operation
+        // Update operation: read and change in one unit of work, written back by dirty checking
         System.out.println("\nUpdating student...");
         Student firstStudent = students.get(0);
-        firstStudent.setAge(21);
-        studentDAO.updateStudent(firstStudent);
+        studentDAO.inTransaction(dao -> {
+            dao.getStudentById(firstStudent.getId()).setAge(21);
+            return null;
+        });
         
         // Display updated record
         System.out.println("\nStudent after update:");
@@ -250,6 +1160,9 @@ public class MainApp {
             System.out.println(student);
         }
         
+        // Second-level cache effectiveness for student lookups
+        System.out.println("\n" + HibernateUtil.getCacheStats("students"));
+        
         // Close the SessionFactory
         HibernateUtil.shutdown();
     }
@@ -264,7 +1177,7 @@ public class MainApp {
     <session-factory>
         <!-- Database connection settings -->
         <property name="hibernate.connection.driver_class">com.mysql.cj.jdbc.Driver</property>
-        <property name="hibernate.connection.url">jdbc:mysql://localhost:3306/hibernate_db?createDatabaseIfNotExist=true&amp;useSSL=false&amp;serverTimezone=UTC</property>
+        <property name="hibernate.connection.url">jdbc:mysql://localhost:3306/hibernate_db?createDatabaseIfNotExist=true&amp;useSSL=false&amp;serverTimezone=UTC&amp;rewriteBatchedStatements=true</property>
         <property name="hibernate.connection.username">root</property>
         <property name="hibernate.connection.password">password</property>
         
@@ -275,6 +1188,13 @@ public class MainApp {
         <property name="hibernate.c3p0.max_statements">50</property>
         <property name="hibernate.c3p0.idle_test_period">3000</property>
         
+        <!-- JDBC batching; StudentDAO.saveAll flushes every batch_size students.
+             rewriteBatchedStatements on the URL lets MySQL send a batch as one statement -->
+        <property name="hibernate.jdbc.batch_size">50</property>
+        <property name="hibernate.order_inserts">true</property>
+        <property name="hibernate.order_updates">true</property>
+        <property name="hibernate.jdbc.batch_versioned_data">true</property>
+        
         <!-- SQL dialect -->
         <property name="hibernate.dialect">org.hibernate.dialect.MySQL8Dialect</property>
         
@@ -288,6 +1208,24 @@ public class MainApp {
         <!-- Drop and re-create the database schema on startup -->
         <property name="hibernate.hbm2ddl.auto">update</property>
         
+        <!-- Fast start for short-lived tools: caches these settings between runs and only
+             runs the hbm2ddl update when the mapped schema changed (see HibernateUtil) -->
+        <property name="fast_start.enabled">false</property>
+        
+        <!-- Second-level cache for entity lookups (see LruCacheRegionFactory). Each region
+             is bounded by lru_cache.<region>.max_entries, least recently used entries are
+             evicted first, and entries expire after lru_cache.<region>.ttl_seconds.
+             Statistics supply the hit ratio in HibernateUtil.getCacheStats -->
+        <property name="hibernate.cache.use_second_level_cache">true</property>
+        <property name="hibernate.cache.region.factory_class">com.example.hibernate.LruCacheRegionFactory</property>
+        <property name="hibernate.cache.use_query_cache">false</property>
+        <property name="hibernate.generate_statistics">true</property>
+        <property name="hibernate.session.events.log">false</property>
+        <property name="lru_cache.max_entries">10000</property>
+        <property name="lru_cache.ttl_seconds">300</property>
+        <property name="lru_cache.students.max_entries">50000</property>
+        <property name="lru_cache.students.ttl_seconds">600</property>
+        
         <!-- Entity mapping -->
         <mapping class="com.example.hibernate.Student"/>
     </session-factory>